@@ -0,0 +1,71 @@
+package bench;
+
+import java.lang.reflect.Method;
+
+import pingPong.server.IntPingPongServer;
+import pingPong.server.PingServerFactory;
+import rmi.Dispatcher;
+import rmi.RMIException;
+
+/**
+ * Compares the cost of dispatching a call on the skeleton side, without the
+ * network: the reflective lookup the worker used to do on every request,
+ * against the skeleton's dispatch table.
+ *
+ * <p>
+ * Usage: <code>java bench.DispatchBenchmark [millions of calls]</code>
+ */
+public class DispatchBenchmark {
+	/**
+	 * Rounds of each variant; the first ones warm up the JIT
+	 */
+	private static final int ROUNDS = 5;
+
+	/**
+	 * Keeps results alive so that the calls are not optimized away
+	 */
+	private static int sink;
+
+	public static void main(String[] args) throws Exception {
+		int calls = (args.length > 0 ? Integer.parseInt(args[0]) : 2) * 1000000;
+		IntPingPongServer server = PingServerFactory.makePingServer();
+		Dispatcher<IntPingPongServer> dispatcher =
+				new Dispatcher<IntPingPongServer>(IntPingPongServer.class, server);
+		String className = IntPingPongServer.class.getName();
+		Class<?>[] argsType = new Class<?>[] {int.class};
+
+		for (int round = 1; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				sink += legacy(server, className, "ping", argsType, new Object[] {i}).length();
+			}
+			long reflective = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				sink += ((String)dispatcher.invoke(className, "ping", argsType,
+						new Object[] {i})).length();
+			}
+			long table = System.nanoTime() - start;
+
+			System.out.format("round %d   reflective %7.1f ns/call   dispatch table %7.1f ns/call%n",
+					round, reflective / (double)calls, table / (double)calls);
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	/**
+	 * The lookup the worker did on every request before the dispatch table
+	 */
+	private static String legacy(Object localObj, String className, String methodName,
+			Class<?>[] argsType, Object[] args) throws Exception {
+		Method targetMethod = localObj.getClass().getMethod(methodName, argsType);
+		if (!className.equals(IntPingPongServer.class.getName())) {
+			throw new RMIException("calling method not declared in the interface");
+		}
+		targetMethod.setAccessible(true);
+		return (String)targetMethod.invoke(localObj, args);
+	}
+}
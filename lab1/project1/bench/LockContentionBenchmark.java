@@ -0,0 +1,142 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import rmi.RMIException;
+import rmi.Skeleton;
+import rmi.Stub;
+import rmi.StubConfig;
+
+/**
+ * Measures how a skeleton copes with calls that block on a contended lock.
+ *
+ * <p>
+ * Many clients call <code>hold</code>, which waits for a single lock on the
+ * server and keeps it for a few milliseconds, like a contended
+ * <code>NamingServer.lock</code>. A few other clients meanwhile call
+ * <code>ping</code>, which takes no lock. With the fixed pool, the waiting
+ * calls occupy every thread and the pings queue behind them; with a thread
+ * per call, the pings keep going.
+ *
+ * <p>
+ * Usage: <code>java bench.LockContentionBenchmark [seconds [holders]]</code>
+ */
+public class LockContentionBenchmark {
+	/**
+	 * How long, in milliseconds, each <code>hold</code> keeps the lock
+	 */
+	private static final int HOLD_MILLIS = 2;
+
+	/**
+	 * Number of clients calling <code>ping</code>
+	 */
+	private static final int PINGERS = 4;
+
+	/**
+	 * Remote interface of the benchmark server
+	 */
+	public interface LockService {
+		public void hold(int millis) throws RMIException;
+		public int ping(int value) throws RMIException;
+	}
+
+	/**
+	 * Server with one contended lock
+	 */
+	private static class LockServer implements LockService {
+		private final ReentrantLock lock = new ReentrantLock(true);
+
+		@Override
+		public void hold(int millis) {
+			lock.lock();
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int ping(int value) {
+			return value;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int holders = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		System.out.format("%d holders, %d pingers, %d s per run%n", holders, PINGERS, seconds);
+		run("fixed pool", false, seconds, holders);
+		run("thread per call", true, seconds, holders);
+	}
+
+	/**
+	 * Runs one configuration and prints its results
+	 * @param name The name of the configuration
+	 * @param threadPerCall Whether the skeleton runs each call on its own thread
+	 * @param seconds How long to measure
+	 * @param holders Number of clients contending for the lock
+	 * @throws Exception
+	 */
+	private static void run(String name, boolean threadPerCall, int seconds, int holders)
+			throws Exception {
+		Skeleton<LockService> skeleton =
+				new Skeleton<LockService>(LockService.class, new LockServer());
+		skeleton.setThreadPerCall(threadPerCall);
+		skeleton.start();
+
+		final LockService stub = Stub.create(LockService.class, skeleton.getAddress(),
+				new StubConfig().setPersistent(true).setMaxConnections(4));
+		final AtomicLong holds = new AtomicLong();
+		final AtomicLong pings = new AtomicLong();
+		final AtomicLong pingNanos = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread[] threads = new Thread[holders + PINGERS];
+
+		for (int i = 0; i < threads.length; i++) {
+			final boolean pinger = i >= holders;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							if (pinger) {
+								long start = System.nanoTime();
+								stub.ping(1);
+								pingNanos.addAndGet(System.nanoTime() - start);
+								pings.incrementAndGet();
+							} else {
+								stub.hold(HOLD_MILLIS);
+								holds.incrementAndGet();
+							}
+						}
+					} catch (RMIException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		done.set(true);
+		long holdCount = holds.get();
+		long pingCount = pings.get();
+		long pingTotal = pingNanos.get();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		skeleton.stop();
+
+		System.out.format("%-16s holds/s %8.1f   pings/s %10.1f   mean ping %8.3f ms%n",
+				name, holdCount / (double)seconds, pingCount / (double)seconds,
+				pingCount == 0 ? 0.0 : pingTotal / 1e6 / pingCount);
+	}
+}
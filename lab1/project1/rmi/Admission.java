@@ -0,0 +1,106 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of a skeleton: limits the calls that have been received
+ * but not yet answered, and those of them still waiting for a thread.
+ *
+ * <p>
+ * Every call is admitted before it is handed to the executor, started when
+ * a thread picks it up, and finished when it has been answered. A call that
+ * is not admitted is answered at once with a {@link ServerBusyException}.
+ */
+final class Admission {
+	/**
+	 * Calls admitted and not yet finished
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Calls started and not yet finished
+	 */
+	private final AtomicInteger running = new AtomicInteger();
+
+	/**
+	 * The most calls in flight, or 0 for no limit
+	 */
+	private volatile int maxInFlight = 0;
+
+	/**
+	 * The most calls waiting for a thread, or 0 for no limit
+	 */
+	private volatile int maxQueued = 0;
+
+	/**
+	 * Admits a call if the limits allow it
+	 * @return <code>true</code> if the call was admitted
+	 */
+	boolean admit() {
+		int limit = maxInFlight;
+		int queueLimit = maxQueued;
+		while (true) {
+			int current = inFlight.get();
+			if (limit > 0 && current >= limit) {
+				return false;
+			}
+			if (queueLimit > 0 && current - running.get() >= queueLimit) {
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Marks an admitted call as running
+	 */
+	void start() {
+		running.incrementAndGet();
+	}
+
+	/**
+	 * Marks a running call as answered
+	 */
+	void finish() {
+		running.decrementAndGet();
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Releases an admitted call that will never run
+	 */
+	void cancel() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Builds the exception answering a call that was not admitted
+	 * @return the exception
+	 */
+	ServerBusyException busy() {
+		Metrics.SKELETON.rejected();
+		return new ServerBusyException("Error: the server is busy with " + inFlight.get() + " calls");
+	}
+
+	int getInFlight() {
+		return inFlight.get();
+	}
+
+	int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	int getMaxQueued() {
+		return maxQueued;
+	}
+
+	void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+}
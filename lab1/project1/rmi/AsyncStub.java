@@ -0,0 +1,192 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+
+/**
+ * A stub whose calls return <code>CompletableFuture</code>s instead of
+ * blocking. Created by {@link Stub#createAsync}.
+ *
+ * <p>
+ * Calls are named by a lambda making the call on a stand-in for the stub:
+ *
+ * <pre>
+ *     AsyncStub&lt;Storage&gt; storage = Stub.createAsync(Storage.class, stub);
+ *     CompletableFuture&lt;byte[]&gt; head = storage.call(s -&gt; s.read(path, 0, 512));
+ *     CompletableFuture&lt;Void&gt; gone = storage.run(s -&gt; s.delete(other));
+ * </pre>
+ *
+ * The lambda must make exactly one call on the stand-in and return its result
+ * unchanged. Calls always go over persistent connections, so any number of
+ * them can be in flight at once without a thread per call. A future fails
+ * with the exception raised by the remote method, or with an
+ * <code>RMIException</code> if the call could not be completed.
+ *
+ * <p>
+ * Futures are completed on the common fork-join pool, never on a
+ * connection's reader thread, so dependent stages may block or make further
+ * calls.
+ * @param <T> The remote interface
+ */
+public final class AsyncStub<T> {
+	/**
+	 * Records the calls named by lambdas
+	 */
+	private final Recorder<T> recorder;
+
+	/**
+	 * The skeleton's address
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * Options of this stub, always persistent
+	 */
+	private final StubConfig config;
+
+	/**
+	 * Completes the futures
+	 */
+	private final Executor executor = ForkJoinPool.commonPool();
+
+	/**
+	 * Constructor for {@code AsyncStub}
+	 * @param c The remote interface
+	 * @param address The skeleton's address
+	 * @param objectId The ID under which the object is exported
+	 * @param config The options of the stub; copied and made persistent
+	 */
+	AsyncStub(Class<T> c, InetSocketAddress address, int objectId, StubConfig config) {
+		this.recorder = new Recorder<T>(c, objectId);
+		this.address = address;
+		this.config = new StubConfig(config).setPersistent(true);
+	}
+
+	/**
+	 * Starts a call of a method that returns a value
+	 * @param call The call, as a lambda on a stand-in for the stub
+	 * @return a future completed with the result of the call
+	 * @throws IllegalArgumentException If the lambda does not make exactly
+	 *                                  one remote call.
+	 */
+	public <R> CompletableFuture<R> call(RemoteCall<T, R> call) {
+		try {
+			return send(recorder.recordCall(call));
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			throw e;
+		} catch (Exception e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Starts a call whose result is not needed
+	 * @param task The call, as a lambda on a stand-in for the stub
+	 * @return a future completed when the call returns
+	 * @throws IllegalArgumentException If the lambda does not make exactly
+	 *                                  one remote call.
+	 */
+	public CompletableFuture<Void> run(RemoteTask<T> task) {
+		try {
+			return send(recorder.recordTask(task));
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			throw e;
+		} catch (Exception e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Sends a recorded call
+	 * @param invocation The call
+	 * @return a future completed with its result
+	 */
+	private <R> CompletableFuture<R> send(Recorder.Invocation invocation) {
+		final MethodMetrics metrics = Metrics.STUB.of(invocation.method);
+		final long start = System.nanoTime();
+		RMIData request = recorder.request(invocation);
+		final Span span = Span.client(recorder.getInterface().getName() + "." + invocation.method.getName());
+		try {
+			Deadline.stamp(request, config.getTimeout());
+		} catch (DeadlineExceededException e) {
+			metrics.failed(System.nanoTime() - start);
+			finish(span, e);
+			return failed(e);
+		}
+		if (span != null) {
+			span.stamp(request);
+		}
+		return ConnectionPool.call(address, config, invocation.method, request)
+				.handleAsync(new BiFunction<ConnectionPool.Reply, Throwable, R>() {
+					@Override
+					public R apply(ConnectionPool.Reply reply, Throwable error) {
+						if (error != null) {
+							metrics.failed(System.nanoTime() - start);
+							Throwable e = error instanceof DeadlineExceededException
+									? error : new RMIException(error);
+							finish(span, e);
+							throw new CompletionException(e);
+						}
+						try {
+							@SuppressWarnings("unchecked")
+							R result = (R)reply.result(metrics, start);
+							finish(span, null);
+							return result;
+						} catch (CompletionException e) {
+							finish(span, e.getCause());
+							throw e;
+						}
+					}
+				}, executor);
+	}
+
+	/**
+	 * Closes the span of a call, if it is traced
+	 * @param span The span, or <code>null</code>
+	 * @param error The exception the call ended with, or <code>null</code>
+	 */
+	private static void finish(Span span, Throwable error) {
+		if (span != null) {
+			span.failed(error);
+			span.close();
+		}
+	}
+
+	private static <R> CompletableFuture<R> failed(Throwable e) {
+		CompletableFuture<R> future = new CompletableFuture<R>();
+		future.completeExceptionally(e);
+		return future;
+	}
+
+	/**
+	 * Return the remote interface
+	 * @return the interface
+	 */
+	public Class<T> getInterface() {
+		return recorder.getInterface();
+	}
+
+	/**
+	 * Return the skeleton's address
+	 * @return the address
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Reports the remote interface and the skeleton's address
+	 */
+	@Override
+	public String toString() {
+		int objectId = recorder.getObjectId();
+		return "INTERFACE_NAME: " + getInterface().getName()
+				+ ", Hostname: " + address.getHostName()
+				+ ", PORT: " + address.getPort()
+				+ (objectId == 0 ? "" : ", OBJECT_ID: " + objectId) + " (async)";
+	}
+}
@@ -0,0 +1,248 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects calls on one remote object and sends them together, in one round
+ * trip. Created by {@link Stub#createBatch}.
+ *
+ * <p>
+ * Calls are added as lambdas on a stand-in for the stub, as for
+ * {@link AsyncStub}, and each one gets a future:
+ *
+ * <pre>
+ *     Batch&lt;Service&gt; batch = Stub.createBatch(Service.class, service);
+ *     List&lt;CompletableFuture&lt;Boolean&gt;&gt; dirs = ...;
+ *     for (String entry : service.list(dir))
+ *         dirs.add(batch.call(s -&gt; s.isDirectory(new Path(dir, entry))));
+ *     batch.send();
+ * </pre>
+ *
+ * The skeleton runs the calls one after the other, in the order they were
+ * added, and returns all results and exceptions at once. An exception raised
+ * by one call fails only that call's future; the later calls still run. If
+ * the batch cannot be delivered, every future fails with an
+ * <code>RMIException</code>.
+ *
+ * <p>
+ * A batch is sent once; it cannot be reused afterwards. It is not safe for
+ * use by several threads at once.
+ * @param <T> The remote interface
+ */
+public final class Batch<T> {
+	/**
+	 * Records the calls named by lambdas
+	 */
+	private final Recorder<T> recorder;
+
+	/**
+	 * The skeleton's address
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * Options of this batch, always persistent
+	 */
+	private final StubConfig config;
+
+	/**
+	 * The calls added so far
+	 */
+	private final List<Recorder.Invocation> calls = new ArrayList<Recorder.Invocation>();
+
+	/**
+	 * The future of each call, in the same order
+	 */
+	private final List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+
+	/**
+	 * Set once the batch has been sent
+	 */
+	private CompletableFuture<Void> sent = null;
+
+	/**
+	 * Constructor for {@code Batch}
+	 * @param c The remote interface
+	 * @param address The skeleton's address
+	 * @param objectId The ID under which the object is exported
+	 * @param config The options of the stub; copied and made persistent
+	 */
+	Batch(Class<T> c, InetSocketAddress address, int objectId, StubConfig config) {
+		this.recorder = new Recorder<T>(c, objectId);
+		this.address = address;
+		this.config = new StubConfig(config).setPersistent(true);
+	}
+
+	/**
+	 * Adds a call of a method that returns a value
+	 * @param call The call, as a lambda on a stand-in for the stub
+	 * @return a future completed with the result once the batch returns
+	 * @throws IllegalArgumentException If the lambda does not make exactly
+	 *                                  one remote call.
+	 * @throws IllegalStateException If the batch has already been sent.
+	 */
+	public <R> CompletableFuture<R> call(RemoteCall<T, R> call) {
+		checkNotSent();
+		try {
+			return add(recorder.recordCall(call));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Adds a call whose result is not needed
+	 * @param task The call, as a lambda on a stand-in for the stub
+	 * @return a future completed once the batch returns
+	 * @throws IllegalArgumentException If the lambda does not make exactly
+	 *                                  one remote call.
+	 * @throws IllegalStateException If the batch has already been sent.
+	 */
+	public CompletableFuture<Void> run(RemoteTask<T> task) {
+		checkNotSent();
+		try {
+			return add(recorder.recordTask(task));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private <R> CompletableFuture<R> add(Recorder.Invocation invocation) {
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		calls.add(invocation);
+		results.add(result);
+		@SuppressWarnings("unchecked")
+		CompletableFuture<R> typed = (CompletableFuture<R>)(CompletableFuture<?>)result;
+		return typed;
+	}
+
+	private void checkNotSent() {
+		if (sent != null) {
+			throw new IllegalStateException("Error: the batch has already been sent");
+		}
+	}
+
+	/**
+	 * Return the number of calls added
+	 * @return the number of calls
+	 */
+	public int size() {
+		return calls.size();
+	}
+
+	/**
+	 * Sends the batch without waiting for it
+	 * @return a future completed once every call's future is completed. It
+	 *         fails with an <code>RMIException</code> only if the batch could
+	 *         not be delivered, not if some calls raised exceptions.
+	 * @throws IllegalStateException If the batch has already been sent.
+	 */
+	public CompletableFuture<Void> sendAsync() {
+		checkNotSent();
+		sent = new CompletableFuture<Void>();
+		if (calls.isEmpty()) {
+			sent.complete(null);
+			return sent;
+		}
+		List<Method> methods = new ArrayList<Method>(calls.size());
+		List<RMIData> requests = new ArrayList<RMIData>(calls.size());
+		final List<Span> spans = new ArrayList<Span>(calls.size());
+		final long start = System.nanoTime();
+		for (Recorder.Invocation invocation : calls) {
+			methods.add(invocation.method);
+			RMIData request = recorder.request(invocation);
+			Span span = Span.client(recorder.getInterface().getName() + "." + invocation.method.getName());
+			if (span != null) {
+				span.stamp(request);
+			}
+			requests.add(request);
+			spans.add(span);
+		}
+		final CompletableFuture<Void> done = sent;
+		try {
+			long left = Deadline.stamp(requests.get(0), config.getTimeout());
+			for (RMIData request : requests) {
+				request.setTimeout(left);
+			}
+		} catch (DeadlineExceededException e) {
+			for (int i = 0; i < results.size(); i++) {
+				Metrics.STUB.of(calls.get(i).method).failed(System.nanoTime() - start);
+				finish(spans.get(i), e);
+				results.get(i).completeExceptionally(e);
+			}
+			done.completeExceptionally(e);
+			return sent;
+		}
+		ConnectionPool.callBatch(address, config, methods, requests).whenCompleteAsync(
+				new BiConsumer<List<ConnectionPool.Reply>, Throwable>() {
+			@Override
+			public void accept(List<ConnectionPool.Reply> replies, Throwable error) {
+				if (error != null) {
+					RMIException e = error instanceof DeadlineExceededException
+							? (RMIException)error : new RMIException(error);
+					for (int i = 0; i < results.size(); i++) {
+						Metrics.STUB.of(calls.get(i).method).failed(System.nanoTime() - start);
+						finish(spans.get(i), e);
+						results.get(i).completeExceptionally(e);
+					}
+					done.completeExceptionally(e);
+					return;
+				}
+				for (int i = 0; i < replies.size(); i++) {
+					try {
+						Object result = replies.get(i).result(Metrics.STUB.of(calls.get(i).method), start);
+						finish(spans.get(i), null);
+						results.get(i).complete(result);
+					} catch (CompletionException e) {
+						finish(spans.get(i), e.getCause());
+						results.get(i).completeExceptionally(e.getCause());
+					}
+				}
+				done.complete(null);
+			}
+		}, ForkJoinPool.commonPool());
+		return sent;
+	}
+
+	/**
+	 * Closes the span of a call, if it is traced
+	 * @param span The span, or <code>null</code>
+	 * @param error The exception the call ended with, or <code>null</code>
+	 */
+	private static void finish(Span span, Throwable error) {
+		if (span != null) {
+			span.failed(error);
+			span.close();
+		}
+	}
+
+	/**
+	 * Sends the batch and waits until every call's future is completed
+	 * @throws RMIException If the batch could not be delivered. Exceptions
+	 *                      raised by individual calls are only reported by
+	 *                      their futures.
+	 * @throws IllegalStateException If the batch has already been sent.
+	 */
+	public void send() throws RMIException {
+		try {
+			sendAsync().get();
+		} catch (ExecutionException e) {
+			throw (RMIException)e.getCause();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RMIException(e);
+		}
+	}
+}
@@ -0,0 +1,435 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Compact binary codec of persistent connections.
+ *
+ * <p>
+ * The first time a stub calls a method over a connection, it assigns the
+ * method an ID and sends a <code>DEFINE</code> frame naming the interface,
+ * the method and its parameter types. Requests then carry only the ID and
+ * the arguments:
+ *
+ * <pre>
+ *     int   methodId
+ *     int   objectId     the called object, 0 for the skeleton's own
+ *     long  timeout      nanoseconds allowed from sending, or 0
+ *     long  traceId      the trace of the call, or 0
+ *     long  spanId       the caller's span for the call
+ *     short count        number of arguments
+ *     value...           each argument
+ * </pre>
+ *
+ * and responses a status byte, <code>RESULT</code> or <code>EXCEPTION</code>,
+ * followed by one value. A value is a tag byte and its data. Primitives,
+ * strings and <code>byte[]</code> are written directly; types with a
+ * {@link TypeCodec} registered in {@link Codecs} are written by it, after
+ * their class name; anything else is serialized. Streams not sent in
+ * chunks are read whole and serialized. Payloads are built and read
+ * through the {@link Buffers} of the calling thread.
+ */
+final class BinaryCodec implements Codec {
+	/** Value tags */
+	private static final byte NULL = 0;
+	private static final byte BOOLEAN = 1;
+	private static final byte BYTE = 2;
+	private static final byte SHORT = 3;
+	private static final byte CHAR = 4;
+	private static final byte INT = 5;
+	private static final byte LONG = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte STRING = 9;
+	private static final byte BYTES = 10;
+	private static final byte CUSTOM = 11;
+	private static final byte SERIALIZED = 12;
+
+	/** Response status */
+	private static final byte RESULT = 0;
+	private static final byte EXCEPTION = 1;
+
+	/**
+	 * Longest string written with <code>writeUTF</code>, which takes at most
+	 * three bytes per character and 65535 bytes in all
+	 */
+	private static final int MAX_UTF_CHARS = 65535 / 3;
+
+	/**
+	 * Classes of primitive parameter types, which <code>Class.forName</code>
+	 * does not resolve
+	 */
+	private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+
+	static {
+		for (Class<?> c : new Class<?>[] {boolean.class, byte.class, short.class, char.class,
+				int.class, long.class, float.class, double.class}) {
+			PRIMITIVES.put(c.getName(), c);
+		}
+	}
+
+	/**
+	 * A method defined by the stub
+	 */
+	private static final class Definition {
+		final String className;
+		final String methodName;
+		final Class<?>[] argsType;
+		final IOException error;
+
+		Definition(String className, String methodName, Class<?>[] argsType, IOException error) {
+			this.className = className;
+			this.methodName = methodName;
+			this.argsType = argsType;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Resolves the parameter types of definitions, on the skeleton side
+	 */
+	private final ClassLoader loader;
+
+	/**
+	 * Method IDs by interface name and method, on the stub side
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<Method, Integer>> ids =
+			new ConcurrentHashMap<String, ConcurrentMap<Method, Integer>>();
+
+	/**
+	 * Source of method IDs, on the stub side
+	 */
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	/**
+	 * Definitions not yet written, by method ID, on the stub side
+	 */
+	private final ConcurrentMap<Integer, byte[]> unsent = new ConcurrentHashMap<Integer, byte[]>();
+
+	/**
+	 * Definitions received, by method ID, on the skeleton side
+	 */
+	private final ConcurrentMap<Integer, Definition> defined =
+			new ConcurrentHashMap<Integer, Definition>();
+
+	/**
+	 * Constructor for {@code BinaryCodec}
+	 * @param loader Resolves parameter types on the skeleton side; may be
+	 *               <code>null</code> on the stub side
+	 */
+	BinaryCodec(ClassLoader loader) {
+		this.loader = loader == null ? BinaryCodec.class.getClassLoader() : loader;
+	}
+
+	@Override
+	public byte[] encodeRequest(RMIData request, Method method) throws IOException {
+		Object[] args = request.getArgs();
+		Buffers.Output bytes = Buffers.output();
+		try {
+			DataOutputStream out = bytes.data;
+			out.writeInt(methodId(request.getClassName(), method));
+			out.writeInt(request.getObjectId());
+			out.writeLong(request.getTimeout());
+			out.writeLong(request.getTraceId());
+			out.writeLong(request.getSpanId());
+			out.writeShort(args.length);
+			for (Object arg : args) {
+				writeValue(out, arg);
+			}
+			return bytes.toByteArray();
+		} finally {
+			bytes.release();
+		}
+	}
+
+	/**
+	 * Returns the ID of a method, assigning one and preparing its definition
+	 * the first time
+	 * @param className The interface the stub was created for
+	 * @param method The method
+	 * @return the method ID
+	 */
+	private int methodId(final String className, Method method) {
+		ConcurrentMap<Method, Integer> methods = ids.get(className);
+		if (methods == null) {
+			ids.putIfAbsent(className, new ConcurrentHashMap<Method, Integer>());
+			methods = ids.get(className);
+		}
+		return methods.computeIfAbsent(method, new Function<Method, Integer>() {
+			@Override
+			public Integer apply(Method m) {
+				int id = nextId.getAndIncrement();
+				unsent.put(id, definition(id, className, m));
+				return id;
+			}
+		});
+	}
+
+	/**
+	 * Lays out the payload of a <code>DEFINE</code> frame
+	 */
+	private static byte[] definition(int id, String className, Method method) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			Class<?>[] types = method.getParameterTypes();
+			out.writeInt(id);
+			out.writeUTF(className);
+			out.writeUTF(method.getName());
+			out.writeShort(types.length);
+			for (Class<?> type : types) {
+				out.writeUTF(type.getName());
+			}
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public byte[] takeDefinition(byte[] request) {
+		int id = ((request[0] & 0xFF) << 24) | ((request[1] & 0xFF) << 16)
+				| ((request[2] & 0xFF) << 8) | (request[3] & 0xFF);
+		return unsent.remove(id);
+	}
+
+	@Override
+	public void define(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int id = in.readInt();
+		String className = in.readUTF();
+		String methodName = in.readUTF();
+		Class<?>[] argsType = new Class<?>[in.readUnsignedShort()];
+		String[] names = new String[argsType.length];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = in.readUTF();
+		}
+		IOException error = null;
+		try {
+			for (int i = 0; i < names.length; i++) {
+				Class<?> type = PRIMITIVES.get(names[i]);
+				argsType[i] = type != null ? type : Class.forName(names[i], false, loader);
+			}
+		} catch (ClassNotFoundException e) {
+			// reported to the calls of this method, not to the connection
+			error = new IOException(e);
+		}
+		defined.put(id, new Definition(className, methodName, argsType, error));
+	}
+
+	@Override
+	public RMIData decodeRequest(byte[] payload) throws IOException {
+		Buffers.Input bytes = Buffers.input(payload);
+		try {
+			DataInputStream in = bytes.data;
+			int id = in.readInt();
+			Definition def = defined.get(id);
+			if (def == null) {
+				throw new IOException("Error: undefined method ID " + id);
+			}
+			if (def.error != null) {
+				throw def.error;
+			}
+			int objectId = in.readInt();
+			long timeout = in.readLong();
+			long traceId = in.readLong();
+			long spanId = in.readLong();
+			Object[] args = new Object[in.readUnsignedShort()];
+			if (args.length != def.argsType.length) {
+				throw new IOException("Error: wrong number of arguments for " + def.methodName);
+			}
+			for (int i = 0; i < args.length; i++) {
+				args[i] = readValue(in);
+			}
+			RMIData request = new RMIData(def.className, def.methodName, args, def.argsType, null, null);
+			request.setTimeout(timeout);
+			request.setObjectId(objectId);
+			request.setTrace(traceId, spanId);
+			return request;
+		} finally {
+			bytes.release();
+		}
+	}
+
+	@Override
+	public byte[] encodeResponse(RMIData response) throws IOException {
+		Buffers.Output bytes = Buffers.output();
+		try {
+			DataOutputStream out = bytes.data;
+			if (response.getException() != null) {
+				out.writeByte(EXCEPTION);
+				writeValue(out, response.getException());
+			} else {
+				out.writeByte(RESULT);
+				writeValue(out, response.getResult());
+			}
+			return bytes.toByteArray();
+		} finally {
+			bytes.release();
+		}
+	}
+
+	@Override
+	public RMIData decodeResponse(byte[] payload) throws IOException {
+		byte status;
+		Object value;
+		Buffers.Input bytes = Buffers.input(payload);
+		try {
+			status = bytes.data.readByte();
+			value = readValue(bytes.data);
+		} finally {
+			bytes.release();
+		}
+		if (status == RESULT) {
+			return new RMIData(value, null);
+		}
+		if (status == EXCEPTION && value instanceof Exception) {
+			return new RMIData(null, (Exception)value);
+		}
+		throw new IOException("Error: malformed response");
+	}
+
+	/**
+	 * Writes a tagged value
+	 * @param out The destination
+	 * @param value The value, may be <code>null</code>
+	 * @throws IOException If the value cannot be serialized
+	 */
+	static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+			return;
+		}
+		// serialized below
+		value = Streams.materialize(value);
+		Class<?> type = value.getClass();
+		if (type == Integer.class) {
+			out.writeByte(INT);
+			out.writeInt((Integer)value);
+		} else if (type == byte[].class) {
+			byte[] data = (byte[])value;
+			out.writeByte(BYTES);
+			out.writeInt(data.length);
+			out.write(data);
+		} else if (type == String.class && ((String)value).length() <= MAX_UTF_CHARS) {
+			out.writeByte(STRING);
+			out.writeUTF((String)value);
+		} else if (type == Long.class) {
+			out.writeByte(LONG);
+			out.writeLong((Long)value);
+		} else if (type == Boolean.class) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean)value);
+		} else if (type == Double.class) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double)value);
+		} else if (type == Float.class) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float)value);
+		} else if (type == Short.class) {
+			out.writeByte(SHORT);
+			out.writeShort((Short)value);
+		} else if (type == Byte.class) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte)value);
+		} else if (type == Character.class) {
+			out.writeByte(CHAR);
+			out.writeChar((Character)value);
+		} else {
+			@SuppressWarnings("unchecked")
+			TypeCodec<Object> codec = (TypeCodec<Object>)Codecs.forClass(type);
+			if (codec != null) {
+				out.writeByte(CUSTOM);
+				out.writeUTF(type.getName());
+				codec.write(value, out);
+			} else {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream oStream = new ObjectOutputStream(bytes);
+				oStream.writeObject(value);
+				oStream.close();
+				out.writeByte(SERIALIZED);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+		}
+	}
+
+	/**
+	 * Reads a tagged value
+	 * @param in The source
+	 * @return the value
+	 * @throws IOException If the input is malformed or names an unknown type
+	 */
+	static Object readValue(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case BOOLEAN:
+			return in.readBoolean();
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return in.readShort();
+		case CHAR:
+			return in.readChar();
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return in.readUTF();
+		case BYTES:
+			byte[] data = new byte[checkedLength(in.readInt())];
+			in.readFully(data);
+			return data;
+		case CUSTOM:
+			String name = in.readUTF();
+			TypeCodec<?> codec = Codecs.forName(name);
+			if (codec == null) {
+				throw new IOException("Error: no codec registered for " + name);
+			}
+			return codec.read(in);
+		case SERIALIZED:
+			byte[] object = new byte[checkedLength(in.readInt())];
+			in.readFully(object);
+			ObjectInputStream iStream = new ObjectInputStream(new ByteArrayInputStream(object));
+			try {
+				return iStream.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		default:
+			throw new IOException("Error: unknown value tag " + tag);
+		}
+	}
+
+	/**
+	 * Rejects lengths that cannot fit in a frame
+	 */
+	private static int checkedLength(int length) throws IOException {
+		if (length < 0 || length > Protocol.MAX_FRAME_LENGTH) {
+			throw new IOException("Error: bad value length " + length);
+		}
+		return length;
+	}
+}
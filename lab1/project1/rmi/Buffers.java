@@ -0,0 +1,196 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Buffers and data streams reused by the codecs of each thread, so that
+ * encoding and decoding a call does not allocate them anew.
+ *
+ * <p>
+ * A thread holds one {@link Output} and one {@link Input}. A codec takes
+ * them for the time it encodes or decodes one payload and releases them in
+ * a <code>finally</code> block; the encoded bytes are copied out, since a
+ * payload outlives the call that built it. A codec that needs one while the
+ * thread's is taken, as when a custom type codec encodes a nested value, gets
+ * a fresh one. An output that grew past {@link #MAX_RETAINED} is dropped on
+ * release, so that one large call does not pin its buffer for the life of
+ * the thread.
+ */
+final class Buffers {
+	/**
+	 * Initial size of an output's buffer
+	 */
+	private static final int INITIAL_SIZE = 512;
+
+	/**
+	 * Largest buffer a thread keeps between calls
+	 */
+	static final int MAX_RETAINED = 64 * 1024;
+
+	/**
+	 * Size of the scratch buffer of each thread
+	 */
+	static final int SCRATCH_SIZE = 8192;
+
+	/**
+	 * An empty array, read by inputs that are not in use
+	 */
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * The output of each thread
+	 */
+	private static final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+		@Override
+		protected Output initialValue() {
+			return new Output(true);
+		}
+	};
+
+	/**
+	 * The input of each thread
+	 */
+	private static final ThreadLocal<Input> inputs = new ThreadLocal<Input>() {
+		@Override
+		protected Input initialValue() {
+			return new Input(true);
+		}
+	};
+
+	/**
+	 * The scratch buffer of each thread
+	 */
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[SCRATCH_SIZE];
+		}
+	};
+
+	private Buffers() {
+	}
+
+	/**
+	 * Takes the current thread's output, emptied
+	 * @return the output, to be released once its bytes are copied out
+	 */
+	static Output output() {
+		Output out = outputs.get();
+		if (out.inUse) {
+			return new Output(false);
+		}
+		out.inUse = true;
+		out.reset();
+		return out;
+	}
+
+	/**
+	 * Takes the current thread's input, reading a payload
+	 * @param payload The bytes to read
+	 * @return the input, to be released once decoding is done
+	 */
+	static Input input(byte[] payload) {
+		Input in = inputs.get();
+		if (in.inUse) {
+			in = new Input(false);
+		}
+		in.inUse = true;
+		in.point(payload);
+		return in;
+	}
+
+	/**
+	 * Return the current thread's scratch buffer of {@link #SCRATCH_SIZE}
+	 * bytes, for copying through. It must not be held across anything that
+	 * may use it in turn.
+	 * @return the buffer
+	 */
+	static byte[] scratch() {
+		return scratch.get();
+	}
+
+	/**
+	 * A growable output and a data stream writing to it
+	 */
+	static final class Output extends ByteArrayOutputStream {
+		/**
+		 * Writes to this output
+		 */
+		final DataOutputStream data = new DataOutputStream(this);
+
+		/**
+		 * Whether this is a thread's output rather than a fresh one
+		 */
+		private final boolean pooled;
+
+		/**
+		 * Whether a codec has taken this output
+		 */
+		private boolean inUse;
+
+		private Output(boolean pooled) {
+			super(INITIAL_SIZE);
+			this.pooled = pooled;
+		}
+
+		/**
+		 * Hands the output back to its thread
+		 */
+		void release() {
+			if (pooled) {
+				if (buf.length > MAX_RETAINED) {
+					buf = new byte[INITIAL_SIZE];
+				}
+				inUse = false;
+			}
+		}
+	}
+
+	/**
+	 * An input over a payload and a data stream reading from it
+	 */
+	static final class Input extends ByteArrayInputStream {
+		/**
+		 * Reads from this input
+		 */
+		final DataInputStream data = new DataInputStream(this);
+
+		/**
+		 * Whether this is a thread's input rather than a fresh one
+		 */
+		private final boolean pooled;
+
+		/**
+		 * Whether a codec has taken this input
+		 */
+		private boolean inUse;
+
+		private Input(boolean pooled) {
+			super(EMPTY);
+			this.pooled = pooled;
+		}
+
+		/**
+		 * Makes the input read a payload from its start
+		 */
+		private void point(byte[] payload) {
+			buf = payload;
+			pos = 0;
+			mark = 0;
+			count = payload.length;
+		}
+
+		/**
+		 * Hands the input back to its thread, letting go of the payload
+		 */
+		void release() {
+			if (pooled) {
+				point(EMPTY);
+				inUse = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,572 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Remote objects passed by a client as arguments, and called back by the
+ * skeleton over the client's own connection.
+ *
+ * <p>
+ * On connections that accepted {@link Protocol#FEATURE_CALLBACK}, an argument
+ * created by {@link Stub#createCallback} is registered with the connection,
+ * under an ID of its own, and replaced by a {@link Ref} in the encoded
+ * request. The skeleton hands the method a proxy for the {@link Ref}; calling
+ * it sends a <code>REQUEST</code> frame the other way, to the client, which
+ * runs the call on the local object and answers with a <code>RESPONSE</code>
+ * frame with the same <code>callId</code>. Both sides number their own
+ * requests, so the IDs of calls and callbacks never meet.
+ *
+ * <p>
+ * Callback requests and responses are serialized <code>RMIData</code>
+ * whatever codec the connection uses, and name the local object by its ID.
+ * They carry the deadline of the call that made them. A callback stays
+ * registered as long as the connection is open, and a connection that has
+ * carried one is not closed for being idle.
+ */
+final class Callbacks {
+	/**
+	 * Runs callbacks on the client side, off the thread reading the
+	 * connection, so that they may call the skeleton themselves
+	 */
+	private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "rmi-callback");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private Callbacks() {
+	}
+
+	/**
+	 * Writes a frame to the connection
+	 */
+	interface Writer {
+		/**
+		 * @param frame The frame
+		 * @throws IOException If the connection is closed or the frame cannot
+		 *                     be written
+		 */
+		void write(Frame frame) throws IOException;
+	}
+
+	/**
+	 * Stands for a callback in an encoded request
+	 */
+	static final class Ref implements Serializable {
+		private static final long serialVersionUID = 2871503928146632957L;
+
+		/**
+		 * The ID under which the connection registered the callback
+		 */
+		final int id;
+
+		/**
+		 * The name of the remote interface of the callback
+		 */
+		final String itfName;
+
+		Ref(int id, String itfName) {
+			this.id = id;
+			this.itfName = itfName;
+		}
+	}
+
+	/**
+	 * Calls the local object of a callback, when the client calls it itself
+	 * @param <T>
+	 */
+	static final class Local<T> implements InvocationHandler {
+		/**
+		 * The remote interface
+		 */
+		private final Class<T> c;
+
+		/**
+		 * The local object
+		 */
+		private final T object;
+
+		/**
+		 * Constructor for {@code Local}
+		 * @param c The remote interface
+		 * @param object The local object implementing it
+		 */
+		Local(Class<T> c, T object) {
+			this.c = c;
+			this.object = object;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				String methodName = method.getName();
+				if (methodName.equals("equals")) {
+					return proxy == args[0];
+				}
+				if (methodName.equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				if (methodName.equals("toString")) {
+					return "CALLBACK: " + c.getName() + ", OBJECT: " + object;
+				}
+			}
+			try {
+				return method.invoke(object, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+
+		/**
+		 * Builds the dispatch table of the local object
+		 * @return the dispatcher
+		 */
+		Dispatcher<T> dispatcher() {
+			return new Dispatcher<T>(c, object);
+		}
+	}
+
+	/**
+	 * Return the handler of a callback
+	 * @param arg An argument of a call
+	 * @return the handler, or <code>null</code> if the argument is not a
+	 *         callback
+	 */
+	private static Local<?> localOrNull(Object arg) {
+		if (arg == null || !Proxy.isProxyClass(arg.getClass())) {
+			return null;
+		}
+		InvocationHandler handler = Proxy.getInvocationHandler(arg);
+		return handler instanceof Local ? (Local<?>)handler : null;
+	}
+
+	/**
+	 * Return whether a call passes callbacks
+	 * @param args The arguments of the call, may be <code>null</code>
+	 * @return <code>true</code> if any argument is a callback
+	 */
+	static boolean contains(Object[] args) {
+		if (args != null) {
+			for (Object arg : args) {
+				if (localOrNull(arg) != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The callbacks a client registered with one connection
+	 */
+	static final class Exports {
+		/**
+		 * Writes the responses
+		 */
+		private final Writer writer;
+
+		/**
+		 * IDs of the registered callbacks, by handler
+		 */
+		private final Map<Local<?>, Integer> ids = new IdentityHashMap<Local<?>, Integer>();
+
+		/**
+		 * Dispatch tables of the registered callbacks, by ID
+		 */
+		private final Map<Integer, Dispatcher<?>> dispatchers =
+				new ConcurrentHashMap<Integer, Dispatcher<?>>();
+
+		/**
+		 * Source of callback IDs
+		 */
+		private final AtomicInteger nextId = new AtomicInteger();
+
+		/**
+		 * Constructor for {@code Exports}
+		 * @param writer Writes frames to the connection
+		 */
+		Exports(Writer writer) {
+			this.writer = writer;
+		}
+
+		/**
+		 * Registers the callbacks a request passes and replaces them by
+		 * references
+		 * @param request The request
+		 * @return a copy of the request carrying references, or the request
+		 *         itself if it passes no callback
+		 */
+		RMIData replace(RMIData request) {
+			Object[] args = request.getArgs();
+			if (!contains(args)) {
+				return request;
+			}
+			Object[] replaced = args.clone();
+			for (int i = 0; i < replaced.length; i++) {
+				Local<?> local = localOrNull(replaced[i]);
+				if (local != null) {
+					replaced[i] = new Ref(register(local), local.c.getName());
+				}
+			}
+			return request.withArgs(replaced);
+		}
+
+		/**
+		 * Return the ID of a callback, registering it the first time
+		 * @param local The handler of the callback
+		 * @return the ID
+		 */
+		private int register(Local<?> local) {
+			synchronized (ids) {
+				Integer id = ids.get(local);
+				if (id == null) {
+					id = nextId.incrementAndGet();
+					dispatchers.put(id, local.dispatcher());
+					ids.put(local, id);
+				}
+				return id;
+			}
+		}
+
+		/**
+		 * Runs a callback request from the skeleton and answers it. Called
+		 * by the thread reading the connection; the callback runs on
+		 * another.
+		 * @param frame The request frame
+		 */
+		void serve(final Frame frame) {
+			final long received = System.nanoTime();
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					RMIData response;
+					try {
+						response = invoke(Protocol.decode(frame.getPayload()), received);
+					} catch (IOException e) {
+						response = new RMIData(null, new RMIException(e));
+					}
+					try {
+						byte[] payload;
+						try {
+							payload = Protocol.encode(response);
+						} catch (IOException e) {
+							payload = Protocol.encode(new RMIData(null, new RMIException(e)));
+						}
+						writer.write(new Frame(Protocol.RESPONSE, (byte)0, frame.getCallId(), payload));
+					} catch (IOException e) {
+						// the connection has been closed, and the skeleton with it
+					}
+				}
+			});
+		}
+
+		/**
+		 * Calls the local object a request names, within the request's
+		 * deadline and trace
+		 * @param request The request
+		 * @param received When the request was read, from
+		 *                 <code>System.nanoTime</code>
+		 * @return the response
+		 */
+		private RMIData invoke(RMIData request, long received) {
+			Span span = Span.serve(request, received);
+			if (span == null) {
+				return execute(request, received);
+			}
+			try {
+				RMIData response = execute(request, received);
+				span.failed(response.getException());
+				return response;
+			} finally {
+				span.close();
+			}
+		}
+
+		/**
+		 * Calls the local object for {@link #invoke}, within the span of the
+		 * call if it is traced
+		 */
+		private RMIData execute(RMIData request, long received) {
+			Dispatcher<?> dispatcher = dispatchers.get(request.getObjectId());
+			if (dispatcher == null) {
+				return new RMIData(null, new RMIException("Error: no callback registered under ID "
+						+ request.getObjectId()));
+			}
+			long timeout = request.getTimeout();
+			if (timeout > 0 && System.nanoTime() - received >= timeout) {
+				return new RMIData(null, new DeadlineExceededException("Error: the deadline has passed"));
+			}
+			Deadline deadline = timeout > 0 ? Deadline.open(received + timeout) : null;
+			try {
+				return new RMIData(dispatcher.invoke(request.getClassName(), request.getMethodName(),
+						request.getArgsType(), request.getArgs()), null);
+			} catch (RMIException e) {
+				return new RMIData(null, e);
+			} catch (InvocationTargetException e) {
+				Throwable target = e.getTargetException();
+				if (target instanceof Exception) {
+					return new RMIData(null, (Exception)target);
+				}
+				return new RMIData(null, new RMIException(target));
+			} finally {
+				if (deadline != null) {
+					deadline.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The client at the other end of a skeleton's connection, as seen by the
+	 * callbacks it passed
+	 */
+	static final class Peer {
+		/**
+		 * Writes the callback requests
+		 */
+		private final Writer writer;
+
+		/**
+		 * Source of call IDs
+		 */
+		private final AtomicLong nextCallId = new AtomicLong();
+
+		/**
+		 * Callbacks that have been sent and not yet answered
+		 */
+		private final Map<Long, CompletableFuture<Frame>> pending =
+				new ConcurrentHashMap<Long, CompletableFuture<Frame>>();
+
+		/**
+		 * Set once a request passed a callback
+		 */
+		private volatile boolean referenced = false;
+
+		/**
+		 * Set once the connection is closed
+		 */
+		private volatile boolean closed = false;
+
+		/**
+		 * Constructor for {@code Peer}
+		 * @param writer Writes frames to the connection
+		 */
+		Peer(Writer writer) {
+			this.writer = writer;
+		}
+
+		/**
+		 * Sends a callback request
+		 * @param payload The serialized request
+		 * @return a future completed with the response frame, or
+		 *         exceptionally with an <code>IOException</code> if the
+		 *         connection closes first
+		 * @throws IOException If the request cannot be written
+		 */
+		CompletableFuture<Frame> call(byte[] payload) throws IOException {
+			final long callId = nextCallId.incrementAndGet();
+			CompletableFuture<Frame> future = new CompletableFuture<Frame>();
+			pending.put(callId, future);
+			future.whenComplete(new BiConsumer<Frame, Throwable>() {
+				@Override
+				public void accept(Frame frame, Throwable error) {
+					pending.remove(callId);
+				}
+			});
+			if (closed) {
+				future.cancel(false);
+				throw new IOException("Error: the connection was closed");
+			}
+			try {
+				writer.write(new Frame(Protocol.REQUEST, (byte)0, callId, payload));
+			} catch (IOException e) {
+				future.cancel(false);
+				throw e;
+			}
+			return future;
+		}
+
+		/**
+		 * Completes the callback a response answers
+		 * @param response The response frame
+		 */
+		void complete(Frame response) {
+			CompletableFuture<Frame> future = pending.get(response.getCallId());
+			if (future != null) {
+				future.complete(response);
+			}
+		}
+
+		/**
+		 * Return whether the client passed callbacks over the connection
+		 * @return <code>true</code> if a request passed a callback
+		 */
+		boolean isReferenced() {
+			return referenced;
+		}
+
+		/**
+		 * Fails every pending callback, once the connection is closed
+		 */
+		void close() {
+			closed = true;
+			for (CompletableFuture<Frame> future : pending.values()) {
+				future.completeExceptionally(new IOException("Error: the connection was closed"));
+			}
+		}
+	}
+
+	/**
+	 * Replaces the references a request carries by proxies calling back the
+	 * client
+	 * @param request The decoded request
+	 * @param peer The client, or <code>null</code> if the connection did not
+	 *             accept callbacks, in which case the references are left to
+	 *             be refused as arguments
+	 * @param loader Resolves the interfaces of the callbacks
+	 * @return the request with proxies, or the request itself if it carries
+	 *         no reference
+	 * @throws IOException If the interface of a callback cannot be found
+	 */
+	static RMIData resolve(RMIData request, Peer peer, ClassLoader loader) throws IOException {
+		Object[] args = request.getArgs();
+		if (peer == null || args == null) {
+			return request;
+		}
+		Object[] resolved = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] instanceof Ref) {
+				Ref ref = (Ref)args[i];
+				Class<?> c;
+				try {
+					c = Class.forName(ref.itfName, false, loader);
+				} catch (ClassNotFoundException e) {
+					throw new IOException(e);
+				}
+				if (resolved == null) {
+					resolved = args.clone();
+				}
+				resolved[i] = Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c},
+						new Remote(peer, ref));
+				peer.referenced = true;
+			}
+		}
+		return resolved == null ? request : request.withArgs(resolved);
+	}
+
+	/**
+	 * Calls back a client's object over its connection
+	 */
+	private static final class Remote implements InvocationHandler {
+		/**
+		 * The client
+		 */
+		private final Peer peer;
+
+		/**
+		 * The reference the client sent
+		 */
+		private final Ref ref;
+
+		Remote(Peer peer, Ref ref) {
+			this.peer = peer;
+			this.ref = ref;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				String methodName = method.getName();
+				if (methodName.equals("equals")) {
+					if (args[0] == null || !Proxy.isProxyClass(args[0].getClass())) {
+						return false;
+					}
+					InvocationHandler handler = Proxy.getInvocationHandler(args[0]);
+					return handler instanceof Remote && ((Remote)handler).peer == peer
+							&& ((Remote)handler).ref.id == ref.id;
+				}
+				if (methodName.equals("hashCode")) {
+					return System.identityHashCode(peer) * 31 + ref.id;
+				}
+				if (methodName.equals("toString")) {
+					return "CALLBACK: " + ref.itfName + ", ID: " + ref.id;
+				}
+			}
+			Span span = Span.client(ref.itfName + "." + method.getName());
+			if (span == null) {
+				return call(method, args);
+			}
+			span.enter();
+			try {
+				return call(method, args);
+			} catch (Throwable t) {
+				span.failed(t);
+				throw t;
+			} finally {
+				span.close();
+			}
+		}
+
+		/**
+		 * Calls the client's object and waits for its response, within the
+		 * current thread's deadline and trace
+		 * @param method The method
+		 * @param args The arguments
+		 * @return the return value of the method
+		 * @throws Throwable The exception raised by the method, or an
+		 *                   <code>RMIException</code> if the call cannot be
+		 *                   completed
+		 */
+		private Object call(Method method, Object[] args) throws Throwable {
+			RMIData request = new RMIData(ref.itfName, method.getName(), args,
+					method.getParameterTypes(), null, null);
+			request.setObjectId(ref.id);
+			long left = Deadline.stamp(request, 0);
+			Span.propagate(request);
+			RMIData response;
+			CompletableFuture<Frame> future = null;
+			try {
+				future = peer.call(Protocol.encode(request));
+				Frame frame = left > 0 ? future.get(left, TimeUnit.NANOSECONDS) : future.get();
+				response = Protocol.decode(frame.getPayload());
+			} catch (TimeoutException e) {
+				future.cancel(false);
+				throw new DeadlineExceededException("Error: no response within "
+						+ TimeUnit.NANOSECONDS.toMillis(left) + " ms");
+			} catch (ExecutionException e) {
+				throw new RMIException(e.getCause());
+			} catch (IOException e) {
+				throw new RMIException(e);
+			} catch (InterruptedException e) {
+				future.cancel(false);
+				Thread.currentThread().interrupt();
+				throw new RMIException(e);
+			}
+			if (response.getException() != null) {
+				throw response.getException();
+			}
+			return response.getResult();
+		}
+	}
+}
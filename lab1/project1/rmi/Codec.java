@@ -0,0 +1,61 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * Turns requests and responses into frame payloads and back. Each persistent
+ * connection has its own codec, chosen during the handshake.
+ */
+interface Codec {
+	/**
+	 * Encodes a request on the stub side
+	 * @param request The request
+	 * @param method The called method of the stub's interface
+	 * @return the payload
+	 * @throws IOException If an argument cannot be encoded
+	 */
+	byte[] encodeRequest(RMIData request, Method method) throws IOException;
+
+	/**
+	 * Returns the payload of a <code>DEFINE</code> frame that must precede the
+	 * given request, the first time it is asked for. The caller must hold the
+	 * connection's output lock, so that the definition is written before any
+	 * request that depends on it.
+	 * @param request The payload of a request about to be written
+	 * @return the definition, or <code>null</code> if none is needed
+	 */
+	byte[] takeDefinition(byte[] request);
+
+	/**
+	 * Records a definition sent by the stub. Called on the thread reading
+	 * the connection, before later requests are dispatched.
+	 * @param payload The payload of a <code>DEFINE</code> frame
+	 * @throws IOException If the definition is malformed or not expected
+	 */
+	void define(byte[] payload) throws IOException;
+
+	/**
+	 * Decodes a request on the skeleton side
+	 * @param payload The payload
+	 * @return the request
+	 * @throws IOException If the payload is malformed
+	 */
+	RMIData decodeRequest(byte[] payload) throws IOException;
+
+	/**
+	 * Encodes a response on the skeleton side
+	 * @param response The response
+	 * @return the payload
+	 * @throws IOException If the result or exception cannot be encoded
+	 */
+	byte[] encodeResponse(RMIData response) throws IOException;
+
+	/**
+	 * Decodes a response on the stub side
+	 * @param payload The payload
+	 * @return the response
+	 * @throws IOException If the payload is malformed
+	 */
+	RMIData decodeResponse(byte[] payload) throws IOException;
+}
@@ -0,0 +1,71 @@
+package rmi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the {@link TypeCodec}s used by the binary codec of persistent
+ * connections.
+ *
+ * <p>
+ * A type is identified on the wire by its class name, so the same encoder
+ * must be registered under the same class on both ends of a connection.
+ */
+public final class Codecs {
+	/**
+	 * Encoders by class
+	 */
+	private static final ConcurrentMap<Class<?>, TypeCodec<?>> byClass =
+			new ConcurrentHashMap<Class<?>, TypeCodec<?>>();
+
+	/**
+	 * Encoders by class name, as they appear on the wire
+	 */
+	private static final ConcurrentMap<String, TypeCodec<?>> byName =
+			new ConcurrentHashMap<String, TypeCodec<?>>();
+
+	private Codecs() {
+	}
+
+	/**
+	 * Registers the encoder of a class, replacing any previous one. Only
+	 * values of exactly this class use it; subclasses do not.
+	 * @param type The class
+	 * @param codec The encoder
+	 * @throws NullPointerException If any argument is <code>null</code>.
+	 */
+	public static <V> void register(Class<V> type, TypeCodec<V> codec) {
+		if (type == null || codec == null) {
+			throw new NullPointerException("Error : argument is null!");
+		}
+		byClass.put(type, codec);
+		byName.put(type.getName(), codec);
+	}
+
+	/**
+	 * Removes the encoder of a class, if any
+	 * @param type The class
+	 */
+	public static void unregister(Class<?> type) {
+		byClass.remove(type);
+		byName.remove(type.getName());
+	}
+
+	/**
+	 * Return the encoder of a class
+	 * @param type The class
+	 * @return the encoder, or <code>null</code> if none is registered
+	 */
+	static TypeCodec<?> forClass(Class<?> type) {
+		return byClass.get(type);
+	}
+
+	/**
+	 * Return the encoder registered under a class name
+	 * @param name The class name
+	 * @return the encoder, or <code>null</code> if none is registered
+	 */
+	static TypeCodec<?> forName(String name) {
+		return byName.get(name);
+	}
+}
@@ -0,0 +1,184 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the frames of one persistent connection, once both sides
+ * accepted {@link Protocol#FEATURE_COMPRESSION}.
+ *
+ * <p>
+ * Frames whose payload reaches the threshold are deflated and flagged
+ * {@link Protocol#COMPRESSED}; smaller ones are sent as they are. Each
+ * direction of the connection is one deflate stream, flushed after every
+ * frame but never reset, so every frame may refer back to the bytes of the
+ * compressed frames sent before it on the same connection. That history is
+ * the connection's dictionary: repeated class names, method names and field
+ * values cost little after their first appearance.
+ *
+ * <p>
+ * Because of that shared state, compressed frames must be written in the
+ * order they were compressed, and read in the order they arrived. Writers
+ * compress while holding the lock they write under; the thread reading the
+ * connection decompresses.
+ */
+final class Compression {
+	/**
+	 * Threshold used by skeletons unless set otherwise
+	 */
+	static final int DEFAULT_THRESHOLD = 1024;
+
+	/**
+	 * The smallest payload compressed, or 0 if nothing is
+	 */
+	private final int threshold;
+
+	/**
+	 * Counts the work done for this side of the connection
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * Compresses outgoing frames, created with the first one
+	 */
+	private Deflater deflater;
+
+	/**
+	 * Decompresses incoming frames, created with the first one
+	 */
+	private Inflater inflater;
+
+	/**
+	 * Set once the connection is closed
+	 */
+	private boolean ended = false;
+
+	/**
+	 * Constructor for {@code Compression}
+	 * @param threshold The smallest payload compressed, or 0 if the feature
+	 *                  was not accepted
+	 * @param metrics The metrics of this side
+	 */
+	Compression(int threshold, Metrics metrics) {
+		this.threshold = threshold;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Compresses a frame about to be written, if it is large enough. Callers
+	 * must hold the lock of the connection's output.
+	 * @param frame The frame
+	 * @return the frame to be written in its place
+	 * @throws IOException If the connection has been closed
+	 */
+	Frame compress(Frame frame) throws IOException {
+		byte[] payload = frame.getPayload();
+		if (threshold == 0 || payload == null || payload.length < threshold) {
+			return frame;
+		}
+		long start = System.nanoTime();
+		byte[] packed;
+		synchronized (this) {
+			if (ended) {
+				throw new IOException("Error: the connection was closed");
+			}
+			if (deflater == null) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			}
+			deflater.setInput(payload);
+			Buffers.Output bytes = Buffers.output();
+			try {
+				byte[] buffer = Buffers.scratch();
+				int n;
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					bytes.write(buffer, 0, n);
+				} while (n == buffer.length);
+				packed = bytes.toByteArray();
+			} finally {
+				bytes.release();
+			}
+		}
+		metrics.compressed(payload.length, packed.length, System.nanoTime() - start);
+		return new Frame(frame.getType(), (byte)(frame.getFlags() | Protocol.COMPRESSED),
+				frame.getCallId(), packed, frame.getStream());
+	}
+
+	/**
+	 * Restores a frame that was read, if it was compressed. Called by the
+	 * thread reading the connection only.
+	 * @param frame The frame as read
+	 * @return the frame as it was before compression
+	 * @throws IOException If compression was not accepted, the payload is
+	 *                     corrupted or too large, or the connection has been
+	 *                     closed
+	 */
+	Frame decompress(Frame frame) throws IOException {
+		if ((frame.getFlags() & Protocol.COMPRESSED) == 0) {
+			return frame;
+		}
+		if (threshold == 0) {
+			throw new IOException("Error: compressed frame on a connection without compression");
+		}
+		long start = System.nanoTime();
+		byte[] packed = frame.getPayload();
+		byte[] payload;
+		synchronized (this) {
+			if (ended) {
+				throw new IOException("Error: the connection was closed");
+			}
+			if (inflater == null) {
+				inflater = new Inflater(true);
+			}
+			inflater.setInput(packed);
+			Buffers.Output bytes = Buffers.output();
+			byte[] buffer = Buffers.scratch();
+			try {
+				while (true) {
+					int n = inflater.inflate(buffer);
+					if (n > 0) {
+						bytes.write(buffer, 0, n);
+						if (bytes.size() > Protocol.MAX_FRAME_LENGTH) {
+							throw new IOException("Error: compressed frame too large");
+						}
+					} else if (inflater.needsInput()) {
+						break;
+					} else {
+						throw new IOException("Error: corrupted compressed frame");
+					}
+				}
+				payload = bytes.toByteArray();
+			} catch (DataFormatException e) {
+				throw new IOException("Error: corrupted compressed frame", e);
+			} finally {
+				bytes.release();
+			}
+		}
+		metrics.decompressed(System.nanoTime() - start);
+		return new Frame(frame.getType(), (byte)(frame.getFlags() & ~Protocol.COMPRESSED),
+				frame.getCallId(), payload, frame.getStream());
+	}
+
+	/**
+	 * Releases the compression state once the connection is closed
+	 */
+	synchronized void end() {
+		ended = true;
+		if (deflater != null) {
+			deflater.end();
+		}
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Return the smallest payload compressed
+	 * @return the threshold, or 0 if nothing is compressed
+	 */
+	int getThreshold() {
+		return threshold;
+	}
+}
@@ -0,0 +1,567 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A long-lived, multiplexed connection from stubs to one skeleton.
+ *
+ * <p>
+ * Any number of callers may send requests concurrently. Each request gets a
+ * fresh call ID and a future; this thread reads responses off the socket and
+ * completes the matching futures, so responses may arrive in any order.
+ * It also hands the chunks of streamed responses to their streams, the
+ * credit of streamed requests to their senders, and the requests of the
+ * skeleton to the callbacks registered with the connection.
+ */
+class Connection extends Thread {
+	/**
+	 * Raised for calls that were still pending when the skeleton announced
+	 * that it is closing an idle connection. The skeleton never read those
+	 * requests, so they are safe to send again on another connection.
+	 */
+	static class ClosedByPeerException extends IOException {
+		private static final long serialVersionUID = -3311465457400307514L;
+
+		ClosedByPeerException() {
+			super("Error: the connection was closed by the skeleton");
+		}
+	}
+
+	/**
+	 * The skeleton's address
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * The socket or local channel of this connection
+	 */
+	private final Closeable socket;
+
+	/**
+	 * Whether the connection is a Unix domain socket
+	 */
+	private final boolean local;
+
+	/**
+	 * The output, guarded by its own monitor
+	 */
+	private final DataOutputStream out;
+
+	/**
+	 * The input, read only by this thread
+	 */
+	private final DataInputStream in;
+
+	/**
+	 * The features offered in the handshake
+	 */
+	private final int offered;
+
+	/**
+	 * The features accepted by the skeleton
+	 */
+	private int accepted = 0;
+
+	/**
+	 * The codec accepted by the skeleton
+	 */
+	private Codec codec = SerializationCodec.INSTANCE;
+
+	/**
+	 * The smallest request payload compressed, as configured by the stub
+	 */
+	private final int threshold;
+
+	/**
+	 * Compresses requests and decompresses responses, once the skeleton
+	 * accepted compression
+	 */
+	private Compression compression = new Compression(0, Metrics.STUB);
+
+	/**
+	 * Source of call IDs
+	 */
+	private final AtomicLong nextCallId = new AtomicLong();
+
+	/**
+	 * Calls that have been sent and not yet answered
+	 */
+	private final Map<Long, CompletableFuture<Frame>> pending =
+			new ConcurrentHashMap<Long, CompletableFuture<Frame>>();
+
+	/**
+	 * Streams of responses whose chunks are still arriving
+	 */
+	private final Map<Long, Streams.Incoming> streams =
+			new ConcurrentHashMap<Long, Streams.Incoming>();
+
+	/**
+	 * Credit of the streams of requests still being sent
+	 */
+	private final Map<Long, Streams.Window> windows =
+			new ConcurrentHashMap<Long, Streams.Window>();
+
+	/**
+	 * Callbacks passed over this connection
+	 */
+	private final Callbacks.Exports exports = new Callbacks.Exports(new Callbacks.Writer() {
+		@Override
+		public void write(Frame frame) throws IOException {
+			synchronized (out) {
+				if (closed) {
+					throw new IOException("Error: the connection was closed");
+				}
+				Protocol.writeFrame(out, compression.compress(frame));
+			}
+		}
+	});
+
+	/**
+	 * Set once the connection must no longer be used
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor for {@code Connection}. Use {@link #open} instead.
+	 */
+	private Connection(InetSocketAddress address, Closeable socket, InputStream input,
+			OutputStream output, boolean local, int offered, int threshold) {
+		super("rmi-connection-" + address);
+		this.address = address;
+		this.socket = socket;
+		this.local = local;
+		this.offered = offered;
+		this.threshold = threshold;
+		this.out = new DataOutputStream(new BufferedOutputStream(output));
+		this.in = new DataInputStream(new BufferedInputStream(input));
+		this.setDaemon(true);
+	}
+
+	/**
+	 * Connects to a skeleton, performs the handshake and starts reading
+	 * responses. If asked to, a skeleton on this host that listens on a Unix
+	 * domain socket is connected to over it, as described in
+	 * {@link LocalSockets}.
+	 * @param address The skeleton's address
+	 * @param localSocket Whether to look for the skeleton's Unix domain
+	 *                    socket before connecting over TCP
+	 * @param features The features to offer
+	 * @param threshold The smallest request payload to compress, if the
+	 *                  skeleton accepts compression
+	 * @param timeout The most milliseconds connecting and the handshake may
+	 *                take, or 0 for no limit
+	 * @return the open connection
+	 * @throws IOException If the skeleton cannot be reached or does not speak
+	 *                     the framed protocol
+	 */
+	static Connection open(InetSocketAddress address, boolean localSocket, int features,
+			int threshold, int timeout) throws IOException {
+		long start = System.nanoTime();
+		SocketChannel channel = localSocket ? LocalSockets.connect(address) : null;
+		if (channel != null) {
+			Metrics.STUB.connected(System.nanoTime() - start);
+			try {
+				// a local skeleton that accepted the connection answers at once
+				Connection conn = handshake(new Connection(address, channel,
+						LocalSockets.inputOf(channel), LocalSockets.outputOf(channel), true,
+						features, threshold), features);
+				conn.start();
+				return conn;
+			} catch (IOException e) {
+				Metrics.STUB.error();
+				channel.close();
+				throw e;
+			}
+		}
+		Socket socket = new Socket();
+		try {
+			socket.connect(address, timeout);
+			socket.setSoTimeout(timeout);
+			Metrics.STUB.connected(System.nanoTime() - start);
+			socket.setTcpNoDelay(true);
+			Connection conn = handshake(new Connection(address, socket, socket.getInputStream(),
+					socket.getOutputStream(), false, features, threshold), features);
+			// calls bound their own waits once the connection is shared
+			socket.setSoTimeout(0);
+			conn.start();
+			return conn;
+		} catch (IOException e) {
+			Metrics.STUB.error();
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Performs the handshake on a new connection
+	 * @param conn The connection
+	 * @param features The features to offer
+	 * @return the connection, not yet reading responses
+	 * @throws IOException If the peer does not speak the framed protocol
+	 */
+	private static Connection handshake(Connection conn, int features) throws IOException {
+		// the skeleton greets every client with a serialization header
+		byte[] header = new byte[Protocol.STREAM_HEADER.length];
+		conn.in.readFully(header);
+		if (!Arrays.equals(header, Protocol.STREAM_HEADER)) {
+			throw new IOException("Error: " + conn.address + " is not a skeleton");
+		}
+		Protocol.writeHandshake(conn.out, features);
+		conn.accepted = Protocol.readHandshake(conn.in, false) & features;
+		conn.codec = Protocol.codecFor(conn.accepted, null);
+		if (conn.accepts(Protocol.FEATURE_COMPRESSION)) {
+			conn.compression = new Compression(conn.threshold, Metrics.STUB);
+		}
+		return conn;
+	}
+
+	/**
+	 * Sends a request.
+	 * @param request The request
+	 * @param method The called method of the stub's interface
+	 * @param caller The future the caller waits on; once it is completed,
+	 *               the call is abandoned if it is still pending
+	 * @return a future completed with the response frame, or exceptionally
+	 *         with an <code>IOException</code> if the connection fails first
+	 * @throws IOException If the request cannot be written
+	 */
+	CompletableFuture<Frame> send(RMIData request, Method method, CompletableFuture<?> caller)
+			throws IOException {
+		request = export(request);
+		int index = accepts(Protocol.FEATURE_STREAM) ? Streams.indexOf(request.getArgs()) : -1;
+		if (index < 0) {
+			byte[] payload = codec.encodeRequest(request, method);
+			Metrics.STUB.of(method).requestBytes(payload.length);
+			return write(Protocol.REQUEST, payload, Collections.singletonList(payload), null, caller);
+		}
+		RMIData streamed = request.withArgs(Streams.withPlaceholder(request.getArgs(), index));
+		byte[] payload = codec.encodeRequest(streamed, method);
+		Metrics.STUB.of(method).requestBytes(payload.length);
+		final CompletableFuture<Frame> result = new CompletableFuture<Frame>();
+		write(Protocol.REQUEST, payload, Collections.singletonList(payload),
+				(InputStream)request.getArgs()[index], caller).whenComplete(new BiConsumer<Frame, Throwable>() {
+			@Override
+			public void accept(Frame frame, Throwable error) {
+				if (error == null) {
+					result.complete(frame);
+				} else if (error instanceof ClosedByPeerException) {
+					// the stream has been read, so the call cannot be sent again
+					result.completeExceptionally(new IOException(error.getMessage()));
+				} else {
+					result.completeExceptionally(error);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Sends several requests in one frame, to be run in order. Only for
+	 * connections that accepted {@link Protocol#FEATURE_BATCH}.
+	 * @param requests The requests
+	 * @param methods The called methods, in the same order
+	 * @param caller The future the caller waits on; once it is completed,
+	 *               the batch is abandoned if it is still pending
+	 * @return a future completed with the response frame, whose payload holds
+	 *         every response, or exceptionally with an
+	 *         <code>IOException</code> if the connection fails first
+	 * @throws IOException If the requests cannot be written
+	 */
+	CompletableFuture<Frame> sendBatch(List<RMIData> requests, List<Method> methods,
+			CompletableFuture<?> caller) throws IOException {
+		List<byte[]> parts = new ArrayList<byte[]>(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			parts.add(codec.encodeRequest(export(requests.get(i)), methods.get(i)));
+			Metrics.STUB.of(methods.get(i)).requestBytes(parts.get(i).length);
+		}
+		return write(Protocol.BATCH, Protocol.joinBatch(parts), parts, null, caller);
+	}
+
+	/**
+	 * Registers the callbacks a request passes with this connection
+	 * @param request The request
+	 * @return the request to encode, carrying references to the callbacks
+	 * @throws IOException If the request passes callbacks and the skeleton
+	 *                     did not accept them
+	 */
+	private RMIData export(RMIData request) throws IOException {
+		if (!Callbacks.contains(request.getArgs())) {
+			return request;
+		}
+		if (!accepts(Protocol.FEATURE_CALLBACK)) {
+			throw new IOException("Error: " + address + " does not accept callbacks");
+		}
+		return exports.replace(request);
+	}
+
+	/**
+	 * Writes a frame, preceded by any definitions its requests need
+	 * @param type The frame type
+	 * @param payload The frame payload
+	 * @param requests The encoded requests carried by the frame
+	 * @param upload A stream to be sent in chunks after the frame, or
+	 *               <code>null</code>
+	 * @param caller The future the caller waits on
+	 * @return a future completed with the response frame
+	 * @throws IOException If the frame or a chunk cannot be written
+	 */
+	private CompletableFuture<Frame> write(byte type, byte[] payload, List<byte[]> requests,
+			InputStream upload, CompletableFuture<?> caller) throws IOException {
+		final long callId = nextCallId.incrementAndGet();
+		final CompletableFuture<Frame> future = new CompletableFuture<Frame>();
+		pending.put(callId, future);
+		caller.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable error) {
+				// nobody waits for the response any more, if it is still to come
+				abandon(callId, future);
+			}
+		});
+		try {
+			synchronized (out) {
+				if (closed) {
+					throw new ClosedByPeerException();
+				}
+				for (byte[] request : requests) {
+					byte[] definition = codec.takeDefinition(request);
+					if (definition != null) {
+						Protocol.writeFrame(out, compression.compress(
+								new Frame(Protocol.DEFINE, (byte)0, 0, definition)));
+					}
+				}
+				Protocol.writeFrame(out, compression.compress(new Frame(type,
+						upload == null ? 0 : Protocol.STREAMED, callId, payload)));
+			}
+			if (upload != null) {
+				Streams.Window window = new Streams.Window();
+				windows.put(callId, window);
+				if (closed) {
+					// close() may have missed the window
+					window.fail(new IOException("Error: the connection was closed"));
+				}
+				try {
+					// chunk by chunk, so that other calls are not held up
+					Streams.pump(upload, window, new Streams.Sink() {
+						@Override
+						public void chunk(byte flags, byte[] data) throws IOException {
+							synchronized (out) {
+								if (closed) {
+									throw new IOException("Error: the connection was closed");
+								}
+								Protocol.writeFrame(out, compression.compress(
+										new Frame(Protocol.CHUNK, flags, callId, data)));
+							}
+						}
+					});
+				} finally {
+					windows.remove(callId);
+				}
+			}
+		} catch (IOException e) {
+			pending.remove(callId);
+			close(e);
+			throw e;
+		}
+		return future;
+	}
+
+	/**
+	 * Forgets a pending call whose caller stopped waiting, typically because
+	 * its deadline passed, so that it no longer counts towards the load of
+	 * the connection. A response that still arrives is dropped.
+	 * @param callId The ID of the call
+	 * @param future The future of the call
+	 */
+	private void abandon(long callId, CompletableFuture<Frame> future) {
+		if (pending.remove(callId, future)) {
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * Gives the chunks of a streamed response back to the skeleton
+	 * @param callId The ID of the call
+	 * @return the credits of the response's stream
+	 */
+	private Streams.Credits credits(final long callId) {
+		return new Streams.Credits() {
+			@Override
+			public void grant(int chunks) throws IOException {
+				synchronized (out) {
+					if (closed) {
+						throw new IOException("Error: the connection was closed");
+					}
+					Protocol.writeFrame(out, new Frame(Protocol.CREDIT, (byte)0, callId,
+							Streams.credit(chunks)));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads responses until the connection fails or is closed by the skeleton
+	 */
+	@Override
+	public void run() {
+		IOException cause = null;
+		try {
+			while (!closed) {
+				Frame frame = compression.decompress(Protocol.readFrame(in));
+				if (frame.getType() == Protocol.CLOSE) {
+					cause = new ClosedByPeerException();
+					break;
+				}
+				if (frame.getType() == Protocol.CHUNK) {
+					Streams.Incoming stream = streams.get(frame.getCallId());
+					if (stream != null) {
+						if ((frame.getFlags() & Protocol.END) != 0) {
+							streams.remove(frame.getCallId());
+						}
+						stream.add(frame.getPayload(), frame.getFlags());
+					}
+					continue;
+				}
+				if (frame.getType() == Protocol.CREDIT) {
+					Streams.Window window = windows.get(frame.getCallId());
+					if (window != null) {
+						window.grant(Streams.credits(frame.getPayload()));
+					}
+					continue;
+				}
+				if (frame.getType() == Protocol.REQUEST) {
+					exports.serve(frame);
+					continue;
+				}
+				CompletableFuture<Frame> future = pending.remove(frame.getCallId());
+				if ((frame.getFlags() & Protocol.STREAMED) != 0) {
+					Streams.Incoming stream = new Streams.Incoming(credits(frame.getCallId()));
+					streams.put(frame.getCallId(), stream);
+					frame = new Frame(frame.getType(), frame.getFlags(), frame.getCallId(),
+							frame.getPayload(), stream);
+					if (future == null) {
+						stream.close();
+					}
+				}
+				if (future != null) {
+					future.complete(frame);
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				Metrics.STUB.error();
+			}
+			cause = e;
+		}
+		close(cause == null ? new ClosedByPeerException() : cause);
+	}
+
+	/**
+	 * Closes the connection and fails every pending call
+	 * @param cause The reason given to pending calls
+	 */
+	void close(IOException cause) {
+		synchronized (out) {
+			closed = true;
+		}
+		ConnectionPool.remove(address, this);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		compression.end();
+		for (Long callId : pending.keySet()) {
+			CompletableFuture<Frame> future = pending.remove(callId);
+			if (future != null) {
+				future.completeExceptionally(cause);
+			}
+		}
+		for (Long callId : streams.keySet()) {
+			Streams.Incoming stream = streams.remove(callId);
+			if (stream != null) {
+				stream.fail(cause);
+			}
+		}
+		for (Streams.Window window : windows.values()) {
+			window.fail(cause);
+		}
+	}
+
+	/**
+	 * Return whether the connection may still carry requests
+	 * @return <code>true</code> if the connection is open
+	 */
+	boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Return whether the connection is a Unix domain socket
+	 * @return <code>true</code> if the skeleton is reached locally
+	 */
+	boolean isLocal() {
+		return local;
+	}
+
+	/**
+	 * Return the features offered in the handshake
+	 * @return the feature bits
+	 */
+	int getOfferedFeatures() {
+		return offered;
+	}
+
+	/**
+	 * Return whether the skeleton accepted a feature
+	 * @param feature The feature bit
+	 * @return <code>true</code> if the feature may be used
+	 */
+	boolean accepts(int feature) {
+		return (accepted & feature) != 0;
+	}
+
+	/**
+	 * Return the smallest request payload compressed, as configured by the
+	 * stub that opened the connection
+	 * @return the threshold, or 0 if compression was not offered
+	 */
+	int getCompressionThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Return the codec accepted by the skeleton
+	 * @return the codec
+	 */
+	Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Return the number of calls waiting for a response
+	 * @return the number of pending calls
+	 */
+	int getPendingCount() {
+		return pending.size();
+	}
+}
@@ -0,0 +1,528 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Per-address pools of persistent connections, shared by all stubs in the
+ * virtual machine.
+ *
+ * <p>
+ * A call goes to the connection of its address with the fewest pending calls.
+ * A new connection is only opened when every existing one is busy and the
+ * stub's limit on connections has not been reached; otherwise calls share a
+ * connection. Connections are opened outside the pool's monitor, so a slow
+ * handshake does not hold up calls that find an open connection; the
+ * connections being opened count towards the limit. Stubs that offer different protocol features in the handshake,
+ * or compress from different thresholds, do not share connections, and only
+ * stubs configured to use local sockets share connections made over one.
+ */
+final class ConnectionPool {
+	/**
+	 * Open connections by skeleton address
+	 */
+	private static final ConcurrentMap<InetSocketAddress, List<Connection>> pools =
+			new ConcurrentHashMap<InetSocketAddress, List<Connection>>();
+
+	/**
+	 * The options of the connections being opened, by skeleton address,
+	 * each guarded by the monitor of the address's pool
+	 */
+	private static final ConcurrentMap<InetSocketAddress, List<StubConfig>> opening =
+			new ConcurrentHashMap<InetSocketAddress, List<StubConfig>>();
+
+	/**
+	 * The most milliseconds opening a connection may take when the call has
+	 * no deadline
+	 */
+	static final int CONNECT_TIMEOUT = 10000;
+
+	/**
+	 * A response, with the codec of the connection it arrived on. Decoding
+	 * is left to the caller so that it does not hold up the connection's
+	 * reader thread.
+	 */
+	static final class Reply {
+		private final byte[] payload;
+		private final Codec codec;
+		private final InputStream stream;
+
+		Reply(byte[] payload, Codec codec) {
+			this(payload, codec, null);
+		}
+
+		/**
+		 * @param stream The stream returned by the method, whose chunks
+		 *               follow the response, or <code>null</code>
+		 */
+		Reply(byte[] payload, Codec codec, InputStream stream) {
+			this.payload = payload;
+			this.codec = codec;
+			this.stream = stream;
+		}
+
+		/**
+		 * Decodes the response
+		 * @return the response
+		 * @throws IOException If the payload is malformed
+		 */
+		RMIData decode() throws IOException {
+			RMIData response;
+			try {
+				response = codec.decodeResponse(payload);
+			} catch (IOException e) {
+				if (stream != null) {
+					stream.close();
+				}
+				throw e;
+			}
+			if (stream == null) {
+				return response;
+			}
+			if (!(response.getResult() instanceof Streams.Placeholder)) {
+				stream.close();
+				throw new IOException("Error: streamed response has no stream result");
+			}
+			return new RMIData(stream, null);
+		}
+
+		/**
+		 * Decodes the response for a future and records the call
+		 * @param metrics The metrics of the called method
+		 * @param start When the call was started, from
+		 *              <code>System.nanoTime</code>
+		 * @return the result of the call
+		 * @throws CompletionException Carrying the exception raised by the
+		 *                             remote method, or an
+		 *                             <code>RMIException</code> if the
+		 *                             response is malformed
+		 */
+		Object result(MethodMetrics metrics, long start) {
+			RMIData response;
+			try {
+				response = decode();
+			} catch (IOException e) {
+				metrics.failed(System.nanoTime() - start);
+				throw new CompletionException(new RMIException(e));
+			}
+			metrics.completed(System.nanoTime() - start, response);
+			if (response.getException() != null) {
+				throw new CompletionException(response.getException());
+			}
+			return response.getResult();
+		}
+
+		/**
+		 * Drops a response nobody waits for any more, with the rest of its
+		 * stream
+		 */
+		void discard() {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// an incoming stream does not fail to close
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends something over a chosen connection
+	 * @param <R> The result of the exchange
+	 */
+	private interface Sender<R> {
+		/**
+		 * @param conn The connection
+		 * @param result The future the caller waits on, whose completion
+		 *               abandons what is still pending
+		 */
+		CompletableFuture<R> send(Connection conn, CompletableFuture<R> result) throws IOException;
+	}
+
+	/**
+	 * Fails calls whose deadline passes before their response arrives
+	 */
+	private static final ScheduledThreadPoolExecutor timer =
+			new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "rmi-deadlines");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private ConnectionPool() {
+	}
+
+	/**
+	 * Sends a request over a pooled connection. A call is sent again, once,
+	 * if the skeleton closed the idle connection before reading it.
+	 * @param address The skeleton's address
+	 * @param config The options of the calling stub
+	 * @param method The called method
+	 * @param request The request
+	 * @return a future completed with the reply, or exceptionally with an
+	 *         <code>IOException</code> if the call cannot be completed, or a
+	 *         <code>DeadlineExceededException</code> if the request's
+	 *         timeout passes first
+	 */
+	static CompletableFuture<Reply> call(InetSocketAddress address, StubConfig config,
+			final Method method, final RMIData request) {
+		return call(address, config, request.getTimeout(), new Sender<Reply>() {
+			@Override
+			public CompletableFuture<Reply> send(Connection conn, CompletableFuture<Reply> result)
+					throws IOException {
+				return reply(conn, method, conn.send(request, method, result));
+			}
+		});
+	}
+
+	/**
+	 * Sends several requests over one pooled connection, to be run in order.
+	 * They travel in one frame if the skeleton accepts batches, and one after
+	 * the other without waiting otherwise. The batch is sent again, once, if
+	 * the skeleton closed the idle connection before reading it.
+	 * @param address The skeleton's address
+	 * @param config The options of the calling stub
+	 * @param methods The called methods
+	 * @param requests The requests, in the same order
+	 * @return a future completed with the replies, in order, or exceptionally
+	 *         with an <code>IOException</code> if the batch cannot be
+	 *         completed, or a <code>DeadlineExceededException</code> if the
+	 *         timeout of the first request passes first
+	 */
+	static CompletableFuture<List<Reply>> callBatch(InetSocketAddress address,
+			StubConfig config, final List<Method> methods, final List<RMIData> requests) {
+		long timeout = requests.isEmpty() ? 0 : requests.get(0).getTimeout();
+		return call(address, config, timeout, new Sender<List<Reply>>() {
+			@Override
+			public CompletableFuture<List<Reply>> send(final Connection conn,
+					CompletableFuture<List<Reply>> result) throws IOException {
+				if (conn.accepts(Protocol.FEATURE_BATCH)) {
+					return conn.sendBatch(requests, methods, result).thenApply(
+							new Function<Frame, List<Reply>>() {
+						@Override
+						public List<Reply> apply(Frame frame) {
+							try {
+								List<byte[]> parts = Protocol.splitBatch(frame.getPayload());
+								if (parts.size() != requests.size()) {
+									throw new IOException("Error: wrong number of batch responses");
+								}
+								List<Reply> replies = new ArrayList<Reply>(parts.size());
+								for (int i = 0; i < parts.size(); i++) {
+									Metrics.STUB.of(methods.get(i)).responseBytes(parts.get(i).length);
+									replies.add(new Reply(parts.get(i), conn.getCodec()));
+								}
+								return replies;
+							} catch (IOException e) {
+								throw new CompletionException(e);
+							}
+						}
+					});
+				}
+				final List<CompletableFuture<Reply>> replies =
+						new ArrayList<CompletableFuture<Reply>>(requests.size());
+				for (int i = 0; i < requests.size(); i++) {
+					replies.add(reply(conn, methods.get(i),
+							conn.send(requests.get(i), methods.get(i), result)));
+				}
+				return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]))
+						.thenApply(new Function<Void, List<Reply>>() {
+					@Override
+					public List<Reply> apply(Void ignored) {
+						List<Reply> result = new ArrayList<Reply>(replies.size());
+						for (CompletableFuture<Reply> reply : replies) {
+							result.add(reply.join());
+						}
+						return result;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Pairs a response frame with the codec of its connection
+	 */
+	private static CompletableFuture<Reply> reply(final Connection conn, final Method method,
+			CompletableFuture<Frame> response) {
+		return response.thenApply(new Function<Frame, Reply>() {
+			@Override
+			public Reply apply(Frame frame) {
+				Metrics.STUB.of(method).responseBytes(frame.getPayload().length);
+				return new Reply(frame.getPayload(), conn.getCodec(), frame.getStream());
+			}
+		});
+	}
+
+	/**
+	 * Sends something over a pooled connection, within a timeout. Calls
+	 * whose timeout passes are abandoned on their connection, so that they
+	 * no longer count towards its load.
+	 * @param timeout The nanoseconds the exchange may take, or 0 for no limit
+	 */
+	private static <R> CompletableFuture<R> call(InetSocketAddress address, StubConfig config,
+			final long timeout, Sender<R> sender) {
+		final CompletableFuture<R> result = new CompletableFuture<R>();
+		long start = System.nanoTime();
+		if (timeout > 0) {
+			final ScheduledFuture<?> expiry = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					result.completeExceptionally(new DeadlineExceededException("Error: no response within "
+							+ TimeUnit.NANOSECONDS.toMillis(timeout) + " ms"));
+				}
+			}, timeout, TimeUnit.NANOSECONDS);
+			result.whenComplete(new BiConsumer<R, Throwable>() {
+				@Override
+				public void accept(R value, Throwable error) {
+					expiry.cancel(false);
+				}
+			});
+		}
+		send(address, config, sender, result, true, start, timeout);
+		return result;
+	}
+
+	private static <R> void send(final InetSocketAddress address, final StubConfig config,
+			final Sender<R> sender, final CompletableFuture<R> result, final boolean retry,
+			final long start, final long timeout) {
+		CompletableFuture<R> response;
+		try {
+			Connection conn = get(address, config, Deadline.millisLeft(start, timeout));
+			response = sender.send(conn, result);
+		} catch (DeadlineExceededException e) {
+			result.completeExceptionally(e);
+			return;
+		} catch (SocketTimeoutException e) {
+			// without a deadline, only the connect timeout ran out
+			result.completeExceptionally(timeout == 0 ? e : new DeadlineExceededException(
+					"Error: could not connect to " + address + " in time"));
+			return;
+		} catch (IOException e) {
+			if (retry && e instanceof Connection.ClosedByPeerException) {
+				send(address, config, sender, result, false, start, timeout);
+			} else {
+				result.completeExceptionally(e);
+			}
+			return;
+		}
+		response.whenComplete(new BiConsumer<R, Throwable>() {
+			@Override
+			public void accept(R value, Throwable error) {
+				if (error instanceof CompletionException && error.getCause() != null) {
+					error = error.getCause();
+				}
+				if (error == null) {
+					if (!result.complete(value)) {
+						// the deadline passed first
+						discard(value);
+					}
+				} else if (retry && error instanceof Connection.ClosedByPeerException) {
+					send(address, config, sender, result, false, start, timeout);
+				} else {
+					result.completeExceptionally(error);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Drops replies that arrived too late
+	 * @param value A reply or a list of replies
+	 */
+	private static void discard(Object value) {
+		if (value instanceof Reply) {
+			((Reply)value).discard();
+		} else if (value instanceof List) {
+			for (Object reply : (List<?>)value) {
+				discard(reply);
+			}
+		}
+	}
+
+	/**
+	 * Returns a connection to the given skeleton, opening one if needed. When
+	 * every connection the stub may have is still being opened, waits for
+	 * one of them.
+	 * @param address The skeleton's address
+	 * @param config The options of the stub, giving the most connections to
+	 *               keep to that address and what they must offer
+	 * @param timeout The most milliseconds getting a connection may take, or
+	 *                0 to bound only the opening, by {@link #CONNECT_TIMEOUT}
+	 * @return an open connection
+	 * @throws IOException If a new connection cannot be opened
+	 * @throws SocketTimeoutException If no connection could be had in time
+	 */
+	static Connection get(InetSocketAddress address, StubConfig config, int timeout)
+			throws IOException {
+		List<Connection> pool = pools.get(address);
+		if (pool == null) {
+			pools.putIfAbsent(address, new CopyOnWriteArrayList<Connection>());
+			pool = pools.get(address);
+		}
+		int maxConnections = config.getMaxConnections();
+		Connection best = leastLoaded(pool, config);
+		if (best != null && (best.getPendingCount() == 0 || count(pool, config) >= maxConnections)) {
+			return best;
+		}
+		long start = System.nanoTime();
+		int limit = timeout == 0 ? CONNECT_TIMEOUT : timeout;
+		List<StubConfig> slots;
+		synchronized (pool) {
+			slots = opening.get(address);
+			if (slots == null) {
+				slots = new ArrayList<StubConfig>();
+				opening.put(address, slots);
+			}
+			while (true) {
+				best = leastLoaded(pool, config);
+				int taken = count(pool, config) + countOpening(slots, config);
+				if (best != null && (best.getPendingCount() == 0 || taken >= maxConnections)) {
+					return best;
+				}
+				if (taken < maxConnections) {
+					break;
+				}
+				// every connection allowed is being opened: wait for one
+				long left = limit - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				if (left <= 0) {
+					throw new SocketTimeoutException("Error: no connection to " + address
+							+ " was opened in time");
+				}
+				try {
+					pool.wait(left);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Error: interrupted while waiting for a connection");
+				}
+			}
+			slots.add(config);
+		}
+		Connection conn = null;
+		try {
+			int left = (int)Math.max(1, limit - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			conn = Connection.open(address, config.isLocalSocket(), config.getFeatures(),
+					config.getCompressionThreshold(), left);
+			return conn;
+		} finally {
+			synchronized (pool) {
+				slots.remove(config);
+				if (conn != null) {
+					pool.add(conn);
+				}
+				pool.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Finds the open connection with the fewest pending calls
+	 * @param pool The connections to one address
+	 * @param config The options the connection must have been opened with
+	 * @return the connection, or <code>null</code> if none is open
+	 */
+	private static Connection leastLoaded(List<Connection> pool, StubConfig config) {
+		Connection best = null;
+		for (Connection conn : pool) {
+			if (conn.isOpen() && fits(conn, config) && (best == null || conn.getPendingCount() < best.getPendingCount())) {
+				best = conn;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Counts the connections opened with the given options
+	 * @param pool The connections to one address
+	 * @param config The options
+	 * @return the number of connections
+	 */
+	private static int count(List<Connection> pool, StubConfig config) {
+		int count = 0;
+		for (Connection conn : pool) {
+			if (fits(conn, config)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the connections being opened with the given options. Must hold
+	 * the monitor of the pool.
+	 * @param slots The options of the connections being opened to one
+	 *              address
+	 * @param config The options
+	 * @return the number of connections
+	 */
+	private static int countOpening(List<StubConfig> slots, StubConfig config) {
+		int count = 0;
+		for (StubConfig other : slots) {
+			if (other.getFeatures() == config.getFeatures()
+					&& other.getCompressionThreshold() == config.getCompressionThreshold()
+					&& (!other.isLocalSocket() || config.isLocalSocket())) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Return whether a connection was opened with the given options
+	 * @param conn The connection
+	 * @param config The options
+	 * @return <code>true</code> if it offered the same features, compresses
+	 *         from the same threshold, and is over TCP unless the options
+	 *         allow local sockets
+	 */
+	private static boolean fits(Connection conn, StubConfig config) {
+		return conn.getOfferedFeatures() == config.getFeatures()
+				&& conn.getCompressionThreshold() == config.getCompressionThreshold()
+				&& (!conn.isLocal() || config.isLocalSocket());
+	}
+
+	/**
+	 * Forgets a connection that has been closed
+	 * @param address The skeleton's address
+	 * @param conn The closed connection
+	 */
+	static void remove(InetSocketAddress address, Connection conn) {
+		List<Connection> pool = pools.get(address);
+		if (pool != null) {
+			pool.remove(conn);
+		}
+	}
+
+	/**
+	 * Return the number of open connections to an address
+	 * @param address The skeleton's address
+	 * @return the number of pooled connections
+	 */
+	static int size(InetSocketAddress address) {
+		List<Connection> pool = pools.get(address);
+		return pool == null ? 0 : pool.size();
+	}
+}
@@ -0,0 +1,156 @@
+package rmi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which the remote calls of a thread must complete.
+ *
+ * <p>
+ * A deadline applies to the calls made by the thread that opened it, until
+ * it is closed:
+ *
+ * <pre>
+ *     try (Deadline deadline = Deadline.after(200, TimeUnit.MILLISECONDS)) {
+ *         naming.lock(path, true);
+ *     }
+ * </pre>
+ *
+ * Deadlines nest; an inner deadline never extends an outer one. A call is
+ * bounded by the earlier of the thread's deadline and the timeout of its
+ * stub, set with {@link StubConfig#setTimeout}. The time left travels with
+ * the request, and the skeleton makes it the deadline of the thread running
+ * the method, so that calls the method makes in turn are bounded by it too.
+ */
+public final class Deadline implements AutoCloseable {
+	/**
+	 * The innermost open deadline of each thread
+	 */
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	/**
+	 * When the deadline passes, from <code>System.nanoTime</code>
+	 */
+	private final long expiry;
+
+	/**
+	 * The deadline that was current when this one was opened
+	 */
+	private final Deadline previous;
+
+	private Deadline(long expiry, Deadline previous) {
+		this.expiry = expiry;
+		this.previous = previous;
+	}
+
+	/**
+	 * Opens a deadline for the calls of the current thread
+	 * @param timeout How long from now the calls may take
+	 * @param unit The unit of <code>timeout</code>
+	 * @return the deadline, to be closed when the calls are done
+	 * @throws IllegalArgumentException If <code>timeout</code> is negative.
+	 */
+	public static Deadline after(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Error: timeout must not be negative");
+		}
+		return open(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	/**
+	 * Opens a deadline, unless an open one is earlier
+	 * @param expiry When the deadline passes, from <code>System.nanoTime</code>
+	 * @return the deadline
+	 */
+	static Deadline open(long expiry) {
+		Deadline outer = current.get();
+		if (outer != null && outer.expiry - expiry < 0) {
+			expiry = outer.expiry;
+		}
+		Deadline deadline = new Deadline(expiry, outer);
+		current.set(deadline);
+		return deadline;
+	}
+
+	/**
+	 * Return the innermost open deadline of the current thread
+	 * @return the deadline, or <code>null</code> if there is none
+	 */
+	public static Deadline current() {
+		return current.get();
+	}
+
+	/**
+	 * Return the time left
+	 * @param unit The unit of the result
+	 * @return the time left, negative once the deadline has passed
+	 */
+	public long remaining(TimeUnit unit) {
+		return unit.convert(expiry - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Return whether the deadline has passed
+	 * @return <code>true</code> if no time is left
+	 */
+	public boolean isExpired() {
+		return expiry - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Closes the deadline, making the one it was opened within current again
+	 */
+	@Override
+	public void close() {
+		if (current.get() == this) {
+			if (previous == null) {
+				current.remove();
+			} else {
+				current.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * Computes how long a call may take and records it in the request
+	 * @param request The request about to be sent
+	 * @param timeout The timeout of the stub in milliseconds, or 0 for none
+	 * @return the time left in nanoseconds, or 0 if the call has no deadline
+	 * @throws DeadlineExceededException If the deadline has already passed.
+	 */
+	static long stamp(RMIData request, long timeout) throws DeadlineExceededException {
+		long left = 0;
+		if (timeout > 0) {
+			left = TimeUnit.MILLISECONDS.toNanos(timeout);
+		}
+		Deadline deadline = current.get();
+		if (deadline != null) {
+			long remaining = deadline.expiry - System.nanoTime();
+			if (remaining <= 0) {
+				throw new DeadlineExceededException("Error: the deadline has passed");
+			}
+			if (left == 0 || remaining < left) {
+				left = remaining;
+			}
+		}
+		request.setTimeout(left);
+		return left;
+	}
+
+	/**
+	 * Converts the time left for a call into a socket timeout
+	 * @param start When the call was started, from <code>System.nanoTime</code>
+	 * @param left The time the call had at its start, or 0 for none
+	 * @return the timeout in milliseconds, at least 1, or 0 for none
+	 * @throws DeadlineExceededException If no time is left.
+	 */
+	static int millisLeft(long start, long left) throws DeadlineExceededException {
+		if (left == 0) {
+			return 0;
+		}
+		long remaining = start + left - System.nanoTime();
+		if (remaining <= 0) {
+			throw new DeadlineExceededException("Error: the deadline has passed");
+		}
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(remaining)));
+	}
+}
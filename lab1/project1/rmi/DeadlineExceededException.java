@@ -0,0 +1,22 @@
+package rmi;
+
+/** Raised when a call could not be completed before its deadline.
+
+    <p>
+    A stub raises it when the deadline passes while it is connecting or
+    waiting for the response, and the skeleton answers with it, without
+    running the method, when the deadline has already passed by the time a
+    thread picks the call up. In the first case the method may still run on
+    the server.
+ */
+public class DeadlineExceededException extends RMIException
+{
+    private static final long serialVersionUID = -6528270913357826013L;
+
+    /** Creates a <code>DeadlineExceededException</code> with the given
+        message string. */
+    public DeadlineExceededException(String message)
+    {
+        super(message);
+    }
+}
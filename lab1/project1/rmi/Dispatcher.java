@@ -0,0 +1,295 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dispatch table of a skeleton's remote interface.
+ *
+ * <p>
+ * The table is built once, when the skeleton is created. Every method of the
+ * interface gets a stable ID, its index in the methods sorted by name and
+ * parameter types, and a <code>MethodHandle</code> bound to the server
+ * object. A call then costs a map lookup and a handle invocation, with no
+ * reflective lookup or access check. Only methods of the interface can be
+ * called, whatever else the server object implements.
+ *
+ * <p>
+ * When a {@link GeneratedDispatcher} written by {@link StubGenerator} for the
+ * interface is on the class path, and was generated for the methods the
+ * interface has now, calls go through it instead of method handles: each is a
+ * plain interface call on the server object.
+ * @param <T>
+ */
+public final class Dispatcher<T> {
+	/**
+	 * A method of the interface
+	 */
+	private static final class Entry {
+		final int id;
+		final Method method;
+		final Class<?>[] argsType;
+		final Class<?>[] boxed;
+		/**
+		 * <code>null</code> when calls go through the generated dispatcher
+		 */
+		final MethodHandle handle;
+
+		Entry(int id, Method method, MethodHandle handle) {
+			this.id = id;
+			this.method = method;
+			this.argsType = method.getParameterTypes();
+			this.boxed = new Class<?>[argsType.length];
+			for (int i = 0; i < argsType.length; i++) {
+				boxed[i] = MethodType.methodType(argsType[i]).wrap().returnType();
+			}
+			this.handle = handle;
+		}
+	}
+
+	/**
+	 * Orders methods by name, then by parameter types
+	 */
+	private static final Comparator<Method> ORDER = new Comparator<Method>() {
+		@Override
+		public int compare(Method a, Method b) {
+			int c = a.getName().compareTo(b.getName());
+			return c != 0 ? c : signature(a).compareTo(signature(b));
+		}
+	};
+
+	/**
+	 * The name of the remote interface
+	 */
+	private final String itfName;
+
+	/**
+	 * Methods by ID
+	 */
+	private final Entry[] byId;
+
+	/**
+	 * Overloads by method name
+	 */
+	private final Map<String, Entry[]> byName = new HashMap<String, Entry[]>();
+
+	/**
+	 * The server object
+	 */
+	private final T server;
+
+	/**
+	 * The generated dispatcher of the interface, or <code>null</code>
+	 */
+	private final GeneratedDispatcher<T> generated;
+
+	/**
+	 * Builds the dispatch table of an interface
+	 * @param c The remote interface
+	 * @param server An object implementing the interface
+	 * @throws NullPointerException If either argument is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>server</code> does not
+	 *                                  implement <code>c</code>.
+	 */
+	public Dispatcher(Class<T> c, T server) {
+		if (c == null || server == null) {
+			throw new NullPointerException("Error : argument is null!");
+		}
+		if (!c.isInstance(server)) {
+			throw new IllegalArgumentException("Error: the server does not implement " + c.getName());
+		}
+		this.itfName = c.getName();
+		this.server = server;
+		this.generated = Generated.dispatcherOf(c);
+		List<Method> methods = methodsOf(c);
+
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodType generic = MethodType.methodType(Object.class, Object[].class);
+		Map<String, List<Entry>> overloads = new HashMap<String, List<Entry>>();
+		byId = new Entry[methods.size()];
+		for (int id = 0; id < byId.length; id++) {
+			Method m = methods.get(id);
+			MethodHandle handle = null;
+			if (generated == null) {
+				try {
+					// the interface may not be public
+					m.setAccessible(true);
+					handle = lookup.unreflect(m).bindTo(server)
+							.asSpreader(Object[].class, m.getParameterCount())
+							.asType(generic);
+				} catch (IllegalAccessException | RuntimeException e) {
+					throw new Error("Error: cannot dispatch " + m, e);
+				}
+			}
+			byId[id] = new Entry(id, m, handle);
+			if (!overloads.containsKey(m.getName())) {
+				overloads.put(m.getName(), new ArrayList<Entry>());
+			}
+			overloads.get(m.getName()).add(byId[id]);
+		}
+		for (Map.Entry<String, List<Entry>> e : overloads.entrySet()) {
+			byName.put(e.getKey(), e.getValue().toArray(new Entry[0]));
+		}
+	}
+
+	/**
+	 * Lists the methods of an interface in the order of their IDs
+	 * @param c The interface
+	 * @return the methods, sorted by name and parameter types
+	 */
+	static List<Method> methodsOf(Class<?> c) {
+		// a method inherited through two superinterfaces is listed twice
+		Map<String, Method> unique = new LinkedHashMap<String, Method>();
+		for (Method m : c.getMethods()) {
+			unique.putIfAbsent(m.getName() + signature(m), m);
+		}
+		List<Method> methods = new ArrayList<Method>(unique.values());
+		methods.sort(ORDER);
+		return methods;
+	}
+
+	/**
+	 * Describes the methods of an interface, so that generated classes can
+	 * tell whether the interface changed since they were generated
+	 * @param c The interface
+	 * @return the name and parameter types of each method, by ID
+	 */
+	static String[] signaturesOf(Class<?> c) {
+		List<Method> methods = methodsOf(c);
+		String[] signatures = new String[methods.size()];
+		for (int id = 0; id < signatures.length; id++) {
+			Method m = methods.get(id);
+			signatures[id] = m.getName() + signature(m);
+		}
+		return signatures;
+	}
+
+	/**
+	 * The parameter types of a method, as a string
+	 */
+	private static String signature(Method m) {
+		return Arrays.toString(m.getParameterTypes());
+	}
+
+	/**
+	 * Return whether calls go through a generated dispatcher
+	 * @return <code>true</code> if a generated dispatcher is used
+	 */
+	boolean isGenerated() {
+		return generated != null;
+	}
+
+	/**
+	 * Return the number of methods in the table
+	 * @return the number of methods
+	 */
+	public int size() {
+		return byId.length;
+	}
+
+	/**
+	 * Return the method with the given ID
+	 * @param id The method ID
+	 * @return the method
+	 * @throws IndexOutOfBoundsException If there is no such ID.
+	 */
+	public Method getMethod(int id) {
+		return byId[id].method;
+	}
+
+	/**
+	 * Finds the ID of a method of the interface
+	 * @param methodName The name of the method
+	 * @param argsType The parameter types of the method
+	 * @return the ID, or -1 if the interface has no such method
+	 */
+	public int methodId(String methodName, Class<?>[] argsType) {
+		Entry entry = find(methodName, argsType);
+		return entry == null ? -1 : entry.id;
+	}
+
+	/**
+	 * Looks up a method without allocating
+	 */
+	private Entry find(String methodName, Class<?>[] argsType) {
+		Entry[] candidates = byName.get(methodName);
+		if (candidates != null) {
+			for (Entry entry : candidates) {
+				if (Arrays.equals(entry.argsType, argsType)) {
+					return entry;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Calls a method of the server object
+	 * @param className The interface the stub was created for
+	 * @param methodName The name of the method
+	 * @param argsType The parameter types of the method
+	 * @param args The arguments
+	 * @return the return value, or <code>null</code> for <code>void</code>
+	 * @throws RMIException If the method is not declared in the interface or
+	 *                      the arguments do not fit its parameters
+	 * @throws InvocationTargetException If the method itself throws
+	 */
+	public Object invoke(String className, String methodName, Class<?>[] argsType,
+			Object[] args) throws RMIException, InvocationTargetException {
+		Entry entry = itfName.equals(className) ? find(methodName, argsType) : null;
+		if (entry == null) {
+			throw new RMIException("calling method not declared in the interface for which the skeleton was created");
+		}
+		return invoke(entry, args);
+	}
+
+	/**
+	 * Calls a method of the server object by ID
+	 * @param id The method ID
+	 * @param args The arguments
+	 * @return the return value, or <code>null</code> for <code>void</code>
+	 * @throws RMIException If there is no such ID or the arguments do not fit
+	 *                      the parameters of the method
+	 * @throws InvocationTargetException If the method itself throws
+	 */
+	public Object invoke(int id, Object[] args) throws RMIException, InvocationTargetException {
+		if (id < 0 || id >= byId.length) {
+			throw new RMIException("Error: unknown method ID " + id);
+		}
+		return invoke(byId[id], args);
+	}
+
+	private Object invoke(Entry entry, Object[] args) throws RMIException, InvocationTargetException {
+		if (args == null) {
+			args = new Object[0];
+		}
+		// checked here so that anything the handle throws comes from the method
+		if (args.length != entry.boxed.length) {
+			throw new RMIException("Error: wrong number of arguments for " + entry.method.getName());
+		}
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] == null ? entry.argsType[i].isPrimitive() : !entry.boxed[i].isInstance(args[i])) {
+				throw new RMIException("Error: argument " + i + " of " + entry.method.getName()
+						+ " is not a " + entry.argsType[i].getName());
+			}
+		}
+		try {
+			if (generated != null) {
+				return generated.invoke(server, entry.id, args);
+			}
+			return (Object)entry.handle.invokeExact(args);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Invocation handler of stubs created for several equivalent skeletons.
+ *
+ * <p>
+ * Each call goes to one skeleton, picked by the stub's
+ * {@link StubConfig.Balancing} policy, and is made there exactly as a stub
+ * created for that skeleton alone would make it. If the skeleton cannot be
+ * reached, the request was never sent, so the call moves on to the next
+ * skeleton the policy picks, and the unreachable one is passed over by later
+ * calls for {@link #DOWN_MILLIS}. Any other failure is raised to the caller,
+ * since the method may already have run.
+ */
+final class Endpoints implements InvocationHandler, Serializable {
+	private static final long serialVersionUID = -5263901848274137730L;
+
+	/**
+	 * How long a skeleton that could not be reached is passed over, in
+	 * milliseconds
+	 */
+	static final long DOWN_MILLIS = 1000;
+
+	/**
+	 * Weight of the newest response time in the moving average
+	 */
+	static final double ALPHA = 0.3;
+
+	/**
+	 * The remote interface
+	 */
+	private final Class<?> myClass;
+
+	/**
+	 * The skeletons' addresses
+	 */
+	private final InetSocketAddress[] addresses;
+
+	/**
+	 * Options of the stub
+	 */
+	private final StubConfig config;
+
+	/**
+	 * The state of each skeleton, rebuilt when the stub is deserialized
+	 */
+	private transient Endpoint[] endpoints;
+
+	/**
+	 * Where the next pick starts looking, so that ties rotate
+	 */
+	private transient AtomicInteger next;
+
+	/**
+	 * Constructor for {@code Endpoints}
+	 * @param c The remote interface
+	 * @param addresses The skeletons' addresses, without duplicates
+	 * @param config Options of the stub
+	 */
+	Endpoints(Class<?> c, List<InetSocketAddress> addresses, StubConfig config) {
+		this.myClass = c;
+		this.addresses = addresses.toArray(new InetSocketAddress[addresses.size()]);
+		this.config = config;
+		init();
+	}
+
+	/**
+	 * Builds the state of each skeleton
+	 */
+	private void init() {
+		endpoints = new Endpoint[addresses.length];
+		for (int i = 0; i < endpoints.length; i++) {
+			endpoints[i] = new Endpoint(i, new Stub.MyInvocationHandler(myClass, addresses[i], config));
+		}
+		next = new AtomicInteger();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			String methodName = method.getName();
+			if (methodName.equals("equals")) {
+				return args[0] != null && Proxy.isProxyClass(args[0].getClass())
+						&& sameRemote(Proxy.getInvocationHandler(args[0]));
+			}
+			if (methodName.equals("hashCode")) {
+				return myClass.getName().hashCode() * 31 + addressSet().hashCode();
+			}
+			if (methodName.equals("toString")) {
+				return describe();
+			}
+		}
+		return call(method, args);
+	}
+
+	/**
+	 * Return whether another stub calls the same skeletons
+	 * @param other The handler of the other stub
+	 * @return <code>true</code> if it is a stub for several skeletons with
+	 *         the same interface and the same addresses, in any order
+	 */
+	private boolean sameRemote(InvocationHandler other) {
+		if (!(other instanceof Endpoints)) {
+			return false;
+		}
+		Endpoints that = (Endpoints)other;
+		return myClass.getName().equals(that.myClass.getName())
+				&& addressSet().equals(that.addressSet());
+	}
+
+	/**
+	 * Return the skeletons' addresses, in no order
+	 * @return the addresses
+	 */
+	private Set<InetSocketAddress> addressSet() {
+		return new HashSet<InetSocketAddress>(Arrays.asList(addresses));
+	}
+
+	/**
+	 * Describes the stub
+	 * @return the name of the remote interface and the addresses of the
+	 *         skeletons, in the order they were given
+	 */
+	private String describe() {
+		StringBuilder builder = new StringBuilder("INTERFACE_NAME: ").append(myClass.getName())
+				.append(", ENDPOINTS: [");
+		for (int i = 0; i < addresses.length; i++) {
+			builder.append(i == 0 ? "" : ", ").append(addresses[i].getHostName())
+					.append(':').append(addresses[i].getPort());
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * Calls a method on one skeleton, moving on to another while they
+	 * cannot be reached
+	 * @param method The method
+	 * @param args The arguments
+	 * @return the return value of the remote method
+	 * @throws Throwable The exception raised by the remote method, or an
+	 *                   <code>RMIException</code> if the call cannot be
+	 *                   completed
+	 */
+	private Object call(Method method, Object[] args) throws Throwable {
+		boolean[] tried = new boolean[endpoints.length];
+		RMIException failure = null;
+		for (int attempt = 0; attempt < endpoints.length; attempt++) {
+			Endpoint endpoint = pick(tried);
+			tried[endpoint.index] = true;
+			endpoint.outstanding.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				Object result = endpoint.handler.call(method, args);
+				endpoint.sample(System.nanoTime() - start);
+				return result;
+			} catch (RMIException e) {
+				if (!isUnreachable(e)) {
+					endpoint.sample(System.nanoTime() - start);
+					throw e;
+				}
+				endpoint.downUntil = System.currentTimeMillis() + DOWN_MILLIS;
+				failure = e;
+			} catch (Throwable t) {
+				// raised by the remote method, which did answer
+				endpoint.sample(System.nanoTime() - start);
+				throw t;
+			} finally {
+				endpoint.outstanding.decrementAndGet();
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Picks the skeleton to call next, among those a call has not tried yet,
+	 * passing over those recently unreachable unless no other is left
+	 * @param tried The skeletons already tried, by index
+	 * @return the skeleton
+	 */
+	private Endpoint pick(boolean[] tried) {
+		long now = System.currentTimeMillis();
+		int start = Math.floorMod(next.getAndIncrement(), endpoints.length);
+		for (int pass = 0; pass < 2; pass++) {
+			Endpoint best = null;
+			double bestCost = 0;
+			for (int i = 0; i < endpoints.length; i++) {
+				Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+				if (tried[endpoint.index] || (pass == 0 && endpoint.downUntil > now)) {
+					continue;
+				}
+				double cost = cost(endpoint);
+				if (best == null || cost < bestCost) {
+					best = endpoint;
+					bestCost = cost;
+				}
+			}
+			if (best != null) {
+				return best;
+			}
+		}
+		// not reached: a call tries each skeleton at most once
+		throw new IllegalStateException("Error: no skeleton left to try");
+	}
+
+	/**
+	 * Return how undesirable a skeleton is under the stub's policy
+	 * @param endpoint The skeleton
+	 * @return the cost, lowest first; ties go to the first in rotation
+	 */
+	private double cost(Endpoint endpoint) {
+		switch (config.getBalancing()) {
+		case LEAST_OUTSTANDING:
+			return endpoint.outstanding.get();
+		case LATENCY_EWMA:
+			// a skeleton not yet measured costs nothing, so each is tried
+			return endpoint.ewma * (endpoint.outstanding.get() + 1);
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Return whether a call failed before its request could be sent
+	 * @param e The failure
+	 * @return <code>true</code> if the skeleton could not be connected to
+	 */
+	private static boolean isUnreachable(RMIException e) {
+		Throwable cause = e.getCause();
+		return cause instanceof ConnectException || cause instanceof NoRouteToHostException
+				|| cause instanceof UnknownHostException;
+	}
+
+	/**
+	 * One of the skeletons, with what the stub has seen of it
+	 */
+	private static final class Endpoint {
+		/**
+		 * Index of the skeleton among the stub's
+		 */
+		final int index;
+
+		/**
+		 * Makes the calls to this skeleton
+		 */
+		final Stub.MyInvocationHandler handler;
+
+		/**
+		 * Calls sent to this skeleton and not yet answered
+		 */
+		final AtomicInteger outstanding = new AtomicInteger();
+
+		/**
+		 * Moving average of the response time, in nanoseconds, or 0 before
+		 * the first response
+		 */
+		volatile double ewma = 0;
+
+		/**
+		 * Until when the skeleton is passed over, in milliseconds
+		 */
+		volatile long downUntil = 0;
+
+		Endpoint(int index, Stub.MyInvocationHandler handler) {
+			this.index = index;
+			this.handler = handler;
+		}
+
+		/**
+		 * Folds a response time into the moving average
+		 * @param nanos The time the call took
+		 */
+		synchronized void sample(long nanos) {
+			ewma = ewma == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * ewma;
+			downUntil = 0;
+		}
+	}
+}
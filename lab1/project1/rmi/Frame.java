@@ -0,0 +1,81 @@
+package rmi;
+
+import java.io.InputStream;
+
+/**
+ * One message on a persistent connection. See {@link Protocol} for the layout.
+ */
+final class Frame {
+	/**
+	 * The kind of message
+	 */
+	private final byte type;
+
+	/**
+	 * Per-frame flags
+	 */
+	private final byte flags;
+
+	/**
+	 * Identifies the call this frame belongs to
+	 */
+	private final long callId;
+
+	/**
+	 * The encoded body of the frame
+	 */
+	private final byte[] payload;
+
+	/**
+	 * The stream whose chunks follow the frame, or <code>null</code>
+	 */
+	private final InputStream stream;
+
+	/**
+	 * Constructor for {@code Frame}
+	 * @param type The kind of message
+	 * @param flags Per-frame flags
+	 * @param callId Identifies the call this frame belongs to
+	 * @param payload The encoded body of the frame
+	 */
+	Frame(byte type, byte flags, long callId, byte[] payload) {
+		this(type, flags, callId, payload, null);
+	}
+
+	/**
+	 * Constructor for {@code Frame} followed by a stream
+	 * @param type The kind of message
+	 * @param flags Per-frame flags
+	 * @param callId Identifies the call this frame belongs to
+	 * @param payload The encoded body of the frame
+	 * @param stream The stream to be sent after the frame, or being received
+	 *               after it
+	 */
+	Frame(byte type, byte flags, long callId, byte[] payload, InputStream stream) {
+		this.type = type;
+		this.flags = flags;
+		this.callId = callId;
+		this.payload = payload;
+		this.stream = stream;
+	}
+
+	byte getType() {
+		return type;
+	}
+
+	byte getFlags() {
+		return flags;
+	}
+
+	long getCallId() {
+		return callId;
+	}
+
+	byte[] getPayload() {
+		return payload;
+	}
+
+	InputStream getStream() {
+		return stream;
+	}
+}
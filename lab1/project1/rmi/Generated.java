@@ -0,0 +1,152 @@
+package rmi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Finds the classes {@link StubGenerator} wrote for a remote interface.
+ *
+ * <p>
+ * The classes of an interface are looked up once, by name, with the class
+ * loader of the interface. They are used only if they list the methods the
+ * interface has now, in the same order; classes generated for an older
+ * version of the interface are ignored, and proxies and method handles are
+ * used instead.
+ */
+final class Generated {
+	/**
+	 * Suffix of the name of generated stub classes
+	 */
+	static final String STUB = "_Stub";
+
+	/**
+	 * Suffix of the name of generated dispatcher classes
+	 */
+	static final String DISPATCHER = "_Dispatcher";
+
+	/**
+	 * Name of the field in which generated classes list the methods they
+	 * were generated for
+	 */
+	static final String SIGNATURES = "SIGNATURES";
+
+	/**
+	 * Constructor of the generated stub class of each interface, or
+	 * <code>null</code>
+	 */
+	private static final ClassValue<Constructor<?>> STUBS = new ClassValue<Constructor<?>>() {
+		@Override
+		protected Constructor<?> computeValue(Class<?> c) {
+			Class<?> stub = find(c, STUB, GeneratedStub.class);
+			if (stub == null || !c.isAssignableFrom(stub)) {
+				return null;
+			}
+			try {
+				return stub.getConstructor(InetSocketAddress.class, int.class, StubConfig.class);
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+	};
+
+	/**
+	 * Generated dispatcher of each interface, or <code>null</code>
+	 */
+	private static final ClassValue<GeneratedDispatcher<?>> DISPATCHERS = new ClassValue<GeneratedDispatcher<?>>() {
+		@Override
+		protected GeneratedDispatcher<?> computeValue(Class<?> c) {
+			Class<?> dispatcher = find(c, DISPATCHER, GeneratedDispatcher.class);
+			if (dispatcher == null) {
+				return null;
+			}
+			try {
+				return (GeneratedDispatcher<?>)dispatcher.getConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				return null;
+			}
+		}
+	};
+
+	private Generated() {
+	}
+
+	/**
+	 * Return the name of a class generated for an interface
+	 * @param c The interface
+	 * @param suffix {@link #STUB} or {@link #DISPATCHER}
+	 * @return the binary name of the class, in the package of the interface
+	 */
+	static String nameOf(Class<?> c, String suffix) {
+		return c.getName().replace('$', '_') + suffix;
+	}
+
+	/**
+	 * Creates a generated stub
+	 * @param c The remote interface
+	 * @param address The skeleton's address
+	 * @param objectId The ID under which the object is exported
+	 * @param config The options of the stub, not copied
+	 * @return the stub, or <code>null</code> if no usable stub class was
+	 *         generated for the interface
+	 * @throws Error If the stub class cannot be instantiated
+	 */
+	static GeneratedStub newStub(Class<?> c, InetSocketAddress address, int objectId,
+			StubConfig config) {
+		Constructor<?> constructor = STUBS.get(c);
+		if (constructor == null) {
+			return null;
+		}
+		try {
+			return (GeneratedStub)constructor.newInstance(address, objectId, config);
+		} catch (InvocationTargetException e) {
+			throw new Error("Error: cannot create " + constructor.getDeclaringClass().getName(), e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new Error("Error: cannot create " + constructor.getDeclaringClass().getName(), e);
+		}
+	}
+
+	/**
+	 * Return the generated dispatcher of an interface
+	 * @param c The remote interface
+	 * @return the dispatcher, or <code>null</code> if no usable dispatcher
+	 *         class was generated for the interface
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> GeneratedDispatcher<T> dispatcherOf(Class<T> c) {
+		return (GeneratedDispatcher<T>)DISPATCHERS.get(c);
+	}
+
+	/**
+	 * Loads a class generated for an interface
+	 * @param c The interface
+	 * @param suffix The suffix of the class name
+	 * @param base The type the class must have
+	 * @return the class, or <code>null</code> if there is none, it has the
+	 *         wrong type, or it was generated for other methods
+	 */
+	private static Class<?> find(Class<?> c, String suffix, Class<?> base) {
+		Class<?> generated;
+		try {
+			generated = Class.forName(nameOf(c, suffix), true, c.getClassLoader());
+		} catch (ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+		if (!base.isAssignableFrom(generated)) {
+			return null;
+		}
+		try {
+			Field field = generated.getField(SIGNATURES);
+			if (!Modifier.isStatic(field.getModifiers())
+					|| !Arrays.equals((Object[])field.get(null), Dispatcher.signaturesOf(c))) {
+				return null;
+			}
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			return null;
+		}
+		return generated;
+	}
+}
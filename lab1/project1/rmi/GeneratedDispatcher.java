@@ -0,0 +1,24 @@
+package rmi;
+
+/**
+ * Calls the methods of a remote interface on a server object, by method ID.
+ *
+ * <p>
+ * Implementations are written by {@link StubGenerator}, one per interface,
+ * as a <code>switch</code> over the IDs assigned by {@link Dispatcher}. They
+ * are not meant to be written by hand. The {@link Dispatcher} of a skeleton
+ * checks the arguments before handing them over, so they fit the parameters
+ * of the method.
+ * @param <T> The remote interface
+ */
+public interface GeneratedDispatcher<T> {
+	/**
+	 * Calls a method of the server object
+	 * @param server The server object
+	 * @param id The method ID
+	 * @param args The arguments
+	 * @return the return value, or <code>null</code> for <code>void</code>
+	 * @throws Throwable Whatever the method throws
+	 */
+	Object invoke(T server, int id, Object[] args) throws Throwable;
+}
@@ -0,0 +1,115 @@
+package rmi;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Base class of the stub classes written by {@link StubGenerator}.
+ *
+ * <p>
+ * A generated stub implements each method of its remote interface with a
+ * direct call to {@link #call}, which makes the remote call the same way a
+ * dynamic proxy created by {@link Stub} does, with the same options. There is
+ * no proxy class to spin up when the stub is created and no invocation
+ * handler to go through when it is called.
+ *
+ * <p>
+ * Generated stubs are equal to proxy stubs calling the same skeleton. They
+ * are serialized as the handler they share with proxies, and the receiver
+ * rebuilds them with {@link Stub#create}, so it needs no generated classes of
+ * its own.
+ */
+public abstract class GeneratedStub implements Serializable {
+	private static final long serialVersionUID = -4210947716083628354L;
+
+	/**
+	 * Makes the calls
+	 */
+	private final Stub.MyInvocationHandler handler;
+
+	/**
+	 * Constructor for {@code GeneratedStub}
+	 * @param c The remote interface
+	 * @param address The skeleton's address
+	 * @param objectId The ID under which the object is exported
+	 * @param config The options of the stub, not copied
+	 */
+	protected GeneratedStub(Class<?> c, InetSocketAddress address, int objectId, StubConfig config) {
+		this.handler = new Stub.MyInvocationHandler(c, address, objectId, config);
+	}
+
+	/**
+	 * Lists the methods of a remote interface in the order generated stubs
+	 * index them
+	 * @param c The remote interface
+	 * @return the methods by ID
+	 */
+	protected static Method[] methodsOf(Class<?> c) {
+		List<Method> methods = Dispatcher.methodsOf(c);
+		return methods.toArray(new Method[methods.size()]);
+	}
+
+	/**
+	 * Calls a method of the remote interface
+	 * @param method The method
+	 * @param args The arguments
+	 * @return the return value of the remote method
+	 * @throws Throwable The exception raised by the remote method, or an
+	 *                   <code>RMIException</code> if the call cannot be
+	 *                   completed
+	 */
+	protected final Object call(Method method, Object[] args) throws Throwable {
+		return handler.call(method, args);
+	}
+
+	/**
+	 * Return the handler making the calls
+	 * @return the handler
+	 */
+	final Stub.MyInvocationHandler handler() {
+		return handler;
+	}
+
+	@Override
+	public final boolean equals(Object obj) {
+		Stub.MyInvocationHandler other = Stub.handlerOrNull(obj);
+		return other != null && handler.sameRemote(other);
+	}
+
+	@Override
+	public final int hashCode() {
+		return handler.describe().hashCode();
+	}
+
+	@Override
+	public final String toString() {
+		return handler.describe();
+	}
+
+	/**
+	 * Sends the stub as its handler
+	 * @return the serialized form
+	 */
+	protected final Object writeReplace() {
+		return new Serialized(handler);
+	}
+
+	/**
+	 * Serialized form of a generated stub
+	 */
+	private static final class Serialized implements Serializable {
+		private static final long serialVersionUID = 6395402513877260247L;
+
+		private final Stub.MyInvocationHandler handler;
+
+		Serialized(Stub.MyInvocationHandler handler) {
+			this.handler = handler;
+		}
+
+		private Object readResolve() {
+			return Stub.recreate(handler);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, safe for concurrent recording.
+ *
+ * <p>
+ * Values are counted in buckets that split every power of two into sixteen,
+ * so a reported percentile is within about 6% of the true value. Recording
+ * takes a few atomic updates and never allocates.
+ */
+public final class Histogram {
+	/**
+	 * Bits of a value kept below its highest set bit
+	 */
+	private static final int SUB_BITS = 4;
+
+	/**
+	 * Buckets per power of two
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * Enough buckets for any non-negative <code>long</code>
+	 */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	/**
+	 * The number of values in each bucket
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * The number of values recorded
+	 */
+	private final AtomicLong count = new AtomicLong();
+
+	/**
+	 * The sum of the values recorded
+	 */
+	private final AtomicLong sum = new AtomicLong();
+
+	/**
+	 * The largest value recorded
+	 */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value
+	 * @param nanos The value; negative values count as zero
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long seen;
+		while (nanos > (seen = max.get()) && !max.compareAndSet(seen, nanos)) {
+			// raced with a larger value
+		}
+	}
+
+	/**
+	 * The bucket holding a value
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int high = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (high - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (high - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * The largest value held by a bucket
+	 */
+	private static long highest(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Copies the histogram. Values recorded meanwhile may or may not be
+	 * included.
+	 * @return the copy
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			total += copy[i];
+		}
+		return new Snapshot(copy, total, sum.get(), max.get());
+	}
+
+	/**
+	 * An unchanging copy of a histogram
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * Return the number of values
+		 * @return the number of values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Return the mean value
+		 * @return the mean in nanoseconds, or zero if there are no values
+		 */
+		public long getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		/**
+		 * Return the largest value
+		 * @return the largest value in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Return the median
+		 * @return the median in nanoseconds
+		 */
+		public long getP50() {
+			return percentile(50);
+		}
+
+		/**
+		 * Return the 90th percentile
+		 * @return the 90th percentile in nanoseconds
+		 */
+		public long getP90() {
+			return percentile(90);
+		}
+
+		/**
+		 * Return the 99th percentile
+		 * @return the 99th percentile in nanoseconds
+		 */
+		public long getP99() {
+			return percentile(99);
+		}
+
+		/**
+		 * Return the value below which a given share of the values fall
+		 * @param percent The share, from 0 to 100
+		 * @return the value in nanoseconds, or zero if there are no values
+		 * @throws IllegalArgumentException If <code>percent</code> is out of
+		 *                                  range.
+		 */
+		public long percentile(double percent) {
+			if (percent < 0 || percent > 100) {
+				throw new IllegalArgumentException("Error: percentile out of range: " + percent);
+			}
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long)Math.ceil(count * percent / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highest(i), max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + getMean() + "ns p50=" + getP50()
+					+ "ns p90=" + getP90() + "ns p99=" + getP99() + "ns max=" + max + "ns";
+		}
+	}
+}
@@ -7,8 +7,11 @@ package rmi;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements a Thread Pooled Server.
@@ -17,6 +20,10 @@ import java.util.concurrent.Executors;
  * with a fixed number of threads. The Runnable's are kept in a queue in 
  * the thread pool. When a thread in the thread pool is idle it will take 
  * a Runnable from the queue and execute it.
+ * The pool may instead be an executor supplied to the skeleton by the user,
+ * or a thread per call when the skeleton is set to run one.
+ * Connections arriving while the skeleton admits no more calls are answered
+ * with a {@link ServerBusyException} by a single refusing thread instead.
  * @param <T>
  */
 public class Listener<T> extends Thread {
@@ -28,12 +35,29 @@ public class Listener<T> extends Thread {
 	/**
 	 * The thread pool
 	 */
-	private ExecutorService threadPool = Executors.newCachedThreadPool();
+	private ExecutorService threadPool;
+	
+	/**
+	 * Whether the thread pool was created here and must be shut down here
+	 */
+	private boolean ownPool;
 	
 	/**
 	 * The skeleton created for the local object
 	 */
 	private Skeleton<T> localObj;
+
+	/**
+	 * The most refused connections waiting to be answered; beyond that they
+	 * are closed without an answer
+	 */
+	private static final int REFUSE_BACKLOG = 256;
+
+	/**
+	 * Answers refused connections, started on first use
+	 */
+	private final ThreadPoolExecutor refuser = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(REFUSE_BACKLOG));
 	
 	/**
 	 * Constructor for {@code Listener}
@@ -42,7 +66,14 @@ public class Listener<T> extends Thread {
 	 */
 	public Listener(Skeleton<T> Obj) {
 		this.localObj = Obj;
-		this.threadPool = Executors.newFixedThreadPool(Obj.getPoolSize());
+		if (Obj.getExecutor() != null) {
+			this.threadPool = Obj.getExecutor();
+			this.ownPool = false;
+		}
+		else {
+			this.threadPool = Obj.newExecutor();
+			this.ownPool = true;
+		}
 		this.serverSocket = Obj.serverSocket;
 	}
 	
@@ -52,20 +83,32 @@ public class Listener<T> extends Thread {
 	 */
 	@Override
 	public void run() {		
-		while (this.localObj.getIsRunning()) {
+		// the skeleton may already have been restarted with a new socket by
+		// the time this one is closed, so watch the socket, not the skeleton
+		while (!serverSocket.isClosed()) {
 			Socket client = null;		
 			try {
 				// Wait for the Client Request
 				client = serverSocket.accept();
+				Metrics.SKELETON.accepted();
 				// System.out.println("Listener accepted!");
-				if (this.localObj.getIsRunning()) {
+				if (!serverSocket.isClosed()) {
 					// for execution when a thread in the pool becomes idle.
 					// System.out.println("Starting service thread!");
-					this.threadPool.execute(new Worker<T>(client, localObj));
+					if (!localObj.getAdmission().admit()) {
+						refuse(client);
+						continue;
+					}
+					try {
+						this.threadPool.execute(new Worker<T>(client, localObj, this.threadPool));
+					} catch (RejectedExecutionException e) {
+						localObj.getAdmission().cancel();
+						refuse(client);
+					}
 					// System.out.println("Started service thread!");
 				}
 			} catch (IOException e) {
-				if (!this.localObj.getIsRunning()) {
+				if (serverSocket.isClosed()) {
 					// System.out.println("The server is stopped..");
 				}
 				else {
@@ -79,6 +122,31 @@ public class Listener<T> extends Thread {
 		}
 		
 		// shut down thread pool
-		this.threadPool.shutdownNow();
-	}	
+		if (this.ownPool) {
+			this.threadPool.shutdownNow();
+		}
+		this.refuser.shutdownNow();
+	}
+
+	/**
+	 * Hands a connection that was not admitted to the refusing thread
+	 * @param client The client socket
+	 */
+	private void refuse(final Socket client) {
+		try {
+			this.refuser.execute(new Runnable() {
+				@Override
+				public void run() {
+					Worker.refuse(localObj, client);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			localObj.getAdmission().busy();
+			try {
+				client.close();
+			} catch (IOException closeError) {
+				// nothing left to tell the client
+			}
+		}
+	}
 }
\ No newline at end of file
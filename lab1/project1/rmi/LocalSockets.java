@@ -0,0 +1,311 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Unix domain sockets between stubs and skeletons on the same host.
+ *
+ * <p>
+ * A skeleton that listens locally binds a socket file named after its TCP
+ * address and port, in a directory of the temporary directory that belongs
+ * to the user running it and that no one else may enter. A stub configured
+ * to use local sockets, whose skeleton address is one of this host's,
+ * connects to that file if it exists and falls back to TCP otherwise; a
+ * skeleton bound to the wildcard address is found from any local address of
+ * its port. The directory is only used if it is owned by the current user
+ * and closed to everyone else, so only skeletons of the same user can be
+ * reached this way. The frames exchanged are the same.
+ */
+final class LocalSockets {
+	/**
+	 * Whether each address is one of this host's
+	 */
+	private static final ConcurrentMap<InetAddress, Boolean> local =
+			new ConcurrentHashMap<InetAddress, Boolean>();
+
+	/**
+	 * The only permissions the socket directory may have
+	 */
+	private static final Set<PosixFilePermission> PRIVATE =
+			PosixFilePermissions.fromString("rwx------");
+
+	private LocalSockets() {
+	}
+
+	/**
+	 * Return the directory holding the socket files of the current user
+	 * @return the path of the directory
+	 */
+	static Path directory() {
+		return Paths.get(System.getProperty("java.io.tmpdir"),
+				"rmi-" + System.getProperty("user.name"));
+	}
+
+	/**
+	 * Return the socket file of the skeleton listening on an address
+	 * @param address The TCP address of the skeleton
+	 * @return the path of the file
+	 */
+	static Path pathOf(InetSocketAddress address) {
+		return pathOf(address.getAddress(), address.getPort());
+	}
+
+	/**
+	 * Return the socket file of the skeleton listening on an address
+	 * @param address The TCP address of the skeleton, or <code>null</code>
+	 *                for the wildcard address
+	 * @param port The TCP port of the skeleton
+	 * @return the path of the file
+	 */
+	private static Path pathOf(InetAddress address, int port) {
+		String host = address == null || address.isAnyLocalAddress() ? "any"
+				: address.getHostAddress().replace(':', '_').replace('%', '_');
+		return directory().resolve(host + "-" + port + ".sock");
+	}
+
+	/**
+	 * Creates the socket directory if needed, and checks that only the
+	 * current user can reach it
+	 * @return the directory
+	 * @throws IOException If it cannot be created, or belongs to someone
+	 *                     else or is open to others
+	 */
+	static Path privateDirectory() throws IOException {
+		Path dir = directory();
+		try {
+			Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PRIVATE));
+		} catch (FileAlreadyExistsException e) {
+			// checked below
+		} catch (UnsupportedOperationException e) {
+			throw new IOException("Error: " + dir + " cannot be made private", e);
+		}
+		PosixFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(dir, PosixFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+		} catch (UnsupportedOperationException e) {
+			throw new IOException("Error: " + dir + " cannot be made private", e);
+		}
+		if (!attributes.isDirectory() || !attributes.permissions().equals(PRIVATE)
+				|| !attributes.owner().equals(currentUser(dir))) {
+			throw new IOException("Error: " + dir + " is not private to this user");
+		}
+		return dir;
+	}
+
+	/**
+	 * Return the user running this virtual machine, as the owner of the files
+	 * it creates
+	 * @param dir A path on the file system of the socket directory
+	 * @return the user
+	 * @throws IOException If the user cannot be looked up
+	 */
+	private static UserPrincipal currentUser(Path dir) throws IOException {
+		return dir.getFileSystem().getUserPrincipalLookupService()
+				.lookupPrincipalByName(System.getProperty("user.name"));
+	}
+
+	/**
+	 * Binds the socket file of a skeleton, replacing a file left behind by a
+	 * skeleton that is gone
+	 * @param address The TCP address the skeleton is bound to
+	 * @param backlog The maximum length of the queue of incoming connections
+	 * @return the bound channel
+	 * @throws IOException If another skeleton is listening on the file, the
+	 *                     socket directory is not private, or the file
+	 *                     cannot be bound
+	 */
+	static ServerSocketChannel bind(InetSocketAddress address, int backlog) throws IOException {
+		privateDirectory();
+		Path path = pathOf(address);
+		if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			SocketChannel probe = connect(path);
+			if (probe != null) {
+				probe.close();
+				throw new IOException("Error: " + path + " is in use");
+			}
+			Files.deleteIfExists(path);
+		}
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(path), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Closes a skeleton's listening channel and removes its file
+	 * @param channel The channel returned by {@link #bind}
+	 * @param address The TCP address the skeleton is bound to
+	 */
+	static void unbind(ServerSocketChannel channel, InetSocketAddress address) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		try {
+			Files.deleteIfExists(pathOf(address));
+		} catch (IOException e) {
+			// a later skeleton on the address replaces it
+		}
+	}
+
+	/**
+	 * Connects to a skeleton on this host over its socket file: the file of
+	 * its address, or else the file of a skeleton bound to the wildcard
+	 * address on its port
+	 * @param address The skeleton's address
+	 * @return the connected channel, in blocking mode, or <code>null</code>
+	 *         if the skeleton is elsewhere or does not listen locally, or
+	 *         the socket directory is not private to this user
+	 */
+	static SocketChannel connect(InetSocketAddress address) {
+		if (address.isUnresolved() || !isLocal(address.getAddress())) {
+			return null;
+		}
+		try {
+			privateDirectory();
+		} catch (IOException e) {
+			return null;
+		}
+		SocketChannel channel = connectOwned(pathOf(address));
+		if (channel == null && !address.getAddress().isAnyLocalAddress()) {
+			channel = connectOwned(pathOf(null, address.getPort()));
+		}
+		return channel;
+	}
+
+	/**
+	 * Connects to a socket file if it belongs to the current user
+	 * @return the connected channel, or <code>null</code> if the file is
+	 *         missing, belongs to someone else or nothing listens on it
+	 */
+	private static SocketChannel connectOwned(Path path) {
+		try {
+			if (!Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(currentUser(path))) {
+				return null;
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return connect(path);
+	}
+
+	/**
+	 * Connects to a socket file
+	 * @return the connected channel, or <code>null</code> if nothing
+	 *         listens on the file
+	 */
+	private static SocketChannel connect(Path path) {
+		try {
+			return SocketChannel.open(UnixDomainSocketAddress.of(path));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return whether an address is one of this host's, checking each once
+	 * @param address The address
+	 * @return <code>true</code> for loopback, wildcard and local interface
+	 *         addresses
+	 */
+	private static boolean isLocal(InetAddress address) {
+		Boolean result = local.get(address);
+		if (result == null) {
+			try {
+				result = address.isLoopbackAddress() || address.isAnyLocalAddress()
+						|| NetworkInterface.getByInetAddress(address) != null;
+			} catch (SocketException e) {
+				result = false;
+			}
+			local.put(address, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads from a blocking channel. Unlike the streams of
+	 * <code>Channels</code>, a read does not hold up writes from other
+	 * threads.
+	 * @param channel The channel
+	 * @return the stream
+	 */
+	static InputStream inputOf(final SocketChannel channel) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Writes to a blocking channel, without holding up reads from other
+	 * threads
+	 * @param channel The channel
+	 * @return the stream
+	 */
+	static OutputStream outputOf(final SocketChannel channel) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+}
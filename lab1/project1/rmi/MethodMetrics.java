@@ -0,0 +1,281 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of one remote method, on the stub or skeleton side.
+ * Obtained from {@link Metrics}.
+ *
+ * <p>
+ * A call either <em>succeeds</em>, <em>raises</em> an exception thrown by
+ * the remote method, or <em>fails</em> because it could not be completed.
+ * Byte counts are those of the encoded requests and responses, without frame
+ * headers.
+ */
+public final class MethodMetrics {
+	/**
+	 * The name of the remote interface
+	 */
+	private final String interfaceName;
+
+	/**
+	 * The method name and parameter types
+	 */
+	private final String signature;
+
+	/**
+	 * Calls completed in any way
+	 */
+	private final AtomicLong calls = new AtomicLong();
+
+	/**
+	 * Calls in which the remote method threw
+	 */
+	private final AtomicLong exceptions = new AtomicLong();
+
+	/**
+	 * Calls that could not be completed
+	 */
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Bytes of requests
+	 */
+	private final AtomicLong requestBytes = new AtomicLong();
+
+	/**
+	 * Bytes of responses
+	 */
+	private final AtomicLong responseBytes = new AtomicLong();
+
+	/**
+	 * Time from the start of a call to its end. On the stub side this is the
+	 * whole round trip; on the skeleton side, the time spent in the method.
+	 */
+	private final Histogram latency = new Histogram();
+
+	/**
+	 * Time a request waited for a thread, on the skeleton side only
+	 */
+	private final Histogram queueTime = new Histogram();
+
+	/**
+	 * Constructor for {@code MethodMetrics}
+	 * @param method The remote method
+	 */
+	MethodMetrics(Method method) {
+		this.interfaceName = method.getDeclaringClass().getName();
+		this.signature = signature(method);
+	}
+
+	/**
+	 * The name and parameter types of a method, as in <code>add(int,int)</code>
+	 * @param method The method
+	 * @return the signature
+	 */
+	static String signature(Method method) {
+		StringBuilder builder = new StringBuilder(method.getName()).append('(');
+		Class<?>[] types = method.getParameterTypes();
+		for (int i = 0; i < types.length; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append(types[i].getSimpleName());
+		}
+		return builder.append(')').toString();
+	}
+
+	/**
+	 * Counts the bytes of a request
+	 * @param bytes The size of the request
+	 */
+	void requestBytes(long bytes) {
+		if (Metrics.isEnabled()) {
+			requestBytes.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Counts the bytes of a response
+	 * @param bytes The size of the response
+	 */
+	void responseBytes(long bytes) {
+		if (Metrics.isEnabled()) {
+			responseBytes.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Records how long a request waited for a thread
+	 * @param nanos The wait in nanoseconds
+	 */
+	void queued(long nanos) {
+		if (Metrics.isEnabled()) {
+			queueTime.record(nanos);
+		}
+	}
+
+	/**
+	 * Records a call that returned normally
+	 * @param nanos The duration of the call in nanoseconds
+	 */
+	void succeeded(long nanos) {
+		if (Metrics.isEnabled()) {
+			calls.incrementAndGet();
+			latency.record(nanos);
+		}
+	}
+
+	/**
+	 * Records a call in which the remote method threw
+	 * @param nanos The duration of the call in nanoseconds
+	 */
+	void raised(long nanos) {
+		if (Metrics.isEnabled()) {
+			calls.incrementAndGet();
+			exceptions.incrementAndGet();
+			latency.record(nanos);
+		}
+	}
+
+	/**
+	 * Records a call that could not be completed
+	 * @param nanos The time until the call was given up, in nanoseconds
+	 */
+	void failed(long nanos) {
+		if (Metrics.isEnabled()) {
+			calls.incrementAndGet();
+			failures.incrementAndGet();
+			latency.record(nanos);
+		}
+	}
+
+	/**
+	 * Records a call by its response
+	 * @param nanos The duration of the call in nanoseconds
+	 * @param response The response
+	 */
+	void completed(long nanos, RMIData response) {
+		if (response.getException() == null) {
+			succeeded(nanos);
+		} else {
+			raised(nanos);
+		}
+	}
+
+	/**
+	 * Copies the current values
+	 * @return the copy
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * An unchanging copy of the metrics of a method
+	 */
+	public static final class Snapshot {
+		private final String interfaceName;
+		private final String signature;
+		private final long calls;
+		private final long exceptions;
+		private final long failures;
+		private final long requestBytes;
+		private final long responseBytes;
+		private final Histogram.Snapshot latency;
+		private final Histogram.Snapshot queueTime;
+
+		private Snapshot(MethodMetrics m) {
+			this.interfaceName = m.interfaceName;
+			this.signature = m.signature;
+			this.calls = m.calls.get();
+			this.exceptions = m.exceptions.get();
+			this.failures = m.failures.get();
+			this.requestBytes = m.requestBytes.get();
+			this.responseBytes = m.responseBytes.get();
+			this.latency = m.latency.snapshot();
+			this.queueTime = m.queueTime.snapshot();
+		}
+
+		/**
+		 * Return the name of the remote interface
+		 * @return the interface name
+		 */
+		public String getInterfaceName() {
+			return interfaceName;
+		}
+
+		/**
+		 * Return the method name and parameter types, as in
+		 * <code>add(int,int)</code>
+		 * @return the signature
+		 */
+		public String getSignature() {
+			return signature;
+		}
+
+		/**
+		 * Return the number of calls completed in any way
+		 * @return the number of calls
+		 */
+		public long getCalls() {
+			return calls;
+		}
+
+		/**
+		 * Return the number of calls in which the remote method threw
+		 * @return the number of exceptions
+		 */
+		public long getExceptions() {
+			return exceptions;
+		}
+
+		/**
+		 * Return the number of calls that could not be completed
+		 * @return the number of failures
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Return the bytes of all requests
+		 * @return the number of bytes
+		 */
+		public long getRequestBytes() {
+			return requestBytes;
+		}
+
+		/**
+		 * Return the bytes of all responses
+		 * @return the number of bytes
+		 */
+		public long getResponseBytes() {
+			return responseBytes;
+		}
+
+		/**
+		 * Return the latencies of the calls
+		 * @return the latency histogram
+		 */
+		public Histogram.Snapshot getLatency() {
+			return latency;
+		}
+
+		/**
+		 * Return how long requests waited for a thread on the skeleton
+		 * @return the queueing histogram, empty on the stub side
+		 */
+		public Histogram.Snapshot getQueueTime() {
+			return queueTime;
+		}
+
+		@Override
+		public String toString() {
+			return interfaceName + "." + signature + ": calls=" + calls + " exceptions=" + exceptions
+					+ " failures=" + failures + " request=" + requestBytes + "B response="
+					+ responseBytes + "B latency[" + latency + "]";
+		}
+	}
+}
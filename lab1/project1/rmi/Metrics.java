@@ -0,0 +1,699 @@
+package rmi;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * RMI metrics of one side of the calls in this virtual machine: all stubs,
+ * in {@link #STUB}, or all skeletons, in {@link #SKELETON}.
+ *
+ * <p>
+ * Each side keeps a {@link MethodMetrics} per remote method, with call,
+ * exception and failure counts, byte counts and a latency histogram, as well
+ * as the number of connections and errors not tied to a call. Stubs also
+ * time how long connecting takes; skeletons time how long requests wait for
+ * a thread. Both sides count the frames they compressed and decompressed,
+ * the bytes saved and the time spent on it. Where the virtual machine can
+ * count the bytes each thread allocates, both sides also count those
+ * allocated by the threads making and serving calls, from the start of a
+ * call to its end on the calling thread, and from decoding a request to
+ * encoding its response on the serving thread. Metrics are always collected
+ * unless turned off with {@link #setEnabled}.
+ *
+ * <p>
+ * The values can be read with {@link #snapshot}, or over JMX once
+ * {@link #registerMBeans} has been called, under the names
+ * <code>rmi:type=Metrics,side=stub</code> and
+ * <code>rmi:type=Metrics,side=skeleton</code>.
+ */
+public final class Metrics implements MetricsMXBean {
+	/**
+	 * Metrics of all stubs
+	 */
+	public static final Metrics STUB = new Metrics("stub");
+
+	/**
+	 * Metrics of all skeletons
+	 */
+	public static final Metrics SKELETON = new Metrics("skeleton");
+
+	/**
+	 * Whether metrics are collected
+	 */
+	private static volatile boolean enabled = true;
+
+	/**
+	 * Counts the bytes allocated by each thread, or <code>null</code> if the
+	 * virtual machine cannot
+	 */
+	private static final com.sun.management.ThreadMXBean allocations = allocationCounter();
+
+	/**
+	 * <code>stub</code> or <code>skeleton</code>
+	 */
+	private final String side;
+
+	/**
+	 * Metrics of each method
+	 */
+	private final ConcurrentMap<Method, MethodMetrics> methods =
+			new ConcurrentHashMap<Method, MethodMetrics>();
+
+	/**
+	 * Connections opened or accepted
+	 */
+	private final AtomicLong connections = new AtomicLong();
+
+	/**
+	 * Errors not tied to a call
+	 */
+	private final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * Calls refused by admission control, on the skeleton side only
+	 */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Calls not run because their deadline had passed, on the skeleton side
+	 * only
+	 */
+	private final AtomicLong expired = new AtomicLong();
+
+	/**
+	 * Frames compressed before being sent
+	 */
+	private final AtomicLong compressedFrames = new AtomicLong();
+
+	/**
+	 * Payload bytes of the compressed frames before compression
+	 */
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+
+	/**
+	 * Payload bytes of the compressed frames after compression
+	 */
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	/**
+	 * Time spent compressing, in nanoseconds
+	 */
+	private final AtomicLong compressionTime = new AtomicLong();
+
+	/**
+	 * Compressed frames received
+	 */
+	private final AtomicLong decompressedFrames = new AtomicLong();
+
+	/**
+	 * Time spent decompressing, in nanoseconds
+	 */
+	private final AtomicLong decompressionTime = new AtomicLong();
+
+	/**
+	 * Bytes allocated by the threads making or serving calls
+	 */
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	/**
+	 * Calls whose allocations were counted
+	 */
+	private final AtomicLong allocatedCalls = new AtomicLong();
+
+	/**
+	 * Time taken to connect, on the stub side only. Replaced on reset.
+	 */
+	private volatile Histogram connectTime = new Histogram();
+
+	private Metrics(String side) {
+		this.side = side;
+	}
+
+	/**
+	 * Finds the counter of the bytes allocated by each thread, turning it on
+	 * @return the counter, or <code>null</code> if the virtual machine has
+	 *         none
+	 */
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)bean;
+				if (counter.isThreadAllocatedMemorySupported()) {
+					counter.setThreadAllocatedMemoryEnabled(true);
+					return counter;
+				}
+			}
+		} catch (RuntimeException | LinkageError e) {
+			// not a HotSpot virtual machine, or not allowed
+		}
+		return null;
+	}
+
+	/**
+	 * Return whether metrics are collected
+	 * @return <code>true</code> if metrics are collected
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turns the collection of metrics on or off, on both sides
+	 * @param enabled <code>true</code> to collect metrics
+	 */
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	/**
+	 * Registers the metrics of both sides with the platform MBean server.
+	 * Does nothing if they are registered already.
+	 * @throws JMException If registration fails
+	 */
+	public static synchronized void registerMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Metrics metrics : new Metrics[] {STUB, SKELETON}) {
+			ObjectName name = metrics.getObjectName();
+			if (!server.isRegistered(name)) {
+				server.registerMBean(metrics, name);
+			}
+		}
+	}
+
+	/**
+	 * Return the name of this side's MBean
+	 * @return the object name
+	 * @throws JMException If the name is malformed
+	 */
+	public ObjectName getObjectName() throws JMException {
+		return new ObjectName("rmi:type=Metrics,side=" + side);
+	}
+
+	/**
+	 * Return the metrics of a method, creating them on first use
+	 * @param method The remote method
+	 * @return the metrics
+	 */
+	MethodMetrics of(Method method) {
+		MethodMetrics metrics = methods.get(method);
+		if (metrics == null) {
+			methods.putIfAbsent(method, new MethodMetrics(method));
+			metrics = methods.get(method);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Counts a connection opened by a stub
+	 * @param nanos How long connecting took
+	 */
+	void connected(long nanos) {
+		if (enabled) {
+			connections.incrementAndGet();
+			connectTime.record(nanos);
+		}
+	}
+
+	/**
+	 * Counts a connection accepted by a skeleton
+	 */
+	void accepted() {
+		if (enabled) {
+			connections.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts an error not tied to a call
+	 */
+	void error() {
+		if (enabled) {
+			errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a call refused because the skeleton was busy
+	 */
+	void rejected() {
+		if (enabled) {
+			rejected.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a call not run because its deadline had passed
+	 */
+	void expired() {
+		if (enabled) {
+			expired.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Reads how many bytes the current thread has allocated so far, to be
+	 * passed to {@link #allocatedSince} at the end of a call
+	 * @return the count, or -1 if metrics are off or allocations cannot be
+	 *         counted
+	 */
+	static long allocationMark() {
+		if (!enabled || allocations == null) {
+			return -1;
+		}
+		return allocations.getCurrentThreadAllocatedBytes();
+	}
+
+	/**
+	 * Counts the bytes the current thread allocated for a call
+	 * @param mark The count returned by {@link #allocationMark} when the call
+	 *             started, or -1 to count nothing
+	 */
+	void allocatedSince(long mark) {
+		if (mark >= 0 && enabled) {
+			long now = allocations.getCurrentThreadAllocatedBytes();
+			if (now >= mark) {
+				allocatedBytes.addAndGet(now - mark);
+				allocatedCalls.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Counts a frame compressed before being sent
+	 * @param before The payload bytes before compression
+	 * @param after The payload bytes after compression
+	 * @param nanos How long compressing took
+	 */
+	void compressed(long before, long after, long nanos) {
+		if (enabled) {
+			compressedFrames.incrementAndGet();
+			uncompressedBytes.addAndGet(before);
+			compressedBytes.addAndGet(after);
+			compressionTime.addAndGet(nanos);
+		}
+	}
+
+	/**
+	 * Counts a compressed frame received
+	 * @param nanos How long decompressing took
+	 */
+	void decompressed(long nanos) {
+		if (enabled) {
+			decompressedFrames.incrementAndGet();
+			decompressionTime.addAndGet(nanos);
+		}
+	}
+
+	/**
+	 * Copies the current values
+	 * @return the copy
+	 */
+	public Snapshot snapshot() {
+		List<MethodMetrics.Snapshot> list = new ArrayList<MethodMetrics.Snapshot>();
+		for (MethodMetrics metrics : methods.values()) {
+			list.add(metrics.snapshot());
+		}
+		Collections.sort(list, new Comparator<MethodMetrics.Snapshot>() {
+			@Override
+			public int compare(MethodMetrics.Snapshot a, MethodMetrics.Snapshot b) {
+				int c = a.getInterfaceName().compareTo(b.getInterfaceName());
+				return c != 0 ? c : a.getSignature().compareTo(b.getSignature());
+			}
+		});
+		return new Snapshot(side, connections.get(), errors.get(), rejected.get(), expired.get(),
+				compressedFrames.get(), uncompressedBytes.get(), compressedBytes.get(),
+				compressionTime.get(), decompressedFrames.get(), decompressionTime.get(),
+				allocatedBytes.get(), allocatedCalls.get(), connectTime.snapshot(), list);
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		return snapshot();
+	}
+
+	/**
+	 * Forgets everything recorded so far on this side
+	 */
+	@Override
+	public void reset() {
+		methods.clear();
+		connections.set(0);
+		errors.set(0);
+		rejected.set(0);
+		expired.set(0);
+		compressedFrames.set(0);
+		uncompressedBytes.set(0);
+		compressedBytes.set(0);
+		compressionTime.set(0);
+		decompressedFrames.set(0);
+		decompressionTime.set(0);
+		allocatedBytes.set(0);
+		allocatedCalls.set(0);
+		connectTime = new Histogram();
+	}
+
+	/**
+	 * An unchanging copy of the metrics of one side
+	 */
+	public static final class Snapshot {
+		private final String side;
+		private final long connections;
+		private final long errors;
+		private final long rejected;
+		private final long expired;
+		private final long compressedFrames;
+		private final long uncompressedBytes;
+		private final long compressedBytes;
+		private final long compressionTime;
+		private final long decompressedFrames;
+		private final long decompressionTime;
+		private final long allocatedBytes;
+		private final long allocatedCalls;
+		private final Histogram.Snapshot connectTime;
+		private final List<MethodMetrics.Snapshot> methods;
+
+		private Snapshot(String side, long connections, long errors, long rejected, long expired,
+				long compressedFrames, long uncompressedBytes, long compressedBytes,
+				long compressionTime, long decompressedFrames, long decompressionTime,
+				long allocatedBytes, long allocatedCalls, Histogram.Snapshot connectTime,
+				List<MethodMetrics.Snapshot> methods) {
+			this.side = side;
+			this.connections = connections;
+			this.errors = errors;
+			this.rejected = rejected;
+			this.expired = expired;
+			this.compressedFrames = compressedFrames;
+			this.uncompressedBytes = uncompressedBytes;
+			this.compressedBytes = compressedBytes;
+			this.compressionTime = compressionTime;
+			this.decompressedFrames = decompressedFrames;
+			this.decompressionTime = decompressionTime;
+			this.allocatedBytes = allocatedBytes;
+			this.allocatedCalls = allocatedCalls;
+			this.connectTime = connectTime;
+			this.methods = Collections.unmodifiableList(methods);
+		}
+
+		/**
+		 * Return <code>stub</code> or <code>skeleton</code>
+		 * @return the side
+		 */
+		public String getSide() {
+			return side;
+		}
+
+		/**
+		 * Return the number of connections opened or accepted
+		 * @return the number of connections
+		 */
+		public long getConnections() {
+			return connections;
+		}
+
+		/**
+		 * Return the number of errors not tied to a call, such as failed
+		 * connections or malformed requests
+		 * @return the number of errors
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * Return the number of calls refused because the skeleton was busy
+		 * @return the number of refused calls, zero on the stub side
+		 */
+		public long getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * Return the number of calls not run because their deadline had
+		 * passed
+		 * @return the number of expired calls, zero on the stub side
+		 */
+		public long getExpired() {
+			return expired;
+		}
+
+		/**
+		 * Return the number of frames compressed before being sent
+		 * @return the number of frames
+		 */
+		public long getCompressedFrames() {
+			return compressedFrames;
+		}
+
+		/**
+		 * Return the payload bytes of the compressed frames before
+		 * compression
+		 * @return the number of bytes
+		 */
+		public long getUncompressedBytes() {
+			return uncompressedBytes;
+		}
+
+		/**
+		 * Return the payload bytes of the compressed frames after
+		 * compression
+		 * @return the number of bytes
+		 */
+		public long getCompressedBytes() {
+			return compressedBytes;
+		}
+
+		/**
+		 * Return how many times smaller compression made the frames
+		 * @return the ratio of bytes before to bytes after, or 1 if nothing
+		 *         was compressed
+		 */
+		public double getCompressionRatio() {
+			return compressedBytes == 0 ? 1 : (double)uncompressedBytes / compressedBytes;
+		}
+
+		/**
+		 * Return the time spent compressing
+		 * @return the time in nanoseconds
+		 */
+		public long getCompressionTime() {
+			return compressionTime;
+		}
+
+		/**
+		 * Return the number of compressed frames received
+		 * @return the number of frames
+		 */
+		public long getDecompressedFrames() {
+			return decompressedFrames;
+		}
+
+		/**
+		 * Return the time spent decompressing
+		 * @return the time in nanoseconds
+		 */
+		public long getDecompressionTime() {
+			return decompressionTime;
+		}
+
+		/**
+		 * Return the bytes allocated by the threads making or serving calls
+		 * @return the number of bytes, zero if allocations cannot be counted
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * Return the number of calls whose allocations were counted
+		 * @return the number of calls
+		 */
+		public long getAllocatedCalls() {
+			return allocatedCalls;
+		}
+
+		/**
+		 * Return the bytes allocated per call
+		 * @return the mean number of bytes, or 0 if no call was counted
+		 */
+		public double getAllocatedBytesPerCall() {
+			return allocatedCalls == 0 ? 0 : (double)allocatedBytes / allocatedCalls;
+		}
+
+		/**
+		 * Return how long connecting took
+		 * @return the histogram, empty on the skeleton side
+		 */
+		public Histogram.Snapshot getConnectTime() {
+			return connectTime;
+		}
+
+		/**
+		 * Return the metrics of every method called so far, ordered by
+		 * interface and signature
+		 * @return the method metrics
+		 */
+		public List<MethodMetrics.Snapshot> getMethods() {
+			return methods;
+		}
+
+		/**
+		 * Return the total number of calls
+		 * @return the number of calls
+		 */
+		public long getCalls() {
+			long total = 0;
+			for (MethodMetrics.Snapshot m : methods) {
+				total += m.getCalls();
+			}
+			return total;
+		}
+
+		/**
+		 * Return the total bytes of requests
+		 * @return the number of bytes
+		 */
+		public long getRequestBytes() {
+			long total = 0;
+			for (MethodMetrics.Snapshot m : methods) {
+				total += m.getRequestBytes();
+			}
+			return total;
+		}
+
+		/**
+		 * Return the total bytes of responses
+		 * @return the number of bytes
+		 */
+		public long getResponseBytes() {
+			long total = 0;
+			for (MethodMetrics.Snapshot m : methods) {
+				total += m.getResponseBytes();
+			}
+			return total;
+		}
+
+		/**
+		 * Finds the metrics of a method
+		 * @param interfaceName The name of the interface declaring it
+		 * @param signature The method name and parameter types, as in
+		 *                  <code>add(int,int)</code>
+		 * @return the metrics, or <code>null</code> if it was never called
+		 */
+		public MethodMetrics.Snapshot method(String interfaceName, String signature) {
+			for (MethodMetrics.Snapshot m : methods) {
+				if (m.getInterfaceName().equals(interfaceName) && m.getSignature().equals(signature)) {
+					return m;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder(side).append(": connections=").append(connections)
+					.append(" errors=").append(errors).append(" rejected=").append(rejected)
+					.append(" expired=").append(expired);
+			if (compressedFrames > 0 || decompressedFrames > 0) {
+				builder.append(" compressed=").append(compressedFrames)
+						.append(String.format(" ratio=%.2f", getCompressionRatio()))
+						.append(" decompressed=").append(decompressedFrames);
+			}
+			if (allocatedCalls > 0) {
+				builder.append(String.format(" allocated=%.0fB/call", getAllocatedBytesPerCall()));
+			}
+			for (MethodMetrics.Snapshot m : methods) {
+				builder.append("\n  ").append(m);
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it
+	 */
+	static final class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Counts the bytes written through it
+	 */
+	static final class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package rmi;
+
+/**
+ * Management interface of {@link Metrics}, as seen over JMX.
+ */
+public interface MetricsMXBean {
+	/**
+	 * Return the current metrics of this side
+	 * @return a copy of the metrics
+	 */
+	Metrics.Snapshot getSnapshot();
+
+	/**
+	 * Forgets everything recorded so far on this side
+	 */
+	void reset();
+}
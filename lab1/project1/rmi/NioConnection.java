@@ -0,0 +1,769 @@
+package rmi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One client connection of a non-blocking skeleton.
+ *
+ * <p>
+ * All reading, framing and writing happens on the selector thread of the
+ * {@link NioListener}; only decoded requests are handed to the skeleton's
+ * executor. Executor threads queue their responses here and ask the selector
+ * thread to write them, so an idle connection costs a buffer and a key, not a
+ * thread.
+ *
+ * <p>
+ * Both kinds of stubs are served. A one-shot stub sends one serialized
+ * request, which carries no length, so it is decoded on an executor thread
+ * from the bytes the selector thread passes on as they arrive; reading
+ * pauses while too many are waiting. The connection is closed after the
+ * response is written. A persistent stub sends framed
+ * requests, as described in {@link Protocol}, and may be called back over
+ * the same connection.
+ * @param <T>
+ */
+class NioConnection<T> {
+	/**
+	 * Waiting for the first byte to tell which kind of stub connected
+	 */
+	private static final int DETECT = 0;
+
+	/**
+	 * Waiting for the rest of a persistent stub's handshake
+	 */
+	private static final int HANDSHAKE = 1;
+
+	/**
+	 * Exchanging frames with a persistent stub
+	 */
+	private static final int FRAMED = 2;
+
+	/**
+	 * Waiting for the whole serialized request of a one-shot stub
+	 */
+	private static final int LEGACY = 3;
+
+	/**
+	 * The one-shot request has been read; no more input is expected
+	 */
+	private static final int DONE = 4;
+
+	/**
+	 * Size of the handshake following the magic number
+	 */
+	private static final int HANDSHAKE_LENGTH = 4 + 1 + 4;
+
+	/**
+	 * The most bytes of a one-shot request kept waiting for the thread
+	 * decoding it before reading pauses
+	 */
+	private static final int LEGACY_BUFFER = 64 * 1024;
+
+	/**
+	 * The listener owning the selector
+	 */
+	private final NioListener<T> listener;
+
+	/**
+	 * The skeleton
+	 */
+	private final Skeleton<T> skt;
+
+	/**
+	 * The client channel
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The channel's registration with the selector
+	 */
+	private final SelectionKey key;
+
+	/**
+	 * One of the states above
+	 */
+	private int state = DETECT;
+
+	/**
+	 * The codec accepted in the handshake
+	 */
+	private Codec codec = SerializationCodec.INSTANCE;
+
+	/**
+	 * The compression accepted in the handshake
+	 */
+	private Compression compression = new Compression(0, Metrics.SKELETON);
+
+	/**
+	 * Bytes read but not yet consumed, in write mode between reads
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+	/**
+	 * Buffers waiting to be written, filled by any thread
+	 */
+	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * The number of requests dispatched but not yet answered
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * When the last bytes were read, in milliseconds
+	 */
+	private long lastActive = System.currentTimeMillis();
+
+	/**
+	 * Whether the connection is closed once the write queue drains
+	 */
+	private volatile boolean closeAfterWrite = false;
+
+	/**
+	 * The stub, as seen by the callbacks it passes, or <code>null</code> if
+	 * callbacks were not accepted
+	 */
+	private Callbacks.Peer peer;
+
+	/**
+	 * The bytes of a one-shot request, or <code>null</code> until one
+	 * starts arriving
+	 */
+	private volatile LegacyInput legacy;
+
+	/**
+	 * Set once the channel is closed
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor for {@code NioConnection}. Greets the client with the
+	 * serialization stream header, as blocking skeletons do.
+	 * @param listener The listener owning the selector
+	 * @param channel The accepted channel, in non-blocking mode
+	 * @throws IOException If the channel cannot be registered
+	 */
+	NioConnection(NioListener<T> listener, SocketChannel channel) throws IOException {
+		this.listener = listener;
+		this.skt = listener.getSkeleton();
+		this.channel = channel;
+		this.key = channel.register(listener.getSelector(), SelectionKey.OP_READ, this);
+		writeQueue.add(ByteBuffer.wrap(Protocol.STREAM_HEADER));
+		onWritable();
+	}
+
+	/**
+	 * Reads what is available and dispatches every complete request. Called
+	 * on the selector thread.
+	 */
+	void onReadable() {
+		try {
+			int count = channel.read(readBuffer);
+			if (count < 0) {
+				if (state == LEGACY && legacy.isDecoded()) {
+					// the response is still to be written
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					return;
+				}
+				// a persistent stub may hang up between frames
+				if (state != FRAMED || readBuffer.position() != 0) {
+					skt.serviceError(new RMIException(new EOFException()));
+				}
+				close();
+				return;
+			}
+			lastActive = System.currentTimeMillis();
+			readBuffer.flip();
+			process();
+			readBuffer.compact();
+			if (!readBuffer.hasRemaining()) {
+				grow(readBuffer.capacity() * 2);
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				skt.serviceError(new RMIException(e));
+			}
+			close();
+		}
+	}
+
+	/**
+	 * Consumes complete messages from the read buffer
+	 * @throws IOException If the client sent something malformed
+	 */
+	private void process() throws IOException {
+		while (!closed) {
+			switch (state) {
+			case DETECT:
+				if (!readBuffer.hasRemaining()) {
+					return;
+				}
+				int first = readBuffer.get(readBuffer.position()) & 0xFF;
+				if (first == (Protocol.MAGIC >>> 24)) {
+					state = HANDSHAKE;
+				} else if (first == (Protocol.STREAM_HEADER[0] & 0xFF)) {
+					state = LEGACY;
+				} else {
+					throw new IOException("Error: unknown protocol from " + channel.getRemoteAddress());
+				}
+				break;
+			case HANDSHAKE:
+				if (readBuffer.remaining() < HANDSHAKE_LENGTH) {
+					return;
+				}
+				if (readBuffer.getInt() != Protocol.MAGIC || readBuffer.get() != Protocol.VERSION) {
+					throw new IOException("Error: bad handshake from " + channel.getRemoteAddress());
+				}
+				// streams are read whole on this transport
+				int features = skt.acceptFeatures(readBuffer.getInt()) & ~Protocol.FEATURE_STREAM;
+				codec = Protocol.codecFor(features, skt.getRmtItface().getClassLoader());
+				compression = skt.newCompression(features);
+				if ((features & Protocol.FEATURE_CALLBACK) != 0) {
+					peer = new Callbacks.Peer(new Callbacks.Writer() {
+						@Override
+						public void write(Frame frame) throws IOException {
+							synchronized (writeQueue) {
+								if (closed) {
+									throw new IOException("Error: the connection was closed");
+								}
+								send(Protocol.toBuffer(compression.compress(frame)));
+							}
+						}
+					});
+				}
+				ByteBuffer reply = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+				reply.putInt(Protocol.MAGIC).put(Protocol.VERSION).putInt(features).flip();
+				send(reply);
+				state = FRAMED;
+				break;
+			case FRAMED:
+				if (!nextFrame()) {
+					return;
+				}
+				break;
+			case LEGACY:
+				if (!legacyRequest()) {
+					return;
+				}
+				break;
+			default:
+				// nothing more is expected from a one-shot stub
+				readBuffer.position(readBuffer.limit());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Dispatches the next frame if it has arrived completely
+	 * @return <code>true</code> if a frame was consumed
+	 * @throws IOException If the frame length is out of bounds
+	 */
+	private boolean nextFrame() throws IOException {
+		if (readBuffer.remaining() < 4) {
+			return false;
+		}
+		int length = readBuffer.getInt(readBuffer.position());
+		if (length < Protocol.HEADER_LENGTH || length > Protocol.MAX_FRAME_LENGTH) {
+			throw new IOException("Error: bad frame length " + length);
+		}
+		if (readBuffer.remaining() < 4 + length) {
+			if (readBuffer.capacity() < 4 + length) {
+				// make room for the whole frame once the buffer is compacted
+				ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+				bigger.put(readBuffer);
+				bigger.flip();
+				readBuffer = bigger;
+			}
+			return false;
+		}
+		readBuffer.getInt();
+		byte type = readBuffer.get();
+		byte flags = readBuffer.get();
+		long callId = readBuffer.getLong();
+		byte[] payload = new byte[length - Protocol.HEADER_LENGTH];
+		readBuffer.get(payload);
+		Frame frame = compression.decompress(new Frame(type, flags, callId, payload));
+		if (type == Protocol.REQUEST || type == Protocol.BATCH) {
+			dispatch(frame);
+		} else if (type == Protocol.RESPONSE) {
+			if (peer != null) {
+				peer.complete(frame);
+			}
+		} else if (type == Protocol.DEFINE) {
+			// before any request using it is dispatched
+			codec.define(frame.getPayload());
+		}
+		return true;
+	}
+
+	/**
+	 * Passes the bytes of a one-shot request on to the executor thread
+	 * decoding it, starting that thread with the first bytes. Called on the
+	 * selector thread.
+	 * @return <code>true</code> once the request has been decoded
+	 * @throws IOException If the request is too large
+	 */
+	private boolean legacyRequest() throws IOException {
+		if (legacy == null) {
+			legacy = new LegacyInput();
+			inFlight.incrementAndGet();
+			try {
+				listener.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							legacyCall();
+						} finally {
+							if (inFlight.decrementAndGet() == 0 && closeAfterWrite) {
+								listener.requestWrite(NioConnection.this);
+							}
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				inFlight.decrementAndGet();
+				if (!listener.getExecutor().isShutdown()) {
+					throw new IOException("Error: no thread to read the request", e);
+				}
+				// the skeleton is stopping
+				close();
+				return false;
+			}
+		}
+		if (legacy.feed(readBuffer)) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		if (!legacy.isDecoded()) {
+			return false;
+		}
+		state = DONE;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		return true;
+	}
+
+	/**
+	 * Decodes the request of a one-shot stub as it arrives, then runs it if
+	 * the skeleton admits it and answers. Called on an executor thread.
+	 */
+	private void legacyCall() {
+		RMIData request;
+		try {
+			ObjectInputStream iStream = new ObjectInputStream(legacy);
+			request = (RMIData)iStream.readObject();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			if (!closed) {
+				skt.serviceError(new RMIException(e));
+				close();
+			}
+			return;
+		}
+		long received = System.nanoTime();
+		int requestBytes = legacy.decoded();
+		// the selector thread stops reading
+		listener.requestWrite(this);
+		Admission admission = skt.getAdmission();
+		if (!admission.admit()) {
+			legacyReply(new RMIData(null, admission.busy()), null);
+			return;
+		}
+		admission.start();
+		long allocated = Metrics.allocationMark();
+		MethodMetrics metrics = Worker.metrics(skt, request);
+		if (metrics != null) {
+			metrics.requestBytes(requestBytes);
+		}
+		RMIData response;
+		try {
+			response = Worker.runMethod(skt, request, metrics, received);
+		} finally {
+			// released before sending, as for calls run by execute
+			admission.finish();
+		}
+		legacyReply(response, metrics);
+		Metrics.SKELETON.allocatedSince(allocated);
+	}
+
+	/**
+	 * Sends the response of a one-shot stub and closes the connection after
+	 * it
+	 * @param response The response
+	 * @param metrics The metrics of the called method, or <code>null</code>
+	 */
+	private void legacyReply(RMIData response, MethodMetrics metrics) {
+		try {
+			// the stream header went out when the connection was accepted
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oStream = new ObjectOutputStream(bytes);
+			oStream.writeObject(response);
+			oStream.close();
+			byte[] data = bytes.toByteArray();
+			if (metrics != null) {
+				metrics.responseBytes(data.length - Protocol.STREAM_HEADER.length);
+			}
+			closeAfterWrite = true;
+			send(ByteBuffer.wrap(data, Protocol.STREAM_HEADER.length,
+					data.length - Protocol.STREAM_HEADER.length));
+		} catch (IOException e) {
+			skt.serviceError(new RMIException(e));
+			closeAfterWrite = true;
+			listener.requestWrite(this);
+		}
+	}
+
+	/**
+	 * Runs a framed request, or the requests of a batch in order, on the
+	 * executor, or answers at once that the skeleton is busy
+	 * @param frame The request or batch frame
+	 */
+	private void dispatch(final Frame frame) {
+		final long received = System.nanoTime();
+		boolean admitted = execute(new Call() {
+			@Override
+			public void run() {
+				byte[] payload = frame.getType() == Protocol.BATCH
+						? Worker.runBatch(skt, codec, frame.getPayload(), received, peer)
+						: Worker.runFrame(skt, codec, frame.getPayload(), received, peer);
+				release();
+				reply(frame, payload);
+			}
+		});
+		if (!admitted) {
+			reply(frame, Worker.busy(skt, codec, frame));
+		}
+	}
+
+	/**
+	 * Sends the response to a frame
+	 * @param frame The request or batch frame
+	 * @param payload The encoded response, or <code>null</code> if it could
+	 *                not be encoded
+	 */
+	private void reply(Frame frame, byte[] payload) {
+		if (payload == null) {
+			closeAfterWrite = true;
+			listener.requestWrite(this);
+			return;
+		}
+		Frame response = new Frame(Protocol.RESPONSE, (byte)0, frame.getCallId(), payload);
+		try {
+			// queued in the order compressed, which the stub decompresses in
+			synchronized (writeQueue) {
+				send(Protocol.toBuffer(compression.compress(response)));
+			}
+		} catch (IOException e) {
+			// the connection has been closed
+		}
+	}
+
+	/**
+	 * Hands a task to the executor, tracking it as in flight, if the
+	 * skeleton admits another call
+	 * @param task The task
+	 * @return <code>false</code> if the call was refused as busy
+	 */
+	private boolean execute(final Call task) {
+		final Admission admission = skt.getAdmission();
+		if (!admission.admit()) {
+			return false;
+		}
+		inFlight.incrementAndGet();
+		try {
+			listener.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					admission.start();
+					try {
+						task.run();
+					} finally {
+						task.release();
+						if (inFlight.decrementAndGet() == 0 && closeAfterWrite) {
+							listener.requestWrite(NioConnection.this);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			admission.cancel();
+			inFlight.decrementAndGet();
+			if (!listener.getExecutor().isShutdown()) {
+				return false;
+			}
+			// the skeleton is stopping
+			close();
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a buffer to be written by the selector thread. May be called
+	 * from any thread.
+	 * @param buffer The bytes to be written
+	 */
+	void send(ByteBuffer buffer) {
+		writeQueue.add(buffer);
+		listener.requestWrite(this);
+	}
+
+	/**
+	 * Writes queued buffers until the queue drains or the socket is full.
+	 * Called on the selector thread.
+	 */
+	void onWritable() {
+		if (closed) {
+			return;
+		}
+		if (state == LEGACY && legacy.isDecoded()) {
+			state = DONE;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		} else if (state == LEGACY && !legacy.isFull()) {
+			// the decoding thread caught up
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		try {
+			ByteBuffer head;
+			while ((head = writeQueue.peek()) != null) {
+				channel.write(head);
+				if (head.hasRemaining()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				writeQueue.poll();
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closeAfterWrite && inFlight.get() == 0) {
+				close();
+			}
+		} catch (IOException e) {
+			skt.serviceError(new RMIException(e));
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection if it has been silent for the idle timeout with
+	 * no call running, unless the stub passed callbacks over it. A persistent
+	 * stub is told first, so that it can retry any request it sent meanwhile.
+	 * Called on the selector thread.
+	 * @param now The current time in milliseconds
+	 * @param idleTimeout The idle timeout in milliseconds
+	 */
+	void closeIfIdle(long now, int idleTimeout) {
+		if (closed || closeAfterWrite || inFlight.get() > 0 || !writeQueue.isEmpty()
+				|| now - lastActive < idleTimeout || (peer != null && peer.isReferenced())) {
+			return;
+		}
+		if (state == FRAMED) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			closeAfterWrite = true;
+			send(Protocol.toBuffer(new Frame(Protocol.CLOSE, (byte)0, 0, new byte[0])));
+		} else {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the channel
+	 */
+	void close() {
+		closed = true;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		compression.end();
+		if (peer != null) {
+			peer.close();
+		}
+		if (legacy != null) {
+			legacy.end();
+		}
+	}
+
+	/**
+	 * Makes room for more input
+	 * @param capacity The new capacity
+	 * @throws IOException If a message would exceed the largest frame
+	 */
+	private void grow(int capacity) throws IOException {
+		if (capacity > Protocol.MAX_FRAME_LENGTH + 4) {
+			throw new IOException("Error: request too large");
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		readBuffer.flip();
+		bigger.put(readBuffer);
+		readBuffer = bigger;
+	}
+
+	/**
+	 * The bytes of a one-shot request, passed from the selector thread to the
+	 * executor thread decoding it. Reading pauses while
+	 * {@link #LEGACY_BUFFER} bytes are waiting, and resumes once the decoding
+	 * thread has taken half of them.
+	 */
+	private final class LegacyInput extends InputStream {
+		/**
+		 * The bytes waiting, in arrival order
+		 */
+		private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+
+		/**
+		 * The number of bytes waiting
+		 */
+		private int waiting = 0;
+
+		/**
+		 * The number of bytes received so far
+		 */
+		private long total = 0;
+
+		/**
+		 * Whether reading paused because too many bytes are waiting
+		 */
+		private boolean full = false;
+
+		/**
+		 * Set once no more bytes will arrive
+		 */
+		private boolean ended = false;
+
+		/**
+		 * The number of bytes the request took, or -1 until it is decoded
+		 */
+		private volatile int decoded = -1;
+
+		/**
+		 * Takes the bytes remaining in a buffer. Called on the selector
+		 * thread.
+		 * @param buffer The buffer, in read mode
+		 * @return <code>true</code> if reading must pause
+		 * @throws IOException If the request exceeds the largest frame
+		 */
+		synchronized boolean feed(ByteBuffer buffer) throws IOException {
+			int count = buffer.remaining();
+			if (count == 0 || decoded >= 0) {
+				// nothing more is expected once the request is decoded
+				buffer.position(buffer.limit());
+				return false;
+			}
+			total += count;
+			if (total > Protocol.MAX_FRAME_LENGTH) {
+				throw new IOException("Error: request too large");
+			}
+			ByteBuffer chunk = ByteBuffer.allocate(count);
+			chunk.put(buffer).flip();
+			chunks.add(chunk);
+			waiting += count;
+			full = waiting >= LEGACY_BUFFER;
+			notifyAll();
+			return full;
+		}
+
+		/**
+		 * Wakes the decoding thread for good
+		 */
+		synchronized void end() {
+			ended = true;
+			notifyAll();
+		}
+
+		/**
+		 * Return whether reading paused
+		 * @return <code>true</code> until the decoding thread catches up
+		 */
+		synchronized boolean isFull() {
+			return full;
+		}
+
+		/**
+		 * Return whether the request has been decoded
+		 * @return <code>true</code> once it has
+		 */
+		boolean isDecoded() {
+			return decoded >= 0;
+		}
+
+		/**
+		 * Marks the request as decoded
+		 * @return the number of bytes it took
+		 */
+		synchronized int decoded() {
+			decoded = (int)(total - waiting);
+			return decoded;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (chunks.isEmpty()) {
+				if (ended || closed) {
+					return -1;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Error: interrupted while reading the request");
+				}
+			}
+			ByteBuffer chunk = chunks.peek();
+			int count = Math.min(len, chunk.remaining());
+			chunk.get(b, off, count);
+			if (!chunk.hasRemaining()) {
+				chunks.poll();
+			}
+			waiting -= count;
+			if (full && waiting <= LEGACY_BUFFER / 2) {
+				full = false;
+				// the selector thread resumes reading
+				listener.requestWrite(NioConnection.this);
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * A call run on the executor. It releases its admission once it has its
+	 * response, before sending it, since the stub may call again as soon as
+	 * the response arrives.
+	 */
+	private abstract class Call implements Runnable {
+		/**
+		 * Whether the admission has been released
+		 */
+		private boolean released = false;
+
+		/**
+		 * Releases the admission of the call, once
+		 */
+		void release() {
+			if (!released) {
+				released = true;
+				skt.getAdmission().finish();
+			}
+		}
+	}
+}
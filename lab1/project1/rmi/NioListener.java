@@ -0,0 +1,227 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class implements the non-blocking transport of a skeleton.
+ *
+ * <p>
+ * A single thread accepts connections, reads and frames requests and writes
+ * responses for every client, using a <code>Selector</code>. Only decoded
+ * requests are passed to the executor, so the number of connected clients is
+ * not bounded by the number of threads.
+ * @param <T>
+ */
+class NioListener<T> extends Thread {
+	/**
+	 * How often, in milliseconds, connections are checked for idleness
+	 */
+	private static final long IDLE_SCAN_INTERVAL = 1000;
+
+	/**
+	 * The skeleton created for the local object
+	 */
+	private final Skeleton<T> localObj;
+
+	/**
+	 * The listening channel
+	 */
+	private final ServerSocketChannel serverChannel;
+
+	/**
+	 * Whether the listening channel is a TCP socket rather than a Unix
+	 * domain socket
+	 */
+	private final boolean tcp;
+
+	/**
+	 * Multiplexes all channels of this skeleton
+	 */
+	private final Selector selector;
+
+	/**
+	 * Runs the method calls
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Whether the executor was created here and must be shut down here
+	 */
+	private final boolean ownExecutor;
+
+	/**
+	 * Cleared when the skeleton stops. The selector thread never takes the
+	 * skeleton's lock, so that <code>stop</code> can wait for it.
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Connections with responses waiting to be written
+	 */
+	private final Queue<NioConnection<T>> writeRequests =
+			new ConcurrentLinkedQueue<NioConnection<T>>();
+
+	/**
+	 * Constructor for {@code NioListener}
+	 * @param obj The skeleton created for the local object
+	 * @param serverChannel The bound listening channel
+	 * @throws IOException If the selector cannot be opened
+	 */
+	NioListener(Skeleton<T> obj, ServerSocketChannel serverChannel) throws IOException {
+		super("rmi-nio-listener-" + obj.getAddress());
+		this.localObj = obj;
+		this.serverChannel = serverChannel;
+		this.tcp = serverChannel.getLocalAddress() instanceof InetSocketAddress;
+		this.selector = Selector.open();
+		if (obj.getExecutor() != null) {
+			this.executor = obj.getExecutor();
+			this.ownExecutor = false;
+		} else {
+			this.executor = obj.newExecutor();
+			this.ownExecutor = true;
+		}
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Serves all connections until the skeleton stops
+	 */
+	@Override
+	public void run() {
+		long lastScan = System.currentTimeMillis();
+		while (running) {
+			try {
+				selector.select(Math.min(IDLE_SCAN_INTERVAL, localObj.getIdleTimeout()));
+			} catch (IOException e) {
+				if (running && !localObj.listen_error(e)) {
+					localObj.stop();
+				}
+				continue;
+			}
+			NioConnection<T> pending;
+			while ((pending = writeRequests.poll()) != null) {
+				pending.onWritable();
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				@SuppressWarnings("unchecked")
+				NioConnection<T> conn = (NioConnection<T>)key.attachment();
+				if (key.isReadable()) {
+					conn.onReadable();
+				}
+				if (key.isValid() && key.isWritable()) {
+					conn.onWritable();
+				}
+			}
+			long now = System.currentTimeMillis();
+			if (now - lastScan >= Math.min(IDLE_SCAN_INTERVAL, localObj.getIdleTimeout())) {
+				lastScan = now;
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof NioConnection) {
+						((NioConnection<?>)key.attachment()).closeIfIdle(now, localObj.getIdleTimeout());
+					}
+				}
+			}
+		}
+		shutdown();
+	}
+
+	/**
+	 * Accepts every pending connection
+	 */
+	private void accept() {
+		try {
+			SocketChannel channel;
+			while ((channel = serverChannel.accept()) != null) {
+				Metrics.SKELETON.accepted();
+				channel.configureBlocking(false);
+				if (tcp) {
+					channel.socket().setTcpNoDelay(true);
+				}
+				new NioConnection<T>(this, channel);
+			}
+		} catch (IOException e) {
+			// the skeleton closes the channel before clearing running; a stop
+			// from here would then wait for the skeleton's lock
+			if (running && serverChannel.isOpen() && !localObj.listen_error(e)) {
+				localObj.stop();
+			}
+		}
+	}
+
+	/**
+	 * Closes every connection and releases the selector and executor
+	 */
+	private void shutdown() {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof NioConnection) {
+				((NioConnection<?>)key.attachment()).close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// nothing left to release
+		}
+		if (ownExecutor) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Asks the selector thread to write queued responses of a connection
+	 * @param conn The connection
+	 */
+	void requestWrite(NioConnection<T> conn) {
+		writeRequests.add(conn);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops serving and waits until the listening channel has been released.
+	 * A channel registered with a selector is only closed once the selector
+	 * lets go of it, so the port stays bound until this thread finishes.
+	 */
+	void close() {
+		running = false;
+		selector.wakeup();
+		if (Thread.currentThread() != this) {
+			try {
+				this.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	Skeleton<T> getSkeleton() {
+		return localObj;
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	ExecutorService getExecutor() {
+		return executor;
+	}
+}
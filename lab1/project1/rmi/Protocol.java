@@ -0,0 +1,395 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format of persistent (framed) connections between stubs and skeletons.
+ *
+ * <p>
+ * A skeleton always opens a connection by writing the Java serialization
+ * stream header, because one-shot stubs wait for it before they send their
+ * request. A framed stub skips that header and sends the handshake
+ * <code>MAGIC, VERSION, features</code>; the skeleton answers with the same
+ * triple carrying the features it accepted. From then on both sides exchange
+ * frames:
+ *
+ * <pre>
+ *     int  length     number of bytes following this field
+ *     byte type       REQUEST, RESPONSE, CLOSE, DEFINE, BATCH, CHUNK or
+ *                     CREDIT
+ *     byte flags      STREAMED on requests and responses, END and FAILED
+ *                     on chunks, COMPRESSED on any frame, otherwise 0
+ *     long callId     matches a response to its request
+ *     byte[] payload  the encoded request or response
+ * </pre>
+ *
+ * <p>
+ * Payloads are serialized <code>RMIData</code> unless both sides offered
+ * {@link #FEATURE_BINARY_CODEC}, in which case they use {@link BinaryCodec}.
+ * With {@link #FEATURE_BATCH}, a stub may send several requests in one
+ * <code>BATCH</code> frame; the skeleton runs them in order and answers with
+ * one <code>RESPONSE</code> frame holding all their responses.
+ *
+ * <p>
+ * With {@link #FEATURE_STREAM}, the first <code>InputStream</code> argument
+ * of a request, or an <code>InputStream</code> returned by the remote method,
+ * is not encoded with the rest. The frame carries a placeholder and the
+ * {@link #STREAMED} flag, and is followed by <code>CHUNK</code> frames with
+ * the same <code>callId</code> holding the bytes of the stream, the last one
+ * flagged {@link #END}. Chunks of several calls may be interleaved. The
+ * receiver gives chunks back in <code>CREDIT</code> frames with the same
+ * <code>callId</code>, whose payload is the number of chunks as an int; the
+ * sender keeps at most {@link Streams#WINDOW} chunks not given back. Without
+ * the feature, streams are read whole and serialized as byte arrays.
+ *
+ * <p>
+ * With {@link #FEATURE_COMPRESSION}, the payload of any frame may be deflated
+ * and flagged {@link #COMPRESSED}; each side decides by the size of the
+ * payload, as described in {@link Compression}. The length field counts the
+ * compressed bytes.
+ *
+ * <p>
+ * With {@link #FEATURE_CALLBACK}, requests may pass callbacks, and the
+ * skeleton may send <code>REQUEST</code> frames to the stub, which answers
+ * them with <code>RESPONSE</code> frames, as described in {@link Callbacks}.
+ *
+ * <p>
+ * Many requests may be in flight on one connection; responses come back in
+ * completion order and are matched by <code>callId</code>.
+ */
+final class Protocol {
+	/**
+	 * First bytes sent by a framed stub, "RMIX". The first byte differs from
+	 * the first byte of a serialization stream header, which is how the
+	 * skeleton tells framed stubs from one-shot stubs.
+	 */
+	static final int MAGIC = 0x524D4958;
+
+	/**
+	 * Version of the framed protocol
+	 */
+	static final byte VERSION = 1;
+
+	/**
+	 * Frame carrying a method call request
+	 */
+	static final byte REQUEST = 1;
+
+	/**
+	 * Frame carrying the result of a method call
+	 */
+	static final byte RESPONSE = 2;
+
+	/**
+	 * Sent by the skeleton before it closes an idle connection. Requests the
+	 * stub wrote after this point were never read and may be retried.
+	 */
+	static final byte CLOSE = 3;
+
+	/**
+	 * Sent by the stub before the first request naming a method ID, to tell
+	 * the skeleton which method the ID stands for. Only used with the binary
+	 * codec.
+	 */
+	static final byte DEFINE = 4;
+
+	/**
+	 * Frame carrying several requests, to be run in order. Its payload, and
+	 * that of its response, is laid out by {@link #joinBatch}.
+	 */
+	static final byte BATCH = 5;
+
+	/**
+	 * Frame carrying the next bytes of the stream of a call
+	 */
+	static final byte CHUNK = 6;
+
+	/**
+	 * Frame giving chunks of a stream back to its sender
+	 */
+	static final byte CREDIT = 7;
+
+	/**
+	 * Flag of a request or response followed by the chunks of a stream
+	 */
+	static final byte STREAMED = 1;
+
+	/**
+	 * Flag of the last chunk of a stream
+	 */
+	static final byte END = 1;
+
+	/**
+	 * Flag of a last chunk whose payload is the message of the error that
+	 * cut the stream short
+	 */
+	static final byte FAILED = 2;
+
+	/**
+	 * Flag of a frame whose payload is compressed, on any type of frame
+	 */
+	static final byte COMPRESSED = 8;
+
+	/**
+	 * Feature bit: payloads use the binary codec
+	 */
+	static final int FEATURE_BINARY_CODEC = 1;
+
+	/**
+	 * Feature bit: the skeleton accepts <code>BATCH</code> frames
+	 */
+	static final int FEATURE_BATCH = 2;
+
+	/**
+	 * Feature bit: streams are sent as <code>CHUNK</code> frames
+	 */
+	static final int FEATURE_STREAM = 4;
+
+	/**
+	 * Feature bit: payloads may be compressed
+	 */
+	static final int FEATURE_COMPRESSION = 8;
+
+	/**
+	 * Feature bit: the skeleton may call back objects passed by the stub
+	 */
+	static final int FEATURE_CALLBACK = 16;
+
+	/**
+	 * Features this implementation accepts
+	 */
+	static final int SUPPORTED_FEATURES = FEATURE_BINARY_CODEC | FEATURE_BATCH | FEATURE_STREAM
+			| FEATURE_COMPRESSION | FEATURE_CALLBACK;
+
+	/**
+	 * Bytes of a frame following the length field, excluding the payload
+	 */
+	static final int HEADER_LENGTH = 1 + 1 + 8;
+
+	/**
+	 * Upper bound on the length of a frame, to reject corrupted streams
+	 */
+	static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
+	/**
+	 * The four bytes written by <code>ObjectOutputStream</code> when created
+	 */
+	static final byte[] STREAM_HEADER = {
+		(byte)(ObjectStreamConstants.STREAM_MAGIC >>> 8),
+		(byte)ObjectStreamConstants.STREAM_MAGIC,
+		(byte)(ObjectStreamConstants.STREAM_VERSION >>> 8),
+		(byte)ObjectStreamConstants.STREAM_VERSION
+	};
+
+	private Protocol() {
+	}
+
+	/**
+	 * Writes the handshake of either side
+	 * @param out The connection's output
+	 * @param features The offered or accepted feature bits
+	 * @throws IOException
+	 */
+	static void writeHandshake(DataOutputStream out, int features) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(features);
+		out.flush();
+	}
+
+	/**
+	 * Reads the handshake of the other side
+	 * @param in The connection's input
+	 * @param magicRead Whether the caller already consumed the magic number
+	 * @return the feature bits of the other side
+	 * @throws IOException If the handshake is malformed or the version differs
+	 */
+	static int readHandshake(DataInputStream in, boolean magicRead) throws IOException {
+		if (!magicRead && in.readInt() != MAGIC) {
+			throw new IOException("Error: bad handshake from the remote side");
+		}
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Error: unsupported protocol version " + version);
+		}
+		return in.readInt();
+	}
+
+	/**
+	 * Writes a frame and flushes it. Callers sharing the stream must hold its
+	 * lock.
+	 * @param out The connection's output
+	 * @param frame The frame to be written
+	 * @throws IOException
+	 */
+	static void writeFrame(DataOutputStream out, Frame frame) throws IOException {
+		byte[] payload = frame.getPayload();
+		out.writeInt(HEADER_LENGTH + payload.length);
+		out.writeByte(frame.getType());
+		out.writeByte(frame.getFlags());
+		out.writeLong(frame.getCallId());
+		out.write(payload);
+		out.flush();
+	}
+
+	/**
+	 * Lays out a frame, including its length field, in a buffer ready to be
+	 * written to a channel
+	 * @param frame The frame
+	 * @return the buffer, flipped for reading
+	 */
+	static ByteBuffer toBuffer(Frame frame) {
+		byte[] payload = frame.getPayload();
+		ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_LENGTH + payload.length);
+		buffer.putInt(HEADER_LENGTH + payload.length);
+		buffer.put(frame.getType());
+		buffer.put(frame.getFlags());
+		buffer.putLong(frame.getCallId());
+		buffer.put(payload);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads the rest of a frame whose first byte has already been read
+	 * @param in The connection's input
+	 * @param first The first byte of the length field
+	 * @return the frame
+	 * @throws IOException If the frame is malformed or the stream ends
+	 */
+	static Frame readFrame(DataInputStream in, int first) throws IOException {
+		if (first < 0) {
+			throw new EOFException();
+		}
+		int length = (first << 24) | (in.readUnsignedByte() << 16)
+				| (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+		if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Error: bad frame length " + length);
+		}
+		byte type = in.readByte();
+		byte flags = in.readByte();
+		long callId = in.readLong();
+		byte[] payload = new byte[length - HEADER_LENGTH];
+		in.readFully(payload);
+		return new Frame(type, flags, callId, payload);
+	}
+
+	/**
+	 * Reads a frame
+	 * @param in The connection's input
+	 * @return the frame
+	 * @throws IOException If the frame is malformed or the stream ends
+	 */
+	static Frame readFrame(DataInputStream in) throws IOException {
+		return readFrame(in, in.read());
+	}
+
+	/**
+	 * Creates the codec of a connection
+	 * @param features The features accepted in the handshake
+	 * @param loader Resolves parameter types on the skeleton side
+	 * @return the codec
+	 */
+	static Codec codecFor(int features, ClassLoader loader) {
+		if ((features & FEATURE_BINARY_CODEC) != 0) {
+			return new BinaryCodec(loader);
+		}
+		return SerializationCodec.INSTANCE;
+	}
+
+	/**
+	 * Lays out several encoded requests or responses as one payload:
+	 * <code>int count</code>, then each one as <code>int length</code> and
+	 * its bytes
+	 * @param parts The encoded requests or responses
+	 * @return the payload
+	 */
+	static byte[] joinBatch(List<byte[]> parts) {
+		int length = 4;
+		for (byte[] part : parts) {
+			length += 4 + part.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(parts.size());
+		for (byte[] part : parts) {
+			buffer.putInt(part.length);
+			buffer.put(part);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Splits a payload laid out by {@link #joinBatch}
+	 * @param payload The payload
+	 * @return the encoded requests or responses
+	 * @throws IOException If the payload is malformed
+	 */
+	static List<byte[]> splitBatch(byte[] payload) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		try {
+			int count = buffer.getInt();
+			if (count < 0 || count > payload.length / 4) {
+				throw new IOException("Error: bad batch size " + count);
+			}
+			List<byte[]> parts = new ArrayList<byte[]>(count);
+			for (int i = 0; i < count; i++) {
+				int length = buffer.getInt();
+				if (length < 0 || length > buffer.remaining()) {
+					throw new IOException("Error: bad batch entry length " + length);
+				}
+				byte[] part = new byte[length];
+				buffer.get(part);
+				parts.add(part);
+			}
+			return parts;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Error: truncated batch", e);
+		}
+	}
+
+	/**
+	 * Serializes a request or response into a frame payload
+	 * @param data The request or response
+	 * @return the payload
+	 * @throws IOException
+	 */
+	static byte[] encode(RMIData data) throws IOException {
+		Buffers.Output bytes = Buffers.output();
+		try {
+			ObjectOutputStream oStream = new ObjectOutputStream(bytes);
+			oStream.writeObject(data);
+			oStream.close();
+			return bytes.toByteArray();
+		} finally {
+			bytes.release();
+		}
+	}
+
+	/**
+	 * Deserializes a frame payload
+	 * @param payload The payload
+	 * @return the request or response
+	 * @throws IOException If the payload is corrupted or refers to an unknown
+	 *                     class
+	 */
+	static RMIData decode(byte[] payload) throws IOException {
+		Buffers.Input bytes = Buffers.input(payload);
+		try {
+			return (RMIData)new ObjectInputStream(bytes).readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException(e);
+		} finally {
+			bytes.release();
+		}
+	}
+}
@@ -5,6 +5,8 @@
 
 package rmi;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -50,6 +52,29 @@ public class RMIData implements Serializable {
 	 */
 	private Exception exception;
 	
+	/**
+	 * The time the caller allows for a request, in nanoseconds from when it
+	 * was sent, or 0 if it has no deadline
+	 */
+	private long timeout;
+	
+	/**
+	 * The ID under which the called object is exported by its skeleton, 0
+	 * for the object the skeleton was created for
+	 */
+	private int objectId;
+	
+	/**
+	 * The ID of the trace the call belongs to, or 0 if it is not traced
+	 */
+	private long traceId;
+	
+	/**
+	 * The ID of the caller's span for the call, the parent of the span that
+	 * serves it
+	 */
+	private long spanId;
+	
 	/**
 	 * Constructor of {@code RMIData}, for request from client. 
 	 * @param className The name of the class implementing the remote interface 
@@ -140,4 +165,101 @@ public class RMIData implements Serializable {
 	public void setArgsType(Class<?>[] argsType) {
 		this.argsType = argsType;
 	}
+
+	/**
+	 * Return the time the caller allows for the request
+	 * @return the timeout in nanoseconds from when the request was sent, or 0
+	 *         if it has no deadline
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set the time the caller allows for the request
+	 * @param timeout The timeout in nanoseconds from when the request is
+	 *                sent, or 0 for no deadline
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Return the ID of the called object
+	 * @return the object ID, 0 for the object the skeleton was created for
+	 */
+	public int getObjectId() {
+		return objectId;
+	}
+
+	/**
+	 * Set the ID of the called object
+	 * @param objectId The ID under which the object is exported
+	 */
+	public void setObjectId(int objectId) {
+		this.objectId = objectId;
+	}
+
+	/**
+	 * Return the ID of the trace the call belongs to
+	 * @return the trace ID, or 0 if the call is not traced
+	 */
+	public long getTraceId() {
+		return traceId;
+	}
+
+	/**
+	 * Return the ID of the caller's span for the call
+	 * @return the span ID, or 0 if the call is not traced
+	 */
+	public long getSpanId() {
+		return spanId;
+	}
+
+	/**
+	 * Set the trace the call belongs to
+	 * @param traceId The ID of the trace, or 0 if the call is not traced
+	 * @param spanId The ID of the caller's span for the call
+	 */
+	public void setTrace(long traceId, long spanId) {
+		this.traceId = traceId;
+		this.spanId = spanId;
+	}
+
+	/**
+	 * Copies a request with other arguments
+	 * @param args The arguments of the copy
+	 * @return a request for the same method of the same object, with the same
+	 *         timeout and trace
+	 */
+	RMIData withArgs(Object[] args) {
+		RMIData copy = new RMIData(className, methodName, args, argsType, null, null);
+		copy.timeout = timeout;
+		copy.objectId = objectId;
+		copy.traceId = traceId;
+		copy.spanId = spanId;
+		return copy;
+	}
+
+	/**
+	 * Writes the fields, with <code>InputStream</code> arguments and results
+	 * read whole, since streams cannot be serialized themselves
+	 * @param out The destination
+	 * @throws IOException If a stream cannot be read or a field cannot be
+	 *                     serialized
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("className", className);
+		fields.put("methodName", methodName);
+		fields.put("args", Streams.materialize(args));
+		fields.put("argsType", argsType);
+		fields.put("result", Streams.materialize(result));
+		fields.put("exception", exception);
+		fields.put("timeout", timeout);
+		fields.put("objectId", objectId);
+		fields.put("traceId", traceId);
+		fields.put("spanId", spanId);
+		out.writeFields();
+	}
 }
@@ -0,0 +1,161 @@
+package rmi;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stand-in for a stub that records the calls made on it instead of making
+ * them, so that callers can name remote calls with ordinary method calls in a
+ * lambda. Recorded calls return <code>null</code>, <code>false</code> or zero.
+ * @param <T>
+ */
+final class Recorder<T> implements InvocationHandler {
+	/**
+	 * A recorded call
+	 */
+	static final class Invocation {
+		final Method method;
+		final Object[] args;
+
+		Invocation(Method method, Object[] args) {
+			this.method = method;
+			this.args = args;
+		}
+	}
+
+	/**
+	 * The remote interface
+	 */
+	private final Class<T> itface;
+
+	/**
+	 * The ID under which the called object is exported
+	 */
+	private final int objectId;
+
+	/**
+	 * The stand-in handed to lambdas
+	 */
+	private final T proxy;
+
+	/**
+	 * The calls recorded by the current thread, or <code>null</code> when it
+	 * is not recording
+	 */
+	private final ThreadLocal<List<Invocation>> recording = new ThreadLocal<List<Invocation>>();
+
+	/**
+	 * Constructor for {@code Recorder}
+	 * @param c The remote interface
+	 * @param objectId The ID under which the called object is exported
+	 */
+	Recorder(Class<T> c, int objectId) {
+		this.itface = c;
+		this.objectId = objectId;
+		@SuppressWarnings("unchecked")
+		T obj = (T)Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c}, this);
+		this.proxy = obj;
+	}
+
+	/**
+	 * Return the remote interface
+	 * @return the interface
+	 */
+	Class<T> getInterface() {
+		return itface;
+	}
+
+	/**
+	 * Return the ID of the called object
+	 * @return the object ID
+	 */
+	int getObjectId() {
+		return objectId;
+	}
+
+	/**
+	 * Records the single remote call made by a lambda
+	 * @param call The lambda
+	 * @return the call
+	 * @throws IllegalArgumentException If the lambda does not make exactly
+	 *                                  one remote call.
+	 * @throws Exception Anything the lambda itself throws
+	 */
+	Invocation recordCall(RemoteCall<T, ?> call) throws Exception {
+		List<Invocation> calls = start();
+		try {
+			call.call(proxy);
+		} finally {
+			recording.remove();
+		}
+		return single(calls);
+	}
+
+	/**
+	 * Records the single remote call made by a lambda that returns nothing
+	 * @param task The lambda
+	 * @return the call
+	 * @throws IllegalArgumentException If the lambda does not make exactly
+	 *                                  one remote call.
+	 * @throws Exception Anything the lambda itself throws
+	 */
+	Invocation recordTask(RemoteTask<T> task) throws Exception {
+		List<Invocation> calls = start();
+		try {
+			task.run(proxy);
+		} finally {
+			recording.remove();
+		}
+		return single(calls);
+	}
+
+	/**
+	 * Builds the request for a recorded call
+	 * @param invocation The call
+	 * @return the request
+	 */
+	RMIData request(Invocation invocation) {
+		RMIData request = new RMIData(itface.getName(), invocation.method.getName(), invocation.args,
+				invocation.method.getParameterTypes(), null, null);
+		request.setObjectId(objectId);
+		return request;
+	}
+
+	private List<Invocation> start() {
+		if (recording.get() != null) {
+			throw new IllegalStateException("Error: already recording a call");
+		}
+		List<Invocation> calls = new ArrayList<Invocation>(1);
+		recording.set(calls);
+		return calls;
+	}
+
+	private static Invocation single(List<Invocation> calls) {
+		if (calls.size() != 1) {
+			throw new IllegalArgumentException("Error: expected one remote call, got " + calls.size());
+		}
+		return calls.get(0);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		if (method.getDeclaringClass() == Object.class) {
+			throw new IllegalArgumentException("Error: " + method.getName() + " is not a remote method");
+		}
+		List<Invocation> calls = recording.get();
+		if (calls == null) {
+			throw new IllegalStateException("Error: the stand-in was used outside of a call");
+		}
+		calls.add(new Invocation(method, args));
+		Class<?> type = method.getReturnType();
+		if (type.isPrimitive() && type != void.class) {
+			// the zero value of the primitive type
+			return Array.get(Array.newInstance(type, 1), 0);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,18 @@
+package rmi;
+
+/**
+ * A call of one remote method that returns a value, written as a lambda on a
+ * stand-in for the stub, such as <code>s -&gt; s.read(path, 0, 10)</code>.
+ * See {@link AsyncStub}.
+ * @param <T> The remote interface
+ * @param <R> The result type of the method
+ */
+public interface RemoteCall<T, R> {
+	/**
+	 * Makes exactly one call on the given stand-in and returns its result
+	 * @param stub The stand-in, which records the call instead of making it
+	 * @return the result of the call
+	 * @throws Exception Declared so that any remote method may be called
+	 */
+	R call(T stub) throws Exception;
+}
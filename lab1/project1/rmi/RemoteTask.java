@@ -0,0 +1,16 @@
+package rmi;
+
+/**
+ * A call of one remote method whose result is not needed, written as a
+ * lambda on a stand-in for the stub, such as <code>s -&gt; s.delete(path)</code>.
+ * See {@link AsyncStub}.
+ * @param <T> The remote interface
+ */
+public interface RemoteTask<T> {
+	/**
+	 * Makes exactly one call on the given stand-in
+	 * @param stub The stand-in, which records the call instead of making it
+	 * @throws Exception Declared so that any remote method may be called
+	 */
+	void run(T stub) throws Exception;
+}
@@ -0,0 +1,48 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * The original codec: every request and response is a serialized
+ * <code>RMIData</code>. Used when either side does not offer the binary codec.
+ */
+final class SerializationCodec implements Codec {
+	/**
+	 * The codec holds no state, so all connections share this instance
+	 */
+	static final SerializationCodec INSTANCE = new SerializationCodec();
+
+	private SerializationCodec() {
+	}
+
+	@Override
+	public byte[] encodeRequest(RMIData request, Method method) throws IOException {
+		return Protocol.encode(request);
+	}
+
+	@Override
+	public byte[] takeDefinition(byte[] request) {
+		return null;
+	}
+
+	@Override
+	public void define(byte[] payload) throws IOException {
+		throw new IOException("Error: method definitions require the binary codec");
+	}
+
+	@Override
+	public RMIData decodeRequest(byte[] payload) throws IOException {
+		return Protocol.decode(payload);
+	}
+
+	@Override
+	public byte[] encodeResponse(RMIData response) throws IOException {
+		return Protocol.encode(response);
+	}
+
+	@Override
+	public RMIData decodeResponse(byte[] payload) throws IOException {
+		return Protocol.decode(payload);
+	}
+}
@@ -0,0 +1,20 @@
+package rmi;
+
+/** Raised by a stub when the skeleton refused a call because it already had
+    as many calls running or waiting as it admits.
+
+    <p>
+    The skeleton answers such calls at once, without running them, so the
+    call may be retried later or elsewhere.
+ */
+public class ServerBusyException extends RMIException
+{
+    private static final long serialVersionUID = 4203658013916370542L;
+
+    /** Creates a <code>ServerBusyException</code> with the given message
+        string. */
+    public ServerBusyException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,414 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a persistent connection on the skeleton side.
+ *
+ * <p>
+ * This thread only reads frames. Every request is run on the skeleton's thread
+ * pool and its response is written back as soon as it completes, so several
+ * calls from the same connection may execute at the same time. When no frame
+ * arrives for the skeleton's idle timeout and no call is running, the session
+ * tells the stub it is closing and closes the connection. Chunks of streamed
+ * arguments are handed to their streams as they are read; returned streams
+ * are sent in chunks by the thread that ran the call, as the stub gives
+ * credit for them. Responses to callbacks
+ * are handed to the calls waiting for them; a connection over which the stub
+ * passed callbacks is kept open while idle, since the skeleton may still call
+ * them.
+ * @param <T>
+ */
+class Session<T> extends Thread {
+	/**
+	 * The client socket
+	 */
+	private final Socket client;
+
+	/**
+	 * The connection's input, read only by this thread
+	 */
+	private final DataInputStream in;
+
+	/**
+	 * The connection's output, guarded by its own monitor
+	 */
+	private final DataOutputStream out;
+
+	/**
+	 * The skeleton
+	 */
+	private final Skeleton<T> skt;
+
+	/**
+	 * The thread pool that runs the calls
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * The features accepted in the handshake
+	 */
+	private final int features;
+
+	/**
+	 * The codec of this connection
+	 */
+	private final Codec codec;
+
+	/**
+	 * Decompresses requests and compresses responses
+	 */
+	private final Compression compression;
+
+	/**
+	 * The number of calls read but not yet answered
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Streams of arguments whose chunks are still arriving
+	 */
+	private final Map<Long, Streams.Incoming> uploads =
+			new ConcurrentHashMap<Long, Streams.Incoming>();
+
+	/**
+	 * Credit of the returned streams still being sent
+	 */
+	private final Map<Long, Streams.Window> downloads =
+			new ConcurrentHashMap<Long, Streams.Window>();
+
+	/**
+	 * The stub, as seen by the callbacks it passes, or <code>null</code> if
+	 * callbacks were not accepted
+	 */
+	private final Callbacks.Peer peer;
+
+	/**
+	 * Set once the connection is closed
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor for {@code Session}
+	 * @param client The client socket, after the stub's handshake
+	 * @param input The connection's input
+	 * @param skt The skeleton
+	 * @param pool The thread pool that runs the calls
+	 * @param offered The features offered by the stub
+	 * @throws IOException
+	 */
+	Session(Socket client, InputStream input, Skeleton<T> skt, ExecutorService pool,
+			int offered) throws IOException {
+		super("rmi-session-" + client.getRemoteSocketAddress());
+		this.client = client;
+		this.in = new DataInputStream(new BufferedInputStream(input));
+		this.out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+		this.skt = skt;
+		this.pool = pool;
+		this.features = skt.acceptFeatures(offered);
+		this.codec = Protocol.codecFor(features, skt.getRmtItface().getClassLoader());
+		this.compression = skt.newCompression(features);
+		this.peer = (features & Protocol.FEATURE_CALLBACK) == 0 ? null
+				: new Callbacks.Peer(new Callbacks.Writer() {
+			@Override
+			public void write(Frame frame) throws IOException {
+				synchronized (out) {
+					if (closed) {
+						throw new IOException("Error: the connection was closed");
+					}
+					Protocol.writeFrame(out, compression.compress(frame));
+				}
+			}
+		});
+		this.setDaemon(true);
+	}
+
+	/**
+	 * Reads requests until the stub closes the connection, the connection
+	 * goes idle, or the skeleton stops
+	 */
+	@Override
+	public void run() {
+		if (!skt.addSession(this)) {
+			close();
+			return;
+		}
+		try {
+			synchronized (out) {
+				Protocol.writeHandshake(out, features);
+			}
+			client.setSoTimeout(skt.getIdleTimeout());
+			client.setTcpNoDelay(true);
+			while (!closed) {
+				int first;
+				try {
+					first = in.read();
+				} catch (SocketTimeoutException e) {
+					if (inFlight.get() == 0 && (peer == null || !peer.isReferenced())) {
+						goAway();
+						break;
+					}
+					continue;
+				}
+				if (first < 0) {
+					// the stub closed the connection
+					break;
+				}
+				Frame frame = compression.decompress(Protocol.readFrame(in, first));
+				if (frame.getType() == Protocol.CHUNK) {
+					Streams.Incoming stream = uploads.get(frame.getCallId());
+					if (stream != null) {
+						if ((frame.getFlags() & Protocol.END) != 0) {
+							uploads.remove(frame.getCallId());
+						}
+						stream.add(frame.getPayload(), frame.getFlags());
+					}
+					continue;
+				}
+				if (frame.getType() == Protocol.CREDIT) {
+					Streams.Window window = downloads.get(frame.getCallId());
+					if (window != null) {
+						window.grant(Streams.credits(frame.getPayload()));
+					}
+					continue;
+				}
+				if (frame.getType() == Protocol.RESPONSE) {
+					if (peer != null) {
+						peer.complete(frame);
+					}
+					continue;
+				}
+				if (frame.getType() == Protocol.REQUEST && (frame.getFlags() & Protocol.STREAMED) != 0) {
+					Streams.Incoming stream = new Streams.Incoming(credits(frame.getCallId()));
+					uploads.put(frame.getCallId(), stream);
+					frame = new Frame(frame.getType(), frame.getFlags(), frame.getCallId(),
+							frame.getPayload(), stream);
+				}
+				if (frame.getType() == Protocol.REQUEST || frame.getType() == Protocol.BATCH) {
+					dispatch(frame);
+				} else if (frame.getType() == Protocol.DEFINE) {
+					// before any request using it is dispatched
+					codec.define(frame.getPayload());
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				skt.serviceError(new RMIException(e));
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Runs a request, or the requests of a batch in order, on the thread pool,
+	 * or answers at once that the skeleton is busy
+	 * @param frame The request or batch frame
+	 */
+	private void dispatch(final Frame frame) {
+		final long received = System.nanoTime();
+		final Admission admission = skt.getAdmission();
+		if (!admission.admit()) {
+			discard(frame);
+			reply(frame.getCallId(), Worker.busy(skt, codec, frame));
+			return;
+		}
+		inFlight.incrementAndGet();
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					admission.start();
+					try {
+						Frame response;
+						try {
+							response = frame.getType() == Protocol.BATCH
+									? new Frame(Protocol.RESPONSE, (byte)0, frame.getCallId(),
+											Worker.runBatch(skt, codec, frame.getPayload(), received,
+													peer))
+									: Worker.respond(skt, codec, frame, received,
+											(features & Protocol.FEATURE_STREAM) != 0, peer);
+						} finally {
+							// the stub may call again as soon as it has the response
+							admission.finish();
+						}
+						if (response == null) {
+							reply(frame.getCallId(), null);
+						} else {
+							reply(response);
+						}
+						if (response != null && response.getStream() != null) {
+							send(frame.getCallId(), response.getStream());
+						}
+					} finally {
+						discard(frame);
+						inFlight.decrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			admission.cancel();
+			inFlight.decrementAndGet();
+			discard(frame);
+			if (pool.isShutdown()) {
+				// the skeleton is stopping
+				close();
+			} else {
+				reply(frame.getCallId(), Worker.busy(skt, codec, frame));
+			}
+		}
+	}
+
+	/**
+	 * Writes a response, unless the connection has been closed meanwhile
+	 * @param callId The ID of the answered call
+	 * @param payload The encoded response, or <code>null</code> if it could
+	 *                not be encoded
+	 */
+	private void reply(long callId, byte[] payload) {
+		reply(new Frame(Protocol.RESPONSE, (byte)0, callId, payload));
+	}
+
+	/**
+	 * Writes a response frame, unless the connection has been closed
+	 * meanwhile
+	 * @param response The response, whose payload is <code>null</code> if it
+	 *                 could not be encoded
+	 */
+	private void reply(Frame response) {
+		if (response.getPayload() == null) {
+			close();
+			return;
+		}
+		try {
+			synchronized (out) {
+				if (!closed) {
+					Protocol.writeFrame(out, compression.compress(response));
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				skt.serviceError(new RMIException(e));
+			}
+			close();
+		}
+	}
+
+	/**
+	 * Tells the stub that the idle connection is being closed
+	 * @throws IOException
+	 */
+	private void goAway() throws IOException {
+		synchronized (out) {
+			Protocol.writeFrame(out, new Frame(Protocol.CLOSE, (byte)0, 0, new byte[0]));
+			closed = true;
+		}
+	}
+
+	/**
+	 * Drops the rest of the streamed argument of a call, if the method did not
+	 * read it all or never ran
+	 * @param frame The request frame
+	 */
+	private void discard(Frame frame) {
+		if (frame.getStream() != null) {
+			try {
+				frame.getStream().close();
+			} catch (IOException e) {
+				// an incoming stream does not fail to close
+			}
+		}
+	}
+
+	/**
+	 * Sends a returned stream in chunks after its response
+	 * @param callId The ID of the call
+	 * @param stream The stream
+	 */
+	private void send(final long callId, InputStream stream) {
+		Streams.Window window = new Streams.Window();
+		downloads.put(callId, window);
+		if (closed) {
+			// close() may have missed the window
+			window.fail(new IOException("Error: the connection was closed"));
+		}
+		try {
+			Streams.pump(stream, window, new Streams.Sink() {
+				@Override
+				public void chunk(byte flags, byte[] data) throws IOException {
+					synchronized (out) {
+						if (closed) {
+							throw new IOException("Error: the connection was closed");
+						}
+						Protocol.writeFrame(out, compression.compress(
+								new Frame(Protocol.CHUNK, flags, callId, data)));
+					}
+				}
+			});
+		} catch (IOException e) {
+			if (!closed) {
+				skt.serviceError(new RMIException(e));
+			}
+			close();
+		} finally {
+			downloads.remove(callId);
+		}
+	}
+
+	/**
+	 * Gives the chunks of a streamed argument back to the stub
+	 * @param callId The ID of the call
+	 * @return the credits of the argument's stream
+	 */
+	private Streams.Credits credits(final long callId) {
+		return new Streams.Credits() {
+			@Override
+			public void grant(int chunks) throws IOException {
+				synchronized (out) {
+					if (closed) {
+						throw new IOException("Error: the connection was closed");
+					}
+					Protocol.writeFrame(out, new Frame(Protocol.CREDIT, (byte)0, callId,
+							Streams.credit(chunks)));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Closes the connection
+	 */
+	void close() {
+		closed = true;
+		skt.removeSession(this);
+		try {
+			client.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		compression.end();
+		if (peer != null) {
+			peer.close();
+		}
+		for (Long callId : uploads.keySet()) {
+			Streams.Incoming stream = uploads.remove(callId);
+			if (stream != null) {
+				stream.fail(new IOException("Error: the connection was closed"));
+			}
+		}
+		for (Streams.Window window : downloads.values()) {
+			window.fail(new IOException("Error: the connection was closed"));
+		}
+	}
+}
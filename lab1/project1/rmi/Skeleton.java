@@ -6,6 +6,12 @@ package rmi;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** RMI skeleton
 
@@ -28,6 +34,33 @@ import java.net.*;
     The skeleton's response to these exceptions can be customized by deriving
     a class from <code>Skeleton</code> and overriding <code>listen_error</code>
     or <code>service_error</code>.
+
+    <p>
+    By default every connection is served by a thread of the skeleton's pool
+    that blocks on it. A skeleton switched to non-blocking mode before it is
+    started serves all connections from one selector thread instead, and only
+    runs decoded requests on the pool; this lets it hold many idle clients.
+    Either way, the pool can be replaced by an executor supplied by the caller,
+    or by one thread per call. Calls that block for a long time, such as waits
+    on a contended lock, then no longer hold back the calls of other clients.
+
+    <p>
+    The number of calls a skeleton holds at once can be limited, in total and
+    among those still waiting for a thread. Calls over either limit are not
+    run; their stubs raise a <code>ServerBusyException</code> at once.
+
+    <p>
+    Further remote objects, of any remote interface, can be exported through
+    the same skeleton with <code>export</code>. Each gets an object ID, which
+    stubs created for it carry along with the skeleton's address. The objects
+    share the skeleton's port, threads and connections; the object the
+    skeleton was created for has ID 0.
+
+    <p>
+    A skeleton may also listen on a Unix domain socket, for stubs on the same
+    host. Persistent stubs created for its address connect to that socket in
+    place of TCP loopback without being told; the socket is served like a
+    non-blocking skeleton's connections, whatever the mode of the skeleton.
 */
 public class Skeleton<T>
 {
@@ -46,6 +79,26 @@ public class Skeleton<T>
 	 */
 	public ServerSocket    serverSocket;
 	
+	/**
+	 * The server's channel, in non-blocking mode
+	 */
+	private ServerSocketChannel serverChannel;
+	
+	/**
+	 * The selector thread, in non-blocking mode
+	 */
+	private NioListener<T> nioServer;
+	
+	/**
+	 * The Unix domain socket listened on besides TCP, if any
+	 */
+	private ServerSocketChannel localChannel;
+	
+	/**
+	 * The selector thread serving the Unix domain socket
+	 */
+	private NioListener<T> localServer;
+	
 	/**
 	 * an IP Socket Address (IP address + port number)  
 	*/
@@ -62,12 +115,79 @@ public class Skeleton<T>
 	 * calls are forwarded by the skeleton to this object.
 	 */
 	private T rmtObject;
+	
+	/**
+	 * Dispatch table of the remote interface, rebuilt whenever the interface
+	 * or the object changes
+	 */
+	private volatile Dispatcher<T> dispatcher;
+	
+	/**
+	 * Dispatch tables of the objects exported besides the skeleton's own, by
+	 * object ID
+	 */
+	private final ConcurrentHashMap<Integer, Dispatcher<?>> exported =
+			new ConcurrentHashMap<Integer, Dispatcher<?>>();
+	
+	/**
+	 * The ID of the next exported object
+	 */
+	private final AtomicInteger nextObjectId = new AtomicInteger(1);
 		
 	/**
 	 * The max number of threads in the thread pool
 	 */
 	private int poolSize = 10;
 	
+	/**
+	 * The maximum length of the queue of incoming connections
+	 */
+	private int backlog = 50;
+	
+	/**
+	 * Whether the skeleton serves connections from a selector thread
+	 */
+	private boolean nonBlocking = false;
+	
+	/**
+	 * Whether the skeleton also listens on a Unix domain socket
+	 */
+	private boolean localSocket = false;
+	
+	/**
+	 * Executor supplied by the user to run method calls, or <code>null</code>
+	 * for a fixed thread pool of <code>poolSize</code> threads
+	 */
+	private ExecutorService executor = null;
+	
+	/**
+	 * Whether each method call runs on a thread of its own rather than on
+	 * the fixed thread pool
+	 */
+	private boolean threadPerCall = false;
+	
+	/**
+	 * How long, in milliseconds, a persistent connection may stay silent
+	 * before the skeleton closes it
+	 */
+	private int idleTimeout = 60000;
+	
+	/**
+	 * Limits on the calls held at once
+	 */
+	private final Admission admission = new Admission();
+	
+	/**
+	 * The smallest response payload compressed on connections that accepted
+	 * compression, or 0 to refuse compression
+	 */
+	private volatile int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+	
+	/**
+	 * Persistent connections currently being served
+	 */
+	private Set<Session<T>> sessions = ConcurrentHashMap.newKeySet();
+	
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
         called. Equivalent to using <code>Skeleton(null)</code>.
@@ -217,21 +337,64 @@ public class Skeleton<T>
     	if (!this.getIsRunning()) {
 	    	this.setIsRunning(true);
     		try {
+    			if (this.nonBlocking) {
+    				serverChannel = ServerSocketChannel.open();
+    				serverChannel.bind(myAddress == null ? new InetSocketAddress(0) : myAddress, backlog);
+    				if (this.myAddress == null) {
+    					myAddress = (InetSocketAddress)serverChannel.getLocalAddress();
+    				}
+    			}
     			// open server socket
-    			if (this.myAddress == null) {
+    			else if (this.myAddress == null) {
     				//use port 0 to choose a random port number from 1024
-    				serverSocket = new ServerSocket(0, poolSize);
+    				serverSocket = new ServerSocket(0, backlog);
     				myAddress = (InetSocketAddress)serverSocket.getLocalSocketAddress();
     			}
     			else {
-    				serverSocket = new ServerSocket(myAddress.getPort(), poolSize, myAddress.getAddress());
-    			}    			
-        		myServer = new Listener<T>(this); 
-    	    	myServer.start();
+    				serverSocket = new ServerSocket(myAddress.getPort(), backlog, myAddress.getAddress());
+    			}
+    			if (this.localSocket) {
+    				// named after the address, whose port is only known once bound
+    				localChannel = LocalSockets.bind(myAddress, backlog);
+    				localServer = new NioListener<T>(this, localChannel);
+    			}
+    			if (this.nonBlocking) {
+    				nioServer = new NioListener<T>(this, serverChannel);
+    				nioServer.start();
+    			}
+    			else {
+    				myServer = new Listener<T>(this); 
+    				myServer.start();
+    			}
+    			if (localServer != null) {
+    				localServer.start();
+    			}
     		} catch (IOException e) {
     			// TODO Auto-generated catch block
     			// System.out.println("======Skeleton: Fail to open a server socket!==========");
     			// e.printStackTrace();
+    			this.setIsRunning(false);
+    			if (serverChannel != null) {
+    				try {
+    					serverChannel.close();
+    				} catch (IOException e1) {
+    					// nothing bound
+    				}
+    				serverChannel = null;
+    			}
+    			if (serverSocket != null) {
+    				try {
+    					serverSocket.close();
+    				} catch (IOException e1) {
+    					// nothing bound
+    				}
+    				serverSocket = null;
+    			}
+    			if (localChannel != null) {
+    				LocalSockets.unbind(localChannel, myAddress);
+    				localChannel = null;
+    				localServer = null;
+    			}
     			throw new RMIException(e);
     		}    		
     	}
@@ -255,6 +418,7 @@ public class Skeleton<T>
     		return ;
     	}
     	// System.out.println("Skeleton: The server is closing...");
+    	Listener<T> listener = myServer;
     	myServer = null;
     	this.isRunning = false;
 
@@ -268,6 +432,34 @@ public class Skeleton<T>
 			}
     	}
     	serverSocket = null;
+    	// a socket closed under a blocked accept is only released once the
+    	// listening thread returns from it
+    	if (listener != null && Thread.currentThread() != listener) {
+    		try {
+    			listener.join();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    	if (serverChannel != null) {
+    		try {
+    			serverChannel.close();
+    		} catch (IOException e) {
+    			// already closed
+    		}
+    		serverChannel = null;
+    		nioServer.close();
+    		nioServer = null;
+    	}
+    	if (localChannel != null) {
+    		LocalSockets.unbind(localChannel, myAddress);
+    		localChannel = null;
+    		localServer.close();
+    		localServer = null;
+    	}
+    	for (Session<T> session : sessions) {
+    		session.close();
+    	}
     	// stop normally
     	stopped(null);
     	// System.out.println("Skeleton: The server is stopped!");
@@ -303,6 +495,7 @@ public class Skeleton<T>
 	 */
 	public void setRmtObject(T rmtObject) {
 		this.rmtObject = rmtObject;
+		rebuildDispatcher();
 	}
 
 	/**
@@ -319,8 +512,84 @@ public class Skeleton<T>
 	 */
 	public void setRmtItface(Class<T> rmtItface) {
 		this.rmtItface = rmtItface;
+		rebuildDispatcher();
+	}
+
+	/**
+	 * Rebuild the dispatch table once both the interface and the object are
+	 * known
+	 */
+	private void rebuildDispatcher() {
+		if (rmtItface != null && rmtObject != null && rmtItface.isInstance(rmtObject)) {
+			dispatcher = new Dispatcher<T>(rmtItface, rmtObject);
+		} else {
+			dispatcher = null;
+		}
 	}
 
+	/**
+	 * Return the dispatch table of the remote interface
+	 * @return the dispatch table
+	 */
+	Dispatcher<T> getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Return the dispatch table of an object served by the skeleton
+	 * @param objectId The object ID, 0 for the skeleton's own object
+	 * @return the dispatch table, or <code>null</code> if no object is
+	 *         exported under that ID
+	 */
+	Dispatcher<?> getDispatcher(int objectId) {
+		return objectId == 0 ? dispatcher : exported.get(objectId);
+	}
+
+    /** Exports another remote object through this skeleton.
+
+        <p>
+        Calls to the object are received on the skeleton's port and run by its
+        threads, whether or not the skeleton has been started yet. Stubs for
+        the object are created with the object ID returned, using
+        <code>Stub.create(Class, Skeleton, int)</code> or
+        <code>Stub.create(Class, InetSocketAddress, int, StubConfig)</code>.
+
+        @param c An object representing the class of the interface of the
+                 object.
+        @param server An object implementing said interface.
+        @return The object ID, which is never 0.
+        @throws Error If <code>c</code> does not represent a remote interface -
+                      an interface whose methods are all marked as throwing
+                      <code>RMIException</code>.
+        @throws NullPointerException If either of <code>c</code> or
+                                     <code>server</code> is <code>null</code>.
+     */
+    public <U> int export(Class<U> c, U server)
+    {
+        if (c == null || server == null) {
+            throw new NullPointerException("Error : argument is null!");
+        }
+        if (!IsRemoteInterface.check(c)) {
+            throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
+        }
+        Dispatcher<U> table = new Dispatcher<U>(c, server);
+        int objectId = nextObjectId.getAndIncrement();
+        exported.put(objectId, table);
+        return objectId;
+    }
+
+    /** Stops serving an object exported through this skeleton. Calls to it
+        that are already running complete; later calls raise an
+        <code>RMIException</code>.
+
+        @param objectId The ID returned by <code>export</code>.
+        @return <code>true</code> if an object was exported under that ID.
+     */
+    public boolean unexport(int objectId)
+    {
+        return objectId != 0 && exported.remove(objectId) != null;
+    }
+
 	/**
 	 * Return The max number of threads in the thread pool
 	 * @return poolSize
@@ -329,6 +598,267 @@ public class Skeleton<T>
 		return poolSize;
 	}
 	
+	/**
+	 * Return the maximum length of the queue of incoming connections
+	 * @return backlog
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+	
+	/**
+	 * Set the maximum length of the queue of incoming connections. Takes
+	 * effect the next time the server is started.
+	 * @param backlog
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+	
+	/**
+	 * Return whether the server serves connections from a selector thread
+	 * @return nonBlocking
+	 */
+	public boolean isNonBlocking() {
+		return nonBlocking;
+	}
+	
+	/**
+	 * Set whether the server serves connections from a selector thread rather
+	 * than from one blocked thread per connection. Takes effect the next time
+	 * the server is started.
+	 * @param nonBlocking
+	 */
+	public void setNonBlocking(boolean nonBlocking) {
+		this.nonBlocking = nonBlocking;
+	}
+	
+	/**
+	 * Return whether the server also listens on a Unix domain socket
+	 * @return localSocket
+	 */
+	public boolean isLocalSocket() {
+		return localSocket;
+	}
+	
+	/**
+	 * Set whether the server also listens on a Unix domain socket, named
+	 * after its address in a directory of the temporary directory private to
+	 * the user, through which persistent stubs of the same user on the same
+	 * host reach it if they are configured to. Takes effect the next time
+	 * the server is started; starting fails if another live skeleton holds
+	 * the socket, or if the directory is not private.
+	 * @param localSocket
+	 */
+	public void setLocalSocket(boolean localSocket) {
+		this.localSocket = localSocket;
+	}
+	
+	/**
+	 * Return the executor supplied by the user to run method calls
+	 * @return the executor, or <code>null</code> if the server uses its own
+	 *         thread pool
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Set the executor that runs method calls, or <code>null</code> to use a
+	 * fixed pool of <code>getPoolSize()</code> threads owned by the server.
+	 * The server never shuts down an executor supplied by the user. Takes
+	 * effect the next time the server is started.
+	 * @param executor
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Return whether each method call runs on a thread of its own
+	 * @return threadPerCall
+	 */
+	public boolean isThreadPerCall() {
+		return threadPerCall;
+	}
+	
+	/**
+	 * Set whether each method call runs on a thread of its own instead of on
+	 * the fixed pool. The threads are platform threads, kept for a while
+	 * once idle and reused; their number is not bounded by the skeleton
+	 * unless <code>maxInFlight</code> is set. Ignored when an executor is
+	 * supplied. Takes effect the next time the server is started.
+	 * @param threadPerCall
+	 */
+	public void setThreadPerCall(boolean threadPerCall) {
+		this.threadPerCall = threadPerCall;
+	}
+	
+	/**
+	 * Reports an exception in a service thread to <code>service_error</code>,
+	 * counting it in the skeleton metrics
+	 * @param exception The exception that occurred
+	 */
+	void serviceError(RMIException exception) {
+		Metrics.SKELETON.error();
+		service_error(exception);
+	}
+	
+	/**
+	 * Create the executor owned by the server when the user supplied none
+	 * @return a thread-per-call executor or a fixed pool of
+	 *         <code>poolSize</code> threads
+	 */
+	ExecutorService newExecutor() {
+		if (!threadPerCall) {
+			return Executors.newFixedThreadPool(poolSize);
+		}
+		return Executors.newCachedThreadPool();
+	}
+	
+	/**
+	 * Return how long, in milliseconds, a persistent connection may stay
+	 * silent before the skeleton closes it
+	 * @return idleTimeout
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	/**
+	 * Set how long, in milliseconds, a persistent connection may stay silent
+	 * before the skeleton closes it. Takes effect for connections accepted
+	 * afterwards.
+	 * @param idleTimeout
+	 * @throws IllegalArgumentException If <code>idleTimeout</code> is not
+	 *                                  positive.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		if (idleTimeout <= 0) {
+			throw new IllegalArgumentException("Error: idleTimeout must be positive");
+		}
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Return the most calls the skeleton holds at once, running or waiting
+	 * for a thread
+	 * @return maxInFlight, or 0 if there is no limit
+	 */
+	public int getMaxInFlight() {
+		return admission.getMaxInFlight();
+	}
+	
+	/**
+	 * Set the most calls the skeleton holds at once, running or waiting for
+	 * a thread. Calls beyond it are refused as busy. Takes effect at once.
+	 * @param maxInFlight The limit, or 0 for no limit
+	 * @throws IllegalArgumentException If <code>maxInFlight</code> is
+	 *                                  negative.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 0) {
+			throw new IllegalArgumentException("Error: maxInFlight must not be negative");
+		}
+		admission.setMaxInFlight(maxInFlight);
+	}
+	
+	/**
+	 * Return the most calls that may wait for a thread
+	 * @return maxQueued, or 0 if there is no limit
+	 */
+	public int getMaxQueued() {
+		return admission.getMaxQueued();
+	}
+	
+	/**
+	 * Set the most calls that may wait for a thread. Calls beyond it are
+	 * refused as busy. Takes effect at once.
+	 * @param maxQueued The limit, or 0 for no limit
+	 * @throws IllegalArgumentException If <code>maxQueued</code> is
+	 *                                  negative.
+	 */
+	public void setMaxQueued(int maxQueued) {
+		if (maxQueued < 0) {
+			throw new IllegalArgumentException("Error: maxQueued must not be negative");
+		}
+		admission.setMaxQueued(maxQueued);
+	}
+	
+	Admission getAdmission() {
+		return admission;
+	}
+	
+	/**
+	 * Return the smallest response payload compressed for stubs that offer
+	 * compression
+	 * @return compressionThreshold, or 0 if compression is refused
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	/**
+	 * Set the smallest response payload, in bytes, compressed for stubs that
+	 * offer compression, or 0 to refuse compression. Takes effect for
+	 * connections accepted afterwards.
+	 * @param compressionThreshold The threshold, or 0
+	 * @throws IllegalArgumentException If <code>compressionThreshold</code>
+	 *                                  is negative.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0) {
+			throw new IllegalArgumentException("Error: compressionThreshold must not be negative");
+		}
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	/**
+	 * Chooses the features of a persistent connection
+	 * @param offered The features offered by the stub
+	 * @return the features accepted
+	 */
+	int acceptFeatures(int offered) {
+		int features = offered & Protocol.SUPPORTED_FEATURES;
+		if (compressionThreshold == 0) {
+			features &= ~Protocol.FEATURE_COMPRESSION;
+		}
+		return features;
+	}
+	
+	/**
+	 * Creates the compression state of a persistent connection
+	 * @param features The features accepted
+	 * @return the compression state, compressing nothing unless compression
+	 *         was accepted
+	 */
+	Compression newCompression(int features) {
+		return new Compression((features & Protocol.FEATURE_COMPRESSION) != 0
+				? compressionThreshold : 0, Metrics.SKELETON);
+	}
+	
+	/**
+	 * Registers a persistent connection, so that it is closed when the server
+	 * stops
+	 * @param session The connection
+	 * @return <code>false</code> if the server is no longer running
+	 */
+	synchronized boolean addSession(Session<T> session) {
+		if (!this.isRunning) {
+			return false;
+		}
+		sessions.add(session);
+		return true;
+	}
+	
+	/**
+	 * Forgets a closed persistent connection
+	 * @param session The connection
+	 */
+	void removeSession(Session<T> session) {
+		sessions.remove(session);
+	}
+	
 	/**
 	 * Return the indicator whether the server is running 
 	 * @return isRunning
@@ -0,0 +1,350 @@
+package rmi;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed step of a traced operation: a call made by a stub, a call run by
+ * a skeleton, or a step the application marks itself.
+ *
+ * <p>
+ * Spans are recorded only once a {@link SpanSink} is set with
+ * {@link #setSink}. A stub call made while a span is open on the calling
+ * thread becomes its child, and the IDs of the trace and of the stub's span
+ * travel with the request. The skeleton opens a span for the call as a child
+ * of the stub's, and keeps it open on the thread running the method, so that
+ * calls the method makes in turn belong to the same trace:
+ *
+ * <pre>
+ *     Span.setSink(new SpanSink.RingBuffer(4096));
+ *     try (Span span = Span.start("put")) {
+ *         naming.createFile(path);
+ *         storage.write(path, 0, data);
+ *     }
+ * </pre>
+ *
+ * A process without a sink still passes on the trace of the requests it
+ * serves, so that the spans of processes with one stay linked.
+ */
+public final class Span implements AutoCloseable {
+	/**
+	 * What a span measures
+	 */
+	public enum Kind {
+		/** A call made by a stub, until its response arrived */
+		CLIENT,
+		/** A call run by a skeleton, from when its request was read */
+		SERVER,
+		/** A step opened by the application with {@link Span#start} */
+		LOCAL
+	}
+
+	/**
+	 * Where finished spans go, or <code>null</code> if they are not recorded
+	 */
+	private static volatile SpanSink sink;
+
+	/**
+	 * The innermost open span of each thread
+	 */
+	private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+
+	/**
+	 * The ID of the trace, never 0
+	 */
+	private final long traceId;
+
+	/**
+	 * The ID of the span, never 0
+	 */
+	private final long spanId;
+
+	/**
+	 * The ID of the parent span, or 0 for the first span of a trace
+	 */
+	private final long parentId;
+
+	/**
+	 * What the span measures
+	 */
+	private final Kind kind;
+
+	/**
+	 * The name of the called method or of the step
+	 */
+	private final String name;
+
+	/**
+	 * When the span started, from <code>System.nanoTime</code>
+	 */
+	private final long startNanos;
+
+	/**
+	 * When the span started, in microseconds since the epoch
+	 */
+	private final long startMicros;
+
+	/**
+	 * How long the span lasted in nanoseconds, or -1 while it is open
+	 */
+	private volatile long duration = -1;
+
+	/**
+	 * The class of the exception the step ended with, or <code>null</code>
+	 */
+	private volatile String error;
+
+	/**
+	 * The span that was current when this one was entered
+	 */
+	private Span previous;
+
+	/**
+	 * Whether the span was made the current thread's
+	 */
+	private boolean entered;
+
+	private Span(long traceId, long parentId, Kind kind, String name, long startNanos) {
+		this.traceId = traceId;
+		this.spanId = newId();
+		this.parentId = parentId;
+		this.kind = kind;
+		this.name = name;
+		this.startNanos = startNanos;
+		this.startMicros = System.currentTimeMillis() * 1000
+				- TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Return a random ID, never 0
+	 */
+	private static long newId() {
+		long id;
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * Sets where finished spans go
+	 * @param sink The sink, or <code>null</code> to stop recording spans
+	 */
+	public static void setSink(SpanSink sink) {
+		Span.sink = sink;
+	}
+
+	/**
+	 * Return where finished spans go
+	 * @return the sink, or <code>null</code> if spans are not recorded
+	 */
+	public static SpanSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * Opens a span for a step of the application, as a child of the current
+	 * thread's span or as the first span of a new trace
+	 * @param name The name of the step
+	 * @return the span, to be closed when the step is done
+	 * @throws NullPointerException If <code>name</code> is <code>null</code>.
+	 */
+	public static Span start(String name) {
+		if (name == null) {
+			throw new NullPointerException("Error: name must not be null");
+		}
+		Span parent = current.get();
+		return (parent == null ? new Span(newId(), 0, Kind.LOCAL, name, System.nanoTime())
+				: new Span(parent.traceId, parent.spanId, Kind.LOCAL, name, System.nanoTime())).enter();
+	}
+
+	/**
+	 * Return the innermost open span of the current thread
+	 * @return the span, or <code>null</code> if there is none
+	 */
+	public static Span current() {
+		return current.get();
+	}
+
+	/**
+	 * Begins the span of a call made by a stub, as a child of the current
+	 * thread's span. The span is not entered.
+	 * @param name The name of the called method
+	 * @return the span, or <code>null</code> if the call is not traced
+	 */
+	static Span client(String name) {
+		Span parent = current.get();
+		if (parent != null) {
+			return new Span(parent.traceId, parent.spanId, Kind.CLIENT, name, System.nanoTime());
+		}
+		return sink == null ? null : new Span(newId(), 0, Kind.CLIENT, name, System.nanoTime());
+	}
+
+	/**
+	 * Opens the span of a call run by a skeleton, as a child of the span the
+	 * request carries, and enters it
+	 * @param request The request
+	 * @param received When the request was read, from
+	 *                 <code>System.nanoTime</code>
+	 * @return the span, or <code>null</code> if the call is not traced
+	 */
+	static Span serve(RMIData request, long received) {
+		String name = request.getClassName() + "." + request.getMethodName();
+		if (request.getTraceId() != 0) {
+			return new Span(request.getTraceId(), request.getSpanId(), Kind.SERVER, name, received).enter();
+		}
+		return sink == null ? null : new Span(newId(), 0, Kind.SERVER, name, received).enter();
+	}
+
+	/**
+	 * Makes the span the current thread's, until it is closed
+	 * @return the span
+	 */
+	Span enter() {
+		previous = current.get();
+		entered = true;
+		current.set(this);
+		return this;
+	}
+
+	/**
+	 * Records the trace of a request about to be sent, with this span as the
+	 * parent of the span that serves it
+	 * @param request The request
+	 */
+	void stamp(RMIData request) {
+		request.setTrace(traceId, spanId);
+	}
+
+	/**
+	 * Records the trace of the current thread's span in a request, if a span
+	 * is open
+	 * @param request The request about to be sent
+	 */
+	static void propagate(RMIData request) {
+		Span span = current.get();
+		if (span != null) {
+			span.stamp(request);
+		}
+	}
+
+	/**
+	 * Marks the step as ended by an exception
+	 * @param e The exception, or <code>null</code> if the step succeeded
+	 */
+	void failed(Throwable e) {
+		if (e != null) {
+			error = e.getClass().getName();
+		}
+	}
+
+	/**
+	 * Return the ID of the trace
+	 * @return the trace ID, never 0
+	 */
+	public long getTraceId() {
+		return traceId;
+	}
+
+	/**
+	 * Return the ID of the span
+	 * @return the span ID, never 0
+	 */
+	public long getSpanId() {
+		return spanId;
+	}
+
+	/**
+	 * Return the ID of the parent span
+	 * @return the parent's span ID, or 0 for the first span of a trace
+	 */
+	public long getParentId() {
+		return parentId;
+	}
+
+	/**
+	 * Return what the span measures
+	 * @return the kind of span
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Return the name of the span
+	 * @return the remote interface and method of a call, or the name of a
+	 *         step
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return when the span started
+	 * @return the start in microseconds since the epoch
+	 */
+	public long getStartMicros() {
+		return startMicros;
+	}
+
+	/**
+	 * Return how long the span lasted
+	 * @param unit The unit of the result
+	 * @return the duration, or -1 while the span is open
+	 */
+	public long getDuration(TimeUnit unit) {
+		long nanos = duration;
+		return nanos < 0 ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Return the exception the step ended with
+	 * @return the name of the exception's class, or <code>null</code> if the
+	 *         step succeeded
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Closes the span, making the one it was entered within current again,
+	 * and hands it to the sink. Closing a span again has no effect.
+	 */
+	@Override
+	public void close() {
+		if (entered && current.get() == this) {
+			if (previous == null) {
+				current.remove();
+			} else {
+				current.set(previous);
+			}
+		}
+		synchronized (this) {
+			if (duration >= 0) {
+				return;
+			}
+			duration = System.nanoTime() - startNanos;
+		}
+		SpanSink target = sink;
+		if (target != null) {
+			try {
+				target.record(this);
+			} catch (RuntimeException e) {
+				// a failing sink must not fail the call
+			}
+		}
+	}
+
+	/**
+	 * Describes the span on one line: the trace, span and parent IDs in
+	 * hexadecimal, the kind, the name, the start in microseconds since the
+	 * epoch, the duration in microseconds and the exception, if any,
+	 * separated by tabs
+	 */
+	@Override
+	public String toString() {
+		return Long.toHexString(traceId) + '\t' + Long.toHexString(spanId) + '\t'
+				+ Long.toHexString(parentId) + '\t' + kind + '\t' + name + '\t' + startMicros
+				+ '\t' + getDuration(TimeUnit.MICROSECONDS) + (error == null ? "" : '\t' + error);
+	}
+}
@@ -0,0 +1,153 @@
+package rmi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Where finished spans go, set with {@link Span#setSink}.
+ *
+ * <p>
+ * {@link #record} is called by the thread that closed the span, often one
+ * making or serving a call, so it should return quickly and must be safe for
+ * concurrent use. Exceptions it raises are ignored.
+ */
+public interface SpanSink {
+	/**
+	 * Takes a finished span
+	 * @param span The span
+	 */
+	void record(Span span);
+
+	/**
+	 * Keeps the latest spans in memory, dropping the oldest once full.
+	 * Recording never blocks or allocates.
+	 */
+	final class RingBuffer implements SpanSink {
+		/**
+		 * The spans, by position modulo the capacity
+		 */
+		private final AtomicReferenceArray<Span> slots;
+
+		/**
+		 * The position of the next span
+		 */
+		private final AtomicLong next = new AtomicLong();
+
+		/**
+		 * Constructor for {@code RingBuffer}
+		 * @param capacity The number of spans kept
+		 * @throws IllegalArgumentException If <code>capacity</code> is not
+		 *                                  positive.
+		 */
+		public RingBuffer(int capacity) {
+			if (capacity <= 0) {
+				throw new IllegalArgumentException("Error: capacity must be positive");
+			}
+			slots = new AtomicReferenceArray<Span>(capacity);
+		}
+
+		@Override
+		public void record(Span span) {
+			slots.set((int)(next.getAndIncrement() % slots.length()), span);
+		}
+
+		/**
+		 * Return the spans kept
+		 * @return the spans, oldest first
+		 */
+		public List<Span> spans() {
+			long end = next.get();
+			List<Span> list = new ArrayList<Span>();
+			for (long i = Math.max(0, end - slots.length()); i < end; i++) {
+				Span span = slots.get((int)(i % slots.length()));
+				if (span != null) {
+					list.add(span);
+				}
+			}
+			return list;
+		}
+
+		/**
+		 * Return the spans kept of one trace
+		 * @param traceId The ID of the trace
+		 * @return the spans, oldest first
+		 */
+		public List<Span> trace(long traceId) {
+			List<Span> list = new ArrayList<Span>();
+			for (Span span : spans()) {
+				if (span.getTraceId() == traceId) {
+					list.add(span);
+				}
+			}
+			return list;
+		}
+
+		/**
+		 * Drops the spans kept
+		 */
+		public void clear() {
+			for (int i = 0; i < slots.length(); i++) {
+				slots.set(i, null);
+			}
+		}
+	}
+
+	/**
+	 * Appends each span to a file, one line per span as described by
+	 * {@link Span#toString}. Once writing fails, later spans are dropped.
+	 */
+	final class FileExporter implements SpanSink, Closeable {
+		/**
+		 * The file, or <code>null</code> once closed or failed
+		 */
+		private Writer out;
+
+		/**
+		 * Constructor for {@code FileExporter}
+		 * @param path The file, created if it does not exist
+		 * @throws IOException If the file cannot be opened.
+		 */
+		public FileExporter(Path path) throws IOException {
+			out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+
+		@Override
+		public synchronized void record(Span span) {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.write(span.toString());
+				out.write('\n');
+				out.flush();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Closes the file; later spans are dropped
+		 */
+		@Override
+		public synchronized void close() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// nothing more can be written anyway
+				}
+				out = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,506 @@
+package rmi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * <code>InputStream</code> arguments and return values of remote methods.
+ *
+ * <p>
+ * On connections that accepted {@link Protocol#FEATURE_STREAM}, a stream is
+ * replaced by a {@link Placeholder} in the encoded request or response, and
+ * its bytes follow in <code>CHUNK</code> frames of at most
+ * {@link #CHUNK_SIZE} bytes, written as they are read. The receiver hands the
+ * method or the caller an {@link Incoming} stream that yields the chunks as
+ * they arrive.
+ *
+ * <p>
+ * The sender may have at most {@link #WINDOW} chunks of a stream unread by
+ * the receiver. Each chunk read, or dropped because the stream was closed,
+ * is given back to the sender in a <code>CREDIT</code> frame, and a sender
+ * out of credit waits for one. The thread reading the connection therefore
+ * never waits for the reader of a stream, and other calls on the connection
+ * go on while a stream is left unread.
+ *
+ * <p>
+ * Everywhere else, streams are read whole and sent as a
+ * {@link Materialized} copy.
+ */
+final class Streams {
+	/**
+	 * The most bytes in one chunk
+	 */
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The most chunks of a stream the sender may send ahead of its reader
+	 */
+	static final int WINDOW = 16;
+
+	private Streams() {
+	}
+
+	/**
+	 * Stands for a stream sent in chunks after the frame that carries it
+	 */
+	static final class Placeholder implements Serializable {
+		private static final long serialVersionUID = -1935786421407375361L;
+
+		static final Placeholder INSTANCE = new Placeholder();
+
+		private Placeholder() {
+		}
+
+		private Object readResolve() {
+			return INSTANCE;
+		}
+	}
+
+	/**
+	 * Writes one chunk of a stream
+	 */
+	interface Sink {
+		/**
+		 * @param flags {@link Protocol#END}, {@link Protocol#FAILED} or 0
+		 * @param data The bytes of the chunk
+		 * @throws IOException If the chunk cannot be written
+		 */
+		void chunk(byte flags, byte[] data) throws IOException;
+	}
+
+	/**
+	 * Gives chunks of an incoming stream back to its sender
+	 */
+	interface Credits {
+		/**
+		 * @param chunks The number of chunks read or dropped
+		 * @throws IOException If the credit cannot be written
+		 */
+		void grant(int chunks) throws IOException;
+	}
+
+	/**
+	 * Encodes the payload of a <code>CREDIT</code> frame
+	 * @param chunks The number of chunks given back
+	 * @return the payload
+	 */
+	static byte[] credit(int chunks) {
+		return ByteBuffer.allocate(4).putInt(chunks).array();
+	}
+
+	/**
+	 * Decodes the payload of a <code>CREDIT</code> frame
+	 * @param payload The payload
+	 * @return the number of chunks given back
+	 * @throws IOException If the payload is malformed
+	 */
+	static int credits(byte[] payload) throws IOException {
+		if (payload.length != 4) {
+			throw new IOException("Error: malformed credit frame");
+		}
+		return ByteBuffer.wrap(payload).getInt();
+	}
+
+	/**
+	 * Finds the argument to be sent in chunks
+	 * @param args The arguments of a call
+	 * @return the index of the first <code>InputStream</code>, or -1
+	 */
+	static int indexOf(Object[] args) {
+		if (args != null) {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i] instanceof InputStream) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Copies arguments, putting a placeholder in place of a stream
+	 * @param args The arguments
+	 * @param index The index of the stream
+	 * @return the copy
+	 */
+	static Object[] withPlaceholder(Object[] args, int index) {
+		Object[] copy = args.clone();
+		copy[index] = Placeholder.INSTANCE;
+		return copy;
+	}
+
+	/**
+	 * Puts a received stream in place of the placeholder of a request
+	 * @param request The decoded request
+	 * @param stream The stream of chunks following the request
+	 * @return the request to be run
+	 * @throws IOException If the request holds no placeholder
+	 */
+	static RMIData attach(RMIData request, InputStream stream) throws IOException {
+		Object[] args = request.getArgs();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] instanceof Placeholder) {
+				Object[] copy = args.clone();
+				copy[i] = stream;
+				return request.withArgs(copy);
+			}
+		}
+		throw new IOException("Error: streamed request has no stream argument");
+	}
+
+	/**
+	 * Reads a stream whole, so that it can be serialized
+	 * @param value Any value
+	 * @return a {@link Materialized} copy if the value is a stream that is
+	 *         not one already, otherwise the value
+	 * @throws IOException If the stream cannot be read
+	 */
+	static Object materialize(Object value) throws IOException {
+		if (!(value instanceof InputStream) || value instanceof Materialized) {
+			return value;
+		}
+		InputStream stream = (InputStream)value;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[CHUNK_SIZE];
+			int n;
+			while ((n = stream.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, n);
+			}
+			return new Materialized(bytes.toByteArray());
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Reads the streams among arguments whole
+	 * @param args The arguments, may be <code>null</code>
+	 * @return the arguments, or a copy holding materialized streams
+	 * @throws IOException If a stream cannot be read
+	 */
+	static Object[] materialize(Object[] args) throws IOException {
+		if (indexOf(args) < 0) {
+			return args;
+		}
+		Object[] copy = args.clone();
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = materialize(copy[i]);
+		}
+		return copy;
+	}
+
+	/**
+	 * Sends a stream in chunks and closes it, waiting for credit before each
+	 * chunk. A failure to read the stream, including an unchecked exception
+	 * thrown by it, ends it with a {@link Protocol#FAILED} chunk, so that the
+	 * receiver sees an <code>IOException</code>.
+	 * @param stream The stream
+	 * @param window The credit left for the stream
+	 * @param sink Writes each chunk
+	 * @throws IOException If a chunk cannot be written, or the connection
+	 *                     failed while waiting for credit
+	 */
+	static void pump(InputStream stream, Window window, Sink sink) throws IOException {
+		try {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			while (true) {
+				window.take();
+				int length;
+				try {
+					length = fill(stream, buffer);
+				} catch (IOException | RuntimeException e) {
+					String message = String.valueOf(e);
+					sink.chunk((byte)(Protocol.END | Protocol.FAILED),
+							message.getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+				if (length < 0) {
+					sink.chunk(Protocol.END, new byte[0]);
+					return;
+				}
+				byte[] data = new byte[length];
+				System.arraycopy(buffer, 0, data, 0, length);
+				sink.chunk((byte)0, data);
+			}
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// everything has been read
+			}
+		}
+	}
+
+	/**
+	 * Reads as many bytes as are at hand, without waiting for more once some
+	 * have been read
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 */
+	private static int fill(InputStream stream, byte[] buffer) throws IOException {
+		int length = stream.read(buffer, 0, buffer.length);
+		if (length <= 0) {
+			return length;
+		}
+		while (length < buffer.length && stream.available() > 0) {
+			int n = stream.read(buffer, length, buffer.length - length);
+			if (n < 0) {
+				break;
+			}
+			length += n;
+		}
+		return length;
+	}
+
+	/**
+	 * A stream read whole, sent by serialization
+	 */
+	static final class Materialized extends InputStream implements Serializable {
+		private static final long serialVersionUID = 2871539209415537617L;
+
+		private final byte[] data;
+		private int position = 0;
+
+		Materialized(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= data.length) {
+				return -1;
+			}
+			int n = Math.min(len, data.length - position);
+			System.arraycopy(data, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return data.length - position;
+		}
+	}
+
+	/**
+	 * The credit of a stream being sent: the number of chunks it may still
+	 * send before the receiver gives some back
+	 */
+	static final class Window {
+		private int available = WINDOW;
+		private IOException error = null;
+
+		/**
+		 * Takes the credit for one chunk, waiting until there is some
+		 * @throws IOException If the connection failed first
+		 * @throws InterruptedIOException If interrupted while waiting
+		 */
+		synchronized void take() throws IOException {
+			while (available == 0 && error == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+			--available;
+		}
+
+		/**
+		 * @param chunks The number of chunks given back by the receiver
+		 */
+		synchronized void grant(int chunks) {
+			available += chunks;
+			notifyAll();
+		}
+
+		/**
+		 * Wakes the sender for good, once the connection has failed
+		 * @param cause The error raised to the sender
+		 */
+		synchronized void fail(IOException cause) {
+			if (error == null) {
+				error = cause;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * A stream received in chunks. The thread reading the connection adds
+	 * chunks; the method or caller reads them, and the chunks are given back
+	 * to the sender as they are taken. Closing the stream before its end
+	 * drops the chunks still to come.
+	 */
+	static final class Incoming extends InputStream {
+		private final Credits credits;
+		private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+		private byte[] current = null;
+		private int position = 0;
+		private boolean ended = false;
+		private boolean closed = false;
+		private IOException error = null;
+
+		/**
+		 * The chunks taken or dropped, not yet given back
+		 */
+		private int owed = 0;
+
+		/**
+		 * @param credits Gives chunks back to the sender
+		 */
+		Incoming(Credits credits) {
+			this.credits = credits;
+		}
+
+		/**
+		 * Adds a chunk. The sender's credit bounds the chunks buffered, so
+		 * this never waits.
+		 * @param data The bytes of the chunk
+		 * @param flags The flags of the chunk frame
+		 */
+		void add(byte[] data, byte flags) {
+			synchronized (this) {
+				if ((flags & Protocol.FAILED) != 0) {
+					fail(new IOException("Error: the remote stream failed: "
+							+ new String(data, StandardCharsets.UTF_8)));
+					return;
+				}
+				if ((flags & Protocol.END) != 0) {
+					ended = true;
+				} else if (!closed && data.length > 0) {
+					chunks.add(data);
+				} else {
+					++owed;
+				}
+				notifyAll();
+			}
+			settle();
+		}
+
+		/**
+		 * Gives the chunks taken or dropped back to the sender, outside the
+		 * monitor so that the reader of the connection can add chunks
+		 * meanwhile
+		 */
+		private void settle() {
+			int chunks;
+			synchronized (this) {
+				chunks = owed;
+				owed = 0;
+			}
+			if (chunks > 0) {
+				try {
+					credits.grant(chunks);
+				} catch (IOException e) {
+					// the connection failed, and the stream with it
+				}
+			}
+		}
+
+		/**
+		 * Ends the stream with an error, unless it has already ended
+		 * @param cause The error raised to the reader
+		 */
+		synchronized void fail(IOException cause) {
+			if (!ended && error == null) {
+				error = cause;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits for bytes to read
+		 * @return <code>false</code> at the end of the stream
+		 */
+		private boolean await() throws IOException {
+			while (current == null || position == current.length) {
+				if (closed) {
+					throw new IOException("Error: stream closed");
+				}
+				current = chunks.poll();
+				position = 0;
+				if (current != null) {
+					++owed;
+				} else if (ended) {
+					return false;
+				} else if (error != null) {
+					throw error;
+				} else {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b;
+			synchronized (this) {
+				b = await() ? current[position++] & 0xFF : -1;
+			}
+			settle();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int n;
+			synchronized (this) {
+				if (!await()) {
+					return -1;
+				}
+				n = Math.min(len, current.length - position);
+				System.arraycopy(current, position, b, off, n);
+				position += n;
+			}
+			settle();
+			return n;
+		}
+
+		@Override
+		public synchronized int available() {
+			int n = current == null ? 0 : current.length - position;
+			for (byte[] chunk : chunks) {
+				n += chunk.length;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				closed = true;
+				owed += chunks.size();
+				chunks.clear();
+				current = null;
+				notifyAll();
+			}
+			settle();
+		}
+	}
+}
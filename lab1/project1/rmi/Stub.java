@@ -9,7 +9,13 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /** RMI stub factory.
 
@@ -23,17 +29,61 @@ import java.net.UnknownHostException;
     may not be modified afterwards. Two stubs are equal if they implement the
     same interface and carry the same remote server address - and would
     therefore connect to the same skeleton. Stubs are serializable.
+
+    <p>
+    Stubs created with a <code>StubConfig</code> in persistent mode share
+    long-lived connections to each skeleton instead of connecting once per
+    call.
+
+    <p>
+    Asynchronous stubs, created with <code>createAsync</code>, make the same
+    calls but return futures instead of blocking. Batches, created with
+    <code>createBatch</code>, send several calls in one round trip.
+
+    <p>
+    A stub for an object exported through another object's skeleton carries
+    the object ID returned by <code>Skeleton.export</code> as well as the
+    skeleton's address. Such stubs are equal only if they carry the same ID.
+
+    <p>
+    If <code>StubGenerator</code> has generated a stub class for the interface
+    and it is on the class path, stubs are instances of that class instead of
+    dynamic proxies. Both kinds behave the same and are equal to each other
+    when they call the same skeleton.
+
+    <p>
+    A stub may also be created for several skeletons serving the same remote
+    object, such as replicas. Each call goes to one of them, chosen by the
+    balancing policy of its <code>StubConfig</code>, and moves on to another
+    if the chosen skeleton cannot be reached.
+
+    <p>
+    A client may pass a local object to a remote method as a callback,
+    created with <code>createCallback</code>. The server receives an object
+    implementing the same interface, whose calls travel back over the
+    persistent connection that carried the request and run on the client.
  */
 public abstract class Stub
 {
+	/**
+	 * Whether each interface is a remote interface
+	 */
+	private static final ClassValue<Boolean> REMOTE = new ClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> c) {
+			return IsRemoteInterface.check(c);
+		}
+	};
+
 	/**
 	 * This class implements <code>InvocationHandler</code>. 
 	 * Each proxy instance has an associated invocation handler object, 
-	 * which implements the interface InvocationHandler. 
+	 * which implements the interface InvocationHandler. Generated stubs
+	 * make their calls through one as well.
 	 * @author feichao
 	 *
 	 */
-    private static class MyInvocationHandler implements InvocationHandler, Serializable {
+    static class MyInvocationHandler implements InvocationHandler, Serializable {
     	
  		private static final long serialVersionUID = 8636975228194099266L;
  		
@@ -48,15 +98,42 @@ public abstract class Stub
  		 */
  		private Class<?> myClass;
 
+ 		/**
+ 		 * Options of this stub
+ 		 */
+ 		private StubConfig config;
+
+ 		/**
+ 		 * The ID under which the object is exported by the skeleton
+ 		 */
+ 		private int objectId;
+
  		/**
  		 * Constructor
  		 * @param c A <code>Class</code> object representing the interface
                  implemented by the remote object.
  		 * @param address The server's socket address
+ 		 * @param config Options of this stub
  		 */
- 		public MyInvocationHandler(Class<?> c, InetSocketAddress address) {
+ 		public MyInvocationHandler(Class<?> c, InetSocketAddress address, StubConfig config) {
+ 			this(c, address, 0, config);
+ 		}
+
+ 		/**
+ 		 * Constructor
+ 		 * @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+ 		 * @param address The server's socket address
+ 		 * @param objectId The ID under which the object is exported, 0 for
+ 		 *                 the skeleton's own object
+ 		 * @param config Options of this stub
+ 		 */
+ 		public MyInvocationHandler(Class<?> c, InetSocketAddress address, int objectId,
+ 				StubConfig config) {
  			this.myClass = c;
  			this.serverAddress = address;
+ 			this.objectId = objectId;
+ 			this.config = config;
  		}
  		/**
  		 * The invocation handler processes the encoded method invocation as appropriate 
@@ -69,74 +146,214 @@ public abstract class Stub
  		 */
 		@Override
 		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() != Object.class) {
+				return call(method, args);
+			}
 			String methodName = method.getName();
 			int len = method.getParameterTypes().length;
 			if (methodName.equals("equals") && len >= 1
 					&& method.getReturnType().getName().equals("boolean")
 					&& method.getParameterTypes()[0].getName().equals("java.lang.Object")) {
 				// System.out.println("=====Stub: checking equals==========");
-				if (args[0] == null) {
-					return false;
-				}
-				if (!Proxy.isProxyClass(args[0].getClass())) {
-					return false;
-				}
-				InvocationHandler handler = Proxy.getInvocationHandler(args[0]);
-				if (!(handler instanceof MyInvocationHandler)) {
-					return false;
-				}
-				// they should implement the same remote interface
-				if (!(myClass.getName().equals(((MyInvocationHandler)handler).myClass.getName()))) {
-					return false;
-				}
-				// they should connect to the same skeleton
-				if (!(serverAddress.equals(((MyInvocationHandler)handler).serverAddress))) {
-					return false;
-				}
-				return true;
+				MyInvocationHandler handler = handlerOrNull(args[0]);
+				return handler != null && sameRemote(handler);
 			} 
-			//The toString method should report the name of the remote interface 
-			//implemented by the stub, and the remote address (including hostname 
-			//and port) of the skeleton to which the stub connects.
-			String msg = "INTERFACE_NAME: " + myClass.getName() + 
-					", Hostname: " + serverAddress.getHostName() + 
-					", PORT: " + serverAddress.getPort();
 			if (methodName.equals("toString") && len == 0
 					&& method.getReturnType().getName().equals("java.lang.String")) {
-				return msg;
+				return describe();
 			}
 			else if (methodName.equals("hashCode") && len == 0
 					&& method.getReturnType().getName().equals("int")) {
-				return msg.hashCode();
+				return describe().hashCode();
+			}
+			return call(method, args);
+		}
+
+		/**
+		 * Return whether another stub calls the same remote object
+		 * @param other The handler of the other stub
+		 * @return <code>true</code> if both implement the same remote
+		 *         interface and connect to the same skeleton
+		 */
+		boolean sameRemote(MyInvocationHandler other) {
+			// they should implement the same remote interface
+			if (!(myClass.getName().equals(other.myClass.getName()))) {
+				return false;
+			}
+			// they should connect to the same skeleton, and call the same object
+			return serverAddress.equals(other.serverAddress) && objectId == other.objectId;
+		}
+
+		/**
+		 * Describes the stub
+		 * @return the name of the remote interface implemented by the stub,
+		 *         and the remote address (including hostname and port) of the
+		 *         skeleton to which the stub connects
+		 */
+		String describe() {
+			return "INTERFACE_NAME: " + myClass.getName() + 
+					", Hostname: " + serverAddress.getHostName() + 
+					", PORT: " + serverAddress.getPort() +
+					(objectId == 0 ? "" : ", OBJECT_ID: " + objectId);
+		}
+
+		/**
+		 * Calls a method of the remote interface, recording the call in a
+		 * span if it is traced and counting what it allocates
+		 * @param method The method
+		 * @param args The arguments
+		 * @return the return value of the remote method
+		 * @throws Throwable The exception raised by the remote method, or an
+		 *                   <code>RMIException</code> if the call cannot be
+		 *                   completed
+		 */
+		Object call(Method method, Object[] args) throws Throwable {
+			long allocated = Metrics.allocationMark();
+			Span span = Span.client(myClass.getName() + "." + method.getName());
+			if (span != null) {
+				span.enter();
+			}
+			try {
+				return send(method, args);
+			} catch (Throwable t) {
+				if (span != null) {
+					span.failed(t);
+				}
+				throw t;
+			} finally {
+				if (span != null) {
+					span.close();
+				}
+				Metrics.STUB.allocatedSince(allocated);
+			}
+		}
+
+		/**
+		 * Sends a call to the skeleton and waits for its response, within
+		 * the current thread's deadline and trace
+		 * @param method The method
+		 * @param args The arguments
+		 * @return the return value of the remote method
+		 * @throws Throwable The exception raised by the remote method, or an
+		 *                   <code>RMIException</code> if the call cannot be
+		 *                   completed
+		 */
+		private Object send(Method method, Object[] args) throws Throwable {
+			MethodMetrics metrics = Metrics.STUB.of(method);
+			long start = System.nanoTime();
+			if (config.isPersistent()) {
+				RMIData response;
+				try {
+					RMIData request = new RMIData(myClass.getName(), method.getName(),
+							args, method.getParameterTypes(), null, null);
+					request.setObjectId(objectId);
+					Deadline.stamp(request, config.getTimeout());
+					Span.propagate(request);
+					response = callPersistent(method, request);
+				} catch (RMIException e) {
+					metrics.failed(System.nanoTime() - start);
+					throw e;
+				}
+				metrics.completed(System.nanoTime() - start, response);
+				return unwrap(response);
+			}
+
+			if (Callbacks.contains(args)) {
+				metrics.failed(System.nanoTime() - start);
+				throw new RMIException("Error: callbacks can only be passed through persistent stubs");
 			}
-			
 			// TODO Auto-generated method stub
 			Socket client = new Socket();
 			ObjectInputStream iStream = null;
 			ObjectOutputStream oStream = null;
-			RMIData request = null;
+			Metrics.CountingInputStream counterIn = null;
+			Metrics.CountingOutputStream counterOut = null;
+			RMIData request = new RMIData(myClass.getName(), method.getName(), args,
+					method.getParameterTypes(), null, null);
+			request.setObjectId(objectId);
+			Span.propagate(request);
 			RMIData response = null;
+			long left;
+			try {
+				left = Deadline.stamp(request, config.getTimeout());
+			} catch (DeadlineExceededException e) {
+				client.close();
+				metrics.failed(System.nanoTime() - start);
+				throw e;
+			}
 			// TODO try/catch exceptions
 			try {
 				// System.out.println("========IP:" + serverAddress.getAddress() + " , Port:" +
 				//					serverAddress.getPort() + " ========================");
-				client.connect(serverAddress);
-				oStream = new ObjectOutputStream(client.getOutputStream());
+				client.connect(serverAddress, Deadline.millisLeft(start, left));
+				Metrics.STUB.connected(System.nanoTime() - start);
+				counterOut = new Metrics.CountingOutputStream(client.getOutputStream());
+				counterIn = new Metrics.CountingInputStream(client.getInputStream());
+				oStream = new ObjectOutputStream(counterOut);
 				oStream.flush();			
-				iStream = new ObjectInputStream(client.getInputStream());
+				iStream = new ObjectInputStream(counterIn);
 				// System.out.println("==============STUB: OPEN I_STREAM============");
-				request = new RMIData(myClass.getName(), method.getName(), args, method.getParameterTypes(), null, null);
 				oStream.writeObject(request);
+				client.setSoTimeout(Deadline.millisLeft(start, left));
 				response = (RMIData) iStream.readObject();
 				client.close();				
+			} catch (DeadlineExceededException e) {
+				client.close();
+				metrics.failed(System.nanoTime() - start);
+				throw e;
+			} catch (SocketTimeoutException e) {
+				client.close();
+				metrics.failed(System.nanoTime() - start);
+				throw new DeadlineExceededException("Error: no response within "
+						+ TimeUnit.NANOSECONDS.toMillis(left) + " ms");
 			} catch (IOException e){
 				// System.out.println("==============STUB: IO_EXCEPTION============");				
 				//e.printStackTrace();
+				if (!client.isConnected()) {
+					Metrics.STUB.error();
+				}
+				metrics.failed(System.nanoTime() - start);
 				throw (Throwable) (new RMIException(e));
 			}
 						
 			// System.out.println("==============STUB: CLIENT CLOSE============");
+			metrics.requestBytes(counterOut.getCount());
+			metrics.responseBytes(counterIn.getCount());
+			metrics.completed(System.nanoTime() - start, response);
 			
+			return unwrap(response);
+		}
+
+		/**
+		 * Sends a request over a pooled connection and waits for its response
+		 * @param method The called method
+		 * @param request The request
+		 * @return the response
+		 * @throws RMIException If the call cannot be completed
+		 */
+		private RMIData callPersistent(Method method, RMIData request) throws RMIException {
+			try {
+				return ConnectionPool.call(serverAddress, config, method, request).get().decode();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof DeadlineExceededException) {
+					throw (DeadlineExceededException)e.getCause();
+				}
+				throw new RMIException(e.getCause());
+			} catch (IOException e) {
+				throw new RMIException(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RMIException(e);
+			}
+		}
+
+		/**
+		 * Returns the result carried by a response, or throws its exception
+		 * @param response The response, may be <code>null</code>
+		 * @return the return value of the method call
+		 * @throws Exception The exception raised by the remote method
+		 */
+		private Object unwrap(RMIData response) throws Exception {
 			if (response != null) {
 				Object res = response.getResult();
 				Exception e = response.getException();
@@ -186,7 +403,7 @@ public abstract class Stub
         	throw new NullPointerException("Error : argument is null!");
         }
         // check remote interface
-        if (!IsRemoteInterface.check(c)) {
+        if (!isRemote(c)) {
             throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
         }
         InetSocketAddress address = skeleton.getAddress();
@@ -234,7 +451,7 @@ public abstract class Stub
         	throw new NullPointerException("Error : argument is null!");
         }
         // check remote interface
-        if (!IsRemoteInterface.check(c)) {
+        if (!isRemote(c)) {
             throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
         }
         InetSocketAddress address = skeleton.getAddress();
@@ -264,17 +481,394 @@ public abstract class Stub
      */
     public static <T> T create(Class<T> c, InetSocketAddress address)
     {
-        if (c == null || address == null) {
+        return create(c, address, new StubConfig());
+    }
+
+    /** Creates a stub, given the address of a remote server and the options
+        with which the stub is to make its calls.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @param config The options of the stub. The stub keeps a copy.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> T create(Class<T> c, InetSocketAddress address,
+                               StubConfig config)
+    {
+        return create(c, address, 0, config);
+    }
+
+    /** Creates a stub for an object exported through a skeleton, given the
+        skeleton's address and the object ID returned by
+        <code>Skeleton.export</code>.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @param objectId The ID under which the object is exported, or 0 for
+                        the object the skeleton was created for.
+        @param config The options of the stub. The stub keeps a copy.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>objectId</code> is
+                                         negative.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> T create(Class<T> c, InetSocketAddress address,
+                               int objectId, StubConfig config)
+    {
+        if (c == null || address == null || config == null) {
         	throw new NullPointerException("Error : argument is null!");
         }
+        if (objectId < 0) {
+        	throw new IllegalArgumentException("Error: negative object ID");
+        }
         // check remote interface
-        if (!IsRemoteInterface.check(c)) {
+        if (!isRemote(c)) {
             throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
         }
+		GeneratedStub generated = Generated.newStub(c, address, objectId, new StubConfig(config));
+		if (generated != null) {
+			return c.cast(generated);
+		}
 		@SuppressWarnings("unchecked")
 		T obj = (T)Proxy.newProxyInstance(c.getClassLoader(), 
     			new Class<?>[] {c, Serializable.class}, 
-    			new MyInvocationHandler(c, address));
+    			new MyInvocationHandler(c, address, objectId, new StubConfig(config)));
     	return obj;
     }
+
+    /** Creates a stub that spreads its calls among several equivalent
+        skeletons.
+
+        <p>
+        Each call is sent to one skeleton, picked by the balancing policy of
+        <code>config</code>. A call whose skeleton refuses the connection is
+        sent to another, since the request never reached the first one; any
+        other failure is raised. The stub is a dynamic proxy even if a stub
+        class was generated for the interface, and it cannot be used to create
+        asynchronous stubs or batches. It is equal to the stubs created for
+        the same interface and the same addresses, in any order.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param addresses The network addresses of the skeletons. Duplicates
+                         are ignored.
+        @param config The options of the stub. The stub keeps a copy.
+        @return The stub created, or a stub for that skeleton alone if only
+                one address is given.
+        @throws NullPointerException If any argument or address is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>addresses</code> is empty.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> T create(Class<T> c, List<InetSocketAddress> addresses,
+                               StubConfig config)
+    {
+        if (c == null || addresses == null || config == null
+        		|| addresses.contains(null)) {
+        	throw new NullPointerException("Error : argument is null!");
+        }
+        List<InetSocketAddress> distinct =
+        		new ArrayList<InetSocketAddress>(new LinkedHashSet<InetSocketAddress>(addresses));
+        if (distinct.isEmpty()) {
+        	throw new IllegalArgumentException("Error: no address given");
+        }
+        if (distinct.size() == 1) {
+        	return create(c, distinct.get(0), config);
+        }
+        if (!isRemote(c)) {
+            throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
+        }
+		@SuppressWarnings("unchecked")
+		T obj = (T)Proxy.newProxyInstance(c.getClassLoader(),
+    			new Class<?>[] {c, Serializable.class},
+    			new Endpoints(c, distinct, new StubConfig(config)));
+    	return obj;
+    }
+
+    /** Creates a stub for an object exported through a skeleton with an
+        assigned address.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param skeleton The skeleton through which the object is exported.
+        @param objectId The ID returned by <code>Skeleton.export</code>.
+        @return The stub created.
+        @throws IllegalStateException If the skeleton has not been assigned an
+                                      address by the user and has not yet been
+                                      started.
+        @throws UnknownHostException When the skeleton address is a wildcard and
+                                     a port is assigned, but no address can be
+                                     found for the local host.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>objectId</code> is
+                                         negative.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> T create(Class<T> c, Skeleton<?> skeleton, int objectId)
+        throws UnknownHostException
+    {
+        if (c == null || skeleton == null) {
+        	throw new NullPointerException("Error : argument is null!");
+        }
+        InetSocketAddress address = skeleton.getAddress();
+        if (address == null) {
+        	throw new IllegalStateException("The skeleton has not been assigned an address" + 
+					" by the user and has not yet been started.");
+        }
+		return create(c, address, objectId, new StubConfig());
+    }
+
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c,
+                                               InetSocketAddress address)
+    {
+        return createAsync(c, address, new StubConfig());
+    }
+
+    /** Creates an asynchronous stub, given the address of a remote server and
+        the options with which the stub is to make its calls. Calls always use
+        persistent connections, whatever the configuration says.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @param config The options of the stub. The stub keeps a copy.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c,
+                                               InetSocketAddress address,
+                                               StubConfig config)
+    {
+        if (c == null || address == null || config == null) {
+        	throw new NullPointerException("Error : argument is null!");
+        }
+        // check remote interface
+        if (!isRemote(c)) {
+            throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
+        }
+        return new AsyncStub<T>(c, address, 0, config);
+    }
+
+    /** Creates an asynchronous stub that calls the same skeleton as an
+        existing stub, with the same options.
+
+        <p>
+        This method should be used when a stub was received from another
+        server, as storage stubs are received from the naming server.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub A stub created by this class for that interface.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub
+                                         created by this class.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c, T stub)
+    {
+        if (c == null || stub == null) {
+        	throw new NullPointerException("Error : argument is null!");
+        }
+        MyInvocationHandler handler = handlerOf(stub);
+        if (!isRemote(c)) {
+            throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
+        }
+        return new AsyncStub<T>(c, handler.serverAddress, handler.objectId, handler.config);
+    }
+
+    /** Creates a batch of calls to a remote server.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @return The empty batch.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>.
+     */
+    public static <T> Batch<T> createBatch(Class<T> c, InetSocketAddress address)
+    {
+        return createBatch(c, address, new StubConfig());
+    }
+
+    /** Creates a batch of calls to a remote server, given the options with
+        which the calls are to be made. Batches always use persistent
+        connections, whatever the configuration says.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @param config The options of the batch. The batch keeps a copy.
+        @return The empty batch.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>.
+     */
+    public static <T> Batch<T> createBatch(Class<T> c, InetSocketAddress address,
+                                           StubConfig config)
+    {
+        if (c == null || address == null || config == null) {
+        	throw new NullPointerException("Error : argument is null!");
+        }
+        // check remote interface
+        if (!isRemote(c)) {
+            throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
+        }
+        return new Batch<T>(c, address, 0, config);
+    }
+
+    /** Creates a batch of calls to the same skeleton as an existing stub,
+        with the same options.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub A stub created by this class for that interface.
+        @return The empty batch.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub
+                                         created by this class.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>.
+     */
+    public static <T> Batch<T> createBatch(Class<T> c, T stub)
+    {
+        if (c == null || stub == null) {
+        	throw new NullPointerException("Error : argument is null!");
+        }
+        MyInvocationHandler handler = handlerOf(stub);
+        if (!isRemote(c)) {
+            throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
+        }
+        return new Batch<T>(c, handler.serverAddress, handler.objectId, handler.config);
+    }
+
+    /** Wraps a local object so that it may be passed to remote methods and
+        called back by the server.
+
+        <p>
+        The callback may only be passed through persistent stubs. The server
+        calls it over the connection that carried the request, for as long as
+        that connection stays open. A callback passed several times over the
+        same connection is the same object on the server.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the local object.
+        @param object The local object.
+        @return The callback, which calls <code>object</code> when called
+                locally.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>object</code> does not
+                                         implement <code>c</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>.
+     */
+    public static <T> T createCallback(Class<T> c, T object)
+    {
+        if (c == null || object == null) {
+        	throw new NullPointerException("Error : argument is null!");
+        }
+        if (!isRemote(c)) {
+            throw new Error("Error: " + c.getName() + " is NOT a remote interface!");
+        }
+        if (!c.isInstance(object)) {
+        	throw new IllegalArgumentException("Error: the object does not implement " + c.getName());
+        }
+        return c.cast(Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c},
+        		new Callbacks.Local<T>(c, object)));
+    }
+
+    /**
+     * Return the invocation handler of a stub
+     * @param stub A stub created by this class
+     * @return the handler
+     * @throws IllegalArgumentException If <code>stub</code> is not a stub
+     *                                  created by this class.
+     */
+    private static MyInvocationHandler handlerOf(Object stub)
+    {
+        MyInvocationHandler handler = handlerOrNull(stub);
+        if (handler == null) {
+        	throw new IllegalArgumentException("Error: not a stub");
+        }
+        return handler;
+    }
+
+    /**
+     * Return the invocation handler of a proxy or generated stub
+     * @param stub Any object, may be <code>null</code>
+     * @return the handler, or <code>null</code> if <code>stub</code> is not
+     *         a stub created by this class
+     */
+    static MyInvocationHandler handlerOrNull(Object stub)
+    {
+        if (stub instanceof GeneratedStub) {
+        	return ((GeneratedStub)stub).handler();
+        }
+        if (stub == null || !Proxy.isProxyClass(stub.getClass())) {
+        	return null;
+        }
+        InvocationHandler handler = Proxy.getInvocationHandler(stub);
+        return handler instanceof MyInvocationHandler ? (MyInvocationHandler)handler : null;
+    }
+
+    /**
+     * Creates a stub calling the same skeleton as a deserialized one. A
+     * generated stub is sent as its handler and rebuilt by the receiver,
+     * which may or may not have the generated class.
+     * @param handler The handler of the stub that was sent
+     * @return the stub
+     */
+    static Object recreate(MyInvocationHandler handler)
+    {
+        return create(handler.myClass, handler.serverAddress, handler.objectId, handler.config);
+    }
+
+    /**
+     * Return whether an interface is a remote interface, checking each
+     * interface once
+     * @param c The interface
+     * @return the result of {@link IsRemoteInterface#check}
+     */
+    private static boolean isRemote(Class<?> c)
+    {
+        return REMOTE.get(c);
+    }
 }
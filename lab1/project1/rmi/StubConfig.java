@@ -0,0 +1,278 @@
+package rmi;
+
+import java.io.Serializable;
+
+/**
+ * Options for stubs created with
+ * {@link Stub#create(Class, java.net.InetSocketAddress, StubConfig)}.
+ *
+ * <p>
+ * By default a stub opens a new connection for every call and closes it
+ * afterwards. In persistent mode, stubs instead share long-lived connections
+ * to each skeleton address and may have many calls in flight on each of them.
+ *
+ * <p>
+ * A stub created for several equivalent skeletons spreads its calls among
+ * them by the {@link Balancing} policy set here, and moves on to another
+ * skeleton when one cannot be reached.
+ *
+ * <p>
+ * A stub copies its configuration when it is created; later changes to this
+ * object do not affect existing stubs. The configuration travels with the stub
+ * when the stub is serialized.
+ */
+public class StubConfig implements Serializable {
+
+	private static final long serialVersionUID = 2417006712538151162L;
+
+	/**
+	 * How a stub created for several skeletons picks the one to call
+	 */
+	public enum Balancing {
+		/**
+		 * Each skeleton in turn
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * The skeleton with the fewest calls from this stub still waiting
+		 * for a response
+		 */
+		LEAST_OUTSTANDING,
+
+		/**
+		 * The skeleton that has been answering fastest, by a moving average
+		 * of its response times weighted by its outstanding calls
+		 */
+		LATENCY_EWMA
+	}
+
+	/**
+	 * Whether calls reuse pooled connections
+	 */
+	private boolean persistent = false;
+
+	/**
+	 * The most pooled connections kept to one skeleton address
+	 */
+	private int maxConnections = 2;
+
+	/**
+	 * Whether persistent connections offer the binary codec
+	 */
+	private boolean binaryCodec = true;
+
+	/**
+	 * The most time a call may take, in milliseconds, or 0 for no limit
+	 */
+	private long timeout = 0;
+
+	/**
+	 * The smallest request payload compressed, or 0 for no compression
+	 */
+	private int compressionThreshold = 0;
+
+	/**
+	 * How calls are spread among several skeletons
+	 */
+	private Balancing balancing = Balancing.ROUND_ROBIN;
+
+	/**
+	 * Whether persistent connections to this host go over local sockets
+	 */
+	private boolean localSocket = false;
+
+	/**
+	 * Creates a configuration with the default options
+	 */
+	public StubConfig() {
+	}
+
+	/**
+	 * Creates a copy of another configuration
+	 * @param other The configuration to be copied
+	 */
+	public StubConfig(StubConfig other) {
+		this.persistent = other.persistent;
+		this.maxConnections = other.maxConnections;
+		this.binaryCodec = other.binaryCodec;
+		this.timeout = other.timeout;
+		this.compressionThreshold = other.compressionThreshold;
+		this.balancing = other.balancing;
+		this.localSocket = other.localSocket;
+	}
+
+	/**
+	 * Return whether calls reuse pooled connections
+	 * @return persistent
+	 */
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * Set whether calls reuse pooled connections
+	 * @param persistent
+	 * @return this configuration
+	 */
+	public StubConfig setPersistent(boolean persistent) {
+		this.persistent = persistent;
+		return this;
+	}
+
+	/**
+	 * Return the most pooled connections kept to one skeleton address
+	 * @return maxConnections
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Set the most pooled connections kept to one skeleton address
+	 * @param maxConnections
+	 * @return this configuration
+	 * @throws IllegalArgumentException If <code>maxConnections</code> is not
+	 *                                  positive.
+	 */
+	public StubConfig setMaxConnections(int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("Error: maxConnections must be positive");
+		}
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Return whether persistent connections offer the binary codec
+	 * @return binaryCodec
+	 */
+	public boolean isBinaryCodec() {
+		return binaryCodec;
+	}
+
+	/**
+	 * Set whether persistent connections offer the binary codec. When the
+	 * skeleton does not accept it, or when this is off, requests and
+	 * responses are serialized as for one-shot stubs.
+	 * @param binaryCodec
+	 * @return this configuration
+	 */
+	public StubConfig setBinaryCodec(boolean binaryCodec) {
+		this.binaryCodec = binaryCodec;
+		return this;
+	}
+
+	/**
+	 * Return the most time a call may take
+	 * @return timeout in milliseconds, or 0 if there is no limit
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set the most time a call may take, from connecting to receiving the
+	 * response. A call that takes longer raises a
+	 * <code>DeadlineExceededException</code>. The limit is sent with the
+	 * request, and a skeleton that only gets to the call once it has passed
+	 * does not run the method. A {@link Deadline} opened by the calling
+	 * thread shortens it.
+	 * @param timeout The limit in milliseconds, or 0 for no limit
+	 * @return this configuration
+	 * @throws IllegalArgumentException If <code>timeout</code> is negative.
+	 */
+	public StubConfig setTimeout(long timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Error: timeout must not be negative");
+		}
+		this.timeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Return the smallest request payload persistent connections compress
+	 * @return compressionThreshold, or 0 if compression is off
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Set the smallest request payload, in bytes, persistent connections
+	 * compress. Compression is offered to the skeleton only when this is
+	 * positive, and used only if the skeleton accepts it; the skeleton then
+	 * compresses responses by its own threshold. Stubs share a pooled
+	 * connection only if they agree on this setting.
+	 * @param compressionThreshold The threshold, or 0 to turn compression
+	 *                             off
+	 * @return this configuration
+	 * @throws IllegalArgumentException If <code>compressionThreshold</code>
+	 *                                  is negative.
+	 */
+	public StubConfig setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0) {
+			throw new IllegalArgumentException("Error: compressionThreshold must not be negative");
+		}
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+
+	/**
+	 * Return how calls are spread among several skeletons
+	 * @return balancing
+	 */
+	public Balancing getBalancing() {
+		return balancing;
+	}
+
+	/**
+	 * Set how a stub created for several skeletons picks the one to call.
+	 * Stubs created for one skeleton ignore it.
+	 * @param balancing The policy
+	 * @return this configuration
+	 * @throws NullPointerException If <code>balancing</code> is
+	 *                              <code>null</code>.
+	 */
+	public StubConfig setBalancing(Balancing balancing) {
+		if (balancing == null) {
+			throw new NullPointerException("Error : argument is null!");
+		}
+		this.balancing = balancing;
+		return this;
+	}
+
+	/**
+	 * Return whether persistent connections to this host go over local
+	 * sockets
+	 * @return localSocket
+	 */
+	public boolean isLocalSocket() {
+		return localSocket;
+	}
+
+	/**
+	 * Set whether persistent connections to a skeleton on this host go over
+	 * its Unix domain socket, when it listens on one. The socket is looked
+	 * up by the skeleton's address in a directory private to the user, so
+	 * only skeletons run by the same user are reached this way; others are
+	 * reached over TCP.
+	 * @param localSocket
+	 * @return this configuration
+	 * @see Skeleton#setLocalSocket(boolean)
+	 */
+	public StubConfig setLocalSocket(boolean localSocket) {
+		this.localSocket = localSocket;
+		return this;
+	}
+
+	/**
+	 * Return the protocol features persistent connections offer
+	 * @return the feature bits
+	 */
+	int getFeatures() {
+		return (binaryCodec ? Protocol.FEATURE_BINARY_CODEC : 0) | Protocol.FEATURE_BATCH
+				| Protocol.FEATURE_STREAM | Protocol.FEATURE_CALLBACK
+				| (compressionThreshold > 0 ? Protocol.FEATURE_COMPRESSION : 0);
+	}
+}
@@ -0,0 +1,381 @@
+package rmi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the source of a stub class and a dispatcher class for remote
+ * interfaces, to be compiled with the rest of a program at build time.
+ *
+ * <p>
+ * Usage: <code>java rmi.StubGenerator -d directory interface...</code>
+ *
+ * <p>
+ * For an interface <code>p.I</code>, the generator writes
+ * <code>p/I_Stub.java</code>, a {@link GeneratedStub} implementing
+ * <code>I</code>, and <code>p/I_Dispatcher.java</code>, a
+ * {@link GeneratedDispatcher} for <code>I</code>, under the given directory.
+ * Nested interfaces may be named with a dot or a dollar sign; their classes
+ * are named after the binary name of the interface, with underscores for
+ * dollar signs. {@link Stub#create} and {@link Skeleton} use the generated
+ * classes when they find them on the class path, and fall back to proxies and
+ * method handles otherwise, or when the interface changed since the classes
+ * were generated.
+ */
+public final class StubGenerator {
+	/**
+	 * Wrapper of each primitive type
+	 */
+	private static final Class<?>[][] WRAPPERS = {
+		{boolean.class, Boolean.class}, {byte.class, Byte.class},
+		{char.class, Character.class}, {short.class, Short.class},
+		{int.class, Integer.class}, {long.class, Long.class},
+		{float.class, Float.class}, {double.class, Double.class},
+		{void.class, Void.class}
+	};
+
+	private StubGenerator() {
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 3 || !args[0].equals("-d")) {
+			System.err.println("usage: java rmi.StubGenerator -d directory interface...");
+			System.exit(2);
+		}
+		File directory = new File(args[1]);
+		for (int i = 2; i < args.length; i++) {
+			try {
+				Class<?> c = load(args[i]);
+				generate(c, directory);
+				System.out.println("generated classes for " + c.getName());
+			} catch (ClassNotFoundException e) {
+				System.err.println("Error: cannot find interface " + args[i]);
+				System.exit(1);
+			} catch (IllegalArgumentException | IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Loads an interface named by its canonical or binary name
+	 * @param name The name
+	 * @return the interface
+	 * @throws ClassNotFoundException If there is no such class
+	 */
+	private static Class<?> load(String name) throws ClassNotFoundException {
+		String binary = name;
+		while (true) {
+			try {
+				return Class.forName(binary, false, StubGenerator.class.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				// the last dot may separate a nested interface from its outer class
+				int dot = binary.lastIndexOf('.');
+				if (dot < 0) {
+					throw new ClassNotFoundException(name);
+				}
+				binary = binary.substring(0, dot) + '$' + binary.substring(dot + 1);
+			}
+		}
+	}
+
+	/**
+	 * Writes the stub and dispatcher classes of a remote interface
+	 * @param c The remote interface
+	 * @param directory The root of the source tree the classes are written in
+	 * @throws IllegalArgumentException If <code>c</code> is not a remote
+	 *                                  interface that generated classes can
+	 *                                  implement
+	 * @throws IOException If a file cannot be written
+	 */
+	public static void generate(Class<?> c, File directory) throws IOException {
+		check(c);
+		write(directory, Generated.nameOf(c, Generated.STUB), stubSource(c));
+		write(directory, Generated.nameOf(c, Generated.DISPATCHER), dispatcherSource(c));
+	}
+
+	/**
+	 * Checks that classes can be generated for an interface
+	 */
+	private static void check(Class<?> c) {
+		if (!IsRemoteInterface.check(c)) {
+			throw new IllegalArgumentException("Error: " + c.getName() + " is NOT a remote interface!");
+		}
+		if (!isAccessible(c, c)) {
+			throw new IllegalArgumentException("Error: " + c.getName()
+					+ " cannot be implemented outside of its enclosing class");
+		}
+		for (Method m : c.getMethods()) {
+			List<Class<?>> types = new ArrayList<Class<?>>(Arrays.asList(m.getParameterTypes()));
+			types.addAll(Arrays.asList(m.getExceptionTypes()));
+			types.add(m.getReturnType());
+			for (Class<?> type : types) {
+				if (!isAccessible(type, c)) {
+					throw new IllegalArgumentException("Error: " + m + " uses " + type.getName()
+							+ ", which generated classes cannot name");
+				}
+			}
+			if (isObjectMethod(m) || Modifier.isStatic(m.getModifiers())) {
+				continue;
+			}
+			try {
+				GeneratedStub.class.getDeclaredMethod(m.getName(), m.getParameterTypes());
+				throw new IllegalArgumentException("Error: " + m + " clashes with a method of "
+						+ GeneratedStub.class.getName());
+			} catch (NoSuchMethodException e) {
+				// no clash
+			}
+		}
+	}
+
+	/**
+	 * Writes the source of the stub class of an interface
+	 * @param c The remote interface
+	 * @return the source
+	 */
+	static String stubSource(Class<?> c) {
+		String itf = c.getCanonicalName();
+		String name = simpleName(Generated.nameOf(c, Generated.STUB));
+		List<Method> methods = Dispatcher.methodsOf(c);
+		StringBuilder out = new StringBuilder();
+
+		header(out, c);
+		out.append("public final class ").append(name).append(" extends rmi.GeneratedStub\n")
+				.append("\t\timplements ").append(itf).append(" {\n");
+		out.append("\tprivate static final long serialVersionUID = 1L;\n\n");
+		signatures(out, c);
+		out.append("\tprivate static final java.lang.reflect.Method[] METHODS = methodsOf(")
+				.append(itf).append(".class);\n\n");
+		out.append("\tpublic ").append(name)
+				.append("(java.net.InetSocketAddress address, int objectId,\n")
+				.append("\t\t\trmi.StubConfig config) {\n")
+				.append("\t\tsuper(").append(itf).append(".class, address, objectId, config);\n")
+				.append("\t}\n");
+
+		for (int id = 0; id < methods.size(); id++) {
+			Method m = methods.get(id);
+			if (isObjectMethod(m) || Modifier.isStatic(m.getModifiers())) {
+				continue;
+			}
+			Class<?>[] params = m.getParameterTypes();
+			Class<?> returnType = m.getReturnType();
+			List<Class<?>> caught = caught(m);
+
+			out.append("\n\t@Override\n\tpublic ").append(returnType.getCanonicalName()).append(' ')
+					.append(m.getName()).append('(');
+			for (int i = 0; i < params.length; i++) {
+				out.append(i > 0 ? ", " : "").append(params[i].getCanonicalName()).append(" arg").append(i);
+			}
+			out.append(")");
+			Class<?>[] exceptions = m.getExceptionTypes();
+			for (int i = 0; i < exceptions.length; i++) {
+				out.append(i > 0 ? ", " : " throws ").append(exceptions[i].getCanonicalName());
+			}
+			out.append(" {\n");
+
+			StringBuilder call = new StringBuilder("call(METHODS[").append(id).append("], ");
+			if (params.length == 0) {
+				call.append("null)");
+			} else {
+				call.append("new java.lang.Object[] {");
+				for (int i = 0; i < params.length; i++) {
+					call.append(i > 0 ? ", " : "").append("arg").append(i);
+				}
+				call.append("})");
+			}
+			String statement = returnType == void.class ? call + ";"
+					: "return (" + wrap(returnType).getCanonicalName() + ")" + call + ";";
+
+			if (caught == null) {
+				out.append("\t\t").append(statement).append("\n");
+			} else {
+				out.append("\t\ttry {\n\t\t\t").append(statement).append("\n\t\t} catch (");
+				for (int i = 0; i < caught.size(); i++) {
+					out.append(i > 0 ? " | " : "").append(caught.get(i).getCanonicalName());
+				}
+				out.append(" e) {\n\t\t\tthrow e;\n")
+						.append("\t\t} catch (java.lang.Throwable e) {\n")
+						.append("\t\t\tthrow new java.lang.reflect.UndeclaredThrowableException(e);\n")
+						.append("\t\t}\n");
+			}
+			out.append("\t}\n");
+		}
+		out.append("}\n");
+		return out.toString();
+	}
+
+	/**
+	 * Writes the source of the dispatcher class of an interface
+	 * @param c The remote interface
+	 * @return the source
+	 */
+	static String dispatcherSource(Class<?> c) {
+		String itf = c.getCanonicalName();
+		String name = simpleName(Generated.nameOf(c, Generated.DISPATCHER));
+		List<Method> methods = Dispatcher.methodsOf(c);
+		StringBuilder out = new StringBuilder();
+
+		header(out, c);
+		out.append("public final class ").append(name).append("\n\t\timplements rmi.GeneratedDispatcher<")
+				.append(itf).append("> {\n");
+		signatures(out, c);
+		out.append("\t@Override\n\tpublic java.lang.Object invoke(").append(itf)
+				.append(" server, int id, java.lang.Object[] args)\n")
+				.append("\t\t\tthrows java.lang.Throwable {\n")
+				.append("\t\tswitch (id) {\n");
+		for (int id = 0; id < methods.size(); id++) {
+			Method m = methods.get(id);
+			Class<?>[] params = m.getParameterTypes();
+			StringBuilder call = new StringBuilder(Modifier.isStatic(m.getModifiers()) ? itf : "server")
+					.append('.').append(m.getName()).append('(');
+			for (int i = 0; i < params.length; i++) {
+				call.append(i > 0 ? ", " : "");
+				// cast to the exact parameter type, so that the same overload is called
+				if (params[i].isPrimitive()) {
+					call.append("((").append(wrap(params[i]).getCanonicalName()).append(")args[").append(i)
+							.append("]).").append(params[i].getName()).append("Value()");
+				} else {
+					call.append('(').append(params[i].getCanonicalName()).append(")args[").append(i).append(']');
+				}
+			}
+			call.append(')');
+			out.append("\t\tcase ").append(id).append(":\n");
+			if (m.getReturnType() == void.class) {
+				out.append("\t\t\t").append(call).append(";\n\t\t\treturn null;\n");
+			} else {
+				out.append("\t\t\treturn ").append(call).append(";\n");
+			}
+		}
+		out.append("\t\tdefault:\n")
+				.append("\t\t\tthrow new java.lang.IndexOutOfBoundsException(\"unknown method ID \" + id);\n")
+				.append("\t\t}\n\t}\n}\n");
+		return out.toString();
+	}
+
+	/**
+	 * Writes the comment and package declaration of a generated class
+	 */
+	private static void header(StringBuilder out, Class<?> c) {
+		out.append("// Generated by rmi.StubGenerator from ").append(c.getName()).append(". Do not edit.\n\n");
+		String pkg = packageOf(c.getName());
+		if (!pkg.isEmpty()) {
+			out.append("package ").append(pkg).append(";\n\n");
+		}
+	}
+
+	/**
+	 * Writes the methods the class is generated for, which
+	 * {@link Generated} compares with those of the interface at run time
+	 */
+	private static void signatures(StringBuilder out, Class<?> c) {
+		out.append("\tpublic static final String[] SIGNATURES = {\n");
+		for (String signature : Dispatcher.signaturesOf(c)) {
+			out.append("\t\t\"").append(signature).append("\",\n");
+		}
+		out.append("\t};\n\n");
+	}
+
+	/**
+	 * Lists the exceptions a stub method rethrows as they are, without
+	 * subclasses of one another
+	 * @return the exceptions, or <code>null</code> if the method may throw
+	 *         anything
+	 */
+	private static List<Class<?>> caught(Method m) {
+		List<Class<?>> all = new ArrayList<Class<?>>(Arrays.asList(m.getExceptionTypes()));
+		all.add(RuntimeException.class);
+		all.add(Error.class);
+		List<Class<?>> caught = new ArrayList<Class<?>>();
+		for (Class<?> e : all) {
+			if (e == Throwable.class) {
+				return null;
+			}
+			boolean covered = caught.contains(e);
+			for (Class<?> other : all) {
+				covered |= other != e && other.isAssignableFrom(e);
+			}
+			if (!covered) {
+				caught.add(e);
+			}
+		}
+		return caught;
+	}
+
+	/**
+	 * Return whether a type can be named by classes generated in the package
+	 * of an interface
+	 */
+	private static boolean isAccessible(Class<?> type, Class<?> c) {
+		while (type.isArray()) {
+			type = type.getComponentType();
+		}
+		if (type.isPrimitive()) {
+			return true;
+		}
+		boolean samePackage = packageOf(type.getName()).equals(packageOf(c.getName()));
+		for (Class<?> outer = type; outer != null; outer = outer.getEnclosingClass()) {
+			int modifiers = outer.getModifiers();
+			if (outer.getCanonicalName() == null || Modifier.isPrivate(modifiers)
+					|| (!Modifier.isPublic(modifiers) && !samePackage)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return whether a method is implemented by {@link GeneratedStub} the
+	 * way <code>Object</code> does
+	 */
+	private static boolean isObjectMethod(Method m) {
+		try {
+			Object.class.getMethod(m.getName(), m.getParameterTypes());
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return the wrapper of a primitive type, or the type itself
+	 */
+	private static Class<?> wrap(Class<?> type) {
+		for (Class<?>[] pair : WRAPPERS) {
+			if (pair[0] == type) {
+				return pair[1];
+			}
+		}
+		return type;
+	}
+
+	private static String packageOf(String className) {
+		int dot = className.lastIndexOf('.');
+		return dot < 0 ? "" : className.substring(0, dot);
+	}
+
+	private static String simpleName(String className) {
+		return className.substring(className.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * Writes a source file
+	 */
+	private static void write(File directory, String className, String source) throws IOException {
+		File file = new File(directory, className.replace('.', File.separatorChar) + ".java");
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Error: cannot create directory " + parent);
+		}
+		try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+			writer.print(source);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package rmi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Hand-written binary encoding of one argument or result type, used on
+ * persistent connections instead of Java serialization.
+ *
+ * <p>
+ * Encoders are registered with {@link Codecs#register}, on both the stub and
+ * the skeleton side, for an exact class. Values of classes without an encoder
+ * are serialized.
+ * @param <V> The encoded type
+ */
+public interface TypeCodec<V> {
+	/**
+	 * Writes a value
+	 * @param value The value, never <code>null</code>
+	 * @param out The destination
+	 * @throws IOException
+	 */
+	void write(V value, DataOutput out) throws IOException;
+
+	/**
+	 * Reads a value written by {@link #write}
+	 * @param in The source
+	 * @return the value
+	 * @throws IOException If the input is malformed
+	 */
+	V read(DataInput in) throws IOException;
+}
@@ -4,15 +4,31 @@
 
 package rmi;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The worker processes each request from the client.
+ *
+ * <p>
+ * One-shot stubs send a single serialized request and close the connection
+ * after the response. Persistent stubs announce themselves with the framed
+ * protocol handshake instead; their connection is handed to a
+ * {@link Session}, which keeps serving it until it goes idle.
  * @author feichao
  * @param <T>
  *
@@ -29,19 +45,32 @@ public class Worker<T> extends Thread {
 	private Socket client;
 	
 	/**
-	 * The real local object on the server
+	 * The thread pool that runs calls arriving on persistent connections
+	 */
+	private ExecutorService pool;
+
+	/**
+	 * Whether the admission of this connection's call has been released
+	 */
+	private boolean released = false;
+
+	/**
+	 * How long, in milliseconds, a refused connection may take to send its
+	 * request
 	 */
-	private T localObj;
+	private static final int REFUSE_TIMEOUT = 1000;
 
 	/**
 	 * Constructor for {@code Worker}
 	 * @param ct The client socket
 	 * @param obj The real local object on the server
+	 * @param pool The thread pool that runs calls arriving on persistent
+	 *             connections
 	 */
-	public Worker(Socket ct, Skeleton<T> obj) {
+	public Worker(Socket ct, Skeleton<T> obj, ExecutorService pool) {
 		client = ct;
-		localObj = obj.getRmtObject();
 		skt = obj;
+		this.pool = pool;
 	}
 
 	/**
@@ -49,42 +78,92 @@ public class Worker<T> extends Thread {
 	 */
 	@Override
 	public void run() {
+		// admitted by the listener
+		skt.getAdmission().start();
+		try {
+			serve();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Releases the admission of this connection's call, once
+	 */
+	private void release() {
+		if (!released) {
+			released = true;
+			skt.getAdmission().finish();
+		}
+	}
+
+	/**
+	 * Serves a one-shot call, or hands a persistent connection to a session
+	 */
+	private void serve() {
     	// TODO Auto-generated method stub
 		// Create I/O streams for communicating to the client
 		ObjectOutputStream oStream = null;
 		ObjectInputStream iStream = null;
+		Metrics.CountingInputStream counterIn = null;
+		Metrics.CountingOutputStream counterOut = null;
 		RMIData request = null;
+		long received = 0;
+		long allocated = Metrics.allocationMark();
 
 		try {
 			// System.out.println("INSIDE WORKER TRY!");
-			oStream = new ObjectOutputStream(client.getOutputStream());
+			counterOut = new Metrics.CountingOutputStream(client.getOutputStream());
+			oStream = new ObjectOutputStream(counterOut);
 			oStream.flush();
-			iStream = new ObjectInputStream(client.getInputStream());
+			PushbackInputStream input = new PushbackInputStream(client.getInputStream());
+			int first = input.read();
+			if (first < 0) {
+				throw new EOFException();
+			}
+			if (first == (Protocol.MAGIC >>> 24)) {
+				serveFramed(input);
+				return;
+			}
+			input.unread(first);
+			counterIn = new Metrics.CountingInputStream(input);
+			iStream = new ObjectInputStream(counterIn);
 			// Read object from stream
 			request = (RMIData)iStream.readObject();
+			received = System.nanoTime();
 			// System.out.println("INSIDE WORKER: REMOTE METHOD NAME is : " + request.getMethodName());
 			// TODO what if rmiData.className != T
 		} catch (IOException e1) {
 			// TODO Auto-generated catch block
 			// System.out.println("INSIDE WORKER: IOException!");
 			//e.printStackTrace();
-			skt.service_error(new RMIException(e1));
+			skt.serviceError(new RMIException(e1));
 		} catch (ClassNotFoundException e) {
 			// System.out.println("INSIDE WORKER: ClassNotFoundException!");
 			// TODO Auto-generated catch block
 			//e.printStackTrace();
-			skt.service_error(new RMIException(e));
+			skt.serviceError(new RMIException(e));
 		}
 		
 		if (request != null) {
-			RMIData response = runMethod(request);
+			MethodMetrics metrics = metrics(skt, request);
+			if (metrics != null) {
+				metrics.requestBytes(counterIn.getCount());
+			}
+			RMIData response = runMethod(skt, request, metrics, received);
+			// the stub may call again as soon as it has the response
+			release();
 			try {
 				oStream.writeObject(response);
+				if (metrics != null) {
+					metrics.responseBytes(counterOut.getCount());
+				}
+				Metrics.SKELETON.allocatedSince(allocated);
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				//e.printStackTrace();
 				// System.out.println("==========IOException in Worker:run()==========");
-				skt.service_error(new RMIException(e));
+				skt.serviceError(new RMIException(e));
 			}
 		}
 		
@@ -94,58 +173,329 @@ public class Worker<T> extends Thread {
 			// TODO Auto-generated catch block
 			//e.printStackTrace();
 			// System.out.println("==========IOException in Worker:run()CLOSE CLIENT==========");
-			skt.service_error(new RMIException(e));
+			skt.serviceError(new RMIException(e));
 		} 
 	}	
 	
 	/**
-	 * Executes the method call
-	 * @param methodName the name of called method
-	 * @param args An array of objects containing the values of the arguments passed in the method 
-	 * @return An object, the return value of the method call
+	 * Completes the handshake of a persistent stub and hands the connection to
+	 * a session thread, so that idle connections do not hold pool threads.
+	 * @param input The connection's input, positioned after the first byte of
+	 *              the magic number
+	 * @throws IOException If the handshake fails
 	 */
-	private RMIData runMethod(RMIData request) {
-		// TODO how to find the right method?
-		String methodName = request.getMethodName();
-		String className = request.getClassName();
-		String itfName = skt.getRmtItface().getName();
-		Object[] args = request.getArgs(); 
-		Class<?>[] argsType = request.getArgsType();
-		Object val = null;
-		Class<?> objClass = localObj.getClass();
-		Method targetMethod = null;
+	private void serveFramed(PushbackInputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		byte[] rest = new byte[3];
+		in.readFully(rest);
+		int magic = (Protocol.MAGIC & 0xFF000000) | ((rest[0] & 0xFF) << 16)
+				| ((rest[1] & 0xFF) << 8) | (rest[2] & 0xFF);
+		if (magic != Protocol.MAGIC) {
+			throw new IOException("Error: bad handshake from " + client.getRemoteSocketAddress());
+		}
+		int features = Protocol.readHandshake(in, true);
+		// the session admits each call it reads on its own
+		release();
+		new Session<T>(client, input, skt, pool, features).start();
+	}
+
+	/**
+	 * Answers the first call arriving on a connection with a
+	 * <code>ServerBusyException</code>, without running it, and closes the
+	 * connection. A persistent stub is told after that answer that the
+	 * connection is closing.
+	 * @param skt The skeleton refusing the call
+	 * @param client The client socket
+	 */
+	static <T> void refuse(Skeleton<T> skt, Socket client) {
+		try {
+			// a stub sends its request right after connecting
+			client.setSoTimeout(REFUSE_TIMEOUT);
+			ObjectOutputStream oStream = new ObjectOutputStream(client.getOutputStream());
+			oStream.flush();
+			PushbackInputStream input = new PushbackInputStream(client.getInputStream());
+			int first = input.read();
+			if (first < 0) {
+				throw new EOFException();
+			}
+			input.unread(first);
+			if (first == (Protocol.MAGIC >>> 24)) {
+				DataInputStream in = new DataInputStream(input);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(client.getOutputStream()));
+				// neither chunks nor compressed frames are expected around
+				// the refused request
+				int features = Protocol.readHandshake(in, false) & Protocol.SUPPORTED_FEATURES
+						& ~(Protocol.FEATURE_STREAM | Protocol.FEATURE_COMPRESSION);
+				Codec codec = Protocol.codecFor(features, skt.getRmtItface().getClassLoader());
+				Protocol.writeHandshake(out, features);
+				Frame frame = Protocol.readFrame(in);
+				while (frame.getType() != Protocol.REQUEST && frame.getType() != Protocol.BATCH) {
+					if (frame.getType() == Protocol.DEFINE) {
+						codec.define(frame.getPayload());
+					}
+					frame = Protocol.readFrame(in);
+				}
+				byte[] payload = busy(skt, codec, frame);
+				if (payload != null) {
+					Protocol.writeFrame(out, new Frame(Protocol.RESPONSE, (byte)0, frame.getCallId(), payload));
+				}
+				Protocol.writeFrame(out, new Frame(Protocol.CLOSE, (byte)0, 0, new byte[0]));
+			} else {
+				new ObjectInputStream(input).readObject();
+				oStream.writeObject(new RMIData(null, skt.getAdmission().busy()));
+				oStream.flush();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			skt.serviceError(new RMIException(e));
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	/**
+	 * Decodes a framed request, executes it and encodes the response
+	 * @param skt The skeleton whose remote object is to be called
+	 * @param codec The codec of the connection
+	 * @param payload The payload of the request frame
+	 * @param received When the frame was read, from
+	 *                 <code>System.nanoTime</code>
+	 * @param peer The client, if the connection accepted callbacks, or
+	 *             <code>null</code>
+	 * @return the payload of the response frame, or <code>null</code> if not
+	 *         even an error could be encoded
+	 */
+	static <T> byte[] runFrame(Skeleton<T> skt, Codec codec, byte[] payload, long received,
+			Callbacks.Peer peer) {
+		Frame response = respond(skt, codec, new Frame(Protocol.REQUEST, (byte)0, 0, payload),
+				received, false, peer);
+		return response == null ? null : response.getPayload();
+	}
 
+	/**
+	 * Decodes a framed request, executes it and builds the response frame,
+	 * counting the bytes the thread allocates on the way
+	 * @param skt The skeleton whose remote object is to be called
+	 * @param codec The codec of the connection
+	 * @param frame The request frame, with the stream of its chunks if it
+	 *              was streamed
+	 * @param received When the frame was read, from
+	 *                 <code>System.nanoTime</code>
+	 * @param streaming Whether a returned stream may be sent in chunks
+	 * @param peer The client, if the connection accepted callbacks, or
+	 *             <code>null</code>
+	 * @return the response frame, carrying the returned stream if it is to
+	 *         be sent in chunks, or <code>null</code> if not even an error
+	 *         could be encoded
+	 */
+	static <T> Frame respond(Skeleton<T> skt, Codec codec, Frame frame, long received,
+			boolean streaming, Callbacks.Peer peer) {
+		long allocated = Metrics.allocationMark();
 		try {
-			// System.out.println("********" + methodName + " in " + objClass.getName() + "*****");
-			targetMethod = objClass.getMethod(methodName, argsType);
-		} catch (NoSuchMethodException | SecurityException e1) {
-			// TODO Auto-generated catch block
-			// e1.printStackTrace();
-			// System.out.println("==========Worker: Exp when runMethod1==========");
-			skt.service_error(new RMIException(e1));
-			return new RMIData(null, e1);
+			return build(skt, codec, frame, received, streaming, peer);
+		} finally {
+			Metrics.SKELETON.allocatedSince(allocated);
 		}
-		if (targetMethod != null) {
-			if (!className.equals(itfName)) {
-				skt.service_error(new RMIException(new NoSuchMethodException("calling method not declared in the interface for which the skeleton was created")));
-				return new RMIData(null, new RMIException("calling method not declared in the interface for which the skeleton was created"));
+	}
+
+	/**
+	 * Builds the response frame of {@link #respond}
+	 */
+	private static <T> Frame build(Skeleton<T> skt, Codec codec, Frame frame, long received,
+			boolean streaming, Callbacks.Peer peer) {
+		RMIData response;
+		MethodMetrics metrics = null;
+		byte[] payload = frame.getPayload();
+		try {
+			RMIData request = codec.decodeRequest(payload);
+			if (frame.getStream() != null) {
+				request = Streams.attach(request, frame.getStream());
+			}
+			request = Callbacks.resolve(request, peer, skt.getRmtItface().getClassLoader());
+			metrics = metrics(skt, request);
+			if (metrics != null) {
+				metrics.requestBytes(payload.length);
 			}
+			response = runMethod(skt, request, metrics, received);
+		} catch (IOException e) {
+			skt.serviceError(new RMIException(e));
+			response = new RMIData(null, new RMIException(e));
+		}
+		InputStream download = null;
+		if (streaming && response.getResult() instanceof InputStream) {
+			download = (InputStream)response.getResult();
+			response = new RMIData(Streams.Placeholder.INSTANCE, null);
+		}
+		try {
+			byte[] encoded = codec.encodeResponse(response);
+			if (metrics != null) {
+				metrics.responseBytes(encoded.length);
+			}
+			return new Frame(Protocol.RESPONSE, download == null ? 0 : Protocol.STREAMED,
+					frame.getCallId(), encoded, download);
+		} catch (IOException e) {
+			skt.serviceError(new RMIException(e));
 			try {
-				// System.out.println("==========Worker: class:" + localObj.getClass().getName());
-				// System.out.println("==========Worker: class:" + itfName);
-				// System.out.println("==========Worker: method: " + targetMethod.getName());
-				// System.out.println("==========Worker: method: " + className);
-				targetMethod.setAccessible(true);
-				val = targetMethod.invoke(localObj, args);
-			} catch (InvocationTargetException e1) {
-				return new RMIData(null, (Exception)e1.getTargetException());				
-			} catch (IllegalAccessException | IllegalArgumentException e) {
-				// TODO Auto-generated catch block
-				// e.printStackTrace();
-				// System.out.println("==========Worker: Exp when runMethod2==========");
-				skt.service_error(new RMIException(e));
-				return new RMIData(null, new RMIException(e));
+				return new Frame(Protocol.RESPONSE, (byte)0, frame.getCallId(),
+						codec.encodeResponse(new RMIData(null, new RMIException(e))));
+			} catch (IOException e1) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Runs the requests of a batch in order and collects their responses
+	 * @param skt The skeleton whose remote object is to be called
+	 * @param codec The codec of the connection
+	 * @param payload The payload of the batch frame
+	 * @param received When the frame was read, from
+	 *                 <code>System.nanoTime</code>
+	 * @param peer The client, if the connection accepted callbacks, or
+	 *             <code>null</code>
+	 * @return the payload of the response frame, or <code>null</code> if the
+	 *         batch is malformed or a response could not be encoded
+	 */
+	static <T> byte[] runBatch(Skeleton<T> skt, Codec codec, byte[] payload, long received,
+			Callbacks.Peer peer) {
+		List<byte[]> requests;
+		try {
+			requests = Protocol.splitBatch(payload);
+		} catch (IOException e) {
+			skt.serviceError(new RMIException(e));
+			return null;
+		}
+		List<byte[]> responses = new ArrayList<byte[]>(requests.size());
+		for (byte[] request : requests) {
+			byte[] response = runFrame(skt, codec, request, received, peer);
+			if (response == null) {
+				return null;
 			}
+			responses.add(response);
+		}
+		return Protocol.joinBatch(responses);
+	}
+
+	/**
+	 * Answers a request, or every request of a batch, with a
+	 * <code>ServerBusyException</code>
+	 * @param skt The skeleton refusing the call
+	 * @param codec The codec of the connection
+	 * @param frame The request or batch frame
+	 * @return the payload of the response frame, or <code>null</code> if the
+	 *         batch is malformed or the response could not be encoded
+	 */
+	static <T> byte[] busy(Skeleton<T> skt, Codec codec, Frame frame) {
+		try {
+			byte[] response = codec.encodeResponse(new RMIData(null, skt.getAdmission().busy()));
+			if (frame.getType() != Protocol.BATCH) {
+				return response;
+			}
+			int count = Protocol.splitBatch(frame.getPayload()).size();
+			return Protocol.joinBatch(Collections.nCopies(count, response));
+		} catch (IOException e) {
+			skt.serviceError(new RMIException(e));
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the skeleton metrics of the method named by a request
+	 * @param skt The skeleton whose remote object is to be called
+	 * @param request The request
+	 * @return the metrics, or <code>null</code> if no object is exported
+	 *         under the ID of the request or its interface has no such method
+	 */
+	static <T> MethodMetrics metrics(Skeleton<T> skt, RMIData request) {
+		Dispatcher<?> dispatcher = skt.getDispatcher(request.getObjectId());
+		if (dispatcher == null) {
+			return null;
+		}
+		int id = dispatcher.methodId(request.getMethodName(), request.getArgsType());
+		return id < 0 ? null : Metrics.SKELETON.of(dispatcher.getMethod(id));
+	}
+
+	/**
+	 * Executes the method call through the dispatch table of the object the
+	 * request names. A call whose deadline passed while it waited is answered
+	 * with a <code>DeadlineExceededException</code> instead; otherwise the
+	 * method runs within the call's deadline. If the call is traced, it is
+	 * recorded in a span that stays current while the method runs.
+	 * @param skt The skeleton whose remote object is to be called
+	 * @param request The request naming the method and carrying its arguments
+	 * @param metrics The metrics of the method, or <code>null</code> if the
+	 *                interface has no such method
+	 * @param received When the request was read, from
+	 *                 <code>System.nanoTime</code>
+	 * @return An object, the return value of the method call
+	 */
+	static <T> RMIData runMethod(Skeleton<T> skt, RMIData request, MethodMetrics metrics,
+			long received) {
+		Span span = Span.serve(request, received);
+		if (span == null) {
+			return execute(skt, request, metrics, received);
+		}
+		try {
+			RMIData response = execute(skt, request, metrics, received);
+			span.failed(response.getException());
+			return response;
+		} finally {
+			span.close();
+		}
+	}
+
+	/**
+	 * Executes the method call of {@link #runMethod}, within the span of the
+	 * call if it is traced
+	 */
+	private static <T> RMIData execute(Skeleton<T> skt, RMIData request, MethodMetrics metrics,
+			long received) {
+		long start = System.nanoTime();
+		if (metrics != null) {
+			metrics.queued(start - received);
+		}
+		long timeout = request.getTimeout();
+		if (timeout > 0 && start - received >= timeout) {
+			Metrics.SKELETON.expired();
+			return new RMIData(null, new DeadlineExceededException("Error: the deadline passed after "
+					+ TimeUnit.NANOSECONDS.toMillis(start - received) + " ms waiting for a thread"));
+		}
+		Object val = null;
+		Deadline deadline = timeout > 0 ? Deadline.open(received + timeout) : null;
+		try {
+			Dispatcher<?> dispatcher = skt.getDispatcher(request.getObjectId());
+			if (dispatcher == null) {
+				throw new RMIException("Error: no object exported under ID " + request.getObjectId());
+			}
+			val = dispatcher.invoke(request.getClassName(), request.getMethodName(),
+					request.getArgsType(), request.getArgs());
+		} catch (RMIException e) {
+			if (metrics != null) {
+				metrics.failed(System.nanoTime() - start);
+			} else {
+				Metrics.SKELETON.error();
+			}
+			skt.service_error(e);
+			return new RMIData(null, e);
+		} catch (InvocationTargetException e1) {
+			if (metrics != null) {
+				metrics.raised(System.nanoTime() - start);
+			}
+			Throwable target = e1.getTargetException();
+			if (target instanceof Exception) {
+				return new RMIData(null, (Exception)target);
+			}
+			return new RMIData(null, new RMIException(target));
+		} finally {
+			if (deadline != null) {
+				deadline.close();
+			}
+		}
+		if (metrics != null) {
+			metrics.succeeded(System.nanoTime() - start);
 		}
 		return new RMIData(val, null);
 	}
@@ -70,5 +70,45 @@
     client. To avoid this, the RMI library allows the client to create an
     initial stub by directly providing a network address to a version of
     <code>create</code>.
+
+    <p>
+    Arguments and return values declared as <code>InputStream</code> are
+    streamed between persistent stubs and blocking skeletons: their bytes are
+    sent in fixed-size chunks as they are read, and the receiver may read them
+    while the transfer is still going on, holding only a few chunks in memory.
+    Only the first stream argument of a call is streamed this way. On other
+    transports, streams are read whole and sent like any other value. A
+    stream that is received but not read only holds up its sender, which
+    waits for the receiver to read or close it; the other calls sharing the
+    connection go on.
+
+    <p>
+    A call can be bounded in time by the timeout of its stub, set in
+    <code>StubConfig</code>, or by a <code>Deadline</code> opened by the
+    calling thread. The time left travels with the request: a skeleton that
+    only gets to a call once it has passed answers with a
+    <code>DeadlineExceededException</code> without running the method, and
+    calls made by the method in turn inherit what is left of it.
+
+    <p>
+    Calls can be traced across processes. Once a <code>SpanSink</code> is
+    set with <code>Span.setSink</code>, each call made by a stub and each
+    call run by a skeleton is recorded as a <code>Span</code>. The trace
+    travels with the request, so the calls a method makes in turn are
+    recorded as children of the call that ran it.
+
+    <p>
+    Stubs are dynamic proxies unless <code>StubGenerator</code> has been run
+    for the remote interface at build time and its output is on the class
+    path. Generated stubs and dispatchers are plain classes: creating a stub
+    is a constructor call, and calls reach the network or the server object
+    without going through an invocation handler or method handle.
+
+    <p>
+    A client that wants to be notified, rather than poll, passes a callback
+    created with <code>Stub.createCallback</code> through a persistent stub.
+    The server calls it like any remote object; the calls travel back over the
+    connection the client opened, so the client needs no skeleton of its own
+    and no address the server can reach.
  */
 package rmi;
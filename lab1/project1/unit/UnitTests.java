@@ -8,6 +8,26 @@ import test.*;
     Tests run are:
     <ul>
     <li>{@link rmi.SampleUnitTest}</li>
+    <li>{@link rmi.PersistentConnectionTest}</li>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.NonBlockingSkeletonTest}</li>
+    <li>{@link rmi.ThreadPerCallSkeletonTest}</li>
+    <li>{@link rmi.BinaryCodecTest}</li>
+    <li>{@link rmi.DispatcherTest}</li>
+    <li>{@link rmi.AsyncStubTest}</li>
+    <li>{@link rmi.BatchTest}</li>
+    <li>{@link rmi.MetricsTest}</li>
+    <li>{@link rmi.AdmissionTest}</li>
+    <li>{@link rmi.StreamingTest}</li>
+    <li>{@link rmi.DeadlineTest}</li>
+    <li>{@link rmi.CompressionTest}</li>
+    <li>{@link rmi.GeneratedStubTest}</li>
+    <li>{@link rmi.ExportTest}</li>
+    <li>{@link rmi.CallbackTest}</li>
+    <li>{@link rmi.BalancingTest}</li>
+    <li>{@link rmi.LocalSocketTest}</li>
+    <li>{@link rmi.TraceTest}</li>
+    <li>{@link rmi.AllocationTest}</li>
     </ul>
  */
 public class UnitTests
@@ -21,7 +41,27 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {rmi.SampleUnitTest.class};
+            new Class[] {rmi.SampleUnitTest.class,
+                         rmi.PersistentConnectionTest.class,
+                         rmi.ConnectionPoolTest.class,
+                         rmi.NonBlockingSkeletonTest.class,
+                         rmi.ThreadPerCallSkeletonTest.class,
+                         rmi.BinaryCodecTest.class,
+                         rmi.DispatcherTest.class,
+                         rmi.AsyncStubTest.class,
+                         rmi.BatchTest.class,
+                         rmi.MetricsTest.class,
+                         rmi.AdmissionTest.class,
+                         rmi.StreamingTest.class,
+                         rmi.DeadlineTest.class,
+                         rmi.CompressionTest.class,
+                         rmi.GeneratedStubTest.class,
+                         rmi.ExportTest.class,
+                         rmi.CallbackTest.class,
+                         rmi.BalancingTest.class,
+                         rmi.LocalSocketTest.class,
+                         rmi.TraceTest.class,
+                         rmi.AllocationTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
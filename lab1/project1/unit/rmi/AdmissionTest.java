@@ -0,0 +1,209 @@
+package rmi;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that a skeleton limited to one call in flight answers further
+    calls with <code>ServerBusyException</code>, on the blocking and
+    non-blocking transports and for one-shot and persistent stubs, and serves
+    calls again once the running call is done.
+ */
+public class AdmissionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking skeleton admission control";
+
+    private Skeleton<HoldInterface>     skeleton;
+    private HoldServer                  server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking limits");
+
+        Skeleton<HoldInterface> unstarted =
+            new Skeleton<HoldInterface>(HoldInterface.class, new HoldServer());
+
+        try
+        {
+            unstarted.setMaxInFlight(-1);
+            throw new TestFailed("negative limit accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        long    rejected = Metrics.SKELETON.snapshot().getRejected();
+
+        check(false);
+        check(true);
+
+        if(Metrics.SKELETON.snapshot().getRejected() - rejected < 4)
+            throw new TestFailed("refused calls were not counted");
+
+        task();
+    }
+
+    /** Holds the only admitted call and makes calls that must be refused.
+
+        @param nonBlocking Whether the skeleton uses the non-blocking
+                           transport.
+        @throws TestFailed If the test fails.
+     */
+    private void check(boolean nonBlocking) throws TestFailed
+    {
+        String  transport = nonBlocking ? "non-blocking" : "blocking";
+
+        task("holding the only call admitted by a " + transport + " skeleton");
+
+        server = new HoldServer();
+        skeleton = new Skeleton<HoldInterface>(HoldInterface.class, server);
+        skeleton.setNonBlocking(nonBlocking);
+        skeleton.setMaxInFlight(1);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        final HoldInterface oneShot =
+            Stub.create(HoldInterface.class, skeleton.getAddress());
+        HoldInterface       persistent =
+            Stub.create(HoldInterface.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(true));
+
+        final Throwable[]   holdError = new Throwable[1];
+        Thread              holder = new Thread(() ->
+        {
+            try
+            {
+                oneShot.hold();
+            }
+            catch(Throwable t)
+            {
+                holdError[0] = t;
+            }
+        });
+        holder.start();
+
+        try
+        {
+            if(!server.entered.await(5, TimeUnit.SECONDS))
+                throw new TestFailed("held call did not start");
+
+            task("calling a busy " + transport + " skeleton");
+
+            expectBusy(oneShot, "one-shot");
+            expectBusy(persistent, "persistent");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+        finally
+        {
+            server.release.countDown();
+        }
+
+        try
+        {
+            holder.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        if(holdError[0] != null)
+            throw new TestFailed("held call failed", holdError[0]);
+
+        task("calling the " + transport + " skeleton once it is idle");
+
+        try
+        {
+            if(oneShot.add(1, 2) != 3 || persistent.add(2, 3) != 5)
+                throw new TestFailed("wrong result");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed after the skeleton was idle", e);
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Makes a call that must be refused.
+
+        @param stub The stub to call.
+        @param kind The kind of stub, for messages.
+        @throws TestFailed If the call is not refused.
+     */
+    private void expectBusy(HoldInterface stub, String kind)
+        throws TestFailed
+    {
+        try
+        {
+            stub.add(1, 1);
+            throw new TestFailed("call through " + kind + " stub admitted");
+        }
+        catch(ServerBusyException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call through " + kind + " stub raised " +
+                                 "wrong exception", e);
+        }
+    }
+
+    /** Stops the skeleton and releases any held call. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.countDown();
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface HoldInterface
+    {
+        public void hold() throws RMIException;
+        public int add(int a, int b) throws RMIException;
+    }
+
+    /** Server whose <code>hold</code> method blocks until released. */
+    private static class HoldServer implements HoldInterface
+    {
+        final CountDownLatch    entered = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public void hold()
+        {
+            entered.countDown();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+    }
+}
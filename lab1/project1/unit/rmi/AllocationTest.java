@@ -0,0 +1,220 @@
+package rmi;
+
+import java.io.IOException;
+
+import test.*;
+
+/** Checks that codecs reuse the buffers of their thread without mixing up
+    payloads, and that the bytes allocated by calls are counted on both
+    sides.
+ */
+public class AllocationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking buffer reuse and " +
+                                         "allocation counts";
+
+    /** Number of calls counted. */
+    private static final int    CALLS = 50;
+
+    private Skeleton<Echo>      skeleton;
+
+    /** Starts a skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer());
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("reusing the buffers of a thread");
+        buffers();
+
+        task("encoding payloads through reused buffers");
+        payloads();
+
+        task("counting allocations");
+        counts(new StubConfig().setPersistent(true));
+        counts(new StubConfig().setPersistent(false));
+
+        task();
+    }
+
+    /** Checks that a thread's buffers are handed out again once released,
+        and that nested users get their own.
+     */
+    private void buffers() throws TestFailed
+    {
+        Buffers.Output  first = Buffers.output();
+        Buffers.Output  nested = Buffers.output();
+
+        if(nested == first)
+            throw new TestFailed("output handed out twice");
+
+        first.write(1);
+        nested.release();
+        first.release();
+
+        Buffers.Output  again = Buffers.output();
+        if(again != first || again.size() != 0)
+            throw new TestFailed("output not reused empty");
+
+        again.write(new byte[Buffers.MAX_RETAINED + 1], 0,
+                    Buffers.MAX_RETAINED + 1);
+        again.release();
+
+        Buffers.Output  shrunk = Buffers.output();
+        if(shrunk.size() != 0)
+            throw new TestFailed("output not emptied");
+        shrunk.release();
+
+        Buffers.Input   input = Buffers.input(new byte[] {7, 8});
+        Buffers.Input   inner = Buffers.input(new byte[] {9});
+
+        try
+        {
+            if(inner == input || inner.data.readByte() != 9 ||
+               input.data.readByte() != 7 || input.data.readByte() != 8)
+            {
+                throw new TestFailed("inputs mixed up");
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read input", e);
+        }
+        finally
+        {
+            inner.release();
+            input.release();
+        }
+
+        if(input.available() != 0)
+            throw new TestFailed("released input still holds its payload");
+    }
+
+    /** Checks that payloads encoded one after the other on a thread do not
+        share bytes.
+     */
+    private void payloads() throws TestFailed
+    {
+        try
+        {
+            byte[]  first = Protocol.encode(new RMIData("first", null));
+            byte[]  second = Protocol.encode(new RMIData(new byte[100000],
+                                                         null));
+            byte[]  third = Protocol.encode(new RMIData("third", null));
+
+            if(!"first".equals(Protocol.decode(first).getResult()) ||
+               ((byte[])Protocol.decode(second).getResult()).length !=
+                   100000 ||
+               !"third".equals(Protocol.decode(third).getResult()))
+            {
+                throw new TestFailed("payloads corrupted");
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode payloads", e);
+        }
+    }
+
+    /** Checks that each call's allocations are counted on both sides.
+
+        @param config The options of the stub.
+        @throws TestFailed If calls are not counted.
+     */
+    private void counts(StubConfig config) throws TestFailed
+    {
+        Echo    stub = Stub.create(Echo.class, skeleton.getAddress(), config);
+
+        Metrics.STUB.reset();
+        Metrics.SKELETON.reset();
+
+        try
+        {
+            for(int call = 0; call < CALLS; ++call)
+                stub.echo("hello");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        Metrics.Snapshot    stubSide = Metrics.STUB.snapshot();
+        Metrics.Snapshot    skeletonSide = Metrics.SKELETON.snapshot();
+
+        // one-shot skeletons count a call after sending its response
+        for(int wait = 0; wait < 100 &&
+                skeletonSide.getAllocatedCalls() < CALLS; ++wait)
+        {
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch(InterruptedException e) { }
+
+            skeletonSide = Metrics.SKELETON.snapshot();
+        }
+
+        if(Metrics.allocationMark() < 0)
+        {
+            // this virtual machine cannot count allocations
+            if(stubSide.getAllocatedCalls() != 0)
+                throw new TestFailed("allocations counted without a counter");
+            return;
+        }
+
+        if(stubSide.getAllocatedCalls() != CALLS ||
+           skeletonSide.getAllocatedCalls() < CALLS)
+        {
+            throw new TestFailed("calls not counted: " + stubSide + "\n" +
+                                 skeletonSide);
+        }
+
+        if(stubSide.getAllocatedBytesPerCall() <= 0 ||
+           skeletonSide.getAllocatedBytesPerCall() <= 0)
+        {
+            throw new TestFailed("allocations not counted");
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Interface of the skeleton. */
+    public interface Echo
+    {
+        public String echo(String text) throws RMIException;
+    }
+
+    /** Server returning its argument. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public String echo(String text)
+        {
+            return text;
+        }
+    }
+}
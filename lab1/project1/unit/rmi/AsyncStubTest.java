@@ -0,0 +1,177 @@
+package rmi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Checks that asynchronous stubs run many calls at once from one thread,
+    deliver results and remote exceptions through futures, and reject
+    lambdas that do not make exactly one call.
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking asynchronous stubs";
+
+    /** Number of slow calls started together. */
+    private static final int    CALLS = 10;
+    /** Duration of each slow call, in milliseconds. */
+    private static final int    DELAY = 100;
+
+    private Skeleton<SlowInterface>     skeleton;
+    private final SlowServer            server = new SlowServer();
+
+    /** Starts a skeleton with enough threads to run every call at once. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<SlowInterface>(SlowInterface.class, server);
+        skeleton.setThreadPerCall(true);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        SlowInterface               stub =
+            Stub.create(SlowInterface.class, skeleton.getAddress());
+        AsyncStub<SlowInterface>    async =
+            Stub.createAsync(SlowInterface.class, stub);
+
+        task("starting slow calls without waiting");
+
+        List<CompletableFuture<Integer>>    futures =
+            new ArrayList<CompletableFuture<Integer>>();
+        long                                start = System.currentTimeMillis();
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            final int   value = call;
+            futures.add(async.call(s -> s.slowEcho(value, DELAY)));
+        }
+
+        task("combining the results");
+
+        CompletableFuture<Integer>  sum = CompletableFuture.completedFuture(0);
+        for(CompletableFuture<Integer> future : futures)
+            sum = sum.thenCombine(future, (a, b) -> a + b);
+
+        try
+        {
+            if(sum.get() != CALLS * (CALLS - 1) / 2)
+                throw new TestFailed("wrong combined result");
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("asynchronous call failed", e);
+        }
+
+        if(System.currentTimeMillis() - start >= CALLS * DELAY)
+            throw new TestFailed("calls did not run concurrently");
+
+        task("running a call whose result is not needed");
+
+        try
+        {
+            async.run(s -> s.touch()).get();
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("asynchronous call failed", e);
+        }
+
+        if(server.touched.get() != 1)
+            throw new TestFailed("call was not made");
+
+        task("receiving a remote exception");
+
+        try
+        {
+            async.run(s -> s.fail()).get();
+            throw new TestFailed("remote exception was not raised");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof IllegalStateException))
+                throw new TestFailed("wrong exception delivered", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        task("rejecting a lambda that makes no call");
+
+        try
+        {
+            async.call(s -> 1);
+            throw new TestFailed("lambda without a call was accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface SlowInterface
+    {
+        public int slowEcho(int value, int delay) throws RMIException;
+        public void touch() throws RMIException;
+        public void fail() throws RMIException;
+    }
+
+    /** Server whose calls take time. */
+    private static class SlowServer implements SlowInterface
+    {
+        final AtomicInteger     touched = new AtomicInteger();
+
+        @Override
+        public int slowEcho(int value, int delay)
+        {
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch(InterruptedException e) { }
+
+            return value;
+        }
+
+        @Override
+        public void touch()
+        {
+            touched.incrementAndGet();
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+    }
+}
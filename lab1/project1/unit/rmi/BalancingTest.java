@@ -0,0 +1,379 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that stubs created for several skeletons spread their calls by
+    each balancing policy, and move on from skeletons that cannot be reached.
+ */
+public class BalancingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking stubs for several skeletons";
+
+    /** Number of replicas started. */
+    private static final int        REPLICAS = 3;
+
+    /** Delay of the slow replica, in milliseconds. */
+    private static final long       SLOW_MILLIS = 100;
+
+    private final List<Skeleton<Replica>>   skeletons =
+        new ArrayList<Skeleton<Replica>>();
+    private final List<InetSocketAddress>   addresses =
+        new ArrayList<InetSocketAddress>();
+    private final ReplicaServer[]           servers =
+        new ReplicaServer[REPLICAS];
+
+    /** Address on which nothing listens. */
+    private InetSocketAddress               closed;
+
+    /** Starts the replicas. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            for(int index = 0; index < REPLICAS; ++index)
+            {
+                servers[index] = new ReplicaServer(index);
+                Skeleton<Replica>   skeleton =
+                    new Skeleton<Replica>(Replica.class, servers[index]);
+                skeleton.start();
+                skeletons.add(skeleton);
+                addresses.add(skeleton.getAddress());
+            }
+
+            ServerSocket    socket = new ServerSocket(0);
+            closed = new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+            socket.close();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking limits");
+
+        try
+        {
+            Stub.create(Replica.class, new ArrayList<InetSocketAddress>(),
+                        new StubConfig());
+            throw new TestFailed("stub created for no address");
+        }
+        catch(IllegalArgumentException e) { }
+
+        if(!(Stub.create(Replica.class,
+                         Arrays.asList(addresses.get(0), addresses.get(0)),
+                         new StubConfig()) instanceof Replica))
+        {
+            throw new TestFailed("stub for one address not created");
+        }
+
+        task("spreading calls in turn");
+        roundRobin(new StubConfig());
+        roundRobin(new StubConfig().setPersistent(true));
+
+        task("spreading calls by outstanding requests");
+        leastOutstanding();
+
+        task("spreading calls by response time");
+        latency();
+
+        task("failing over from an unreachable skeleton");
+        failover(new StubConfig());
+        failover(new StubConfig().setPersistent(true));
+
+        task("comparing and serializing stubs");
+        compare();
+
+        task();
+    }
+
+    /** Checks that calls visit each replica in turn. */
+    private void roundRobin(StubConfig config) throws TestFailed
+    {
+        Replica stub = Stub.create(Replica.class, addresses, config);
+        int[]   counts = calls(stub, REPLICAS * 4);
+
+        for(int count : counts)
+        {
+            if(count != 4)
+                throw new TestFailed("calls not spread evenly: " +
+                                     Arrays.toString(counts));
+        }
+    }
+
+    /** Checks that calls avoid a replica busy with another call. */
+    private void leastOutstanding() throws TestFailed
+    {
+        final Replica   stub =
+            Stub.create(Replica.class, addresses,
+                        new StubConfig().setPersistent(true).setBalancing(
+                            StubConfig.Balancing.LEAST_OUTSTANDING));
+        final int[]     held = {-1};
+        final CountDownLatch    entered = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        for(ReplicaServer server : servers)
+            server.hold(entered, release);
+
+        Thread          holder = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    held[0] = stub.hold();
+                }
+                catch(RMIException e) { }
+            }
+        };
+
+        holder.start();
+
+        int[]           counts;
+
+        try
+        {
+            if(!entered.await(5, TimeUnit.SECONDS))
+                throw new TestFailed("held call did not arrive");
+
+            counts = calls(stub, REPLICAS * 2);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+        finally
+        {
+            release.countDown();
+        }
+
+        try
+        {
+            holder.join(5000);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        if(held[0] < 0)
+            throw new TestFailed("held call failed");
+
+        if(counts[held[0]] != 0)
+            throw new TestFailed("call sent to a busy replica: " +
+                                 Arrays.toString(counts));
+    }
+
+    /** Checks that calls avoid a slow replica once it has been measured. */
+    private void latency() throws TestFailed
+    {
+        Replica stub =
+            Stub.create(Replica.class, addresses,
+                        new StubConfig().setPersistent(true).setBalancing(
+                            StubConfig.Balancing.LATENCY_EWMA));
+
+        servers[0].delay = SLOW_MILLIS;
+
+        try
+        {
+            // each replica is measured first
+            calls(stub, REPLICAS * 2);
+
+            int[]   counts = calls(stub, 20);
+            if(counts[0] != 0)
+                throw new TestFailed("calls sent to the slow replica: " +
+                                     Arrays.toString(counts));
+        }
+        finally
+        {
+            servers[0].delay = 0;
+        }
+    }
+
+    /** Checks that calls move on from an address on which nothing
+        listens, and fail only when no replica can be reached.
+     */
+    private void failover(StubConfig config) throws TestFailed
+    {
+        List<InetSocketAddress> some = new ArrayList<InetSocketAddress>();
+        some.add(closed);
+        some.add(addresses.get(1));
+
+        Replica stub = Stub.create(Replica.class, some, config);
+        int[]   counts = calls(stub, 6);
+
+        if(counts[1] != 6)
+            throw new TestFailed("calls not failed over: " +
+                                 Arrays.toString(counts));
+
+        Replica none = Stub.create(Replica.class,
+            Arrays.asList(closed, new InetSocketAddress("127.0.0.1", 1)),
+            config);
+
+        try
+        {
+            none.id();
+            throw new TestFailed("call to unreachable replicas completed");
+        }
+        catch(RMIException e) { }
+    }
+
+    /** Checks equality, <code>toString</code> and serialization. */
+    private void compare() throws TestFailed
+    {
+        Replica                 stub =
+            Stub.create(Replica.class, addresses, new StubConfig());
+        List<InetSocketAddress> reversed =
+            new ArrayList<InetSocketAddress>(addresses);
+        Collections.reverse(reversed);
+        Replica                 same =
+            Stub.create(Replica.class, reversed, new StubConfig());
+        Replica                 single =
+            Stub.create(Replica.class, addresses.get(0));
+
+        if(!stub.equals(same) || stub.hashCode() != same.hashCode() ||
+           stub.equals(single) || single.equals(stub))
+        {
+            throw new TestFailed("stubs compared wrongly");
+        }
+
+        if(!stub.toString().contains("ENDPOINTS"))
+            throw new TestFailed("addresses not reported by toString");
+
+        Object                  copy;
+
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            ObjectOutputStream      out = new ObjectOutputStream(bytes);
+            out.writeObject(stub);
+            out.close();
+
+            copy = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to serialize stub", e);
+        }
+
+        if(!copy.equals(stub))
+            throw new TestFailed("deserialized stub differs");
+
+        calls((Replica)copy, REPLICAS);
+    }
+
+    /** Makes calls and counts how many each replica answered.
+
+        @param stub The stub to call.
+        @param count The number of calls.
+        @return The number of calls answered by each replica.
+        @throws TestFailed If a call fails.
+     */
+    private int[] calls(Replica stub, int count) throws TestFailed
+    {
+        int[]   counts = new int[REPLICAS];
+
+        try
+        {
+            for(int call = 0; call < count; ++call)
+                ++counts[stub.id()];
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        return counts;
+    }
+
+    /** Stops the replicas. */
+    @Override
+    protected void clean()
+    {
+        for(Skeleton<Replica> skeleton : skeletons)
+            skeleton.stop();
+    }
+
+    /** Interface of the replicas. */
+    public interface Replica
+    {
+        public int id() throws RMIException;
+        public int hold() throws RMIException;
+    }
+
+    /** Replica reporting its index. */
+    private static class ReplicaServer implements Replica
+    {
+        private final int               id;
+        volatile long                   delay = 0;
+        private volatile CountDownLatch entered;
+        private volatile CountDownLatch release;
+
+        ReplicaServer(int id)
+        {
+            this.id = id;
+        }
+
+        /** Makes <code>hold</code> wait for a latch. */
+        void hold(CountDownLatch entered, CountDownLatch release)
+        {
+            this.entered = entered;
+            this.release = release;
+        }
+
+        @Override
+        public int id()
+        {
+            if(delay > 0)
+            {
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch(InterruptedException e) { }
+            }
+
+            return id;
+        }
+
+        @Override
+        public int hold()
+        {
+            entered.countDown();
+
+            try
+            {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e) { }
+
+            return id;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import test.*;
+
+/** Checks that a batch runs its calls on the skeleton in order, returns each
+    result or exception through its own future, and cannot be sent twice.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking batches of calls";
+
+    /** Number of calls in the batch. */
+    private static final int    CALLS = 20;
+
+    private Skeleton<LogInterface>  blocking;
+    private Skeleton<LogInterface>  nonBlocking;
+
+    /** Starts one skeleton per transport. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        blocking = new Skeleton<LogInterface>(LogInterface.class,
+                                              new LogServer());
+        nonBlocking = new Skeleton<LogInterface>(LogInterface.class,
+                                                 new LogServer());
+        nonBlocking.setNonBlocking(true);
+
+        try
+        {
+            blocking.start();
+            nonBlocking.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("running a batch on a blocking skeleton");
+        check(blocking.getAddress());
+
+        task("running a batch on a non-blocking skeleton");
+        check(nonBlocking.getAddress());
+
+        task("sending an empty batch");
+
+        Batch<LogInterface>     empty =
+            Stub.createBatch(LogInterface.class, blocking.getAddress());
+
+        try
+        {
+            empty.send();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("empty batch failed", e);
+        }
+
+        task("sending a batch twice");
+
+        try
+        {
+            empty.send();
+            throw new TestFailed("batch was sent twice");
+        }
+        catch(IllegalStateException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("wrong exception for a batch sent twice", e);
+        }
+
+        task();
+    }
+
+    /** Sends one batch and checks every result.
+
+        @param address The skeleton's address.
+        @throws TestFailed If the batch fails or returns wrong results.
+     */
+    private void check(InetSocketAddress address) throws TestFailed
+    {
+        LogInterface                        stub =
+            Stub.create(LogInterface.class, address);
+        Batch<LogInterface>                 batch =
+            Stub.createBatch(LogInterface.class, stub);
+        List<CompletableFuture<Integer>>    results =
+            new ArrayList<CompletableFuture<Integer>>();
+
+        batch.run(s -> s.clear());
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            final int   value = call;
+            results.add(batch.call(s -> s.append(value, CALLS - value)));
+        }
+
+        CompletableFuture<Void>             failed = batch.run(s -> s.fail());
+        CompletableFuture<List<Integer>>    log = batch.call(s -> s.log());
+
+        if(batch.size() != CALLS + 3)
+            throw new TestFailed("wrong batch size");
+
+        try
+        {
+            batch.send();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("batch failed", e);
+        }
+
+        try
+        {
+            for(int call = 0; call < CALLS; ++call)
+            {
+                if(results.get(call).get() != call + 1)
+                    throw new TestFailed("wrong result in batch");
+            }
+
+            List<Integer>   order = log.get();
+            if(order.size() != CALLS)
+                throw new TestFailed("calls after a failing call did not run");
+
+            for(int call = 0; call < CALLS; ++call)
+            {
+                if(order.get(call) != call)
+                    throw new TestFailed("batch calls ran out of order");
+            }
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("call in batch failed", e);
+        }
+
+        try
+        {
+            failed.get();
+            throw new TestFailed("exception in batch was not raised");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof IllegalStateException))
+                throw new TestFailed("wrong exception in batch", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(blocking != null)
+            blocking.stop();
+
+        if(nonBlocking != null)
+            nonBlocking.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface LogInterface
+    {
+        public void clear() throws RMIException;
+        public int append(int value, int delay) throws RMIException;
+        public List<Integer> log() throws RMIException;
+        public void fail() throws RMIException;
+    }
+
+    /** Server logging the order of calls. Earlier calls take longer, so that
+        calls run concurrently would finish out of order. */
+    private static class LogServer implements LogInterface
+    {
+        private final List<Integer>     log =
+            Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void clear()
+        {
+            log.clear();
+        }
+
+        @Override
+        public int append(int value, int delay)
+        {
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch(InterruptedException e) { }
+
+            log.add(value);
+            return value + 1;
+        }
+
+        @Override
+        public List<Integer> log()
+        {
+            return new ArrayList<Integer>(log);
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package rmi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import test.*;
+
+/** Checks that persistent stubs using the binary codec pass primitives,
+    strings, byte arrays, registered custom types and serializable fallbacks
+    correctly, on both skeleton transports.
+
+    <p>
+    The custom type is not serializable, so it can only arrive through its
+    registered encoder.
+ */
+public class BinaryCodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the binary codec of persistent connections";
+
+    private Skeleton<CodecInterface>    blocking;
+    private Skeleton<CodecInterface>    nonBlocking;
+
+    /** Registers the custom encoder and starts one skeleton per transport. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Codecs.register(Point.class, new PointCodec());
+
+        blocking = new Skeleton<CodecInterface>(CodecInterface.class,
+                                                new CodecServer());
+        nonBlocking = new Skeleton<CodecInterface>(CodecInterface.class,
+                                                   new CodecServer());
+        nonBlocking.setNonBlocking(true);
+
+        try
+        {
+            blocking.start();
+            nonBlocking.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling a blocking skeleton");
+        check(blocking.getAddress());
+
+        task("calling a non-blocking skeleton");
+        check(nonBlocking.getAddress());
+
+        task("calling with the binary codec turned off");
+
+        try
+        {
+            CodecInterface  stub =
+                Stub.create(CodecInterface.class, blocking.getAddress(),
+                            new StubConfig().setPersistent(true)
+                                            .setBinaryCodec(false));
+
+            if(stub.add(2, 3) != 5)
+                throw new TestFailed("wrong result without the binary codec");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call without the binary codec failed", e);
+        }
+
+        task();
+    }
+
+    /** Makes every kind of call on a skeleton.
+
+        @param address The skeleton's address.
+        @throws TestFailed If a call fails or returns the wrong value.
+     */
+    private void check(InetSocketAddress address) throws TestFailed
+    {
+        CodecInterface      stub =
+            Stub.create(CodecInterface.class, address,
+                        new StubConfig().setPersistent(true));
+
+        try
+        {
+            if(stub.add(2, 3) != 5 || stub.add(-7, 7) != 0)
+                throw new TestFailed("wrong int result");
+
+            if(stub.mix(Long.MAX_VALUE, 1.5, true, 'x', (short)-3, (byte)9,
+                        2.5f) != Long.MAX_VALUE - 1)
+                throw new TestFailed("wrong result for mixed primitives");
+
+            byte[]          data = new byte[70000];
+            for(int index = 0; index < data.length; ++index)
+                data[index] = (byte)index;
+
+            byte[]          reversed = stub.reverse(data);
+            for(int index = 0; index < data.length; ++index)
+            {
+                if(reversed[index] != data[data.length - 1 - index])
+                    throw new TestFailed("wrong byte array result");
+            }
+
+            if(!"pingpong".equals(stub.concat("ping", "pong")))
+                throw new TestFailed("wrong string result");
+
+            if(stub.concat(null, "x") != null)
+                throw new TestFailed("null argument was not passed");
+
+            Point           moved = stub.move(new Point(1, 2), 10);
+            if(moved.x != 11 || moved.y != 12)
+                throw new TestFailed("wrong custom type result");
+
+            List<String>    list = new ArrayList<String>(Arrays.asList("a", "b"));
+            if(!stub.echo(list).equals(list))
+                throw new TestFailed("wrong serialized result");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        try
+        {
+            stub.fail();
+            throw new TestFailed("remote exception was not raised");
+        }
+        catch(IllegalStateException e)
+        {
+            if(!"expected".equals(e.getMessage()))
+                throw new TestFailed("wrong remote exception");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("remote exception was not delivered", e);
+        }
+    }
+
+    /** Stops the skeletons and removes the custom encoder. */
+    @Override
+    protected void clean()
+    {
+        if(blocking != null)
+            blocking.stop();
+
+        if(nonBlocking != null)
+            nonBlocking.stop();
+
+        Codecs.unregister(Point.class);
+    }
+
+    /** Remote interface used by the test. */
+    public interface CodecInterface
+    {
+        public int add(int a, int b) throws RMIException;
+        public long mix(long l, double d, boolean z, char c, short s, byte b,
+                        float f) throws RMIException;
+        public byte[] reverse(byte[] data) throws RMIException;
+        public String concat(String a, String b) throws RMIException;
+        public Point move(Point p, int delta) throws RMIException;
+        public List<String> echo(List<String> list) throws RMIException;
+        public void fail() throws RMIException;
+    }
+
+    /** A type that is not serializable. */
+    public static class Point
+    {
+        final int   x;
+        final int   y;
+
+        Point(int x, int y)
+        {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /** Encoder of <code>Point</code>. */
+    private static class PointCodec implements TypeCodec<Point>
+    {
+        @Override
+        public void write(Point value, DataOutput out) throws IOException
+        {
+            out.writeInt(value.x);
+            out.writeInt(value.y);
+        }
+
+        @Override
+        public Point read(DataInput in) throws IOException
+        {
+            return new Point(in.readInt(), in.readInt());
+        }
+    }
+
+    /** Server implementing the test interface. */
+    private static class CodecServer implements CodecInterface
+    {
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public long mix(long l, double d, boolean z, char c, short s, byte b,
+                        float f)
+        {
+            if(d != 1.5 || !z || c != 'x' || s != -3 || b != 9 || f != 2.5f)
+                return 0;
+
+            return l - 1;
+        }
+
+        @Override
+        public byte[] reverse(byte[] data)
+        {
+            byte[]  result = new byte[data.length];
+
+            for(int index = 0; index < data.length; ++index)
+                result[index] = data[data.length - 1 - index];
+
+            return result;
+        }
+
+        @Override
+        public String concat(String a, String b)
+        {
+            if(a == null || b == null)
+                return null;
+
+            return a + b;
+        }
+
+        @Override
+        public Point move(Point p, int delta)
+        {
+            return new Point(p.x + delta, p.y + delta);
+        }
+
+        @Override
+        public List<String> echo(List<String> list)
+        {
+            return list;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException("expected");
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import test.*;
+
+/** Checks that objects passed as callbacks are called back by the server
+    over the client's own connection, on the blocking and non-blocking
+    transports, and that one-shot stubs refuse to pass them.
+ */
+public class CallbackTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking callbacks";
+
+    private Skeleton<Publisher> skeleton;
+    private Skeleton<Publisher> nioSkeleton;
+
+    /** Starts a blocking and a non-blocking skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Publisher>(Publisher.class,
+                                           new PublisherServer());
+        nioSkeleton = new Skeleton<Publisher>(Publisher.class,
+                                              new PublisherServer());
+        skeleton.setNonBlocking(false);
+        nioSkeleton.setNonBlocking(true);
+
+        try
+        {
+            skeleton.start();
+            nioSkeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling a callback locally");
+
+        RecordingListener   local = new RecordingListener(null);
+        Listener            callback =
+            Stub.createCallback(Listener.class, local);
+
+        try
+        {
+            callback.event("local");
+        }
+        catch(RMIException | IOException e)
+        {
+            throw new TestFailed("local call failed", e);
+        }
+
+        if(!local.events.contains("local") || !callback.equals(callback))
+            throw new TestFailed("local call not made");
+
+        task("passing a callback through a one-shot stub");
+
+        try
+        {
+            Stub.create(Publisher.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(false))
+                .subscribe(callback);
+            throw new TestFailed("callback passed through a one-shot stub");
+        }
+        catch(RMIException e) { }
+
+        task("calling back through a blocking skeleton");
+        callbacks(skeleton, new StubConfig().setPersistent(true));
+        callbacks(skeleton, new StubConfig().setPersistent(true)
+                                            .setBinaryCodec(true));
+
+        task("calling back through a non-blocking skeleton");
+        callbacks(nioSkeleton, new StubConfig().setPersistent(true));
+
+        task();
+    }
+
+    /** Subscribes a listener and has the server call it back, during the
+        call that passed it and after.
+
+        @param target The skeleton to call.
+        @param config The options of the stub.
+        @throws TestFailed If the listener is not called back as expected.
+     */
+    private void callbacks(Skeleton<Publisher> target, StubConfig config)
+        throws TestFailed
+    {
+        Publisher           publisher = Stub.create(Publisher.class,
+                                                    target.getAddress(),
+                                                    config);
+        RecordingListener   local = new RecordingListener(publisher);
+        Listener            callback =
+            Stub.createCallback(Listener.class, local);
+
+        try
+        {
+            if(publisher.subscribe(callback) != 1 ||
+               publisher.subscribe(callback) != 1)
+            {
+                throw new TestFailed("callback passed twice not the same " +
+                                     "object on the server");
+            }
+
+            if(!local.events.contains("subscribed"))
+                throw new TestFailed("callback not called during the call");
+
+            publisher.publish("news");
+
+            if(!local.events.contains("news"))
+                throw new TestFailed("callback not called after the call");
+
+            if(local.listeners != 1)
+                throw new TestFailed("callback could not call the server");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        try
+        {
+            publisher.publish("fail");
+            throw new TestFailed("exception raised by callback lost");
+        }
+        catch(IOException e)
+        {
+            if(!"fail".equals(e.getMessage()))
+                throw new TestFailed("wrong exception message", e);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("exception raised by callback raised as " +
+                                 "RMIException", e);
+        }
+
+        try
+        {
+            publisher.clear();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to clear listeners", e);
+        }
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(nioSkeleton != null)
+            nioSkeleton.stop();
+    }
+
+    /** Interface of the callbacks. */
+    public interface Listener
+    {
+        public void event(String name) throws RMIException, IOException;
+    }
+
+    /** Interface of the server. */
+    public interface Publisher
+    {
+        public int subscribe(Listener listener) throws RMIException;
+        public void publish(String name) throws RMIException, IOException;
+        public int count() throws RMIException;
+        public void clear() throws RMIException;
+    }
+
+    /** Server calling its listeners. */
+    private static class PublisherServer implements Publisher
+    {
+        private final List<Listener>    listeners = new ArrayList<Listener>();
+
+        @Override
+        public int subscribe(Listener listener)
+            throws RMIException
+        {
+            synchronized(listeners)
+            {
+                if(!listeners.contains(listener))
+                    listeners.add(listener);
+            }
+
+            try
+            {
+                listener.event("subscribed");
+            }
+            catch(IOException e)
+            {
+                throw new RMIException(e);
+            }
+
+            return count();
+        }
+
+        @Override
+        public void publish(String name) throws RMIException, IOException
+        {
+            List<Listener>  copy;
+
+            synchronized(listeners)
+            {
+                copy = new ArrayList<Listener>(listeners);
+            }
+
+            for(Listener listener : copy)
+                listener.event(name);
+        }
+
+        @Override
+        public int count()
+        {
+            synchronized(listeners)
+            {
+                return listeners.size();
+            }
+        }
+
+        @Override
+        public void clear()
+        {
+            synchronized(listeners)
+            {
+                listeners.clear();
+            }
+        }
+    }
+
+    /** Listener recording the events it receives. */
+    private static class RecordingListener implements Listener
+    {
+        final List<String>      events = new ArrayList<String>();
+        private final Publisher publisher;
+        volatile int            listeners;
+
+        RecordingListener(Publisher publisher)
+        {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void event(String name) throws RMIException, IOException
+        {
+            if("fail".equals(name))
+                throw new IOException(name);
+
+            synchronized(events)
+            {
+                events.add(name);
+            }
+
+            // calls the server back while the server is calling it
+            if("news".equals(name) && publisher != null)
+                listeners = publisher.count();
+        }
+    }
+}
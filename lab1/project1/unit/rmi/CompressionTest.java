@@ -0,0 +1,318 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import test.*;
+
+/** Checks that compressed frames are restored intact, that small frames are
+    left alone, that the history of a connection makes repeated payloads
+    cheaper, and that compression is negotiated and used end to end on the
+    blocking and non-blocking transports.
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking negotiated compression";
+
+    /** Threshold used by the stubs of the test. */
+    private static final int    THRESHOLD = 256;
+
+    private Skeleton<TextInterface>     skeleton;
+    private Skeleton<TextInterface>     nioSkeleton;
+    private Skeleton<TextInterface>     refusing;
+
+    /** Starts a blocking, a non-blocking and a refusing skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        TextServer  server = new TextServer();
+
+        skeleton = new Skeleton<TextInterface>(TextInterface.class, server);
+        nioSkeleton = new Skeleton<TextInterface>(TextInterface.class, server);
+        refusing = new Skeleton<TextInterface>(TextInterface.class, server);
+        skeleton.setNonBlocking(false);
+        nioSkeleton.setNonBlocking(true);
+        refusing.setCompressionThreshold(0);
+
+        try
+        {
+            skeleton.start();
+            nioSkeleton.start();
+            refusing.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking limits");
+
+        try
+        {
+            new StubConfig().setCompressionThreshold(-1);
+            throw new TestFailed("negative stub threshold accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            skeleton.setCompressionThreshold(-1);
+            throw new TestFailed("negative skeleton threshold accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task("compressing and restoring frames");
+        frames();
+
+        task("compressing calls to a blocking skeleton");
+        calls(skeleton, true);
+
+        task("compressing calls to a non-blocking skeleton");
+        calls(nioSkeleton, true);
+
+        task("calling a skeleton that refuses compression");
+        calls(refusing, false);
+
+        task();
+    }
+
+    /** Passes frames through a pair of compression states.
+
+        @throws TestFailed If a frame is not restored or not compressed as
+                           expected.
+     */
+    private void frames() throws TestFailed
+    {
+        Compression     sender = new Compression(THRESHOLD, Metrics.STUB);
+        Compression     receiver = new Compression(THRESHOLD, Metrics.SKELETON);
+
+        try
+        {
+            byte[]      small = text(THRESHOLD - 1);
+            Frame       frame = sender.compress(new Frame(Protocol.REQUEST,
+                                                          (byte)0, 1, small));
+            if((frame.getFlags() & Protocol.COMPRESSED) != 0 ||
+               frame.getPayload() != small)
+            {
+                throw new TestFailed("small frame compressed");
+            }
+
+            // within the 32 KB history kept by deflate
+            byte[]      large = text(16 * 1024);
+            Frame       first = sender.compress(
+                new Frame(Protocol.REQUEST, Protocol.STREAMED, 2, large));
+            Frame       second = sender.compress(
+                new Frame(Protocol.CHUNK, Protocol.END, 3, large));
+
+            if((first.getFlags() & Protocol.COMPRESSED) == 0 ||
+               first.getPayload().length >= large.length / 4)
+            {
+                throw new TestFailed("large frame not compressed");
+            }
+
+            if(second.getPayload().length >= first.getPayload().length / 2)
+            {
+                throw new TestFailed("repeated payload not found in the " +
+                                     "connection's history");
+            }
+
+            restore(receiver.decompress(first), Protocol.REQUEST,
+                    Protocol.STREAMED, 2, large);
+            restore(receiver.decompress(second), Protocol.CHUNK,
+                    Protocol.END, 3, large);
+
+            try
+            {
+                new Compression(0, Metrics.SKELETON).decompress(first);
+                throw new TestFailed("compressed frame accepted without " +
+                                     "compression");
+            }
+            catch(IOException e) { }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to compress or restore frame", e);
+        }
+        finally
+        {
+            sender.end();
+            receiver.end();
+        }
+    }
+
+    /** Checks that a frame was restored as it was sent. */
+    private static void restore(Frame frame, byte type, byte flags,
+                                long callId, byte[] payload)
+        throws TestFailed
+    {
+        if(frame.getType() != type || frame.getFlags() != flags ||
+           frame.getCallId() != callId ||
+           !Arrays.equals(frame.getPayload(), payload))
+        {
+            throw new TestFailed("frame not restored intact");
+        }
+    }
+
+    /** Makes calls with large and small arguments and results.
+
+        @param target The skeleton to call.
+        @param compressed Whether the skeleton is expected to accept
+                          compression.
+        @throws TestFailed If a result is wrong or frames were not compressed
+                           as expected.
+     */
+    private void calls(Skeleton<TextInterface> target, boolean compressed)
+        throws TestFailed
+    {
+        TextInterface       stub =
+            Stub.create(TextInterface.class, target.getAddress(),
+                        new StubConfig().setPersistent(true)
+                                        .setCompressionThreshold(THRESHOLD));
+        Metrics.Snapshot    stubBefore = Metrics.STUB.snapshot();
+        Metrics.Snapshot    skeletonBefore = Metrics.SKELETON.snapshot();
+
+        try
+        {
+            String      large = new String(text(32 * 1024),
+                                           StandardCharsets.UTF_8);
+            if(!large.equals(stub.echo(large)) ||
+               !"small".equals(stub.echo("small")))
+            {
+                throw new TestFailed("wrong echo");
+            }
+
+            String[]    paths = new String[2000];
+            for(int index = 0; index < paths.length; ++index)
+                paths[index] = "/directory/subdirectory/file" + index;
+            if(!Arrays.equals(paths, stub.echoAll(paths)))
+                throw new TestFailed("wrong array echo");
+
+            byte[]      data = text(1024 * 1024);
+            if(!Arrays.equals(data, read(stub.download(data.length))))
+                throw new TestFailed("downloaded stream corrupted");
+        }
+        catch(IOException | RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        Metrics.Snapshot    stubAfter = Metrics.STUB.snapshot();
+        Metrics.Snapshot    skeletonAfter = Metrics.SKELETON.snapshot();
+        long                requests = stubAfter.getCompressedFrames() -
+                                       stubBefore.getCompressedFrames();
+        long                responses = skeletonAfter.getCompressedFrames() -
+                                        skeletonBefore.getCompressedFrames();
+
+        if(!compressed)
+        {
+            if(requests != 0 || responses != 0)
+                throw new TestFailed("frames compressed without agreement");
+            return;
+        }
+
+        if(requests < 2 || responses < 2)
+            throw new TestFailed("large frames were not compressed");
+
+        if(skeletonAfter.getDecompressedFrames() -
+           skeletonBefore.getDecompressedFrames() != requests)
+        {
+            throw new TestFailed("skeleton did not count decompressed frames");
+        }
+
+        long    before = stubAfter.getUncompressedBytes() -
+                         stubBefore.getUncompressedBytes();
+        long    after = stubAfter.getCompressedBytes() -
+                        stubBefore.getCompressedBytes();
+        if(after <= 0 || before / after < 2)
+            throw new TestFailed("poor compression ratio " + before + "/" +
+                                 after);
+    }
+
+    /** Generates repetitive text of the given length. */
+    private static byte[] text(int length)
+    {
+        StringBuilder   builder = new StringBuilder(length + 64);
+        int             line = 0;
+
+        while(builder.length() < length)
+        {
+            builder.append("line ").append(line++)
+                   .append(": the quick brown fox jumps over the lazy dog\n");
+        }
+
+        builder.setLength(length);
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Reads a stream whole. */
+    private static byte[] read(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        byte[]                  buffer = new byte[8192];
+        int                     n;
+
+        while((n = stream.read(buffer)) >= 0)
+            bytes.write(buffer, 0, n);
+
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(nioSkeleton != null)
+            nioSkeleton.stop();
+
+        if(refusing != null)
+            refusing.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface TextInterface
+    {
+        public String echo(String text) throws RMIException;
+        public String[] echoAll(String[] texts) throws RMIException;
+        public InputStream download(int length) throws RMIException;
+    }
+
+    /** Server implementing the remote interface. */
+    private static class TextServer implements TextInterface
+    {
+        @Override
+        public String echo(String text)
+        {
+            return text;
+        }
+
+        @Override
+        public String[] echoAll(String[] texts)
+        {
+            return texts;
+        }
+
+        @Override
+        public InputStream download(int length)
+        {
+            return new ByteArrayInputStream(text(length));
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that the connection pool keeps to its limit when connections are
+    opened concurrently, and that opening a connection does not hold up other
+    callers.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Many threads asking for a connection at once open no more than the
+        stub's limit.</li>
+    <li>A caller opening a connection to a skeleton that does not answer
+        does not keep another caller from opening its own, and both give up
+        at their timeouts.</li>
+    </ul>
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the opening of pooled connections";
+
+    /** Number of threads asking for a connection at once. */
+    private static final int    THREADS = 8;
+    /** Timeout of the connection that is held up, in milliseconds. */
+    private static final int    SLOW_TIMEOUT = 1000;
+    /** Timeout of the connection opened meanwhile, in milliseconds. */
+    private static final int    FAST_TIMEOUT = 100;
+
+    private Skeleton<EchoInterface>     skeleton;
+    /** A server socket that is never accepted from, so that handshakes
+        with it never complete. */
+    private ServerSocket                silent;
+    private Thread[]                    threads = new Thread[0];
+
+    /** Starts a skeleton and a silent server socket. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<EchoInterface>(EchoInterface.class,
+                                               new EchoServer());
+
+        try
+        {
+            skeleton.start();
+            silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("opening connections concurrently within the limit");
+        openConcurrently();
+
+        task("opening a connection while another is held up");
+        openWhileHeldUp();
+
+        task();
+    }
+
+    /** Has several threads ask for a connection to the skeleton at once.
+
+        @throws TestFailed If a thread fails or too many connections are
+                           opened.
+     */
+    private void openConcurrently() throws TestFailed
+    {
+        final InetSocketAddress address = skeleton.getAddress();
+        final StubConfig        config =
+            new StubConfig().setPersistent(true).setMaxConnections(2);
+        final CountDownLatch    ready = new CountDownLatch(1);
+        final Throwable[]       failure = new Throwable[1];
+
+        threads = new Thread[THREADS];
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        ready.await();
+                        ConnectionPool.get(address, config, 0);
+                    }
+                    catch(Throwable t)
+                    {
+                        synchronized(failure)
+                        {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            threads[index].start();
+        }
+
+        ready.countDown();
+        join(threads);
+
+        if(failure[0] != null)
+            throw new TestFailed("unable to get a connection", failure[0]);
+
+        if(ConnectionPool.size(address) > 2)
+            throw new TestFailed("pool opened more connections than allowed");
+    }
+
+    /** Opens a connection to the silent server while another thread is
+        waiting for the handshake of its own.
+
+        @throws TestFailed If the second connection waits for the first, or
+                           either does not time out.
+     */
+    private void openWhileHeldUp() throws TestFailed
+    {
+        final InetSocketAddress address =
+            new InetSocketAddress(silent.getInetAddress(),
+                                  silent.getLocalPort());
+        final StubConfig        config =
+            new StubConfig().setPersistent(true).setMaxConnections(2);
+        final Throwable[]       failure = new Throwable[1];
+
+        Thread  slow = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    ConnectionPool.get(address, config, SLOW_TIMEOUT);
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        };
+
+        threads = new Thread[] {slow};
+        slow.start();
+
+        try
+        {
+            // let the slow thread take its slot and start its handshake
+            Thread.sleep(100);
+        }
+        catch(InterruptedException e) { }
+
+        long    start = System.nanoTime();
+
+        try
+        {
+            ConnectionPool.get(address, config, FAST_TIMEOUT);
+            throw new TestFailed("handshake with silent server completed");
+        }
+        catch(SocketTimeoutException e) { }
+        catch(IOException e)
+        {
+            throw new TestFailed("connection failed instead of timing out", e);
+        }
+
+        long    elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() -
+                                                        start);
+        if(elapsed >= SLOW_TIMEOUT / 2)
+        {
+            throw new TestFailed("opening a connection waited " + elapsed +
+                                 " ms for another one");
+        }
+
+        join(threads);
+
+        if(!(failure[0] instanceof SocketTimeoutException))
+            throw new TestFailed("held up connection did not time out",
+                                 failure[0]);
+    }
+
+    /** Waits for threads to terminate.
+
+        @param threads The threads.
+     */
+    private static void join(Thread[] threads)
+    {
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e) { }
+        }
+    }
+
+    /** Stops the servers and the threads of a failed test. */
+    @Override
+    protected void clean()
+    {
+        for(Thread thread : threads)
+            thread.interrupt();
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        try
+        {
+            if(silent != null)
+                silent.close();
+        }
+        catch(IOException e) { }
+    }
+
+    /** Remote interface used by the test. */
+    public interface EchoInterface
+    {
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Server returning its argument. */
+    private static class EchoServer implements EchoInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that stub timeouts and thread deadlines bound remote calls on
+    one-shot and persistent stubs, that a persistent connection forgets the
+    calls that timed out, that the time left is visible to the remote
+    method, and that a skeleton does not run a call whose deadline passed
+    while it waited for a thread.
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking call deadlines";
+
+    /** Timeout of the calls that are expected to time out, in ms. */
+    private static final long   TIMEOUT = 200;
+
+    private Skeleton<SlowInterface>     skeleton;
+    private Skeleton<SlowInterface>     single;
+    private SlowServer                  server;
+    private SlowServer                  singleServer;
+
+    /** Starts a skeleton with enough threads for every held call, and one
+        with a single thread. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new SlowServer();
+        singleServer = new SlowServer();
+        skeleton = new Skeleton<SlowInterface>(SlowInterface.class, server);
+        single = new Skeleton<SlowInterface>(SlowInterface.class,
+                                             singleServer);
+        skeleton.setNonBlocking(false);
+        skeleton.setExecutor(Executors.newFixedThreadPool(8));
+        single.setNonBlocking(false);
+        single.setExecutor(Executors.newFixedThreadPool(1));
+
+        try
+        {
+            skeleton.start();
+            single.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking limits");
+
+        try
+        {
+            new StubConfig().setTimeout(-1);
+            throw new TestFailed("negative timeout accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            Deadline.after(-1, TimeUnit.MILLISECONDS);
+            throw new TestFailed("negative deadline accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task("timing out through a one-shot stub");
+        expectTimeout(Stub.create(SlowInterface.class, skeleton.getAddress(),
+                                  new StubConfig().setTimeout(TIMEOUT)));
+
+        task("timing out through a persistent stub");
+        // one connection, which the pool returns however loaded it is
+        StubConfig      config = new StubConfig().setPersistent(true)
+                                                 .setMaxConnections(1)
+                                                 .setTimeout(TIMEOUT);
+        SlowInterface   persistent =
+            Stub.create(SlowInterface.class, skeleton.getAddress(), config);
+        expectTimeout(persistent);
+        expectAbandoned(config);
+
+        try
+        {
+            if(persistent.add(1, 2) != 3)
+                throw new TestFailed("wrong result after timeout");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed after timeout", e);
+        }
+
+        task("timing out within a thread deadline");
+        SlowInterface   unbounded =
+            Stub.create(SlowInterface.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(true));
+
+        try(Deadline deadline = Deadline.after(TIMEOUT, TimeUnit.MILLISECONDS))
+        {
+            if(Deadline.current() != deadline)
+                throw new TestFailed("deadline is not current");
+
+            expectTimeout(unbounded);
+        }
+
+        if(Deadline.current() != null)
+            throw new TestFailed("deadline still current after close");
+
+        task("propagating the time left to the remote method");
+
+        try
+        {
+            if(unbounded.remaining() != -1)
+                throw new TestFailed("method sees a deadline without one");
+
+            long    left = Stub.create(SlowInterface.class,
+                                       skeleton.getAddress(),
+                                       new StubConfig().setTimeout(5000))
+                               .remaining();
+            if(left <= 0 || left > 5000)
+                throw new TestFailed("method sees " + left + " ms left");
+
+            try(Deadline deadline = Deadline.after(3, TimeUnit.SECONDS))
+            {
+                long    limit = deadline.remaining(TimeUnit.MILLISECONDS);
+
+                left = unbounded.remaining();
+                if(left <= 0 || left > limit)
+                {
+                    throw new TestFailed("method sees " + left +
+                                         " ms left of thread deadline");
+                }
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        task("refusing a call whose deadline passed while queued");
+        refuseQueued();
+
+        task();
+    }
+
+    /** Calls a method that outlasts the timeout. The method stays blocked
+        until the test ends, since the call may have timed out before it
+        started.
+
+        @param stub The stub to call.
+        @throws TestFailed If the call does not time out in time.
+     */
+    private void expectTimeout(SlowInterface stub) throws TestFailed
+    {
+        long    start = System.nanoTime();
+
+        try
+        {
+            stub.hold();
+            throw new TestFailed("call did not time out");
+        }
+        catch(DeadlineExceededException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call raised wrong exception", e);
+        }
+
+        long    elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() -
+                                                        start);
+        if(elapsed > 5000)
+            throw new TestFailed("call took " + elapsed + " ms to time out");
+    }
+
+    /** Checks that the pooled connection of a stub whose call timed out no
+        longer counts the call as pending.
+
+        @param config The options of the stub.
+        @throws TestFailed If the call is still pending after a second.
+     */
+    private void expectAbandoned(StubConfig config) throws TestFailed
+    {
+        long    deadline = System.currentTimeMillis() + 1000;
+
+        try
+        {
+            while(ConnectionPool.get(skeleton.getAddress(), config, 0)
+                      .getPendingCount() != 0)
+            {
+                if(System.currentTimeMillis() > deadline)
+                    throw new TestFailed("timed out call still pending");
+
+                Thread.sleep(10);
+            }
+        }
+        catch(IOException | InterruptedException e)
+        {
+            throw new TestFailed("unable to check the connection", e);
+        }
+    }
+
+    /** Keeps the only thread of a skeleton busy while a call with a short
+        timeout waits for it.
+
+        @throws TestFailed If the queued call runs or is not counted.
+     */
+    private void refuseQueued() throws TestFailed
+    {
+        final SlowInterface holding =
+            Stub.create(SlowInterface.class, single.getAddress(),
+                        new StubConfig().setPersistent(true)
+                                        .setMaxConnections(1));
+        // one connection, so that the call is not held up by a handshake
+        // waiting for the busy thread
+        SlowInterface       bounded =
+            Stub.create(SlowInterface.class, single.getAddress(),
+                        new StubConfig().setPersistent(true)
+                                        .setMaxConnections(1)
+                                        .setTimeout(TIMEOUT));
+        long                expired =
+            Metrics.SKELETON.snapshot().getExpired();
+
+        Thread              holder = new Thread(() ->
+        {
+            try
+            {
+                holding.hold();
+            }
+            catch(Throwable t) { }
+        });
+        holder.start();
+
+        try
+        {
+            if(!singleServer.entered.tryAcquire(5, TimeUnit.SECONDS))
+                throw new TestFailed("held call did not start");
+
+            try
+            {
+                bounded.add(1, 1);
+                throw new TestFailed("queued call did not time out");
+            }
+            catch(DeadlineExceededException e) { }
+            catch(RMIException e)
+            {
+                throw new TestFailed("queued call raised wrong exception",
+                                     e);
+            }
+
+            // the skeleton counts the timeout from when it received the
+            // call, a little after the stub started counting
+            Thread.sleep(TIMEOUT);
+            singleServer.release.release();
+            holder.join();
+
+            long    wait = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while(Metrics.SKELETON.snapshot().getExpired() == expired)
+            {
+                if(System.nanoTime() - wait > 0)
+                    throw new TestFailed("expired call was not counted");
+                Thread.sleep(10);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        if(singleServer.added != 0)
+            throw new TestFailed("expired call was run");
+    }
+
+    /** Stops the skeletons and releases any held call. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.release(100);
+
+        if(singleServer != null)
+            singleServer.release.release(100);
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(single != null)
+            single.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface SlowInterface
+    {
+        public void hold() throws RMIException;
+        public int add(int a, int b) throws RMIException;
+        public long remaining() throws RMIException;
+    }
+
+    /** Server whose <code>hold</code> method blocks until released. */
+    private static class SlowServer implements SlowInterface
+    {
+        final Semaphore     entered = new Semaphore(0);
+        final Semaphore     release = new Semaphore(0);
+        volatile int        added = 0;
+
+        @Override
+        public void hold()
+        {
+            entered.release();
+
+            try
+            {
+                release.tryAcquire(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public int add(int a, int b)
+        {
+            ++added;
+            return a + b;
+        }
+
+        @Override
+        public long remaining()
+        {
+            Deadline    deadline = Deadline.current();
+            return deadline == null ? -1
+                                    : deadline.remaining(TimeUnit.MILLISECONDS);
+        }
+    }
+}
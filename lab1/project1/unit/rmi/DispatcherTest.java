@@ -0,0 +1,149 @@
+package rmi;
+
+import java.lang.reflect.InvocationTargetException;
+
+import test.*;
+
+/** Checks the dispatch table of a remote interface: stable method IDs,
+    overload resolution, argument checks, and that only methods of the
+    interface can be called.
+ */
+public class DispatcherTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the skeleton dispatch table";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Dispatcher<OverloadInterface>   dispatcher =
+            new Dispatcher<OverloadInterface>(OverloadInterface.class,
+                                              new OverloadServer());
+        String                          name = OverloadInterface.class.getName();
+
+        task("assigning method IDs");
+
+        if(dispatcher.size() != 3)
+            throw new TestFailed("wrong number of methods in the table");
+
+        if(!dispatcher.getMethod(0).getName().equals("fail") ||
+           dispatcher.methodId("twice", new Class<?>[] {String.class}) != 1 ||
+           dispatcher.methodId("twice", new Class<?>[] {int.class}) != 2)
+        {
+            throw new TestFailed("method IDs are not in signature order");
+        }
+
+        if(dispatcher.methodId("other", new Class<?>[0]) != -1)
+            throw new TestFailed("method outside the interface has an ID");
+
+        task("calling overloads");
+
+        try
+        {
+            if(!Integer.valueOf(4).equals(
+                    dispatcher.invoke(name, "twice", new Class<?>[] {int.class},
+                                      new Object[] {2})) ||
+               !"abab".equals(dispatcher.invoke(1, new Object[] {"ab"})))
+            {
+                throw new TestFailed("wrong overload called");
+            }
+        }
+        catch(RMIException | InvocationTargetException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        task("rejecting bad calls");
+
+        expectRejected(dispatcher, name, "other", new Class<?>[0],
+                       new Object[0]);
+        expectRejected(dispatcher, "SomeOtherInterface", "twice",
+                       new Class<?>[] {int.class}, new Object[] {2});
+        expectRejected(dispatcher, name, "twice", new Class<?>[] {int.class},
+                       new Object[] {"2"});
+        expectRejected(dispatcher, name, "twice", new Class<?>[] {int.class},
+                       new Object[] {null});
+
+        task("delivering exceptions raised by the method");
+
+        try
+        {
+            dispatcher.invoke(name, "fail", new Class<?>[0], null);
+            throw new TestFailed("exception was not raised");
+        }
+        catch(InvocationTargetException e)
+        {
+            if(!(e.getTargetException() instanceof IllegalStateException))
+                throw new TestFailed("wrong exception delivered", e);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("method exception taken for a bad call", e);
+        }
+
+        task();
+    }
+
+    /** Checks that a call is refused before reaching the server.
+
+        @throws TestFailed If the call is not refused with
+                           <code>RMIException</code>.
+     */
+    private void expectRejected(Dispatcher<OverloadInterface> dispatcher,
+                                String className, String methodName,
+                                Class<?>[] argsType, Object[] args)
+        throws TestFailed
+    {
+        try
+        {
+            dispatcher.invoke(className, methodName, argsType, args);
+            throw new TestFailed("bad call to " + methodName + " accepted");
+        }
+        catch(RMIException e) { }
+        catch(InvocationTargetException e)
+        {
+            throw new TestFailed("bad call to " + methodName + " reached " +
+                                 "the server", e);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface OverloadInterface
+    {
+        public int twice(int value) throws RMIException;
+        public String twice(String value) throws RMIException;
+        public void fail() throws RMIException;
+    }
+
+    /** Server with a public method outside the remote interface. */
+    private static class OverloadServer implements OverloadInterface
+    {
+        @Override
+        public int twice(int value)
+        {
+            return value * 2;
+        }
+
+        @Override
+        public String twice(String value)
+        {
+            return value + value;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+
+        @SuppressWarnings("unused")
+        public void other()
+        {
+        }
+    }
+}
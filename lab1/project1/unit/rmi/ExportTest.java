@@ -0,0 +1,254 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that objects exported through a skeleton are called by the stubs
+    carrying their object ID, on the blocking and non-blocking transports and
+    over one-shot and persistent connections, and that unexported or unknown
+    objects cannot be called.
+ */
+public class ExportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking objects exported through one skeleton";
+
+    private Skeleton<Counter>   skeleton;
+    private Skeleton<Counter>   nioSkeleton;
+
+    /** Starts a blocking and a non-blocking skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Counter>(Counter.class, new CounterServer(0));
+        nioSkeleton = new Skeleton<Counter>(Counter.class,
+                                            new CounterServer(0));
+        skeleton.setNonBlocking(false);
+        nioSkeleton.setNonBlocking(true);
+
+        try
+        {
+            skeleton.start();
+            nioSkeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking limits");
+
+        try
+        {
+            skeleton.export(Counter.class, null);
+            throw new TestFailed("null object exported");
+        }
+        catch(NullPointerException e) { }
+
+        try
+        {
+            Stub.create(Counter.class, skeleton.getAddress(), -1,
+                        new StubConfig());
+            throw new TestFailed("negative object ID accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        if(skeleton.unexport(0))
+            throw new TestFailed("skeleton's own object unexported");
+
+        task("calling exported objects through a blocking skeleton");
+        objects(skeleton, new StubConfig());
+        objects(skeleton, new StubConfig().setPersistent(true));
+
+        task("calling exported objects through a non-blocking skeleton");
+        objects(nioSkeleton, new StubConfig().setPersistent(true));
+
+        task();
+    }
+
+    /** Exports two objects, one of the skeleton's interface and one of
+        another, and calls them.
+
+        @param target The skeleton to export the objects through.
+        @param config The options of the stubs.
+        @throws TestFailed If a call reaches the wrong object, or an
+                           unexported object can still be called.
+     */
+    private void objects(Skeleton<Counter> target, StubConfig config)
+        throws TestFailed
+    {
+        int         counterId = target.export(Counter.class,
+                                              new CounterServer(100));
+        int         echoId = target.export(Echo.class, new EchoServer());
+
+        if(counterId <= 0 || echoId <= 0 || counterId == echoId)
+            throw new TestFailed("bad object IDs " + counterId + ", " + echoId);
+
+        Counter     own = Stub.create(Counter.class, target.getAddress(), 0,
+                                      config);
+        Counter     other = Stub.create(Counter.class, target.getAddress(),
+                                        counterId, config);
+        Echo        echo = Stub.create(Echo.class, target.getAddress(),
+                                       echoId, config);
+
+        try
+        {
+            if(own.base() != 0 || other.base() != 100)
+                throw new TestFailed("call reached the wrong object");
+
+            if(!"hello".equals(echo.echo("hello")))
+                throw new TestFailed("wrong echo");
+
+            Counter     copy = (Counter)serialize(other);
+            if(!copy.equals(other) || copy.base() != 100)
+                throw new TestFailed("object ID lost in serialization");
+
+            CompletableFuture<Integer>  async =
+                Stub.createAsync(Counter.class, other).call(c -> c.base());
+            if(async.get(5, TimeUnit.SECONDS) != 100)
+                throw new TestFailed("asynchronous call reached the wrong " +
+                                     "object");
+
+            Batch<Counter>              batch =
+                Stub.createBatch(Counter.class, other);
+            CompletableFuture<Integer>  batched = batch.call(c -> c.base());
+            batch.send();
+            if(batched.get(5, TimeUnit.SECONDS) != 100)
+                throw new TestFailed("batched call reached the wrong object");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        if(own.equals(other) || other.hashCode() == own.hashCode())
+            throw new TestFailed("stubs for different objects are equal");
+
+        if(!other.toString().contains("OBJECT_ID: " + counterId) ||
+           own.toString().contains("OBJECT_ID"))
+        {
+            throw new TestFailed("object ID not reported by toString");
+        }
+
+        try
+        {
+            Counter     same = Stub.create(Counter.class, target, counterId);
+            if(!same.equals(other))
+                throw new TestFailed("stubs for the same object not equal");
+        }
+        catch(UnknownHostException e)
+        {
+            throw new TestFailed("unable to create stub", e);
+        }
+
+        if(!target.unexport(echoId) || target.unexport(echoId))
+            throw new TestFailed("object not unexported once");
+
+        try
+        {
+            echo.echo("gone");
+            throw new TestFailed("unexported object called");
+        }
+        catch(RMIException e) { }
+
+        try
+        {
+            Stub.create(Counter.class, target.getAddress(), 1000,
+                        config).base();
+            throw new TestFailed("unknown object called");
+        }
+        catch(RMIException e) { }
+
+        target.unexport(counterId);
+    }
+
+    /** Sends a stub through serialization. */
+    private static Object serialize(Object stub) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            ObjectOutputStream      out = new ObjectOutputStream(bytes);
+            out.writeObject(stub);
+            out.close();
+
+            return new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to serialize stub", e);
+        }
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(nioSkeleton != null)
+            nioSkeleton.stop();
+    }
+
+    /** Interface of the skeletons' own objects and of an exported one. */
+    public interface Counter
+    {
+        public int base() throws RMIException;
+    }
+
+    /** Interface of another exported object. */
+    public interface Echo
+    {
+        public String echo(String text) throws RMIException;
+    }
+
+    /** Server reporting the base it was created with. */
+    private static class CounterServer implements Counter
+    {
+        private final int   base;
+
+        CounterServer(int base)
+        {
+            this.base = base;
+        }
+
+        @Override
+        public int base()
+        {
+            return base;
+        }
+    }
+
+    /** Server returning its argument. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public String echo(String text)
+        {
+            return text;
+        }
+    }
+}
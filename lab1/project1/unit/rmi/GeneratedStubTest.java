@@ -0,0 +1,300 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that the classes written by <code>StubGenerator</code> are used
+    when they are on the class path, and that generated stubs and dispatchers
+    behave as proxies and method handles do.
+
+    <p>
+    The test needs the classes generated for {@link Calculator}, which the
+    <code>test</code> target of the Makefile generates.
+ */
+public class GeneratedStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking generated stubs and dispatchers";
+
+    private Skeleton<Calculator>    skeleton;
+
+    /** Starts a skeleton for the calculator. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Calculator>(Calculator.class,
+                                            new CalculatorServer());
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("finding the generated classes");
+
+        if(!skeleton.getDispatcher().isGenerated())
+            throw new TestFailed("skeleton does not use generated dispatcher");
+
+        Calculator  oneShot = Stub.create(Calculator.class,
+                                          skeleton.getAddress());
+        Calculator  persistent =
+            Stub.create(Calculator.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(true));
+
+        if(!(oneShot instanceof GeneratedStub) ||
+           Proxy.isProxyClass(oneShot.getClass()))
+        {
+            throw new TestFailed("stub is not generated");
+        }
+
+        task("calling through a one-shot stub");
+        calls(oneShot);
+
+        task("calling through a persistent stub");
+        calls(persistent);
+
+        task("comparing generated stubs with proxies");
+        compare(oneShot, persistent);
+
+        task("serializing a generated stub");
+        serialize(persistent);
+
+        task("calling asynchronously through a generated stub");
+
+        try
+        {
+            int sum = Stub.createAsync(Calculator.class, persistent)
+                          .call(c -> c.add(2, 3))
+                          .get(5, TimeUnit.SECONDS);
+            if(sum != 5)
+                throw new TestFailed("wrong asynchronous result");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("asynchronous call failed", e);
+        }
+
+        task();
+    }
+
+    /** Calls each method of the calculator.
+
+        @param stub The stub to call.
+        @throws TestFailed If a result or exception is wrong.
+     */
+    private void calls(Calculator stub) throws TestFailed
+    {
+        try
+        {
+            if(stub.add(1, 2) != 3)
+                throw new TestFailed("wrong int sum");
+
+            if(stub.add(1L << 40, 1L) != (1L << 40) + 1)
+                throw new TestFailed("wrong long sum");
+
+            String[]    reversed = stub.reverse(new String[] {"a", "b", "c"});
+            if(!Arrays.equals(reversed, new String[] {"c", "b", "a"}))
+                throw new TestFailed("wrong array");
+
+            stub.reset();
+
+            if(stub.nothing() != null)
+                throw new TestFailed("null result not returned");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        try
+        {
+            stub.fail("expected");
+            throw new TestFailed("declared exception not raised");
+        }
+        catch(IOException e)
+        {
+            if(!"expected".equals(e.getMessage()))
+                throw new TestFailed("wrong exception message", e);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("declared exception raised as RMIException",
+                                 e);
+        }
+
+        try
+        {
+            stub.divide(1, 0);
+            throw new TestFailed("unchecked exception not raised");
+        }
+        catch(ArithmeticException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unchecked exception raised as RMIException",
+                                 e);
+        }
+    }
+
+    /** Checks <code>equals</code>, <code>hashCode</code> and
+        <code>toString</code> against a proxy calling the same skeleton.
+
+        @throws TestFailed If the stubs do not compare as expected.
+     */
+    private void compare(Calculator oneShot, Calculator persistent)
+        throws TestFailed
+    {
+        Calculator  proxy = (Calculator)Proxy.newProxyInstance(
+            Calculator.class.getClassLoader(),
+            new Class<?>[] {Calculator.class, Serializable.class},
+            new Stub.MyInvocationHandler(Calculator.class,
+                                         skeleton.getAddress(),
+                                         new StubConfig()));
+
+        if(!oneShot.equals(persistent) || !oneShot.equals(proxy) ||
+           !proxy.equals(oneShot))
+        {
+            throw new TestFailed("stubs for the same skeleton not equal");
+        }
+
+        if(oneShot.hashCode() != proxy.hashCode() ||
+           !oneShot.toString().equals(proxy.toString()))
+        {
+            throw new TestFailed("generated stub not described as a proxy");
+        }
+
+        if(oneShot.equals(null) || oneShot.equals("stub"))
+            throw new TestFailed("stub equal to a non-stub");
+    }
+
+    /** Sends a generated stub through serialization and calls the copy.
+
+        @throws TestFailed If the copy is not an equal generated stub.
+     */
+    private void serialize(Calculator stub) throws TestFailed
+    {
+        Object  copy;
+
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            ObjectOutputStream      out = new ObjectOutputStream(bytes);
+            out.writeObject(stub);
+            out.close();
+
+            ObjectInputStream       in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+            copy = in.readObject();
+        }
+        catch(IOException | ClassNotFoundException e)
+        {
+            throw new TestFailed("unable to serialize stub", e);
+        }
+
+        if(!(copy instanceof GeneratedStub) || !copy.equals(stub))
+            throw new TestFailed("deserialized stub differs");
+
+        try
+        {
+            if(((Calculator)copy).add(4, 5) != 9)
+                throw new TestFailed("wrong result from deserialized stub");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed after serialization", e);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface for which classes are generated. */
+    public interface Calculator
+    {
+        public int add(int a, int b) throws RMIException;
+        public long add(long a, long b) throws RMIException;
+        public int divide(int a, int b) throws RMIException;
+        public String[] reverse(String[] values) throws RMIException;
+        public void reset() throws RMIException;
+        public String nothing() throws RMIException;
+        public void fail(String message) throws RMIException, IOException;
+    }
+
+    /** Server implementing the remote interface. */
+    private static class CalculatorServer implements Calculator
+    {
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public long add(long a, long b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public int divide(int a, int b)
+        {
+            return a / b;
+        }
+
+        @Override
+        public String[] reverse(String[] values)
+        {
+            String[]    reversed = new String[values.length];
+            for(int index = 0; index < values.length; ++index)
+                reversed[index] = values[values.length - 1 - index];
+            return reversed;
+        }
+
+        @Override
+        public void reset()
+        {
+        }
+
+        @Override
+        public String nothing()
+        {
+            return null;
+        }
+
+        @Override
+        public void fail(String message) throws IOException
+        {
+            throw new IOException(message);
+        }
+    }
+}
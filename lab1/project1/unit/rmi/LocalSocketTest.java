@@ -0,0 +1,232 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import test.*;
+
+/** Checks that skeletons listening on a Unix domain socket are reached
+    through it by persistent stubs on the same host configured to use it, and
+    through TCP by everything else.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Socket files are named after the skeleton's address, so skeletons on
+        different local addresses may share a port.</li>
+    <li>Only stubs that ask for local sockets use them.</li>
+    <li>Local sockets are not used while their directory is open to other
+        users.</li>
+    </ul>
+ */
+public class LocalSocketTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking Unix domain sockets";
+
+    private Skeleton<Echo>  local;
+    private Skeleton<Echo>  nioLocal;
+    private Skeleton<Echo>  remote;
+    private Skeleton<Echo>  sibling;
+    private Path            stale;
+
+    /** Starts skeletons with and without a local socket, one of them on a
+        port whose socket file was left behind, and another on the same port
+        of another loopback address.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            ServerSocket    socket = new ServerSocket(0);
+            int             port = socket.getLocalPort();
+            socket.close();
+
+            InetSocketAddress   address =
+                new InetSocketAddress("127.0.0.1", port);
+
+            LocalSockets.privateDirectory();
+            stale = LocalSockets.pathOf(address);
+            Files.write(stale, new byte[0]);
+
+            local = new Skeleton<Echo>(Echo.class, new EchoServer(), address);
+            nioLocal = new Skeleton<Echo>(Echo.class, new EchoServer());
+            remote = new Skeleton<Echo>(Echo.class, new EchoServer());
+            sibling = new Skeleton<Echo>(Echo.class, new EchoServer(),
+                new InetSocketAddress("127.0.0.2", port));
+
+            local.setLocalSocket(true);
+            nioLocal.setLocalSocket(true);
+            nioLocal.setNonBlocking(true);
+            sibling.setLocalSocket(true);
+
+            local.start();
+            nioLocal.start();
+            remote.start();
+            sibling.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking the socket files");
+
+        if(!Files.exists(LocalSockets.pathOf(local.getAddress())) ||
+           !Files.exists(LocalSockets.pathOf(nioLocal.getAddress())) ||
+           !Files.exists(LocalSockets.pathOf(sibling.getAddress())))
+        {
+            throw new TestFailed("socket file missing");
+        }
+
+        if(Files.exists(LocalSockets.pathOf(remote.getAddress())))
+            throw new TestFailed("socket file created without being asked");
+
+        task("calling through the local socket");
+        call(local, true, true);
+        call(nioLocal, true, true);
+        call(sibling, true, true);
+
+        task("calling through TCP");
+        call(remote, true, false);
+        call(local, false, false);
+
+        try
+        {
+            Echo    oneShot = Stub.create(Echo.class, local.getAddress());
+            if(!"tcp".equals(oneShot.echo("tcp")))
+                throw new TestFailed("wrong echo from one-shot stub");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("one-shot call failed", e);
+        }
+
+        task("refusing a socket directory open to other users");
+
+        Path    directory = LocalSockets.directory();
+
+        try
+        {
+            Files.setPosixFilePermissions(directory,
+                PosixFilePermissions.fromString("rwxr-xr-x"));
+
+            try
+            {
+                if(LocalSockets.connect(local.getAddress()) != null)
+                    throw new TestFailed("connected through open directory");
+            }
+            finally
+            {
+                Files.setPosixFilePermissions(directory,
+                    PosixFilePermissions.fromString("rwx------"));
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to change directory permissions", e);
+        }
+
+        task("removing the socket file");
+
+        InetSocketAddress   address = nioLocal.getAddress();
+        nioLocal.stop();
+
+        if(Files.exists(LocalSockets.pathOf(address)))
+            throw new TestFailed("socket file left behind by stopped skeleton");
+
+        task();
+    }
+
+    /** Calls a skeleton through a persistent stub.
+
+        @param skeleton The skeleton.
+        @param localSocket Whether the stub may use local sockets.
+        @param expectLocal Whether the stub should reach it locally.
+        @throws TestFailed If the call fails or takes the wrong transport.
+     */
+    private void call(Skeleton<Echo> skeleton, boolean localSocket,
+                      boolean expectLocal) throws TestFailed
+    {
+        StubConfig  config = new StubConfig().setPersistent(true)
+                                             .setLocalSocket(localSocket);
+        Echo        stub = Stub.create(Echo.class, skeleton.getAddress(),
+                                       config);
+
+        try
+        {
+            if(!"hello".equals(stub.echo("hello")))
+                throw new TestFailed("wrong echo");
+
+            byte[]  large = new byte[1 << 20];
+            if(stub.echo(new String(large, "ISO-8859-1")).length() !=
+               large.length)
+            {
+                throw new TestFailed("large argument truncated");
+            }
+
+            if(ConnectionPool.get(skeleton.getAddress(), config, 0)
+                    .isLocal() != expectLocal)
+            {
+                throw new TestFailed("wrong transport chosen");
+            }
+        }
+        catch(RMIException | IOException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(local != null)
+            local.stop();
+
+        if(nioLocal != null)
+            nioLocal.stop();
+
+        if(remote != null)
+            remote.stop();
+
+        if(sibling != null)
+            sibling.stop();
+
+        try
+        {
+            if(stale != null)
+                Files.deleteIfExists(stale);
+        }
+        catch(IOException e) { }
+    }
+
+    /** Interface of the skeletons. */
+    public interface Echo
+    {
+        public String echo(String text) throws RMIException;
+    }
+
+    /** Server returning its argument. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public String echo(String text)
+        {
+            return text;
+        }
+    }
+}
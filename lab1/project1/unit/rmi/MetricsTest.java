@@ -0,0 +1,229 @@
+package rmi;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.openmbean.CompositeData;
+
+import test.*;
+
+/** Checks that stubs and skeletons count calls, exceptions and bytes per
+    method, time the calls, and publish the metrics over JMX.
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking RMI metrics";
+
+    /** Number of calls made by each kind of stub. */
+    private static final int    CALLS = 5;
+
+    private Skeleton<CounterInterface>  skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<CounterInterface>(CounterInterface.class,
+                                                  new CounterServer());
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("checking histogram percentiles");
+
+        Histogram   histogram = new Histogram();
+        for(int value = 1; value <= 1000; ++value)
+            histogram.record(value);
+
+        Histogram.Snapshot  values = histogram.snapshot();
+        if(values.getCount() != 1000 || values.getMax() != 1000)
+            throw new TestFailed("histogram lost values");
+
+        if(Math.abs(values.getP50() - 500) > 500 / 16 ||
+           Math.abs(values.getP99() - 990) > 990 / 16)
+            throw new TestFailed("histogram percentiles are off: " + values);
+
+        task("making calls with one-shot and persistent stubs");
+
+        CounterInterface    oneShot =
+            Stub.create(CounterInterface.class, skeleton.getAddress());
+        CounterInterface    persistent =
+            Stub.create(CounterInterface.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(true));
+
+        try
+        {
+            for(int call = 0; call < CALLS; ++call)
+            {
+                oneShot.add(call, 1);
+                persistent.add(call, 1);
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        try
+        {
+            persistent.fail();
+            throw new TestFailed("remote exception was not raised");
+        }
+        catch(IllegalStateException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("wrong exception raised", e);
+        }
+
+        task("checking stub metrics");
+
+        String                  name = CounterInterface.class.getName();
+        Metrics.Snapshot        stub = Metrics.STUB.snapshot();
+        MethodMetrics.Snapshot  add = stub.method(name, "add(int,int)");
+        MethodMetrics.Snapshot  fail = stub.method(name, "fail()");
+
+        check(add, fail);
+
+        if(stub.getConnections() == 0 || stub.getConnectTime().getCount() == 0)
+            throw new TestFailed("stub connections were not counted");
+
+        task("checking skeleton metrics");
+
+        Metrics.Snapshot        server = Metrics.SKELETON.snapshot();
+
+        add = server.method(name, "add(int,int)");
+        fail = server.method(name, "fail()");
+        check(add, fail);
+
+        if(add.getQueueTime().getCount() != 2 * CALLS)
+            throw new TestFailed("queueing time was not recorded");
+
+        task("turning metrics off");
+
+        Metrics.setEnabled(false);
+
+        try
+        {
+            persistent.add(0, 0);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+        finally
+        {
+            Metrics.setEnabled(true);
+        }
+
+        if(Metrics.STUB.snapshot().method(name, "add(int,int)").getCalls()
+           != 2 * CALLS)
+        {
+            throw new TestFailed("call was counted with metrics off");
+        }
+
+        task("reading metrics over JMX");
+
+        try
+        {
+            Metrics.registerMBeans();
+            Metrics.registerMBeans();
+
+            Object  snapshot =
+                ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    Metrics.STUB.getObjectName(), "Snapshot");
+
+            if(!(snapshot instanceof CompositeData) ||
+               (Long)((CompositeData)snapshot).get("connections") == 0)
+            {
+                throw new TestFailed("wrong metrics over JMX");
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to read metrics over JMX", e);
+        }
+
+        task();
+    }
+
+    /** Checks the metrics of both methods on one side.
+
+        @param add Metrics of the method called successfully.
+        @param fail Metrics of the method that threw once.
+        @throws TestFailed If the metrics are wrong.
+     */
+    private void check(MethodMetrics.Snapshot add, MethodMetrics.Snapshot fail)
+        throws TestFailed
+    {
+        if(add == null || fail == null)
+            throw new TestFailed("methods were not recorded");
+
+        if(add.getCalls() != 2 * CALLS || add.getExceptions() != 0 ||
+           add.getFailures() != 0)
+        {
+            throw new TestFailed("wrong call counts: " + add);
+        }
+
+        if(fail.getCalls() != 1 || fail.getExceptions() != 1)
+            throw new TestFailed("exception was not counted: " + fail);
+
+        if(add.getRequestBytes() == 0 || add.getResponseBytes() == 0)
+            throw new TestFailed("bytes were not counted");
+
+        if(add.getLatency().getCount() != 2 * CALLS ||
+           add.getLatency().getMax() <= 0)
+        {
+            throw new TestFailed("latency was not recorded");
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface CounterInterface
+    {
+        public int add(int a, int b) throws RMIException;
+        public void fail() throws RMIException;
+    }
+
+    /** Server implementing the remote interface. */
+    private static class CounterServer implements CounterInterface
+    {
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+    }
+}
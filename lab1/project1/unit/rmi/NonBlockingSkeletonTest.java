@@ -0,0 +1,196 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import test.*;
+
+/** Checks that a non-blocking skeleton with a two-thread executor keeps
+    serving one-shot and persistent stubs while holding many idle
+    connections, and takes one-shot requests much larger than its read
+    buffer.
+ */
+public class NonBlockingSkeletonTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the non-blocking skeleton transport";
+
+    /** Number of idle connections held open during the test. */
+    private static final int    IDLE_CONNECTIONS = 200;
+    /** Size of the large one-shot argument, in bytes. */
+    private static final int    LARGE = 8 << 20;
+
+    private Skeleton<EchoInterface>     skeleton;
+    private ExecutorService             executor;
+    private final List<Socket>          idle = new ArrayList<Socket>();
+
+    /** Starts a non-blocking skeleton on a small executor. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        executor = Executors.newFixedThreadPool(2);
+        skeleton = new Skeleton<EchoInterface>(EchoInterface.class,
+                                               new EchoServer());
+        skeleton.setNonBlocking(true);
+        skeleton.setExecutor(executor);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        InetSocketAddress       address = skeleton.getAddress();
+
+        task("opening idle connections");
+
+        try
+        {
+            for(int index = 0; index < IDLE_CONNECTIONS; ++index)
+            {
+                Socket          socket = new Socket();
+                socket.connect(address);
+                idle.add(socket);
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to open idle connections", t);
+        }
+
+        task("calling through a one-shot stub");
+
+        try
+        {
+            EchoInterface   stub = Stub.create(EchoInterface.class, address);
+
+            for(int call = 0; call < 5; ++call)
+            {
+                if(stub.echo(call) != call)
+                    throw new TestFailed("wrong result from one-shot stub");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("one-shot call failed", e);
+        }
+
+        task("calling with a large argument through a one-shot stub");
+
+        try
+        {
+            EchoInterface   stub = Stub.create(EchoInterface.class, address);
+
+            if(stub.length(new byte[LARGE]) != LARGE)
+                throw new TestFailed("large argument truncated");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("one-shot call with large argument failed",
+                                 e);
+        }
+
+        task("calling through a persistent stub");
+
+        try
+        {
+            EchoInterface   stub =
+                Stub.create(EchoInterface.class, address,
+                            new StubConfig().setPersistent(true));
+
+            for(int call = 0; call < 50; ++call)
+            {
+                if(stub.echo(call) != call)
+                    throw new TestFailed("wrong result from persistent stub");
+            }
+
+            if(stub.echo(-1) != -1)
+                throw new TestFailed("wrong result for a negative argument");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("persistent call failed", e);
+        }
+
+        task("calling a method that throws");
+
+        try
+        {
+            Stub.create(EchoInterface.class, address).fail();
+            throw new TestFailed("remote exception was not raised");
+        }
+        catch(IllegalStateException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("remote exception was not delivered", e);
+        }
+
+        task();
+    }
+
+    /** Closes the idle connections and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        for(Socket socket : idle)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(Throwable t) { }
+        }
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(executor != null)
+            executor.shutdownNow();
+    }
+
+    /** Remote interface used by the test. */
+    public interface EchoInterface
+    {
+        public int echo(int value) throws RMIException;
+        public void fail() throws RMIException;
+        public int length(byte[] data) throws RMIException;
+    }
+
+    /** Server returning its argument. */
+    private static class EchoServer implements EchoInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public int length(byte[] data)
+        {
+            return data.length;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+
+import test.*;
+
+/** Checks that persistent stubs share pooled connections, that calls from
+    many threads can be in flight on them at once, and that the skeleton
+    closes idle connections without failing later calls.
+ */
+public class PersistentConnectionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking persistent multiplexed connections";
+
+    /** Number of calling threads. */
+    private static final int    THREADS = 8;
+    /** Calls made by each thread. */
+    private static final int    CALLS = 50;
+
+    private Skeleton<EchoInterface>     skeleton;
+    private InetSocketAddress           address;
+
+    /** Starts a skeleton with a short idle timeout. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<EchoInterface>(EchoInterface.class,
+                                               new EchoServer());
+        skeleton.setIdleTimeout(300);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = skeleton.getAddress();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StubConfig              config =
+            new StubConfig().setPersistent(true).setMaxConnections(2);
+        final EchoInterface     stub =
+            Stub.create(EchoInterface.class, address, config);
+        final Throwable[]       failure = new Throwable[1];
+        Thread[]                threads = new Thread[THREADS];
+
+        task("making concurrent calls on a persistent stub");
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            final int           base = index * CALLS;
+
+            threads[index] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int call = base; call < base + CALLS; ++call)
+                        {
+                            if(stub.echo(call) != call)
+                                throw new TestFailed("wrong result");
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        synchronized(failure)
+                        {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            });
+            threads[index].start();
+        }
+
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e) { }
+        }
+
+        if(failure[0] != null)
+            throw new TestFailed("concurrent call failed", failure[0]);
+
+        if(ConnectionPool.size(address) > 2)
+            throw new TestFailed("stub opened more connections than allowed");
+
+        task("waiting for the skeleton to close idle connections");
+
+        try
+        {
+            Thread.sleep(1000);
+        }
+        catch(InterruptedException e) { }
+
+        if(ConnectionPool.size(address) != 0)
+            throw new TestFailed("idle connection was not closed");
+
+        task("calling again after the idle connection was closed");
+
+        try
+        {
+            if(stub.echo(7) != 7)
+                throw new TestFailed("wrong result after reconnecting");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call after idle close failed", e);
+        }
+
+        task("calling through a one-shot stub on the same skeleton");
+
+        try
+        {
+            if(Stub.create(EchoInterface.class, address).echo(9) != 9)
+                throw new TestFailed("wrong result from one-shot stub");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("one-shot call failed", e);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface EchoInterface
+    {
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Server returning its argument. */
+    private static class EchoServer implements EchoInterface
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+    }
+}
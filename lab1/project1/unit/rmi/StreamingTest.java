@@ -0,0 +1,480 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that <code>InputStream</code> arguments and results reach the
+    other side intact on every transport, that persistent stubs receive a
+    returned stream while the skeleton is still producing it, that streams
+    left unread do not hold up other calls on the same connection, and that
+    a stream failing remotely raises an <code>IOException</code> to its
+    reader.
+ */
+public class StreamingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking streamed arguments and results";
+
+    /** Size of the large streams, several times the chunk size. */
+    private static final int    SIZE = 8 * 1024 * 1024 + 123;
+
+    private Skeleton<StreamInterface>   skeleton;
+    private Skeleton<StreamInterface>   nioSkeleton;
+    private StreamServer                server;
+
+    /** Starts a blocking and a non-blocking skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new StreamServer();
+        skeleton = new Skeleton<StreamInterface>(StreamInterface.class,
+                                                 server);
+        nioSkeleton = new Skeleton<StreamInterface>(StreamInterface.class,
+                                                    server);
+        skeleton.setNonBlocking(false);
+        nioSkeleton.setNonBlocking(true);
+
+        try
+        {
+            skeleton.start();
+            nioSkeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StreamInterface binary =
+            Stub.create(StreamInterface.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(true));
+
+        task("streaming through a persistent stub");
+        transfer(binary);
+
+        task("streaming through a persistent stub without the binary codec");
+        transfer(Stub.create(StreamInterface.class, skeleton.getAddress(),
+                             new StubConfig().setPersistent(true)
+                                             .setBinaryCodec(false)));
+
+        task("sending streams through a one-shot stub");
+        transfer(Stub.create(StreamInterface.class, skeleton.getAddress()));
+
+        task("sending streams to a non-blocking skeleton");
+        transfer(Stub.create(StreamInterface.class, nioSkeleton.getAddress(),
+                             new StubConfig().setPersistent(true)));
+
+        task("reading a stream before it is complete");
+
+        try
+        {
+            InputStream     gated = binary.gated();
+            byte[]          first = new byte[Streams.CHUNK_SIZE];
+            readFully(gated, first);
+
+            // the rest is only produced once this call has been served
+            binary.open();
+            check(gated, Streams.CHUNK_SIZE * 2, Streams.CHUNK_SIZE);
+        }
+        catch(IOException | RMIException e)
+        {
+            throw new TestFailed("unable to read gated stream", e);
+        }
+
+        task("calling while a downloaded stream is left unread");
+        unreadDownload();
+
+        task("calling while an uploaded stream is left unread");
+        unreadUpload();
+
+        task("reading a stream that fails remotely");
+
+        try
+        {
+            InputStream     broken = binary.broken();
+            try
+            {
+                check(broken, SIZE, 0);
+                throw new TestFailed("remote failure was not raised");
+            }
+            catch(IOException e) { }
+
+            if(binary.head(new Pattern(SIZE)) != 0)
+                throw new TestFailed("wrong result after failed stream");
+        }
+        catch(IOException | RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        task();
+    }
+
+    /** Uploads and downloads large streams, and leaves one mostly unread.
+
+        @param stub The stub to call.
+        @throws TestFailed If a stream is corrupted or a call fails.
+     */
+    private void transfer(StreamInterface stub) throws TestFailed
+    {
+        try
+        {
+            check(stub.download(SIZE), SIZE, 0);
+
+            if(stub.upload(new Pattern(SIZE)) != checksum(SIZE))
+                throw new TestFailed("uploaded stream corrupted");
+
+            if(stub.head(new Pattern(SIZE)) != 0 ||
+               stub.upload(new Pattern(10)) != checksum(10))
+            {
+                throw new TestFailed("wrong result after unread stream");
+            }
+        }
+        catch(IOException | RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+    }
+
+    /** Makes a call while a returned stream, several times larger than the
+        window, has not been read, then reads it.
+
+        @throws TestFailed If the call does not complete, or the stream is
+                           corrupted.
+     */
+    private void unreadDownload() throws TestFailed
+    {
+        // one connection, so that the call must share it with the stream
+        StreamInterface stub =
+            Stub.create(StreamInterface.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(true)
+                                        .setMaxConnections(1)
+                                        .setTimeout(5000));
+
+        try
+        {
+            InputStream     unread = stub.download(SIZE);
+
+            // give the skeleton time to send the whole window
+            Thread.sleep(200);
+
+            if(stub.upload(new Pattern(10)) != checksum(10))
+                throw new TestFailed("wrong result beside unread stream");
+
+            check(unread, SIZE, 0);
+        }
+        catch(IOException | RMIException e)
+        {
+            throw new TestFailed("call failed beside unread stream", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Makes a call while the method called before it has not read its
+        stream argument, several times larger than the window, then lets
+        the method read it.
+
+        @throws TestFailed If the call does not complete, or the stream is
+                           corrupted.
+     */
+    private void unreadUpload() throws TestFailed
+    {
+        final StreamInterface   stub =
+            Stub.create(StreamInterface.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(true)
+                                        .setMaxConnections(1)
+                                        .setTimeout(5000));
+        final long[]            sum = new long[1];
+        final Throwable[]       failure = new Throwable[1];
+
+        Thread  uploader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    sum[0] = stub.park(new Pattern(SIZE));
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        };
+
+        uploader.start();
+
+        try
+        {
+            if(!server.parked.await(5, TimeUnit.SECONDS))
+                throw new TestFailed("stream argument never arrived");
+
+            // give the stub time to send the whole window
+            Thread.sleep(200);
+
+            if(stub.upload(new Pattern(10)) != checksum(10))
+                throw new TestFailed("wrong result beside unread stream");
+
+            server.release.countDown();
+            uploader.join();
+        }
+        catch(IOException | RMIException e)
+        {
+            throw new TestFailed("call failed beside unread stream", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+        finally
+        {
+            server.release.countDown();
+        }
+
+        if(failure[0] != null)
+            throw new TestFailed("parked upload failed", failure[0]);
+
+        if(sum[0] != checksum(SIZE))
+            throw new TestFailed("parked stream corrupted");
+    }
+
+    /** Reads a stream and compares it with the pattern.
+
+        @param stream The stream.
+        @param size The expected length of the whole pattern.
+        @param offset Bytes of the pattern already read from the stream.
+        @throws IOException If the stream fails.
+        @throws TestFailed If the content is wrong.
+     */
+    private static void check(InputStream stream, long size, long offset)
+        throws IOException, TestFailed
+    {
+        byte[]      buffer = new byte[10000];
+        long        position = offset;
+        int         n;
+
+        while((n = stream.read(buffer)) >= 0)
+        {
+            for(int index = 0; index < n; ++index)
+            {
+                if(buffer[index] != Pattern.at(position + index))
+                    throw new TestFailed("stream corrupted");
+            }
+
+            position += n;
+        }
+
+        stream.close();
+
+        if(position != size)
+            throw new TestFailed("stream has " + position + " bytes, not " +
+                                 size);
+    }
+
+    /** Reads exactly enough bytes to fill a buffer. */
+    private static void readFully(InputStream stream, byte[] buffer)
+        throws IOException
+    {
+        int     length = 0;
+        while(length < buffer.length)
+        {
+            int n = stream.read(buffer, length, buffer.length - length);
+            if(n < 0)
+                throw new IOException("stream ended early");
+            length += n;
+        }
+    }
+
+    /** Returns the checksum of a pattern of the given size. */
+    private static long checksum(long size)
+    {
+        long    sum = 0;
+        for(long position = 0; position < size; ++position)
+            sum = sum * 31 + Pattern.at(position);
+        return sum;
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.gate.countDown();
+            server.release.countDown();
+        }
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(nioSkeleton != null)
+            nioSkeleton.stop();
+    }
+
+    /** Generates a known sequence of bytes without holding it in memory. */
+    private static class Pattern extends InputStream
+    {
+        final long          size;
+        long                position = 0;
+
+        Pattern(long size)
+        {
+            this.size = size;
+        }
+
+        static byte at(long position)
+        {
+            return (byte)(position % 251);
+        }
+
+        @Override
+        public int read()
+        {
+            return position < size ? at(position++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+        {
+            if(position >= size)
+                return -1;
+
+            int     n = (int)Math.min(length, size - position);
+            for(int index = 0; index < n; ++index)
+                buffer[offset + index] = at(position++);
+            return n;
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface StreamInterface
+    {
+        public InputStream download(int size) throws RMIException;
+        public long upload(InputStream data) throws RMIException, IOException;
+        public int head(InputStream data) throws RMIException, IOException;
+        public InputStream gated() throws RMIException;
+        public void open() throws RMIException;
+        public InputStream broken() throws RMIException;
+        public long park(InputStream data) throws RMIException, IOException;
+    }
+
+    /** Server implementing the remote interface. */
+    private static class StreamServer implements StreamInterface
+    {
+        final CountDownLatch    gate = new CountDownLatch(1);
+        final CountDownLatch    parked = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public InputStream download(int size)
+        {
+            return new Pattern(size);
+        }
+
+        @Override
+        public long upload(InputStream data) throws IOException
+        {
+            long    sum = 0;
+            byte[]  buffer = new byte[4096];
+            int     n;
+
+            while((n = data.read(buffer)) >= 0)
+            {
+                for(int index = 0; index < n; ++index)
+                    sum = sum * 31 + buffer[index];
+            }
+
+            return sum;
+        }
+
+        @Override
+        public int head(InputStream data) throws IOException
+        {
+            return data.read();
+        }
+
+        @Override
+        public InputStream gated()
+        {
+            return new Pattern(Streams.CHUNK_SIZE * 2)
+            {
+                @Override
+                public int read(byte[] buffer, int offset, int length)
+                {
+                    if(position < Streams.CHUNK_SIZE)
+                    {
+                        return super.read(buffer, offset,
+                            (int)Math.min(length,
+                                          Streams.CHUNK_SIZE - position));
+                    }
+
+                    try
+                    {
+                        if(!gate.await(10, TimeUnit.SECONDS))
+                            return -1;
+                    }
+                    catch(InterruptedException e)
+                    {
+                        return -1;
+                    }
+
+                    return super.read(buffer, offset, length);
+                }
+            };
+        }
+
+        @Override
+        public void open()
+        {
+            gate.countDown();
+        }
+
+        @Override
+        public long park(InputStream data) throws IOException
+        {
+            parked.countDown();
+
+            try
+            {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                throw new IOException("interrupted");
+            }
+
+            return upload(data);
+        }
+
+        @Override
+        public InputStream broken()
+        {
+            return new Pattern(SIZE)
+            {
+                @Override
+                public int read(byte[] buffer, int offset, int length)
+                {
+                    if(position > SIZE / 2)
+                        throw new IllegalStateException("broken stream");
+                    return super.read(buffer, offset, length);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package rmi;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that a skeleton running each call on its own thread serves more
+    blocked calls at once than its fixed pool would hold.
+ */
+public class ThreadPerCallSkeletonTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking thread-per-call execution of skeleton calls";
+
+    /** Number of calls that must be blocked at the same time. */
+    private static final int    CALLERS = 16;
+
+    private Skeleton<BarrierInterface>  skeleton;
+
+    /** Starts a skeleton with a pool smaller than the number of callers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<BarrierInterface>(BarrierInterface.class,
+                                                  new BarrierServer());
+        skeleton.setThreadPerCall(true);
+
+        if(skeleton.getPoolSize() >= CALLERS)
+            throw new TestFailed("pool is too large for the test to be useful");
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final BarrierInterface  stub =
+            Stub.create(BarrierInterface.class, skeleton.getAddress(),
+                        new StubConfig().setPersistent(true));
+        final boolean[]         released = new boolean[CALLERS];
+        final Throwable[]       failure = new Throwable[1];
+        Thread[]                threads = new Thread[CALLERS];
+
+        task("blocking more calls than the pool has threads");
+
+        for(int index = 0; index < CALLERS; ++index)
+        {
+            final int   caller = index;
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        released[caller] = stub.await();
+                    }
+                    catch(Throwable t)
+                    {
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[index].start();
+        }
+
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e) { }
+        }
+
+        if(failure[0] != null)
+            throw new TestFailed("blocked call failed", failure[0]);
+
+        for(boolean caller : released)
+        {
+            if(!caller)
+                throw new TestFailed("calls were not all running at once");
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface BarrierInterface
+    {
+        public boolean await() throws RMIException;
+    }
+
+    /** Server whose calls return only once all callers have arrived. */
+    private static class BarrierServer implements BarrierInterface
+    {
+        private final CountDownLatch    arrived = new CountDownLatch(CALLERS);
+
+        @Override
+        public boolean await()
+        {
+            arrived.countDown();
+
+            try
+            {
+                return arrived.await(2, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                return false;
+            }
+        }
+    }
+}
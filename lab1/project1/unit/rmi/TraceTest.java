@@ -0,0 +1,354 @@
+package rmi;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks that calls record spans linked across skeletons, on every kind of
+    stub, and that spans reach the sink they are given.
+ */
+public class TraceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call tracing";
+
+    private Skeleton<Relay>     back;
+    private Skeleton<Relay>     front;
+    private Path                file;
+
+    /** Starts a skeleton that relays calls to another. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            back = new Skeleton<Relay>(Relay.class, new RelayServer(null));
+            back.start();
+
+            Relay   next = Stub.create(Relay.class, back.getAddress(),
+                                       new StubConfig().setPersistent(true)
+                                                       .setBinaryCodec(true));
+            front = new Skeleton<Relay>(Relay.class, new RelayServer(next));
+            front.start();
+
+            file = Files.createTempFile("spans", ".tsv");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling without a sink");
+
+        Span.setSink(null);
+        relay(Stub.create(Relay.class, front.getAddress()), "quiet");
+
+        if(Span.current() != null)
+            throw new TestFailed("span left open");
+
+        SpanSink.RingBuffer     ring = new SpanSink.RingBuffer(64);
+        Span.setSink(ring);
+
+        task("tracing one-shot calls");
+        hops(ring, Stub.create(Relay.class, front.getAddress(),
+                               new StubConfig().setPersistent(false)));
+
+        task("tracing persistent calls");
+        hops(ring, Stub.create(Relay.class, front.getAddress(),
+                               new StubConfig().setPersistent(true)));
+        hops(ring, Stub.create(Relay.class, front.getAddress(),
+                               new StubConfig().setPersistent(true)
+                                               .setBinaryCodec(true)));
+
+        task("tracing asynchronous calls");
+        async(ring);
+
+        task("marking failed calls");
+        failure(ring);
+
+        task("exporting spans to a file");
+        export();
+
+        task();
+    }
+
+    /** Checks the spans of a call relayed from the front skeleton to the
+        back one, within a span opened by the test.
+
+        @param ring The sink.
+        @param stub Stub for the front skeleton.
+        @throws TestFailed If the spans are missing or wrongly linked.
+     */
+    private void hops(SpanSink.RingBuffer ring, Relay stub) throws TestFailed
+    {
+        ring.clear();
+
+        Span    root = Span.start("test");
+        try
+        {
+            if(Span.current() != root)
+                throw new TestFailed("opened span not current");
+
+            relay(stub, "hello");
+        }
+        finally
+        {
+            root.close();
+        }
+
+        if(Span.current() != null)
+            throw new TestFailed("closed span still current");
+
+        List<Span>  spans = ring.trace(root.getTraceId());
+        if(spans.size() != 5)
+            throw new TestFailed("expected 5 spans, found " + spans);
+
+        // the chain runs test -> client -> server -> client -> server
+        Span    parent = root;
+        Span    child;
+        while((child = childOf(spans, parent)) != null)
+        {
+            Span.Kind   expected = parent.getKind() == Span.Kind.CLIENT ?
+                Span.Kind.SERVER : Span.Kind.CLIENT;
+
+            if(child.getKind() != expected)
+                throw new TestFailed("span of kind " + child.getKind() +
+                                     " under " + parent.getKind());
+
+            if(child.getDuration(TimeUnit.NANOSECONDS) >
+               parent.getDuration(TimeUnit.NANOSECONDS))
+            {
+                throw new TestFailed("child span outlasts its parent");
+            }
+
+            if(!child.getName().equals(Relay.class.getName() + ".relay"))
+                throw new TestFailed("wrong span name " + child.getName());
+
+            parent = child;
+        }
+
+        if(parent.getKind() != Span.Kind.SERVER ||
+           childOf(spans, root) == null ||
+           childOf(spans, childOf(spans, root)) == null ||
+           childOf(spans, childOf(spans, childOf(spans, root))) == null)
+        {
+            throw new TestFailed("spans not linked: " + spans);
+        }
+    }
+
+    /** Checks that an asynchronous call is recorded once it completes. */
+    private void async(SpanSink.RingBuffer ring) throws TestFailed
+    {
+        ring.clear();
+
+        AsyncStub<Relay>    async =
+            Stub.createAsync(Relay.class, front.getAddress(),
+                             new StubConfig().setPersistent(true));
+
+        try
+        {
+            if(!"async".equals(async.call(r -> r.relay("async")).get()))
+                throw new TestFailed("wrong result");
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("asynchronous call failed", e);
+        }
+
+        Span    client = null;
+        for(Span span : ring.spans())
+        {
+            if(span.getKind() == Span.Kind.CLIENT && span.getParentId() == 0)
+                client = span;
+        }
+
+        if(client == null)
+            throw new TestFailed("asynchronous call not recorded");
+
+        if(ring.trace(client.getTraceId()).size() != 4)
+            throw new TestFailed("relayed call not in the trace of the " +
+                                 "asynchronous call");
+    }
+
+    /** Checks that a call raising an exception is marked on both sides. */
+    private void failure(SpanSink.RingBuffer ring) throws TestFailed
+    {
+        ring.clear();
+
+        try
+        {
+            Stub.create(Relay.class, front.getAddress()).relay(null);
+            throw new TestFailed("exception not raised");
+        }
+        catch(IllegalArgumentException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        int     marked = 0;
+        for(Span span : ring.spans())
+        {
+            if(IllegalArgumentException.class.getName()
+                    .equals(span.getError()))
+            {
+                ++marked;
+            }
+        }
+
+        if(marked != 4)
+            throw new TestFailed("expected 4 failed spans, found " +
+                                 ring.spans());
+    }
+
+    /** Checks that spans are written to a file, one per line. */
+    private void export() throws TestFailed
+    {
+        SpanSink.FileExporter   exporter;
+
+        try
+        {
+            exporter = new SpanSink.FileExporter(file);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to open file", e);
+        }
+
+        Span.setSink(exporter);
+
+        Span    root = Span.start("export");
+        try
+        {
+            relay(Stub.create(Relay.class, front.getAddress()), "file");
+        }
+        finally
+        {
+            root.close();
+            exporter.close();
+            Span.setSink(null);
+        }
+
+        List<String>    lines;
+
+        try
+        {
+            lines = Files.readAllLines(file);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read file", e);
+        }
+
+        String  trace = Long.toHexString(root.getTraceId());
+        if(lines.size() != 5)
+            throw new TestFailed("expected 5 lines, found " + lines);
+
+        for(String line : lines)
+        {
+            if(!line.startsWith(trace + "\t"))
+                throw new TestFailed("line of another trace: " + line);
+        }
+    }
+
+    /** Finds the span whose parent is given.
+
+        @param spans The spans to search.
+        @param parent The parent.
+        @return The child, or <code>null</code> if there is none.
+     */
+    private static Span childOf(List<Span> spans, Span parent)
+    {
+        if(parent == null)
+            return null;
+
+        for(Span span : spans)
+        {
+            if(span.getParentId() == parent.getSpanId())
+                return span;
+        }
+
+        return null;
+    }
+
+    /** Makes a relayed call.
+
+        @param stub The stub.
+        @param text The argument.
+        @throws TestFailed If the call fails.
+     */
+    private void relay(Relay stub, String text) throws TestFailed
+    {
+        try
+        {
+            if(!text.equals(stub.relay(text)))
+                throw new TestFailed("wrong result");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+    }
+
+    /** Stops the skeletons and removes the file. */
+    @Override
+    protected void clean()
+    {
+        Span.setSink(null);
+
+        if(front != null)
+            front.stop();
+
+        if(back != null)
+            back.stop();
+
+        try
+        {
+            if(file != null)
+                Files.deleteIfExists(file);
+        }
+        catch(IOException e) { }
+    }
+
+    /** Interface of the skeletons. */
+    public interface Relay
+    {
+        public String relay(String text) throws RMIException;
+    }
+
+    /** Server passing calls on to another, or answering them itself. */
+    private static class RelayServer implements Relay
+    {
+        private final Relay     next;
+
+        RelayServer(Relay next)
+        {
+            this.next = next;
+        }
+
+        @Override
+        public String relay(String text) throws RMIException
+        {
+            if(next != null)
+                return next.relay(text);
+
+            if(text == null)
+                throw new IllegalArgumentException("no text");
+
+            return text;
+        }
+    }
+}
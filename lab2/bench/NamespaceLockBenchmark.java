@@ -0,0 +1,109 @@
+package bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Path;
+import naming.NamingServer;
+import naming.ReadWriteLock;
+
+/**
+ * Measures how <code>NamingServer.lock</code> scales when many clients lock
+ * disjoint leaves under a common root.
+ *
+ * <p>
+ * Each client owns a directory <code>/shared/client<i>n</i></code> and locks
+ * and unlocks it for exclusive access in a loop, so no two clients ever
+ * contend for the same object; they only share the shared locks taken on
+ * <code>/shared</code> and <code>/</code>. The naming server is called
+ * directly, without RMI, so the figures are those of the lock path alone.
+ * Each client count is run after a warm-up and its locks per second
+ * printed; with the root locks out of the way, they should grow with the
+ * clients up to the number of processors. The most waited-for locks are
+ * printed last.
+ *
+ * <p>
+ * Usage: <code>java bench.NamespaceLockBenchmark [seconds [max clients]]</code>
+ */
+public class NamespaceLockBenchmark {
+	/**
+	 * Warm-up before each measurement, in seconds
+	 */
+	private static final int WARMUP_SECONDS = 1;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int maxClients = args.length > 1 ? Integer.parseInt(args[1])
+				: 2 * Runtime.getRuntime().availableProcessors();
+
+		NamingServer server = new NamingServer();
+		Path shared = new Path("/shared");
+		server.createDirectory(shared);
+		Path[] leaves = new Path[maxClients];
+		for (int i = 0; i < maxClients; i++) {
+			leaves[i] = new Path(shared, "client" + i);
+			server.createDirectory(leaves[i]);
+		}
+
+		System.out.format("%d cpus, %d s per run%n",
+				Runtime.getRuntime().availableProcessors(), seconds);
+		for (int clients = 1; clients <= maxClients; clients *= 2) {
+			run(server, leaves, clients, seconds);
+		}
+		for (Map.Entry<Path, ReadWriteLock.Stats> e : server.hotLocks(3).entrySet()) {
+			System.out.format("%-20s %s%n", e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Runs one client count and prints its results
+	 * @param server The naming server
+	 * @param leaves The path each client locks, by client
+	 * @param clients Number of clients
+	 * @param seconds How long to measure
+	 * @throws Exception
+	 */
+	private static void run(final NamingServer server, final Path[] leaves, int clients,
+			int seconds) throws Exception {
+		final AtomicLong locks = new AtomicLong();
+		final AtomicBoolean measuring = new AtomicBoolean();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread[] threads = new Thread[clients];
+
+		for (int i = 0; i < clients; i++) {
+			final Path leaf = leaves[i];
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					long count = 0;
+					try {
+						while (!done.get()) {
+							server.lock(leaf, true);
+							server.unlock(leaf, true);
+							if (measuring.get()) {
+								count++;
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					locks.addAndGet(count);
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+		measuring.set(true);
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		done.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		System.out.format("%3d clients   locks/s %12.1f%n", clients, locks.get() / (double)seconds);
+	}
+}
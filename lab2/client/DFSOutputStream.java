@@ -37,6 +37,10 @@ public class DFSOutputStream extends OutputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Buffer the last partial write was copied into, reused by the next
+        partial write of the same length. */
+    private byte[]          copy = null;
+
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
         naming server.
 
@@ -202,19 +206,23 @@ public class DFSOutputStream extends OutputStream
         // Create the data buffer that will be sent over the network. If the
         // buffer offset is zero and all the bytes in the user-provided buffer
         // are to be written, the user-provided buffer will be serialized
-        // directly. Otherwise, make a new buffer, copy the requisite number of
-        // bytes from the proper offset in the user-provided buffer to the new
-        // buffer, and later serialize the new buffer.
+        // directly. Otherwise, copy the requisite number of bytes from the
+        // proper offset in the user-provided buffer to a separate buffer, and
+        // later serialize that buffer. The request has been serialized by the
+        // time the call returns, so the separate buffer is kept and reused by
+        // the next write of the same length, as when a caller writes a large
+        // array in fixed-size pieces.
         byte[]      data;
 
         if((buffer_offset == 0) && (buffer.length == write_length))
             data = buffer;
         else
         {
-            data = new byte[write_length];
+            if(copy == null || copy.length != write_length)
+                copy = new byte[write_length];
 
-            for(int index = 0; index < write_length; ++index)
-                data[index] = buffer[buffer_offset + index];
+            System.arraycopy(buffer, buffer_offset, copy, 0, write_length);
+            data = copy;
         }
 
         // Send the write request to the server. If the write request succeds,
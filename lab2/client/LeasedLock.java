@@ -0,0 +1,139 @@
+package client;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import rmi.*;
+import common.*;
+import naming.*;
+
+/** Lock on a file or directory held under a lease, renewed in the background.
+
+    <p>
+    Creating a <code>LeasedLock</code> locks the object on the naming server
+    with <code>Service.lockLease</code>. The lease is then renewed three times
+    per lease time by a background thread shared by all leased locks, for as
+    long as the lock is open. Closing the lock stops the renewals and releases
+    the lock. Should the client die instead, the renewals stop with it and the
+    naming server revokes the lease once it runs out.
+
+    <p>
+    If a renewal finds that the lease has been revoked, for instance after the
+    naming server could not be reached for the whole lease time, the lock is
+    lost: <code>isHeld</code> then returns <code>false</code>, and the client
+    should abandon the operation the lock was protecting.
+ */
+public class LeasedLock implements Closeable
+{
+    /** Thread renewing the leases of all open locks. */
+    private static final ScheduledExecutorService   renewer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread  thread = new Thread(r, "lease renewer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Naming server holding the lock. */
+    private final Service               naming_server;
+    /** The lease. */
+    private final Lease                 lease;
+    /** The periodic renewal of the lease. */
+    private final ScheduledFuture<?>    renewal;
+
+    /** Indicates that the lease is still held. */
+    private volatile boolean            held = true;
+
+    /** Locks a file or directory under a lease.
+
+        @param naming_server Stub for the naming server.
+        @param path The file or directory to be locked.
+        @param exclusive If <code>true</code>, the object is locked for
+                         exclusive access, otherwise for shared access.
+        @throws FileNotFoundException If the object cannot be found.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    public LeasedLock(Service naming_server, Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException
+    {
+        this.naming_server = naming_server;
+        this.lease = naming_server.lockLease(path, exclusive);
+
+        long    period = Math.max(1, lease.getTime(TimeUnit.MILLISECONDS) / 3);
+        renewal = renewer.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                renew();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /** Renews the lease, noting its loss if it has been revoked. */
+    private void renew()
+    {
+        if(!held)
+            return;
+
+        try
+        {
+            if(!naming_server.renewLease(lease.getId()))
+            {
+                held = false;
+                // null only if revoked before the constructor returned
+                if(renewal != null)
+                    renewal.cancel(false);
+            }
+        }
+        catch(RMIException e)
+        {
+            // try again at the next period, while the lease may still last
+        }
+    }
+
+    /** Returns the lease under which the lock is held. */
+    public Lease getLease()
+    {
+        return lease;
+    }
+
+    /** Indicates whether the lock is still held.
+
+        @return <code>false</code> once the lock has been closed, or its lease
+                found revoked.
+     */
+    public boolean isHeld()
+    {
+        return held;
+    }
+
+    /** Stops renewing the lease and releases the lock.
+
+        @throws IOException If the naming server cannot be contacted. The
+                            lease then runs out on its own.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        renewal.cancel(false);
+
+        if(!held)
+            return;
+
+        held = false;
+
+        try
+        {
+            naming_server.releaseLease(lease.getId());
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("unable to release lease " + lease, e);
+        }
+    }
+}
@@ -8,5 +8,9 @@
     be accessed as regular Java streams. For example, a file can be read by a
     <code>BufferedReader</code> or a <code>Scanner</code> by constructing those
     from a <code>DFSInputStream</code>.
+
+    <p>
+    <code>LeasedLock</code> holds a lock on the naming server under a lease
+    and renews the lease in the background until the lock is closed.
  */
 package client;
@@ -25,6 +25,10 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
 	private static final long serialVersionUID = -2894863567529366096L;
 		
 	CopyOnWriteArrayList<String> components;
+
+	/** Cached hash code, or zero until computed. */
+	private transient int hash;
+
     /** Creates a new path which represents the root directory. */
     public Path()
     {
@@ -42,7 +46,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     */
     public Path(Path path, String component)
     {	
-    	this(path.toString());
+    	this.components = new CopyOnWriteArrayList<String>(path.components);
     	if(component.contains("/")||component.contains(":")||
     			component.isEmpty()||component == null){
     		throw new IllegalArgumentException();
@@ -174,16 +178,35 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     {
     	if(this.isRoot())
             throw new IllegalArgumentException("root has no parent");
-    	String parent = new String();
-    	if(this.components.size()==1){
-    		return new Path("/");
-    	}
-    	
-    	int i;
-    	for(i=0;i<this.components.size()-1;i++){
-    		parent = parent.concat("/"+components.get(i));
-    	}
-    	return new Path(parent);
+    	Path parent = new Path();
+    	parent.components.addAll(this.components.subList(0, this.components.size()-1));
+    	return parent;
+    }
+
+    /** Returns the number of components in the path.
+
+        @return The number of components, zero for the root directory.
+     */
+    public int depth()
+    {
+    	return this.components.size();
+    }
+
+    /** Returns a component of the path.
+
+        <p>
+        Walking a path with this method, rather than its iterator, allocates
+        nothing.
+
+        @param index The position of the component, starting from zero at the
+                     root.
+        @return The component.
+        @throws IndexOutOfBoundsException If the path has no component at that
+                                          position.
+     */
+    public String component(int index)
+    {
+    	return this.components.get(index);
     }
 
     /** Returns the last component in the path.
@@ -301,14 +324,42 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public boolean equals(Object other)
     {
-       return other.toString().equals(this.toString());
+    	if(this == other){
+    		return true;
+    	}
+    	if(!(other instanceof Path)){
+    		return false;
+    	}
+    	Path path = (Path)other;
+    	int size = this.components.size();
+    	if(path.components.size() != size || path.hashCode() != this.hashCode()){
+    		return false;
+    	}
+    	for(int i=0;i<size;i++){
+    		if(!this.components.get(i).equals(path.components.get(i))){
+    			return false;
+    		}
+    	}
+    	return true;
     }
 
-    /** Returns the hash code of the path. */
+    /** Returns the hash code of the path.
+
+        <p>
+        The hash code is computed from the components once and cached, since
+        paths are immutable.
+     */
     @Override
     public int hashCode()
     {
-        return this.toString().hashCode();
+    	int h = this.hash;
+    	if(h == 0){
+    		for(int i=0;i<this.components.size();i++){
+    			h = 31*h + this.components.get(i).hashCode();
+    		}
+    		this.hash = h;
+    	}
+    	return h;
     }
 
     /** Converts the path to a string.
@@ -0,0 +1,89 @@
+package naming;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import common.Path;
+
+/**
+ * A lock granted for a limited time, returned by
+ * {@link Service#lockLease}.
+ *
+ * <p>
+ * The holder keeps the lock by renewing the lease with
+ * {@link Service#renewLease} before its time runs out, and gives it back
+ * with {@link Service#releaseLease}. A lease that is neither renewed nor
+ * released in time is revoked by the naming server, and the lock passes to
+ * the users waiting for it.
+ */
+public class Lease implements Serializable {
+	private static final long serialVersionUID = 4120538315318218417L;
+
+	/**
+	 * The identifier of the lease on the naming server
+	 */
+	private final long id;
+
+	/**
+	 * The locked object
+	 */
+	private final Path path;
+
+	/**
+	 * Whether the object is locked for exclusive access
+	 */
+	private final boolean exclusive;
+
+	/**
+	 * How long the lease lasts from each grant or renewal, in milliseconds
+	 */
+	private final long timeMillis;
+
+	/**
+	 * Constructor for {@code Lease}
+	 * @param id The identifier of the lease
+	 * @param path The locked object
+	 * @param exclusive Whether the object is locked for exclusive access
+	 * @param timeMillis How long the lease lasts, in milliseconds
+	 */
+	Lease(long id, Path path, boolean exclusive, long timeMillis) {
+		this.id = id;
+		this.path = path;
+		this.exclusive = exclusive;
+		this.timeMillis = timeMillis;
+	}
+
+	/**
+	 * @return the id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the path
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return whether the object is locked for exclusive access
+	 */
+	public boolean isExclusive() {
+		return exclusive;
+	}
+
+	/**
+	 * @param unit the unit of the result
+	 * @return how long the lease lasts from each grant or renewal
+	 */
+	public long getTime(TimeUnit unit) {
+		return unit.convert(timeMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toHexString(id) + " " + path + (exclusive ? " exclusive" : " shared");
+	}
+}
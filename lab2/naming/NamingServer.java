@@ -4,7 +4,12 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import rmi.*;
 import common.*;
@@ -57,9 +62,29 @@ public class NamingServer implements Service, Registration
 	private List<StorageStubs> storages;
 	
 	/**
-	 * The filesystem directory tree.
+	 * The root of the filesystem directory tree.
 	 */
-	private Map<Path, PathInfo> fileSystem;
+	private PathInfo root;
+
+	/**
+	 * How long leases last unless set otherwise, in milliseconds
+	 */
+	public static final long LEASE_TIME = 10000;
+
+	/**
+	 * How long leases granted from now on last, in milliseconds
+	 */
+	private volatile long leaseMillis = LEASE_TIME;
+
+	/**
+	 * Locks held under a lease, by lease identifier
+	 */
+	private final Map<Long, Leased> leases = new ConcurrentHashMap<Long, Leased>();
+
+	/**
+	 * Revokes expired leases; started with the first lease
+	 */
+	private ScheduledExecutorService reaper;
 	
     /** Creates the naming server object.
 
@@ -72,8 +97,7 @@ public class NamingServer implements Service, Registration
     	this.registSklt = null;
     	this.regTable = new ConcurrentHashMap<Storage, Command>();
     	this.storages = new ArrayList<StorageStubs>();
-    	this.fileSystem = new ConcurrentHashMap<Path, PathInfo>();
-    	this.fileSystem.put(new Path(), new PathInfo(false));
+    	this.root = new PathInfo();
     }
 
     /** Starts the naming server.
@@ -110,6 +134,11 @@ public class NamingServer implements Service, Registration
     {
     	serviceSklt.stop();
     	registSklt.stop();
+    	synchronized (this) {
+    		if (this.reaper != null) {
+    			this.reaper.shutdownNow();
+    		}
+    	}
         stopped(null);
     }
 
@@ -148,7 +177,8 @@ public class NamingServer implements Service, Registration
     public void lock(Path path, boolean exclusive) throws FileNotFoundException
     {    	
     	// sanity check
-    	if (!this.fileSystem.containsKey(path)) {
+    	PathInfo node = this.root.resolve(path);
+    	if (node == null) {
     		throw new FileNotFoundException("Error: the object specified by " +
     										path + " cannot be found.");
     	}
@@ -158,13 +188,13 @@ public class NamingServer implements Service, Registration
         // the path up to, but not including, the object itself, are locked for
         // shared access to prevent their modification or deletion by other users.
     	try {
-			this.lockParent(path, true);
+			this.lockParent(node, true);
 		} catch (InterruptedException e1) {
 			// TODO Auto-generated catch block
 			// e1.printStackTrace();
 			throw new IllegalStateException();
 		}
-    	ReadWriteLock pLock = this.fileSystem.get(path).getpLock();
+    	ReadWriteLock pLock = node.getpLock();
     	if (exclusive) {
     		try {
 				pLock.lockWrite();
@@ -176,7 +206,7 @@ public class NamingServer implements Service, Registration
         	// invalidation
     		// exclusive access = write request -> causes all copies of the file 
     		// but one to be deleted
-    		HashSet<StorageStubs> stbs = this.fileSystem.get(path).getStbs();
+    		Set<StorageStubs> stbs = node.getStbs();
     		Iterator<StorageStubs> it = stbs.iterator();
     		while (stbs.size() > 1) {
     			try {
@@ -188,7 +218,6 @@ public class NamingServer implements Service, Registration
     			// deleted stale copies
     			it.remove();
     		}
-    		this.fileSystem.get(path).setStbs(stbs);
     	}
     	else {
     		try {
@@ -198,7 +227,7 @@ public class NamingServer implements Service, Registration
 				// e.printStackTrace();
 				throw new IllegalStateException();
 			}
-    		PathInfo pf = this.fileSystem.get(path);
+    		PathInfo pf = node;
     		pf.incReadAccess();
         	// duplication
     		// the file is replicated once for every 20 read requests
@@ -207,8 +236,9 @@ public class NamingServer implements Service, Registration
     			// make a copy
     			Replicator copier = new Replicator(pf, path, this.storages);
     			new Thread(copier).start();
-    			// register storage server
-    			this.createFile(path, copier.getStub());
+    			// register storage server on the directories above the file;
+    			// the copier adds it to the file itself once the copy is made
+    			this.addStorage(pf.getParent(), copier.getStub());
     		}
     	}    
     }
@@ -231,24 +261,128 @@ public class NamingServer implements Service, Registration
     @Override
     public void unlock(Path path, boolean exclusive)
     {    	
-        if (!this.fileSystem.containsKey(path)) {
+        PathInfo node = this.root.resolve(path);
+        if (node == null) {
         	throw new IllegalArgumentException();
         }
+        this.unlock(node, exclusive);
+    }
+
+    /**
+     * release a lock and the shared locks on the directories above it
+     * @param node the locked object
+     * @param exclusive whether it was locked for exclusive access
+     */
+    private void unlock(PathInfo node, boolean exclusive)
+    {
         try {
-			this.lockParent(path, false);
+			this.lockParent(node, false);
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			// e.printStackTrace();
 			System.out.println("Error: fail to unlock parent path.");
 		}
         if (exclusive) {
-        	this.fileSystem.get(path).getpLock().unlockWrite();
+        	node.getpLock().unlockWrite();
         }
         else {
-        	this.fileSystem.get(path).getpLock().unlockRead();
+        	node.getpLock().unlockRead();
         }
     }
 
+    // The method lockAll is documented in Service.java.
+    @Override
+    public void lockAll(Path[] paths, boolean[] exclusive) throws FileNotFoundException
+    {
+    	NavigableMap<Path, Boolean> order = this.lockOrder(paths, exclusive);
+    	Deque<Map.Entry<Path, Boolean>> taken = new ArrayDeque<Map.Entry<Path, Boolean>>();
+    	try {
+    		for (Map.Entry<Path, Boolean> e : order.entrySet()) {
+    			this.lock(e.getKey(), e.getValue());
+    			taken.push(e);
+    		}
+    	} finally {
+    		// release what was taken if one lock failed
+    		if (taken.size() < order.size()) {
+    			for (Map.Entry<Path, Boolean> e : taken) {
+    				this.unlock(e.getKey(), e.getValue());
+    			}
+    		}
+    	}
+    }
+
+    // The method unlockAll is documented in Service.java.
+    @Override
+    public void unlockAll(Path[] paths, boolean[] exclusive)
+    {
+    	NavigableMap<Path, Boolean> order = this.lockOrder(paths, exclusive);
+    	for (Path p : order.keySet()) {
+    		if (this.root.resolve(p) == null) {
+    			throw new IllegalArgumentException("Error: the path <" + p
+    					+ "> cannot be found.");
+    		}
+    	}
+    	for (Map.Entry<Path, Boolean> e : order.descendingMap().entrySet()) {
+    		this.unlock(e.getKey(), e.getValue());
+    	}
+    }
+
+    /** Sets how long the leases granted from now on last.
+
+        <p>
+        Leases last <code>LEASE_TIME</code> milliseconds unless this is
+        called. Expired leases are looked for four times per lease time.
+
+        @param time The time.
+        @param unit The unit of <code>time</code>.
+        @throws IllegalArgumentException If <code>time</code> is not positive.
+     */
+    public void setLeaseTime(long time, TimeUnit unit)
+    {
+    	if (time <= 0) {
+    		throw new IllegalArgumentException("Error: lease time must be positive.");
+    	}
+    	this.leaseMillis = Math.max(1, unit.toMillis(time));
+    }
+
+    // The method lockLease is documented in Service.java.
+    @Override
+    public Lease lockLease(Path path, boolean exclusive) throws FileNotFoundException
+    {
+    	this.lock(path, exclusive);
+    	// the object cannot be deleted while it is locked
+    	PathInfo node = this.root.resolve(path);
+    	long time = this.leaseMillis;
+    	Leased leased;
+    	do {
+    		long id = ThreadLocalRandom.current().nextLong();
+    		leased = new Leased(new Lease(id, path, exclusive, time), node);
+    	} while (this.leases.putIfAbsent(leased.lease.getId(), leased) != null);
+    	this.startReaper();
+    	return leased.lease;
+    }
+
+    // The method renewLease is documented in Service.java.
+    @Override
+    public boolean renewLease(long lease)
+    {
+    	Leased leased = this.leases.get(lease);
+    	return leased != null && leased.renew();
+    }
+
+    // The method releaseLease is documented in Service.java.
+    @Override
+    public boolean releaseLease(long lease)
+    {
+    	Leased leased = this.leases.get(lease);
+    	if (leased == null || !leased.end(Long.MAX_VALUE)) {
+    		return false;
+    	}
+    	this.leases.remove(lease);
+    	this.unlock(leased.node, leased.lease.isExclusive());
+    	return true;
+    }
+
     /** Determines whether a path refers to a directory.
 
     <p>
@@ -271,11 +405,12 @@ public class NamingServer implements Service, Registration
         // operation is performed.
 
     	// assume path is an absolute path
-    	if (!this.fileSystem.containsKey(path)) {
+    	PathInfo node = this.root.resolve(path);
+    	if (node == null) {
     		throw new FileNotFoundException("Error: the path <" + path 
     				+ "> cannot be found.");
     	}
-        return !this.fileSystem.get(path).isFile();
+        return !node.isFile();
     }
 
     /** Lists the contents of a directory.
@@ -296,16 +431,11 @@ public class NamingServer implements Service, Registration
     public String[] list(Path directory) throws FileNotFoundException
     {
     	// TODO: lock
-    	if (!this.fileSystem.containsKey(directory) || this.fileSystem.get(directory).isFile()) {
+    	PathInfo node = this.root.resolve(directory);
+    	if (node == null || node.isFile()) {
     		throw new FileNotFoundException("Error: the given path does not refer to a directory");
     	}
-    	HashSet<Path> subDir = this.fileSystem.get(directory).getChildren();
-    	String[] res = new String[subDir.size()];
-    	int i = 0;
-    	for (Path p : subDir) {
-    		res[i++] = p.last();
-    	}
-    	return res;
+    	return node.list();
     }
     
     /** Creates the given file, if it does not exist.
@@ -333,12 +463,12 @@ public class NamingServer implements Service, Registration
     		throw new IllegalStateException("Error: no storage servers are connected to the naming server");
     	}
     	// If the file already exists
-    	if (this.fileSystem.containsKey(file)) {
+    	if (this.root.resolve(file) != null) {
     		return false;
     	}
 
-    	Path p = file.parent();
-    	if (!this.fileSystem.containsKey(p) || this.fileSystem.get(p).isFile()) {
+    	PathInfo p = this.root.resolve(file, file.depth() - 1);
+    	if (p == null || p.isFile()) {
     		throw new FileNotFoundException("Error: the parent directory does not exist.");
     	}    		
 
@@ -350,11 +480,14 @@ public class NamingServer implements Service, Registration
     		return false;
     	}
     	// add file path to the fileSystem directory tree
-    	this.fileSystem.put(file, new PathInfo(true));
+    	PathInfo node = p.addChild(file.last(), true);
+    	if (node == null) {
+    		return false;
+    	}
     	StorageStubs stb = new StorageStubs(client, cmd);
-    	this.fileSystem.get(file).addStbs(stb);
-    	// add parent path to the fileSystem directory tree
-    	this.createFile(file, stb);
+    	node.addStbs(stb);
+    	// record the storage on every parent directory
+    	this.addStorage(p, stb);
         return true;
     }
 
@@ -378,20 +511,17 @@ public class NamingServer implements Service, Registration
     	// Sanity check
     	
     	// If the directory already exists
-    	if (this.fileSystem.containsKey(directory)) {
+    	if (this.root.resolve(directory) != null) {
     		return false;
     	}
     	
-    	Path p = directory.parent();
-    	if (!this.fileSystem.containsKey(p) || this.fileSystem.get(p).isFile()) {
+    	PathInfo p = this.root.resolve(directory, directory.depth() - 1);
+    	if (p == null || p.isFile()) {
     		throw new FileNotFoundException("Error: the parent directory does not exist.");
     	}    	
 
     	// add a directory path to the fileSystem directory tree
-    	this.fileSystem.put(directory, new PathInfo(false));
-    	// add parent path to the fileSystem directory tree
-    	this.createDirect(directory);
-    	return true;
+    	return p.addChild(directory.last(), false) != null;
     }
 
     /** Deletes a file or directory.
@@ -412,12 +542,14 @@ public class NamingServer implements Service, Registration
     @Override
     public boolean delete(Path path) throws FileNotFoundException
     {
-    	Path p = path.parent();
-    	if (!this.fileSystem.containsKey(p) || !this.fileSystem.containsKey(path)) {
+    	if (path.isRoot()) {
+    		return false;
+    	}
+    	PathInfo pt = this.root.resolve(path);
+    	if (pt == null) {
     		throw new FileNotFoundException("Error: the object or parent directory does not exist.");
     	}
-    	PathInfo pt = this.fileSystem.get(path);
-    	HashSet<StorageStubs> stbs = pt.getStbs();
+    	Set<StorageStubs> stbs = pt.getStbs();
     	try {
     		for (StorageStubs stb : stbs) {
     			if (!stb.getCMD_stub().delete(path)) {
@@ -428,8 +560,8 @@ public class NamingServer implements Service, Registration
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-    	this.fileSystem.remove(path);
-		this.fileSystem.get(p).rmvChild(path);
+    	// the subtree goes with the node
+		pt.getParent().rmvChild(pt);
         return true;
     }
 
@@ -451,10 +583,11 @@ public class NamingServer implements Service, Registration
     @Override
     public Storage getStorage(Path file) throws FileNotFoundException
     {
-    	if (!this.fileSystem.containsKey(file) || !this.fileSystem.get(file).isFile()) {
+    	PathInfo node = this.root.resolve(file);
+    	if (node == null || !node.isFile()) {
     		throw new FileNotFoundException("Error: the file does not exist.");
     	}
-    	HashSet<StorageStubs> stbs = this.fileSystem.get(file).getStbs();
+    	Set<StorageStubs> stbs = node.getStbs();
     	Iterator<StorageStubs> it = stbs.iterator();
     	int idx = ThreadLocalRandom.current().nextInt(stbs.size());
     	while (idx > 0) {
@@ -488,75 +621,240 @@ public class NamingServer implements Service, Registration
         	if (f.isRoot()) {
         		continue;
         	}
-        	if (this.fileSystem.containsKey(f)) {
+        	if (!this.register(f, stb)) {
         		dupFiles.add(f);
         	}
-        	else {
-        		this.fileSystem.put(f, new PathInfo(true));
-        		this.fileSystem.get(f).addStbs(stb);
-        		this.createFile(f, stb);
-        	}
         }
         Path[] res = new Path[dupFiles.size()];
         return dupFiles.toArray(res);
     }
  
+    /** Reports the most contended locks.
+
+        <p>
+        Every object in the directory tree is visited, so this is meant for
+        occasional diagnosis rather than monitoring.
+
+        @param count The greatest number of locks to report.
+        @return The statistics of the locks whose requests waited longest in
+                all, in decreasing order of that time, keyed by path. Locks
+                that were never waited for are not reported.
+     */
+    public Map<Path, ReadWriteLock.Stats> hotLocks(int count)
+    {
+    	List<PathInfo> nodes = new ArrayList<PathInfo>();
+    	final Map<PathInfo, ReadWriteLock.Stats> stats =
+    			new HashMap<PathInfo, ReadWriteLock.Stats>();
+    	Deque<PathInfo> pending = new ArrayDeque<PathInfo>();
+    	pending.push(this.root);
+    	while (!pending.isEmpty()) {
+    		PathInfo node = pending.pop();
+    		ReadWriteLock.Stats s = node.getpLock().stats();
+    		if (s.getWaits() > 0) {
+    			nodes.add(node);
+    			stats.put(node, s);
+    		}
+    		for (PathInfo child : node.getChildren()) {
+    			pending.push(child);
+    		}
+    	}
+    	Collections.sort(nodes, new Comparator<PathInfo>() {
+    		@Override
+    		public int compare(PathInfo a, PathInfo b) {
+    			return Long.compare(stats.get(b).getWaitTime(TimeUnit.NANOSECONDS),
+    					stats.get(a).getWaitTime(TimeUnit.NANOSECONDS));
+    		}
+    	});
+    	Map<Path, ReadWriteLock.Stats> res = new LinkedHashMap<Path, ReadWriteLock.Stats>();
+    	for (PathInfo node : nodes.subList(0, Math.min(count, nodes.size()))) {
+    		res.put(node.getPath(), stats.get(node));
+    	}
+    	return res;
+    }
+
     /**
-     * add parent path to the filesystem
+     * add a file found on a storage server to the filesystem, along with any
+     * missing parent directories
      * @param file a path to a file
      * @param stb the storage server that stores the file
+     * @return false if the path already exists, or a parent is a file
      */
-    private void createFile(Path file, StorageStubs stb) {
-    	Path p = null;
-    	do {
-    		p = file.parent();
-    		if (!this.fileSystem.containsKey(p)) {
-    			this.fileSystem.put(p, new PathInfo(false));
+    private boolean register(Path file, StorageStubs stb) {
+    	PathInfo p = this.root;
+    	for (int i = 0; i < file.depth() - 1; i++) {
+    		p = p.addDirectory(file.component(i));
+    		if (p.isFile()) {
+    			return false;
     		}
-			this.fileSystem.get(p).addChild(file);
-    		this.fileSystem.get(p).addStbs(stb);
-    		file = p;
-    	} while(!p.isRoot());
+    	}
+    	PathInfo node = p.addChild(file.last(), true);
+    	if (node == null) {
+    		return false;
+    	}
+    	node.addStbs(stb);
+    	this.addStorage(p, stb);
+    	return true;
     }
-    
+
     /**
-     * add parent path to the filesystem
-     * @param dir A path to the target directory
+     * record that a storage server stores something below each directory
+     * from the given one up to the root
+     * @param dir the innermost directory
+     * @param stb the storage server, ignored if null
      */
-    private void createDirect(Path dir) {
-    	Path p = null;
-    	do {
-    		p = dir.parent();
-    		if (this.fileSystem.containsKey(p)) {
-    			this.fileSystem.get(p).addChild(dir);
-    			break;
+    private void addStorage(PathInfo dir, StorageStubs stb) {
+    	if (stb == null) {
+    		return;
+    	}
+    	for (PathInfo p = dir; p != null; p = p.getParent()) {
+    		p.addStbs(stb);
+    	}
+    }
+
+    /**
+     * start revoking expired leases, unless already started
+     */
+    private synchronized void startReaper() {
+    	if (this.reaper != null) {
+    		return;
+    	}
+    	this.reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    		@Override
+    		public Thread newThread(Runnable r) {
+    			Thread t = new Thread(r, "lease reaper");
+    			t.setDaemon(true);
+    			return t;
     		}
-    		else {
-    			this.fileSystem.put(p, new PathInfo(false));
+    	});
+    	this.reaper.schedule(new Runnable() {
+    		@Override
+    		public void run() {
+    			long now = System.nanoTime();
+    			for (Leased leased : leases.values()) {
+    				if (leased.end(now)) {
+    					leases.remove(leased.lease.getId());
+    					// the lock passes to the users waiting for it
+    					unlock(leased.node, leased.lease.isExclusive());
+    				}
+    			}
+    			try {
+    				reaper.schedule(this, leaseMillis / 4 + 1, TimeUnit.MILLISECONDS);
+    			} catch (RejectedExecutionException e) {
+    				// the naming server has stopped
+    			}
+    		}
+    	}, this.leaseMillis / 4 + 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * sort the paths of a bulk lock request in the order they are locked in,
+     * merging duplicates
+     * @param paths the paths
+     * @param exclusive the mode of each path
+     * @return the mode of each path, exclusive if any request for it is, in
+     *         increasing order of path
+     * @throws IllegalArgumentException if the arrays differ in length or one
+     *                                  path lies below another
+     */
+    private NavigableMap<Path, Boolean> lockOrder(Path[] paths, boolean[] exclusive) {
+    	if (paths == null || exclusive == null) {
+    		throw new NullPointerException("Error: NULL arguments.");
+    	}
+    	if (paths.length != exclusive.length) {
+    		throw new IllegalArgumentException("Error: one mode is needed per path.");
+    	}
+    	NavigableMap<Path, Boolean> order = new TreeMap<Path, Boolean>();
+    	for (int i = 0; i < paths.length; i++) {
+    		if (paths[i] == null) {
+    			throw new NullPointerException("Error: NULL path.");
     		}
-    		this.fileSystem.get(p).addChild(dir);
-    		dir = p;
-    	} while (!p.isRoot());
+    		Boolean prev = order.get(paths[i]);
+    		order.put(paths[i], exclusive[i] || (prev != null && prev));
+    	}
+    	// a path below another comes right after it or its other descendants
+    	Path prev = null;
+    	for (Path p : order.keySet()) {
+    		if (prev != null && p.isSubpath(prev)) {
+    			throw new IllegalArgumentException("Error: the path <" + p
+    					+ "> lies below <" + prev + ">.");
+    		}
+    		prev = p;
+    	}
+    	return order;
     }
 
     /**
      * When any object is locked for either kind of access, all objects along
      * the path up to, but not including, the object itself, are locked for
      * shared access to prevent their modification or deletion by other users.
-     * @param file
+     * @param node the node of the object
      * @param dolock indicate whether it's requesting lock or unlock
      * @throws InterruptedException 
      */
-    private void lockParent(Path file, boolean dolock) throws InterruptedException {
-    	if (!file.isRoot()) {
-    		Path p = file.parent();
+    private void lockParent(PathInfo node, boolean dolock) throws InterruptedException {
+    	for (PathInfo p = node.getParent(); p != null; p = p.getParent()) {
     		if (dolock) {
-    			this.fileSystem.get(p).getpLock().lockRead();
+    			p.getpLock().lockRead();
     		}
     		else {
-        		this.fileSystem.get(p).getpLock().unlockRead();    			
+        		p.getpLock().unlockRead();
     		}
-    		this.lockParent(p, dolock);
     	}
-    }    
+    }
+
+    /**
+     * A lock held under a lease
+     */
+    private static final class Leased {
+    	/**
+    	 * The lease given to the client
+    	 */
+    	final Lease lease;
+
+    	/**
+    	 * The locked object
+    	 */
+    	final PathInfo node;
+
+    	/**
+    	 * When the lease runs out, by <code>System.nanoTime</code>
+    	 */
+    	private long expires;
+
+    	/**
+    	 * Whether the lease was released or revoked
+    	 */
+    	private boolean ended = false;
+
+    	Leased(Lease lease, PathInfo node) {
+    		this.lease = lease;
+    		this.node = node;
+    		this.renew();
+    	}
+
+    	/**
+    	 * extend the lease by its full time from now
+    	 * @return false if the lease has ended
+    	 */
+    	synchronized boolean renew() {
+    		if (this.ended) {
+    			return false;
+    		}
+    		this.expires = System.nanoTime() + this.lease.getTime(TimeUnit.NANOSECONDS);
+    		return true;
+    	}
+
+    	/**
+    	 * end the lease if it has run out by the given time
+    	 * @param now the time, or <code>Long.MAX_VALUE</code> to end it anyway
+    	 * @return true if this call ended the lease
+    	 */
+    	synchronized boolean end(long now) {
+    		if (this.ended || (now != Long.MAX_VALUE && now - this.expires < 0)) {
+    			return false;
+    		}
+    		this.ended = true;
+    		return true;
+    	}
+    }
 }
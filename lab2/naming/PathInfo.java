@@ -1,10 +1,23 @@
 package naming;
 
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import common.Path;
 
 /**
- * A class wrapping all information related to a path
+ * A class wrapping all information related to a path: a node of the
+ * filesystem directory tree.
+ *
+ * <p>
+ * Each node knows its parent and holds its children in a concurrent map keyed
+ * by their names, so a path is resolved by walking its components down from
+ * the root, and its ancestors by following parent links, without building
+ * any intermediate <code>Path</code>. Names are interned, so that the many
+ * entries sharing a name share one string.
  * @author feichao
  *
  */
@@ -13,59 +26,176 @@ public class PathInfo {
 	 * A counter counting the number of shared access
 	 */
 	private int readAccess;
-	
+
+	/**
+	 * The last component of this path, or <code>null</code> for the root
+	 */
+	private final String name;
+
 	/**
-	 * A path's Children
+	 * The parent directory, or <code>null</code> for the root
 	 */
-	private HashSet<Path> children;
-	
+	private final PathInfo parent;
+
+	/**
+	 * A directory's children by name, or <code>null</code> for a file
+	 */
+	private final ConcurrentMap<String, PathInfo> children;
+
 	/**
 	 * Storages that store this path
 	 */
-	private HashSet<StorageStubs> stbs;
+	private Set<StorageStubs> stbs;
 
 	/**
 	 * A lock belongs to this path
 	 */
 	private ReadWriteLock pLock;
-	
+
 	/**
 	 * A flag indicating whether this path is a file
 	 */
-	private boolean isFile;
-	
-	public PathInfo(boolean tag) {
+	private final boolean isFile;
+
+	/**
+	 * Constructor for the root directory
+	 */
+	public PathInfo() {
+		this(null, null, false);
+	}
+
+	/**
+	 * Constructor for {@code PathInfo}; the node is not yet a child of its
+	 * parent
+	 * @param parent The parent directory
+	 * @param name The last component of the path
+	 * @param tag Whether the path is a file
+	 */
+	private PathInfo(PathInfo parent, String name, boolean tag) {
 		this.clearReadAccess();
-		this.children = new HashSet<Path>();
-		this.stbs = new HashSet<StorageStubs>();
+		this.parent = parent;
+		this.name = name == null ? null : name.intern();
+		this.children = tag ? null : new ConcurrentHashMap<String, PathInfo>();
+		this.stbs = ConcurrentHashMap.newKeySet();
 		this.setpLock(new ReadWriteLock());
-		this.setFile(tag);
+		this.isFile = tag;
+	}
+
+	/**
+	 * Return the node of a path below this one
+	 * @param path The path, relative to this node
+	 * @return the node, or <code>null</code> if there is none
+	 */
+	public PathInfo resolve(Path path) {
+		return this.resolve(path, path.depth());
 	}
 
 	/**
-	 * @return the children
+	 * Return the node of the first components of a path below this one
+	 * @param path The path, relative to this node
+	 * @param depth The number of components to follow
+	 * @return the node, or <code>null</code> if there is none
 	 */
-	public HashSet<Path> getChildren() {
-		return children;
+	public PathInfo resolve(Path path, int depth) {
+		PathInfo node = this;
+		for (int i = 0; i < depth && node != null; i++) {
+			node = node.getChild(path.component(i));
+		}
+		return node;
 	}
 
 	/**
-	 * @param children the children to add
+	 * @return the name, or <code>null</code> for the root
 	 */
-	public void addChild(Path child) {
-		this.children.add(child);
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Rebuild the path of this node from its names up to the root
+	 * @return the path
+	 */
+	public Path getPath() {
+		if (parent == null) {
+			return new Path();
+		}
+		return new Path(parent.getPath(), name);
+	}
+
+	/**
+	 * @return the children; empty for a file
+	 */
+	public Collection<PathInfo> getChildren() {
+		if (children == null) {
+			return Collections.emptyList();
+		}
+		return children.values();
+	}
+
+	/**
+	 * @return the parent, or <code>null</code> for the root
+	 */
+	public PathInfo getParent() {
+		return parent;
+	}
+
+	/**
+	 * @param name the name of the child
+	 * @return the child, or <code>null</code> if there is none
+	 */
+	public PathInfo getChild(String name) {
+		return children == null ? null : children.get(name);
+	}
+
+	/**
+	 * @return the names of the children; empty for a file
+	 */
+	public String[] list() {
+		if (children == null) {
+			return new String[0];
+		}
+		return children.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Adds a child, unless one of that name exists
+	 * @param name the name of the child
+	 * @param tag whether the child is a file
+	 * @return the new child, or <code>null</code> if the name is taken
+	 */
+	public PathInfo addChild(String name, boolean tag) {
+		PathInfo child = new PathInfo(this, name, tag);
+		return children.putIfAbsent(child.name, child) == null ? child : null;
+	}
+
+	/**
+	 * Return a child directory, adding it if there is none of that name
+	 * @param name the name of the directory
+	 * @return the directory, or a file of that name if there is one
+	 */
+	public PathInfo addDirectory(String name) {
+		PathInfo child = children.get(name);
+		if (child == null) {
+			child = new PathInfo(this, name, false);
+			PathInfo prev = children.putIfAbsent(child.name, child);
+			if (prev != null) {
+				child = prev;
+			}
+		}
+		return child;
 	}
 
 	/**
 	 * @param child the child to remove
 	 */
-	public void rmvChild(Path child) {
-		this.children.remove(child);
+	public void rmvChild(PathInfo child) {
+		this.children.remove(child.name, child);
 	}
+
 	/**
 	 * @return the stbs
 	 */
-	public HashSet<StorageStubs> getStbs() {
+	public Set<StorageStubs> getStbs() {
 		return stbs;
 	}
 
@@ -79,10 +209,10 @@ public class PathInfo {
 	/**
 	 * @param stb the stb to add
 	 */
-	public void setStbs(HashSet<StorageStubs> stb) {
+	public void setStbs(Set<StorageStubs> stb) {
 		this.stbs = stb;
 	}
-	
+
 	/**
 	 * @return the pLock
 	 */
@@ -104,13 +234,6 @@ public class PathInfo {
 		return isFile;
 	}
 
-	/**
-	 * @param isFile the isFile to set
-	 */
-	public void setFile(boolean isFile) {
-		this.isFile = isFile;
-	}
-
 	/**
 	 * @return the readAccess
 	 */
@@ -124,7 +247,7 @@ public class PathInfo {
 	public void clearReadAccess() {
 		this.readAccess = 0;
 	}
-	
+
 	/**
 	 * Increase the number of shared access by 1
 	 */
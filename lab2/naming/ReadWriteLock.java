@@ -1,75 +1,541 @@
 package naming;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * <p>
  * A custome Lock
- * 
+ *
  * <p>
  * Read Access   	If no threads are writing, and no threads have requested write access.
  * Write Access   	If no threads are reading or writing.
- * 
+ *
+ * <p>
+ * Requests that cannot be granted at once wait in a first-come first-serve
+ * queue, each parked on its own. A release hands the lock directly to the
+ * head of the queue: a writer alone, or every reader up to the next writer
+ * together. Only the threads granted the lock are woken, and they return
+ * holding it.
+ *
+ * <p>
+ * Shared access is taken on every directory above each locked object, so the
+ * locks near the root are taken by nearly every call. Readers are therefore
+ * counted without the monitor and, while no writer holds or waits for the
+ * lock, come and go with an increment and a decrement. The count starts on a
+ * single counter; once readers contend for it, each thread counts on its own
+ * padded stripe instead, so readers of a busy lock do not share a cache
+ * line. A reader that finds a writer backs out of the stripe it counted on;
+ * a release may count on any stripe, since only the sum matters. A writer
+ * raises its flag before summing the stripes, so a reader it misses sees the
+ * flag and backs out.
+ *
+ * <p>
+ * The lock keeps the number of grants, the time requests spent waiting in
+ * the queue and the time writers held it, available from {@link #stats}.
+ * Shared holds are counted but not timed, to keep the readers' path down to
+ * the counter updates; the time writers waited for readers to leave shows
+ * where they are long.
+ *
  * @author feichao
  *
  */
-public class ReadWriteLock {	
+public class ReadWriteLock {
 	/**
 	 * The number of exclusive access
 	 */
 	private int writeAccess = 0;
-		
+
+	/**
+	 * The number of counters readers are spread over once they contend
+	 */
+	private static final int STRIPES = Math.min(64,
+			Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+	/**
+	 * The distance between two stripes, in longs, so that each has a cache
+	 * line to itself
+	 */
+	private static final int PADDING = 16;
+
+	/**
+	 * The number of shared access, counted here until readers contend
+	 */
+	private final AtomicLong readAccess = new AtomicLong();
+
 	/**
-	 * The number of exclusive access requests
+	 * The number of shared access counted on each stripe, or
+	 * <code>null</code> until readers contend
 	 */
-	private int writeRequests = 0;
-	
+	private volatile AtomicLongArray readStripes;
+
+	/**
+	 * Whether a writer holds the lock or a request is queued; readers then
+	 * take the monitor
+	 */
+	private volatile boolean writers = false;
+
+	/**
+	 * The first and last queued requests
+	 */
+	private Waiter head, tail;
+
 	/**
-	 * The number of shared access 
+	 * The number of shared access granted
 	 */
-	private int readAccess = 0;
-	
+	private final LongAdder readCount = new LongAdder();
+
+	/**
+	 * The number of exclusive access granted
+	 */
+	private long writeCount = 0;
+
+	/**
+	 * Time exclusive access was held, in nanoseconds
+	 */
+	private long writeNanos = 0;
+
+	/**
+	 * When the writer holding the lock took it
+	 */
+	private long writeSince;
+
+	/**
+	 * The number of requests that waited in the queue
+	 */
+	private long waits = 0;
+
+	/**
+	 * Time requests spent in the queue, in nanoseconds
+	 */
+	private long waitNanos = 0;
+
+	/**
+	 * Longest time a request spent in the queue, in nanoseconds
+	 */
+	private long maxWaitNanos = 0;
+
 	/**
 	 * Request for shared access
-	 * @throws InterruptedException 
+	 * @throws InterruptedException
 	 */
-	public synchronized void lockRead() throws InterruptedException {
-		while (this.writeAccess > 0 || this.writeRequests > 0) {
-			wait();
-		}
-		this.readAccess++;
+	public void lockRead() throws InterruptedException {
+		this.acquire(false, false, 0L);
 	}
-	
+
+	/**
+	 * Request for shared access, giving up after a while
+	 * @param timeout how long to wait
+	 * @param unit the unit of <code>timeout</code>
+	 * @return true if the lock was taken, false if the time ran out
+	 * @throws InterruptedException
+	 */
+	public boolean tryLockRead(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.acquire(false, true, unit.toNanos(timeout));
+	}
+
 	/**
 	 * <p>
 	 * Release reading lock
 	 */
-	public synchronized void unlockRead() {
-		this.readAccess--;
-		notifyAll();
+	public void unlockRead() {
+		this.addReader(-1L);
+		if (this.writers) {
+			synchronized (this) {
+				this.grant();
+			}
+		}
 	}
-	
+
 	/**
 	 * <p>
 	 * Request for exclusive access
-	 * 
+	 *
 	 * <p>
-	 * Write reentrance is granted only if the thread has already write access. 
-	 * 
-	 * @throws InterruptedException 
+	 * Write reentrance is not granted: a writer locking again waits for itself.
+	 *
+	 * @throws InterruptedException
 	 */
-	public synchronized void lockWrite() throws InterruptedException {
-		++writeRequests;
-		while (this.readAccess > 0 || this.writeAccess > 0) {
-			wait();
-		}
-		--writeRequests;
-		++writeAccess;
+	public void lockWrite() throws InterruptedException {
+		this.acquire(true, false, 0L);
 	}
-	
+
+	/**
+	 * Request for exclusive access, giving up after a while
+	 * @param timeout how long to wait
+	 * @param unit the unit of <code>timeout</code>
+	 * @return true if the lock was taken, false if the time ran out
+	 * @throws InterruptedException
+	 */
+	public boolean tryLockWrite(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.acquire(true, true, unit.toNanos(timeout));
+	}
+
 	/**
 	 * Release writing lock
 	 */
 	public synchronized void unlockWrite() {
 		--writeAccess;
-		notifyAll();
+		writeNanos += System.nanoTime() - writeSince;
+		this.grant();
+	}
+
+	/**
+	 * @return the grants of this lock and the time spent waiting for it and
+	 *         holding it for exclusive access so far
+	 */
+	public synchronized Stats stats() {
+		long held = writeNanos;
+		if (writeAccess > 0) {
+			held += System.nanoTime() - writeSince;
+		}
+		int queued = 0;
+		for (Waiter w = head; w != null; w = w.next) {
+			queued++;
+		}
+		return new Stats(readCount.sum(), writeCount, waits, waitNanos, maxWaitNanos,
+				held, queued);
+	}
+
+	/**
+	 * Takes the lock, queueing if it cannot be granted at once
+	 * @param exclusive whether exclusive access is requested
+	 * @param timed whether to give up after <code>nanos</code>
+	 * @param nanos how long to wait, if timed
+	 * @return true if the lock was taken
+	 * @throws InterruptedException
+	 */
+	private boolean acquire(boolean exclusive, boolean timed, long nanos)
+			throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		if (!exclusive) {
+			// a writer raising the flag after this increment sees it in the count
+			int stripe = this.addReader(1L);
+			if (!this.writers) {
+				this.readCount.increment();
+				return true;
+			}
+			this.addReader(stripe, -1L);
+		}
+
+		Waiter w;
+		synchronized (this) {
+			if (exclusive) {
+				this.writers = true;
+			}
+			if (head == null && this.grantable(exclusive)) {
+				this.take(exclusive, System.nanoTime(), -1L);
+				this.writers = writeAccess > 0;
+				return true;
+			}
+			w = new Waiter(exclusive);
+			if (tail == null) {
+				head = w;
+			} else {
+				tail.next = w;
+			}
+			tail = w;
+			this.writers = true;
+			// readers that backed out may have been the last to leave
+			this.grant();
+		}
+
+		long deadline = w.since + nanos;
+		while (!w.granted) {
+			if (timed) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					return this.cancel(w);
+				}
+				LockSupport.parkNanos(this, left);
+			} else {
+				LockSupport.park(this);
+			}
+			if (Thread.interrupted()) {
+				if (this.cancel(w)) {
+					// granted meanwhile: give it back
+					if (exclusive) {
+						this.unlockWrite();
+					} else {
+						this.unlockRead();
+					}
+				}
+				throw new InterruptedException();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Withdraws a queued request
+	 * @param w the request
+	 * @return true if it was granted before it could be withdrawn
+	 */
+	private synchronized boolean cancel(Waiter w) {
+		if (w.granted) {
+			return true;
+		}
+		Waiter prev = null;
+		for (Waiter p = head; p != null; prev = p, p = p.next) {
+			if (p == w) {
+				if (prev == null) {
+					head = w.next;
+				} else {
+					prev.next = w.next;
+				}
+				if (tail == w) {
+					tail = prev;
+				}
+				break;
+			}
+		}
+		// readers queued behind a withdrawn writer may go now
+		this.grant();
+		return false;
+	}
+
+	/**
+	 * Hands the lock to the head of the queue, if it can have it: a writer
+	 * alone, or every reader up to the next writer. Must hold the monitor.
+	 */
+	private void grant() {
+		long now = 0L;
+		while (head != null && this.grantable(head.exclusive)) {
+			Waiter w = head;
+			head = w.next;
+			if (head == null) {
+				tail = null;
+			}
+			if (now == 0L) {
+				now = System.nanoTime();
+			}
+			this.take(w.exclusive, now, now - w.since);
+			w.granted = true;
+			LockSupport.unpark(w.thread);
+			if (w.exclusive) {
+				break;
+			}
+		}
+		this.writers = writeAccess > 0 || head != null;
+	}
+
+	/**
+	 * Must hold the monitor, with <code>writers</code> raised for a writer
+	 * @param exclusive whether exclusive access is requested
+	 * @return whether the lock can be granted in that mode now
+	 */
+	private boolean grantable(boolean exclusive) {
+		if (exclusive) {
+			return writeAccess == 0 && this.readers() == 0;
+		}
+		return writeAccess == 0;
+	}
+
+	/**
+	 * Counts readers coming or going, on the shared counter if it is free or
+	 * else on the calling thread's stripe
+	 * @param delta the number of readers
+	 * @return the stripe counted on, or -1 for the shared counter
+	 */
+	private int addReader(long delta) {
+		AtomicLongArray stripes = this.readStripes;
+		if (stripes == null) {
+			long count = readAccess.get();
+			if (readAccess.compareAndSet(count, count + delta)) {
+				return -1;
+			}
+			stripes = this.inflate();
+		}
+		int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+		stripes.getAndAdd(stripe * PADDING, delta);
+		return stripe;
+	}
+
+	/**
+	 * Counts readers coming or going on a given counter
+	 * @param stripe the stripe, or -1 for the shared counter
+	 * @param delta the number of readers
+	 */
+	private void addReader(int stripe, long delta) {
+		if (stripe < 0) {
+			readAccess.addAndGet(delta);
+		} else {
+			this.readStripes.getAndAdd(stripe * PADDING, delta);
+		}
+	}
+
+	/**
+	 * Creates the stripes, if no other reader has
+	 * @return the stripes
+	 */
+	private AtomicLongArray inflate() {
+		synchronized (readAccess) {
+			if (this.readStripes == null) {
+				this.readStripes = new AtomicLongArray(STRIPES * PADDING);
+			}
+			return this.readStripes;
+		}
+	}
+
+	/**
+	 * Sums the readers over all counters. Read after raising
+	 * <code>writers</code>, it includes every reader that has not seen the
+	 * flag.
+	 * @return the number of readers holding the lock
+	 */
+	private long readers() {
+		long count = readAccess.get();
+		AtomicLongArray stripes = this.readStripes;
+		if (stripes != null) {
+			for (int i = 0; i < STRIPES; i++) {
+				count += stripes.get(i * PADDING);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Grants the lock and counts the grant. Must hold the monitor.
+	 * @param exclusive whether exclusive access is granted
+	 * @param now the current time
+	 * @param waited how long the request waited in the queue, or -1 if it
+	 *               was granted without queueing
+	 */
+	private void take(boolean exclusive, long now, long waited) {
+		if (exclusive) {
+			++writeAccess;
+			++writeCount;
+			writeSince = now;
+		} else {
+			this.addReader(1L);
+			readCount.increment();
+		}
+		if (waited >= 0L) {
+			++waits;
+			waitNanos += waited;
+			maxWaitNanos = Math.max(maxWaitNanos, waited);
+		}
+	}
+
+	/**
+	 * A queued request
+	 */
+	private static final class Waiter {
+		/**
+		 * The requesting thread
+		 */
+		final Thread thread = Thread.currentThread();
+
+		/**
+		 * When the request was queued
+		 */
+		final long since = System.nanoTime();
+
+		/**
+		 * Whether exclusive access is requested
+		 */
+		final boolean exclusive;
+
+		/**
+		 * Set once the lock is handed over
+		 */
+		volatile boolean granted = false;
+
+		/**
+		 * The next request in the queue
+		 */
+		Waiter next;
+
+		Waiter(boolean exclusive) {
+			this.exclusive = exclusive;
+		}
+	}
+
+	/**
+	 * The times spent waiting for and holding a lock, at one point in time
+	 */
+	public static final class Stats {
+		private final long sharedAcquisitions;
+		private final long exclusiveAcquisitions;
+		private final long waits;
+		private final long waitNanos;
+		private final long maxWaitNanos;
+		private final long exclusiveHoldNanos;
+		private final int queued;
+
+		Stats(long sharedAcquisitions, long exclusiveAcquisitions, long waits,
+				long waitNanos, long maxWaitNanos, long exclusiveHoldNanos, int queued) {
+			this.sharedAcquisitions = sharedAcquisitions;
+			this.exclusiveAcquisitions = exclusiveAcquisitions;
+			this.waits = waits;
+			this.waitNanos = waitNanos;
+			this.maxWaitNanos = maxWaitNanos;
+			this.exclusiveHoldNanos = exclusiveHoldNanos;
+			this.queued = queued;
+		}
+
+		/**
+		 * @return the number of times shared access was granted
+		 */
+		public long getSharedAcquisitions() {
+			return sharedAcquisitions;
+		}
+
+		/**
+		 * @return the number of times exclusive access was granted
+		 */
+		public long getExclusiveAcquisitions() {
+			return exclusiveAcquisitions;
+		}
+
+		/**
+		 * @return the number of grants that had to wait in the queue
+		 */
+		public long getWaits() {
+			return waits;
+		}
+
+		/**
+		 * @param unit the unit of the result
+		 * @return the time all grants spent waiting in the queue
+		 */
+		public long getWaitTime(TimeUnit unit) {
+			return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @param unit the unit of the result
+		 * @return the longest time a grant spent waiting in the queue
+		 */
+		public long getMaxWaitTime(TimeUnit unit) {
+			return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @param unit the unit of the result
+		 * @return the time the lock was held for exclusive access
+		 */
+		public long getExclusiveHoldTime(TimeUnit unit) {
+			return unit.convert(exclusiveHoldNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @return the number of requests waiting in the queue
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("shared=%d exclusive=%d waits=%d wait=%dus maxWait=%dus "
+					+ "exclusiveHold=%dus queued=%d", sharedAcquisitions, exclusiveAcquisitions, waits,
+					waitNanos / 1000, maxWaitNanos / 1000, exclusiveHoldNanos / 1000, queued);
+		}
 	}
 }
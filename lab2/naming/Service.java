@@ -123,6 +123,114 @@ public interface Service
      */
     public void unlock(Path path, boolean exclusive) throws RMIException;
 
+    /** Locks several files or directories in one call.
+
+        <p>
+        The objects are locked one after the other, in the increasing order of
+        their paths described in <code>Path.compareTo</code>, each as if by
+        <code>lock</code>. This is the order in which clients locking several
+        objects must take their locks anyway, to avoid deadlocks; the naming
+        server saves them a round trip per object. The call returns once every
+        lock has been granted. If one of the objects cannot be locked, the
+        locks already taken are released before the exception is raised.
+
+        <p>
+        A path given twice is locked once, for exclusive access if either
+        request is exclusive. A path that lies below another given path is
+        rejected: locking an object already locks the directories above it for
+        shared access, and the second lock could queue behind a user waiting
+        for the first.
+
+        @param paths The files or directories to be locked.
+        @param exclusive For each path, <code>true</code> if the object is to
+                         be locked for exclusive access, and
+                         <code>false</code> for shared access.
+        @throws NullPointerException If either array, or any path, is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If the arrays differ in length, or
+                                         one path lies below another.
+        @throws FileNotFoundException If one of the objects cannot be found.
+        @throws IllegalStateException For the same reasons as
+                                      <code>lock</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void lockAll(Path[] paths, boolean[] exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Unlocks several files or directories in one call.
+
+        <p>
+        The paths and modes must be those given to <code>lockAll</code>. The
+        objects are unlocked in the reverse of the order in which they were
+        locked.
+
+        @param paths The files or directories to be unlocked.
+        @param exclusive For each path, the mode it was locked in.
+        @throws NullPointerException If either array, or any path, is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If the arrays differ in length, one
+                                         path lies below another, or one of
+                                         the objects cannot be found. Nothing
+                                         is unlocked in that case.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void unlockAll(Path[] paths, boolean[] exclusive)
+        throws RMIException;
+
+    /** Locks a file or directory under a lease.
+
+        <p>
+        The object is locked as by <code>lock</code>, but the lock is only
+        held for the time given in the returned lease. The client keeps it by
+        calling <code>renewLease</code> before that time has passed, every time.
+        If the client fails to, for instance because it has crashed, the
+        naming server revokes the lease and releases the lock, so that the
+        users waiting for it, and for the objects below it, can proceed. The
+        time starts once the lock is granted, not while the request waits.
+
+        <p>
+        A lock taken under a lease must be released with
+        <code>releaseLease</code>, not <code>unlock</code>.
+
+        @param path The file or directory to be locked.
+        @param exclusive If <code>true</code>, the object is to be locked for
+                         exclusive access. Otherwise, it is to be locked for
+                         shared access.
+        @return The lease.
+        @throws FileNotFoundException If the object specified by
+                                      <code>path</code> cannot be found.
+        @throws IllegalStateException For the same reasons as
+                                      <code>lock</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Lease lockLease(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Extends a lease by its full time from now.
+
+        @param lease The identifier of the lease.
+        @return <code>true</code> if the lease was extended,
+                <code>false</code> if it had already been revoked or released,
+                in which case the lock is no longer held.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean renewLease(long lease) throws RMIException;
+
+    /** Releases the lock held under a lease.
+
+        @param lease The identifier of the lease.
+        @return <code>true</code> if the lock was released,
+                <code>false</code> if the lease had already been revoked or
+                released.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean releaseLease(long lease) throws RMIException;
+
     /** Determines whether a path refers to a directory.
 
         <p>
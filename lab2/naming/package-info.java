@@ -33,7 +33,15 @@
     Operations that would merely access an object must be preceded by a request
     to lock the object for <em>shared</em> (read) access. Locking an object
     involves locking the entire path to the parent of the object for shared
-    access.
+    access. Since every lock request passes through the root, shared
+    access is granted without serializing requests on the directories above
+    them, unless a writer holds or is waiting for one of them.
+
+    <p>
+    Locks may also be taken under a <em>lease</em>, which the client renews
+    while it works. The naming server revokes leases that are not renewed in
+    time, so that a client that dies while holding a lock does not keep other
+    users waiting forever.
 
     <p>
     Commonly-accessed files are <em>replicated</em>: additional storage servers
@@ -5,7 +5,14 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Tests run are:
+    <ul>
+    <li>{@link naming.PathTreeTest}</li>
+    <li>{@link naming.ReadWriteLockTest}</li>
+    <li>{@link naming.LockQueueTest}</li>
+    <li>{@link naming.LockAllTest}</li>
+    <li>{@link naming.LeaseTest}</li>
+    </ul>
  */
 public class UnitTests
 {
@@ -18,7 +25,11 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {naming.PathTreeTest.class,
+                         naming.ReadWriteLockTest.class,
+                         naming.LockQueueTest.class,
+                         naming.LockAllTest.class,
+                         naming.LeaseTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
@@ -0,0 +1,243 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+import common.*;
+import client.LeasedLock;
+
+/** Checks that locks held under a lease last while the lease is renewed, and
+    are released when it is released or runs out.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>A lease carries the lease time set on the naming server.</li>
+    <li>A lease renewed in time keeps its lock for longer than the lease
+        time.</li>
+    <li>A lease left to run out is revoked by the naming server, which
+        releases its lock; it can then be neither renewed nor released.</li>
+    <li>Releasing a lease releases its lock, once.</li>
+    <li>A <code>LeasedLock</code> keeps its lock by itself until it is
+        closed, and closing it releases the lock.</li>
+    </ul>
+
+    <p>
+    The naming server is called directly, without being started, with a
+    short lease time.
+ */
+public class LeaseTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server leases";
+
+    /** Lease time used in the test, in milliseconds. */
+    private static final long   LEASE_TIME = 150;
+
+    /** Directory locked in the test. */
+    private final Path          a = new Path("/a");
+
+    /** Naming server under test. */
+    private NamingServer        server;
+
+    /** Creates the directory used in the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+        server.setLeaseTime(LEASE_TIME, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            if(!server.createDirectory(a))
+                throw new TestFailed("unable to create directory");
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create directory", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("rejecting a lease time that is not positive");
+
+        try
+        {
+            server.setLeaseTime(0, TimeUnit.MILLISECONDS);
+            throw new TestFailed("lease time of 0 accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task("renewing a lease");
+
+        Lease   lease = lockLease();
+
+        if(lease.getTime(TimeUnit.MILLISECONDS) != LEASE_TIME ||
+           !lease.isExclusive() || !lease.getPath().equals(a))
+        {
+            throw new TestFailed("wrong lease " + lease);
+        }
+
+        for(int round = 0; round < 8; ++round)
+        {
+            sleep(LEASE_TIME / 4);
+
+            if(!server.renewLease(lease.getId()))
+                throw new TestFailed("lease revoked while renewed");
+        }
+
+        task("revoking a lease that runs out");
+
+        long    deadline = System.currentTimeMillis() + 20 * LEASE_TIME;
+
+        while(!lockable())
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("expired lease still holds its lock");
+        }
+
+        if(server.renewLease(lease.getId()))
+            throw new TestFailed("revoked lease renewed");
+
+        if(server.releaseLease(lease.getId()))
+            throw new TestFailed("revoked lease released");
+
+        task("releasing a lease");
+
+        lease = lockLease();
+
+        if(!server.releaseLease(lease.getId()))
+            throw new TestFailed("unable to release lease");
+
+        if(!lockable())
+            throw new TestFailed("released lease still holds its lock");
+
+        if(server.releaseLease(lease.getId()) ||
+           server.renewLease(lease.getId()))
+        {
+            throw new TestFailed("lease released twice");
+        }
+
+        task("holding and closing a leased lock");
+
+        LeasedLock  leased;
+
+        try
+        {
+            leased = new LeasedLock(server, a, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock under a lease", t);
+        }
+
+        sleep(4 * LEASE_TIME);
+
+        if(!leased.isHeld() || lockable())
+            throw new TestFailed("leased lock not kept by its renewals");
+
+        try
+        {
+            leased.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to close leased lock", e);
+        }
+
+        if(leased.isHeld() || !lockable())
+            throw new TestFailed("closed leased lock still held");
+
+        if(server.renewLease(leased.getLease().getId()))
+            throw new TestFailed("lease of closed lock renewed");
+
+        task();
+    }
+
+    /** Locks the test directory for exclusive access under a lease. */
+    private Lease lockLease() throws TestFailed
+    {
+        try
+        {
+            return server.lockLease(a, true);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to lock under a lease", e);
+        }
+    }
+
+    /** Tries to lock the test directory from another thread.
+
+        @return <code>true</code> if the lock was granted within 200
+                milliseconds, in which case it has been released again.
+        @throws TestFailed If the directory cannot be found.
+     */
+    private boolean lockable() throws TestFailed
+    {
+        final Throwable[]   failure = new Throwable[1];
+
+        Thread  locker = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    server.lock(a, true);
+                    server.unlock(a, true);
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        };
+
+        locker.start();
+
+        try
+        {
+            locker.join(200);
+        }
+        catch(InterruptedException e) { }
+
+        if(locker.isAlive())
+        {
+            // the thread is still queued: take it out of the queue
+            locker.interrupt();
+
+            try
+            {
+                locker.join();
+            }
+            catch(InterruptedException e) { }
+
+            return false;
+        }
+
+        if(failure[0] != null)
+            throw new TestFailed("unable to lock " + a, failure[0]);
+
+        return true;
+    }
+
+    /** Sleeps, ignoring interruptions. */
+    private static void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch(InterruptedException e) { }
+    }
+}
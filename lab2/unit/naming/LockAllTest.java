@@ -0,0 +1,243 @@
+package naming;
+
+import java.io.FileNotFoundException;
+
+import test.*;
+import common.*;
+
+/** Checks that <code>NamingServer.lockAll</code> locks several objects in
+    one call, rejects what it cannot lock safely, and leaves nothing locked
+    when it fails.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Objects locked together are held until <code>unlockAll</code>, and
+        free afterwards.</li>
+    <li>A path given twice is locked once, in the stronger mode.</li>
+    <li>A path below another given path, arrays of different lengths and
+        <code>null</code> paths are rejected before anything is locked.</li>
+    <li>If one object cannot be found, the locks already taken are
+        released.</li>
+    </ul>
+
+    <p>
+    The naming server is called directly, without being started.
+ */
+public class LockAllTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server lockAll and unlockAll";
+
+    // Several paths used in the test.
+    private final Path          a = new Path("/a");
+    private final Path          b = new Path("/b");
+    private final Path          nested = new Path("/a/nested");
+    private final Path          missing = new Path("/b/missing");
+
+    /** Naming server under test. */
+    private NamingServer        server;
+
+    /** Creates the directories used in the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+
+        try
+        {
+            if(!server.createDirectory(a) || !server.createDirectory(b) ||
+               !server.createDirectory(nested))
+            {
+                throw new TestFailed("unable to create directories");
+            }
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create directories", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Path[]      both = new Path[] {b, a};
+        boolean[]   modes = new boolean[] {true, false};
+
+        task("locking and unlocking several objects");
+
+        lockAll(both, modes);
+
+        if(lockable(b, false))
+            throw new TestFailed("exclusively locked object still shared");
+
+        if(lockable(a, true))
+            throw new TestFailed("shared object locked for exclusive access");
+
+        if(!lockable(a, false))
+            throw new TestFailed("shared object not shared");
+
+        server.unlockAll(both, modes);
+        free(a);
+        free(b);
+
+        task("merging a path given twice");
+
+        Path[]      twice = new Path[] {a, a};
+        boolean[]   stronger = new boolean[] {false, true};
+
+        lockAll(twice, stronger);
+
+        if(lockable(a, false))
+            throw new TestFailed("path given twice not locked exclusively");
+
+        server.unlockAll(twice, stronger);
+        free(a);
+
+        task("rejecting nested paths");
+
+        try
+        {
+            server.lockAll(new Path[] {a, nested}, new boolean[2]);
+            throw new TestFailed("nested paths accepted");
+        }
+        catch(IllegalArgumentException e) { }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("nested paths not rejected", e);
+        }
+
+        free(a);
+        free(nested);
+
+        task("rejecting malformed arguments");
+
+        try
+        {
+            server.lockAll(both, new boolean[1]);
+            throw new TestFailed("arrays of different lengths accepted");
+        }
+        catch(IllegalArgumentException e) { }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("arrays of different lengths not rejected",
+                                 e);
+        }
+
+        try
+        {
+            server.lockAll(new Path[] {a, null}, new boolean[2]);
+            throw new TestFailed("null path accepted");
+        }
+        catch(NullPointerException e) { }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("null path not rejected", e);
+        }
+
+        free(a);
+
+        task("releasing the locks taken before a failure");
+
+        try
+        {
+            // /a is locked before /b/missing is found missing
+            server.lockAll(new Path[] {missing, a},
+                           new boolean[] {false, true});
+            throw new TestFailed("missing object locked");
+        }
+        catch(FileNotFoundException e) { }
+
+        free(a);
+        free(b);
+
+        task();
+    }
+
+    /** Locks several objects, failing the test if one cannot be found. */
+    private void lockAll(Path[] paths, boolean[] exclusive) throws TestFailed
+    {
+        try
+        {
+            server.lockAll(paths, exclusive);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to lock objects", e);
+        }
+    }
+
+    /** Checks that an object is not locked by taking it for exclusive access.
+
+        @param path The object.
+        @throws TestFailed If the object is still locked.
+     */
+    private void free(Path path) throws TestFailed
+    {
+        if(!lockable(path, true))
+            throw new TestFailed(path + " left locked");
+    }
+
+    /** Tries to lock an object from another thread.
+
+        @param path The object.
+        @param exclusive The mode to lock it in.
+        @return <code>true</code> if the lock was granted within 200
+                milliseconds, in which case it has been released again.
+        @throws TestFailed If the object cannot be found.
+     */
+    private boolean lockable(final Path path, final boolean exclusive)
+        throws TestFailed
+    {
+        final Throwable[]   failure = new Throwable[1];
+
+        Thread  locker = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    server.lock(path, exclusive);
+                    server.unlock(path, exclusive);
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        };
+
+        locker.start();
+
+        try
+        {
+            locker.join(200);
+        }
+        catch(InterruptedException e) { }
+
+        if(locker.isAlive())
+        {
+            // the thread is still queued: take it out of the queue
+            locker.interrupt();
+
+            try
+            {
+                locker.join();
+            }
+            catch(InterruptedException e) { }
+
+            return false;
+        }
+
+        if(failure[0] != null)
+            throw new TestFailed("unable to lock " + path, failure[0]);
+
+        return true;
+    }
+}
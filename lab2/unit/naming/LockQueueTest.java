@@ -0,0 +1,459 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Checks the order in which <code>ReadWriteLock</code> serves queued
+    requests, and the withdrawal of requests that time out or are
+    interrupted.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Queued requests are granted in arrival order: a writer alone, and
+        every reader up to the next writer together. A reader arriving behind
+        a queued writer waits for it even while the lock is shared.</li>
+    <li><code>tryLockRead</code> and <code>tryLockWrite</code> give up once
+        their time has passed, and readers queued behind a writer that gave
+        up are then granted the lock.</li>
+    <li>A request interrupted while queued is withdrawn, and a request
+        interrupted after the lock was handed to it gives the lock back.</li>
+    </ul>
+ */
+public class LockQueueTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the order and withdrawal of queued lock requests";
+
+    /** Threads started by the test, stopped if it fails. */
+    private final List<Thread>  threads = new ArrayList<Thread>();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("handing the lock over in arrival order");
+        handoff();
+
+        task("giving up on requests that time out");
+        timeout();
+
+        task("withdrawing interrupted requests");
+        interrupt();
+
+        task("giving back a lock granted to an interrupted request");
+        interruptAfterGrant();
+
+        task();
+    }
+
+    /** Queues a writer, two readers, a writer and a reader behind a writer,
+        and checks which of them hold the lock as each group releases it.
+
+        @throws TestFailed If the lock is granted out of order.
+     */
+    private void handoff() throws TestFailed
+    {
+        ReadWriteLock   lock = new ReadWriteLock();
+        List<String>    granted = new ArrayList<String>();
+
+        lock(lock, true);
+
+        Holder  w1 = holder(lock, true, "w1", granted);
+        Holder  r1 = holder(lock, false, "r1", granted);
+        Holder  r2 = holder(lock, false, "r2", granted);
+        Holder  w2 = holder(lock, true, "w2", granted);
+        Holder  r3 = holder(lock, false, "r3", granted);
+
+        lock.unlockWrite();
+        expect(granted, "w1");
+
+        w1.release.countDown();
+        expect(granted, "w1", "r1", "r2");
+
+        r1.release.countDown();
+        r2.release.countDown();
+        expect(granted, "w1", "r1", "r2", "w2");
+
+        w2.release.countDown();
+        expect(granted, "w1", "r1", "r2", "w2", "r3");
+
+        r3.release.countDown();
+        join();
+
+        if(lock.stats().getWaits() != 5)
+            throw new TestFailed("wrong number of queued grants");
+    }
+
+    /** Checks that timed requests give up, and that readers queued behind a
+        writer that gave up are served.
+
+        @throws TestFailed If a request is granted while it should not, or
+                           waits too long.
+     */
+    private void timeout() throws TestFailed
+    {
+        ReadWriteLock   lock = new ReadWriteLock();
+        List<String>    granted = new ArrayList<String>();
+
+        lock(lock, true);
+
+        try
+        {
+            long    start = System.nanoTime();
+
+            if(lock.tryLockRead(50, TimeUnit.MILLISECONDS))
+                throw new TestFailed("shared access granted under a writer");
+
+            if(lock.tryLockWrite(50, TimeUnit.MILLISECONDS))
+                throw new TestFailed("exclusive access granted twice");
+
+            if(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100))
+                throw new TestFailed("timed requests gave up early");
+
+            lock.unlockWrite();
+
+            if(lock.stats().getQueued() != 0)
+                throw new TestFailed("timed out requests left queued");
+
+            lock.lockRead();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        final ReadWriteLock timed = lock;
+        final boolean[]     result = new boolean[] {true};
+
+        Thread  writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    result[0] = timed.tryLockWrite(300, TimeUnit.MILLISECONDS);
+                }
+                catch(InterruptedException e) { }
+            }
+        };
+
+        start(writer);
+        awaitParked(writer);
+
+        // queued behind the writer, although the lock is only shared
+        Holder  reader = holder(lock, false, "reader", granted);
+        expect(granted);
+
+        join(writer);
+
+        if(result[0])
+            throw new TestFailed("exclusive access granted while shared");
+
+        expect(granted, "reader");
+
+        reader.release.countDown();
+        lock.unlockRead();
+        join();
+    }
+
+    /** Checks that a request interrupted while queued is withdrawn.
+
+        @throws TestFailed If the request is not withdrawn.
+     */
+    private void interrupt() throws TestFailed
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+        final boolean[]     interrupted = new boolean[1];
+
+        lock(lock, true);
+
+        Thread  writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    lock.lockWrite();
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted[0] = true;
+                }
+            }
+        };
+
+        start(writer);
+        awaitParked(writer);
+        writer.interrupt();
+        join(writer);
+
+        if(!interrupted[0])
+            throw new TestFailed("queued request not interrupted");
+
+        if(lock.stats().getQueued() != 0)
+            throw new TestFailed("interrupted request left queued");
+
+        lock.unlockWrite();
+        free(lock);
+    }
+
+    /** Hands the lock to a queued request that is interrupted before it
+        wakes, and checks that the request gives the lock back.
+
+        @throws TestFailed If the lock is still held afterwards.
+     */
+    private void interruptAfterGrant() throws TestFailed
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+        final boolean[]     interrupted = new boolean[1];
+
+        lock(lock, true);
+
+        Thread  writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    lock.lockWrite();
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted[0] = true;
+                }
+            }
+        };
+
+        start(writer);
+        awaitParked(writer);
+
+        // the woken writer cannot withdraw its request before the lock has
+        // been handed to it, since withdrawing takes the monitor
+        synchronized(lock)
+        {
+            writer.interrupt();
+            lock.unlockWrite();
+        }
+
+        join(writer);
+
+        if(!interrupted[0])
+            throw new TestFailed("request interrupted after the grant " +
+                                 "kept the lock");
+
+        if(lock.stats().getExclusiveAcquisitions() != 2)
+            throw new TestFailed("lock was not handed to the request");
+
+        free(lock);
+    }
+
+    /** A thread that takes a lock, notes it, and holds it until released. */
+    private static class Holder extends Thread
+    {
+        final CountDownLatch    release = new CountDownLatch(1);
+        private final ReadWriteLock lock;
+        private final boolean       exclusive;
+        private final List<String>  granted;
+
+        Holder(ReadWriteLock lock, boolean exclusive, String name,
+               List<String> granted)
+        {
+            super(name);
+            this.lock = lock;
+            this.exclusive = exclusive;
+            this.granted = granted;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if(exclusive)
+                    lock.lockWrite();
+                else
+                    lock.lockRead();
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+
+            synchronized(granted)
+            {
+                granted.add(getName());
+                granted.notifyAll();
+            }
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+
+            if(exclusive)
+                lock.unlockWrite();
+            else
+                lock.unlockRead();
+        }
+    }
+
+    /** Starts a holder and waits until it is queued.
+
+        @throws TestFailed If the holder is not queued in time.
+     */
+    private Holder holder(ReadWriteLock lock, boolean exclusive, String name,
+                          List<String> granted) throws TestFailed
+    {
+        Holder  holder = new Holder(lock, exclusive, name, granted);
+        start(holder);
+        awaitParked(holder);
+        return holder;
+    }
+
+    /** Waits until the holders granted the lock are exactly those given,
+        and checks that no other is granted it shortly after. The readers of
+        one batch may note their grants in any order, so the order is checked
+        by the successive calls instead.
+
+        @param granted The names of the holders granted the lock so far.
+        @param expected The names expected.
+        @throws TestFailed If other holders are granted the lock.
+     */
+    private static void expect(List<String> granted, String... expected)
+        throws TestFailed
+    {
+        long    deadline = System.currentTimeMillis() + 2000;
+
+        synchronized(granted)
+        {
+            while(granted.size() < expected.length)
+            {
+                long    left = deadline - System.currentTimeMillis();
+                if(left <= 0)
+                    break;
+
+                try
+                {
+                    granted.wait(left);
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        try
+        {
+            // the holders that should still wait have had time to go on
+            Thread.sleep(50);
+        }
+        catch(InterruptedException e) { }
+
+        synchronized(granted)
+        {
+            if(!new HashSet<String>(granted).equals(
+                    new HashSet<String>(Arrays.asList(expected))))
+            {
+                throw new TestFailed("lock granted to " + granted +
+                                     ", expected " +
+                                     Arrays.asList(expected));
+            }
+        }
+    }
+
+    /** Takes a lock in the testing thread. */
+    private static void lock(ReadWriteLock lock, boolean exclusive)
+        throws TestFailed
+    {
+        try
+        {
+            if(exclusive)
+                lock.lockWrite();
+            else
+                lock.lockRead();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Checks that a lock is free by taking it for exclusive access. */
+    private static void free(ReadWriteLock lock) throws TestFailed
+    {
+        try
+        {
+            if(!lock.tryLockWrite(1, TimeUnit.SECONDS))
+                throw new TestFailed("lock still held");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        lock.unlockWrite();
+    }
+
+    /** Waits until a thread is parked in the lock's queue.
+
+        @throws TestFailed If the thread does not park in time.
+     */
+    private static void awaitParked(Thread thread) throws TestFailed
+    {
+        long    deadline = System.currentTimeMillis() + 2000;
+
+        while(thread.getState() != Thread.State.WAITING &&
+              thread.getState() != Thread.State.TIMED_WAITING)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed(thread.getName() + " did not queue");
+
+            Thread.yield();
+        }
+    }
+
+    /** Starts a thread, to be stopped if the test fails. */
+    private void start(Thread thread)
+    {
+        threads.add(thread);
+        thread.start();
+    }
+
+    /** Waits for a thread to terminate. */
+    private static void join(Thread thread)
+    {
+        try
+        {
+            thread.join();
+        }
+        catch(InterruptedException e) { }
+    }
+
+    /** Waits for every thread started so far to terminate. */
+    private void join()
+    {
+        for(Thread thread : threads)
+            join(thread);
+    }
+
+    /** Interrupts the threads of a failed test. */
+    @Override
+    protected void clean()
+    {
+        for(Thread thread : threads)
+            thread.interrupt();
+    }
+}
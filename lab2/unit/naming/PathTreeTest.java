@@ -0,0 +1,124 @@
+package naming;
+
+import java.util.Arrays;
+
+import test.*;
+import common.*;
+
+/** Checks that the naming server's tree of path nodes resolves, adds and
+    removes entries.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Paths resolve to the nodes added for them, and to <code>null</code>
+        below a missing entry or a file.</li>
+    <li>A node rebuilds its own path from the names up to the root.</li>
+    <li>A name cannot be added twice, and <code>addDirectory</code> returns
+        the existing entry of that name.</li>
+    <li>A removed node no longer resolves, and only the node given is
+        removed.</li>
+    </ul>
+ */
+public class PathTreeTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the naming server's path tree";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        PathInfo    root = new PathInfo();
+
+        task("resolving added paths");
+
+        PathInfo    etc = root.addChild("etc", false);
+        PathInfo    scripts = etc.addDirectory("scripts");
+        PathInfo    startup = scripts.addChild("startup.sh", true);
+
+        if(etc == null || scripts == null || startup == null)
+            throw new TestFailed("unable to add entries");
+
+        if(root.resolve(new Path("/")) != root)
+            throw new TestFailed("root does not resolve to itself");
+
+        if(root.resolve(new Path("/etc/scripts/startup.sh")) != startup)
+            throw new TestFailed("file does not resolve to its node");
+
+        if(root.resolve(new Path("/etc/scripts/startup.sh"), 1) != etc)
+            throw new TestFailed("prefix does not resolve to its node");
+
+        if(etc.resolve(new Path("/scripts")) != scripts)
+            throw new TestFailed("relative path does not resolve");
+
+        if(root.resolve(new Path("/etc/missing/startup.sh")) != null)
+            throw new TestFailed("path below a missing entry resolves");
+
+        if(root.resolve(new Path("/etc/scripts/startup.sh/x")) != null)
+            throw new TestFailed("path below a file resolves");
+
+        task("rebuilding paths from nodes");
+
+        if(!startup.getPath().equals(new Path("/etc/scripts/startup.sh")))
+            throw new TestFailed("file rebuilds path " + startup.getPath());
+
+        if(!root.getPath().isRoot())
+            throw new TestFailed("root rebuilds path " + root.getPath());
+
+        if(startup.getParent() != scripts || root.getParent() != null)
+            throw new TestFailed("wrong parent link");
+
+        task("adding names that are taken");
+
+        if(etc.addChild("scripts", true) != null)
+            throw new TestFailed("name added twice");
+
+        if(etc.addDirectory("scripts") != scripts)
+            throw new TestFailed("existing directory not returned");
+
+        if(scripts.addDirectory("startup.sh") != startup)
+            throw new TestFailed("existing file not returned");
+
+        PathInfo    shutdown = scripts.addChild("shutdown.sh", true);
+        String[]    names = scripts.list();
+        Arrays.sort(names);
+
+        if(!Arrays.equals(names, new String[] {"shutdown.sh", "startup.sh"}))
+            throw new TestFailed("wrong listing " + Arrays.toString(names));
+
+        if(startup.list().length != 0 || !startup.getChildren().isEmpty())
+            throw new TestFailed("file has children");
+
+        task("removing entries");
+
+        scripts.rmvChild(startup);
+
+        if(root.resolve(new Path("/etc/scripts/startup.sh")) != null)
+            throw new TestFailed("removed file still resolves");
+
+        if(root.resolve(new Path("/etc/scripts/shutdown.sh")) != shutdown)
+            throw new TestFailed("sibling removed with file");
+
+        // a node of the same name that replaced it must stay
+        PathInfo    replacement = scripts.addChild("startup.sh", false);
+        scripts.rmvChild(startup);
+
+        if(root.resolve(new Path("/etc/scripts/startup.sh")) != replacement)
+            throw new TestFailed("stale node removed its replacement");
+
+        root.rmvChild(etc);
+
+        if(root.resolve(new Path("/etc/scripts/shutdown.sh")) != null ||
+           root.list().length != 0)
+        {
+            throw new TestFailed("removed directory still resolves");
+        }
+
+        task();
+    }
+}
@@ -0,0 +1,228 @@
+package naming;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Checks that readers taking <code>ReadWriteLock</code> without entering its
+    monitor are still excluded by writers.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>A reader arriving while a writer holds the lock waits for it.</li>
+    <li>A writer arriving while a reader holds the lock waits for it.</li>
+    <li>With readers and writers taking the lock concurrently, no writer ever
+        holds it together with a reader or another writer.</li>
+    <li>Every grant is counted in the lock's statistics.</li>
+    </ul>
+ */
+public class ReadWriteLockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking reader and writer exclusion in ReadWriteLock";
+
+    /** Number of threads reading concurrently. */
+    private static final int    READERS = 6;
+    /** Number of threads writing concurrently. */
+    private static final int    WRITERS = 2;
+    /** Number of times each thread takes the lock. */
+    private static final int    ROUNDS = 20000;
+
+    /** Threads started by the test, stopped if it fails. */
+    private Thread[]            threads = new Thread[0];
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("excluding a reader while a writer holds the lock");
+        waitsBehind(true);
+
+        task("excluding a writer while a reader holds the lock");
+        waitsBehind(false);
+
+        task("excluding writers from concurrent readers");
+
+        final ReadWriteLock lock = new ReadWriteLock();
+        final AtomicInteger readers = new AtomicInteger();
+        final AtomicInteger writers = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final Throwable[]   failure = new Throwable[1];
+
+        threads = new Thread[READERS + WRITERS];
+
+        for(int index = 0; index < threads.length; ++index)
+        {
+            final boolean   writer = index < WRITERS;
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int round = 0; round < ROUNDS; ++round)
+                        {
+                            if(writer)
+                            {
+                                lock.lockWrite();
+                                if(writers.incrementAndGet() != 1 ||
+                                   readers.get() != 0)
+                                {
+                                    overlaps.incrementAndGet();
+                                }
+                                writers.decrementAndGet();
+                                lock.unlockWrite();
+                            }
+                            else
+                            {
+                                lock.lockRead();
+                                readers.incrementAndGet();
+                                if(writers.get() != 0)
+                                    overlaps.incrementAndGet();
+                                readers.decrementAndGet();
+                                lock.unlockRead();
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[index].start();
+        }
+
+        join(threads);
+
+        if(failure[0] != null)
+            throw new TestFailed("thread failed to take the lock", failure[0]);
+
+        if(overlaps.get() != 0)
+        {
+            throw new TestFailed("writer held the lock with other holders " +
+                                 overlaps.get() + " times");
+        }
+
+        task("counting grants");
+
+        ReadWriteLock.Stats stats = lock.stats();
+
+        if(stats.getSharedAcquisitions() != (long)READERS * ROUNDS ||
+           stats.getExclusiveAcquisitions() != (long)WRITERS * ROUNDS)
+        {
+            throw new TestFailed("wrong grant counts: " + stats);
+        }
+
+        if(stats.getQueued() != 0)
+            throw new TestFailed("requests left queued: " + stats);
+
+        task();
+    }
+
+    /** Checks that a request waits while the lock is held in the other mode,
+        and is granted once it is released.
+
+        @param writerFirst If <code>true</code>, the lock is held for
+                           exclusive access and a reader waits; otherwise the
+                           lock is held for shared access and a writer waits.
+        @throws TestFailed If the request is granted too early or not at all.
+     */
+    private void waitsBehind(final boolean writerFirst) throws TestFailed
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+        final boolean[]     granted = new boolean[1];
+
+        try
+        {
+            if(writerFirst)
+                lock.lockWrite();
+            else
+                lock.lockRead();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        Thread  waiter = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if(writerFirst)
+                        lock.lockRead();
+                    else
+                        lock.lockWrite();
+
+                    synchronized(granted)
+                    {
+                        granted[0] = true;
+                    }
+                }
+                catch(InterruptedException e) { }
+            }
+        };
+
+        threads = new Thread[] {waiter};
+        waiter.start();
+
+        try
+        {
+            Thread.sleep(100);
+        }
+        catch(InterruptedException e) { }
+
+        synchronized(granted)
+        {
+            if(granted[0])
+                throw new TestFailed("lock granted while held");
+        }
+
+        if(writerFirst)
+            lock.unlockWrite();
+        else
+            lock.unlockRead();
+
+        join(threads);
+
+        synchronized(granted)
+        {
+            if(!granted[0])
+                throw new TestFailed("lock not granted once released");
+        }
+    }
+
+    /** Waits for threads to terminate.
+
+        @param threads The threads.
+     */
+    private static void join(Thread[] threads)
+    {
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e) { }
+        }
+    }
+
+    /** Interrupts the threads of a failed test. */
+    @Override
+    protected void clean()
+    {
+        for(Thread thread : threads)
+            thread.interrupt();
+    }
+}